@@ -1,82 +1,452 @@
 package de.fu_berlin.inf.dpp.activities;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+
+import org.apache.commons.lang.ObjectUtils;
+
+import de.fu_berlin.inf.dpp.activities.EditorActivity.Type;
+import de.fu_berlin.inf.dpp.activities.ProgressActivity.ProgressAction;
 
 /**
- * Optimizer for activities.
+ * Optimizer for activities. The optimization is performed by a sequence of
+ * {@linkplain Rule rules}, each of them removing or replacing activities that
+ * do not change the result of the execution.
+ * <p>
+ * The optimizer runs for every sent and every dispatched list of activities,
+ * so the rules work on an array and remember the activities they have seen by
+ * their index instead of creating collections of boxed values.
  */
 public class ActivityOptimizer {
 
     /**
-     * Tries to reduce the number of {@link IActivity activities} so that:
-     * <p>
-     * 
-     * <pre>
-     * for (activity : optimize(activities))
-     *         exec(activity)
-     * 
-     * will produce the same result as
-     * 
-     * for (activity : activities)
-     *         exec(activity)
-     * </pre>
-     * 
-     * @param activities
-     *            a collection containing the activities to optimize
-     * @return a list which may contains a reduced amount of activities
+     * A rule that reduces the number of activities. A rule must not change the
+     * result of executing the activities, see {@link ActivityOptimizer#optimize
+     * optimize}. Rules are shared and may be applied concurrently, so they must
+     * not keep any state between invocations.
      */
+    public interface Rule {
 
-    public static List<IActivity> optimize(Collection<IActivity> activities) {
+        /**
+         * Applies this rule to the given activities. Activities are dropped by
+         * setting their entry to <code>null</code>. The rule may also replace
+         * an activity with an equivalent one.
+         *
+         * @param activities
+         *            the activities to optimize, may already contain
+         *            <code>null</code> entries that must be skipped
+         */
+        public void apply(IActivity[] activities);
+    }
 
-        List<IActivity> result = new ArrayList<IActivity>(activities.size());
+    /**
+     * Keeps only the latest {@link TextSelectionActivity} and
+     * {@link ViewportActivity} per source and path.
+     */
+    public static final Rule SUPERSEDED_SELECTIONS = new KeyedRule() {
 
-        boolean[] dropActivityIdx = new boolean[activities.size()];
+        @Override
+        public void apply(IActivity[] activities) {
+            final int[] table = createTable(activities.length);
 
-        Map<SPath, Integer> selections = new HashMap<SPath, Integer>();
-        Map<SPath, Integer> viewports = new HashMap<SPath, Integer>();
+            for (int i = 0; i < activities.length; i++) {
+                final IActivity activity = activities[i];
 
-        /*
-         * keep only the latest selection/viewport activities per project and
-         * path
-         */
+                if (!(activity instanceof TextSelectionActivity)
+                    && !(activity instanceof ViewportActivity))
+                    continue;
+
+                final int slot = find(table, activities, activity);
+
+                if (table[slot] != EMPTY)
+                    activities[table[slot]] = null;
+
+                table[slot] = i;
+            }
+        }
+
+        @Override
+        int hashKey(IActivity activity) {
+            return 31 * ObjectUtils.hashCode(activity.getSource())
+                + ObjectUtils.hashCode(((IResourceActivity) activity).getPath());
+        }
+
+        @Override
+        boolean sameKey(IActivity a, IActivity b) {
+            return a.getClass() == b.getClass()
+                && ObjectUtils.equals(a.getSource(), b.getSource())
+                && ObjectUtils.equals(((IResourceActivity) a).getPath(),
+                    ((IResourceActivity) b).getPath());
+        }
+    };
+
+    /**
+     * Removes {@link EditorActivity editor activities} that do not change the
+     * editor state of their source: an activation of the already active editor
+     * and an activation that is followed by closing and activating the same
+     * editor again. Only directly consecutive activities of the same source
+     * are considered.
+     */
+    public static final Rule EDITOR_FLIPS = new KeyedRule() {
+
+        @Override
+        public void apply(IActivity[] activities) {
+            final int[] table = createTable(activities.length);
+
+            /*
+             * index of the preceding activity of the same source that was not
+             * dropped
+             */
+            final int[] previousOf = new int[activities.length];
+
+            for (int i = 0; i < activities.length; i++) {
+                final IActivity activity = activities[i];
+
+                if (activity == null)
+                    continue;
 
-        int activityIdx = 0;
+                final int slot = find(table, activities, activity);
+                int previous = table[slot];
 
-        for (IActivity activity : activities) {
+                if (isEditorActivity(activity, Type.ACTIVATED)) {
+                    final SPath path = ((EditorActivity) activity).getPath();
 
-            if (activity instanceof TextSelectionActivity) {
-                SPath path = ((TextSelectionActivity) activity).getPath();
+                    if (previous != EMPTY
+                        && isEditorActivity(activities[previous],
+                            Type.ACTIVATED, path)) {
+                        activities[i] = null;
+                        continue;
+                    }
 
-                Integer idx = selections.get(path);
+                    final int beforePrevious = previous == EMPTY ? EMPTY
+                        : previousOf[previous];
 
-                if (idx != null)
-                    dropActivityIdx[idx] = true;
+                    if (beforePrevious != EMPTY
+                        && isEditorActivity(activities[previous], Type.CLOSED,
+                            path)
+                        && isEditorActivity(activities[beforePrevious],
+                            Type.ACTIVATED, path)) {
 
-                selections.put(path, activityIdx);
-            } else if (activity instanceof ViewportActivity) {
-                SPath path = ((ViewportActivity) activity).getPath();
+                        activities[beforePrevious] = null;
+                        activities[previous] = null;
+                        previous = previousOf[beforePrevious];
+                    }
+                }
 
-                Integer idx = viewports.get(path);
+                previousOf[i] = previous;
+                table[slot] = i;
+            }
+        }
+
+        @Override
+        int hashKey(IActivity activity) {
+            return ObjectUtils.hashCode(activity.getSource());
+        }
+
+        @Override
+        boolean sameKey(IActivity a, IActivity b) {
+            return ObjectUtils.equals(a.getSource(), b.getSource());
+        }
+    };
+
+    /**
+     * Folds consecutive {@link ProgressActivity} updates of the same progress
+     * that only report the amount of work done. The first update of such a
+     * run is kept because remote progress monitors treat the first update
+     * differently, the last one is kept as it reports the current work.
+     */
+    public static final Rule PROGRESS_UPDATES = new KeyedRule() {
 
-                if (idx != null)
-                    dropActivityIdx[idx] = true;
+        @Override
+        public void apply(IActivity[] activities) {
+            final int[] table = createTable(activities.length);
 
-                viewports.put(path, activityIdx);
+            /*
+             * whether the activity continues a run of work updates, i.e. it is
+             * not the first update of that run
+             */
+            final boolean[] continuesRun = new boolean[activities.length];
+
+            for (int i = 0; i < activities.length; i++) {
+                final IActivity activity = activities[i];
+
+                if (!(activity instanceof ProgressActivity))
+                    continue;
+
+                final int slot = find(table, activities, activity);
+                final int previous = table[slot];
+
+                if (isWorkUpdate(activity) && previous != EMPTY
+                    && isWorkUpdate(activities[previous])) {
+
+                    if (continuesRun[previous])
+                        activities[previous] = null;
+
+                    continuesRun[i] = true;
+                }
+
+                table[slot] = i;
             }
+        }
+
+        @Override
+        int hashKey(IActivity activity) {
+            final ProgressActivity progress = (ProgressActivity) activity;
 
-            activityIdx++;
+            return 31
+                * (31 * ObjectUtils.hashCode(progress.getSource()) + ObjectUtils
+                    .hashCode(progress.getTarget()))
+                + ObjectUtils.hashCode(progress.getProgressID());
         }
 
-        activityIdx = 0;
+        @Override
+        boolean sameKey(IActivity a, IActivity b) {
+            final ProgressActivity progressA = (ProgressActivity) a;
+            final ProgressActivity progressB = (ProgressActivity) b;
+
+            return ObjectUtils.equals(progressA.getSource(),
+                progressB.getSource())
+                && ObjectUtils.equals(progressA.getTarget(),
+                    progressB.getTarget())
+                && ObjectUtils.equals(progressA.getProgressID(),
+                    progressB.getProgressID());
+        }
+    };
+
+    /**
+     * Merges directly consecutive {@link TextEditActivity text edits} of the
+     * same source and path if the later edit starts or ends at the text
+     * inserted by the earlier one, e.g. while a user is typing or deleting
+     * characters with backspace.
+     */
+    public static final Rule TEXT_EDITS = new Rule() {
+
+        @Override
+        public void apply(IActivity[] activities) {
+            TextEditRun run = null;
+
+            for (int i = 0; i < activities.length; i++) {
+                final IActivity activity = activities[i];
+
+                if (activity == null)
+                    continue;
+
+                if (!(activity instanceof TextEditActivity)) {
+                    if (run != null)
+                        run.finish(activities);
+
+                    continue;
+                }
+
+                final TextEditActivity edit = (TextEditActivity) activity;
+
+                if (run == null)
+                    run = new TextEditRun();
+
+                if (run.merge(edit)) {
+                    activities[i] = null;
+                    continue;
+                }
+
+                run.finish(activities);
+                run.start(i, edit);
+            }
+
+            if (run != null)
+                run.finish(activities);
+        }
+    };
 
-        for (IActivity activity : activities)
-            if (!dropActivityIdx[activityIdx++])
+    private static final Rule[] DEFAULT_RULES = { SUPERSEDED_SELECTIONS,
+        EDITOR_FLIPS, PROGRESS_UPDATES, TEXT_EDITS };
+
+    private static final int EMPTY = -1;
+
+    /**
+     * Consecutive text edits that are merged into the first edit of the run.
+     */
+    private static final class TextEditRun {
+        private final StringBuilder text = new StringBuilder();
+        private final StringBuilder replacedText = new StringBuilder();
+
+        private TextEditActivity first;
+        private int index = EMPTY;
+        private int offset;
+        private boolean merged;
+
+        private void start(int index, TextEditActivity edit) {
+            this.index = index;
+            first = edit;
+            offset = edit.getOffset();
+            merged = false;
+
+            text.setLength(0);
+            text.append(edit.getText());
+            replacedText.setLength(0);
+            replacedText.append(edit.getReplacedText());
+        }
+
+        private boolean merge(TextEditActivity edit) {
+            if (index == EMPTY
+                || !ObjectUtils.equals(first.getSource(), edit.getSource())
+                || !ObjectUtils.equals(first.getPath(), edit.getPath()))
+                return false;
+
+            final int editOffset = edit.getOffset();
+            final int replacedLength = edit.getReplacedText().length();
+
+            if (editOffset >= offset
+                && editOffset + replacedLength <= offset + text.length()) {
+                // the edit only changes the text inserted before
+                text.replace(editOffset - offset, editOffset - offset
+                    + replacedLength, edit.getText());
+            } else if (editOffset == offset + text.length()) {
+                // the edit continues after the text inserted before
+                text.append(edit.getText());
+                replacedText.append(edit.getReplacedText());
+            } else if (editOffset + replacedLength == offset) {
+                // the edit ends where the text inserted before starts
+                text.insert(0, edit.getText());
+                replacedText.insert(0, edit.getReplacedText());
+                offset = editOffset;
+            } else {
+                return false;
+            }
+
+            merged = true;
+            return true;
+        }
+
+        /**
+         * Replaces the first edit of the run with the merged edit if
+         * necessary and ends the run.
+         */
+        private void finish(IActivity[] activities) {
+            if (merged)
+                activities[index] = new TextEditActivity(first.getSource(),
+                    offset, text.toString(), replacedText.toString(),
+                    first.getPath());
+
+            index = EMPTY;
+            first = null;
+            merged = false;
+        }
+    }
+
+    /**
+     * Base class for rules that look up earlier activities by a key that is
+     * derived from the activity. The lookup uses a hash table of activity
+     * indices with open addressing, so neither key objects nor boxed indices
+     * are created.
+     */
+    private abstract static class KeyedRule implements Rule {
+
+        abstract int hashKey(IActivity activity);
+
+        abstract boolean sameKey(IActivity a, IActivity b);
+
+        /**
+         * Creates a table for the given number of activities. Every slot is
+         * either {@link #EMPTY} or the index of the latest activity with the
+         * key of that slot.
+         */
+        static int[] createTable(int count) {
+            final int[] table = new int[Integer.highestOneBit(Math.max(count,
+                1)) * 4];
+
+            Arrays.fill(table, EMPTY);
+            return table;
+        }
+
+        /**
+         * Returns the slot of the key of the given activity. The activities
+         * the occupied slots refer to must not be <code>null</code>.
+         */
+        final int find(int[] table, IActivity[] activities, IActivity activity) {
+            final int mask = table.length - 1;
+
+            int hash = hashKey(activity);
+            hash ^= (hash >>> 16);
+
+            int slot = hash & mask;
+
+            while (table[slot] != EMPTY
+                && !sameKey(activities[table[slot]], activity))
+                slot = (slot + 1) & mask;
+
+            return slot;
+        }
+    }
+
+    /**
+     * Tries to reduce the number of {@link IActivity activities} so that:
+     * <p>
+     *
+     * <pre>
+     * for (activity : optimize(activities))
+     *         exec(activity)
+     *
+     * will produce the same result as
+     *
+     * for (activity : activities)
+     *         exec(activity)
+     * </pre>
+     *
+     * @param activities
+     *            a collection containing the activities to optimize
+     * @return a list which may contains a reduced amount of activities
+     */
+
+    public static List<IActivity> optimize(
+        Collection<? extends IActivity> activities) {
+        return optimize(activities, DEFAULT_RULES);
+    }
+
+    /**
+     * Same as {@link #optimize(Collection)} but only applies the given rules
+     * in the given order.
+     *
+     * @param activities
+     *            a collection containing the activities to optimize
+     * @param rules
+     *            the rules to apply
+     * @return a list which may contains a reduced amount of activities
+     */
+    public static List<IActivity> optimize(
+        Collection<? extends IActivity> activities, Rule... rules) {
+
+        final IActivity[] optimizedActivities = activities
+            .toArray(new IActivity[activities.size()]);
+
+        for (Rule rule : rules)
+            rule.apply(optimizedActivities);
+
+        List<IActivity> result = new ArrayList<IActivity>(
+            optimizedActivities.length);
+
+        for (IActivity activity : optimizedActivities)
+            if (activity != null)
                 result.add(activity);
 
         return result;
     }
+
+    private static boolean isEditorActivity(IActivity activity, Type type) {
+        return activity instanceof EditorActivity
+            && ((EditorActivity) activity).getType() == type;
+    }
+
+    private static boolean isEditorActivity(IActivity activity, Type type,
+        SPath path) {
+        return isEditorActivity(activity, type)
+            && ObjectUtils.equals(((EditorActivity) activity).getPath(), path);
+    }
+
+    private static boolean isWorkUpdate(IActivity activity) {
+        return activity instanceof ProgressActivity
+            && ((ProgressActivity) activity).getAction() == ProgressAction.UPDATE
+            && ((ProgressActivity) activity).getTaskName() == null;
+    }
 }
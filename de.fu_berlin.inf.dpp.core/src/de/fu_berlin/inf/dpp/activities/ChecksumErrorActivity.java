@@ -19,6 +19,7 @@
  */
 package de.fu_berlin.inf.dpp.activities;
 
+import java.util.Arrays;
 import java.util.List;
 
 import org.apache.commons.lang.ObjectUtils;
@@ -36,6 +37,10 @@ import de.fu_berlin.inf.dpp.session.User;
  * The host will reply with a ChecksumError of the same recoveryID after having
  * sent the last FileActivity (with {@link FileActivity#isRecovery()} being set
  * related to this checksum recovery.
+ * 
+ * The user may include the block signatures of its version of the files, see
+ * {@link de.fu_berlin.inf.dpp.concurrent.watchdog.BlockDelta}. The host will
+ * then only send the differences in the {@link RecoveryFileActivity}s.
  */
 @XStreamAlias("checksumErrorActivity")
 public class ChecksumErrorActivity extends AbstractActivity implements
@@ -50,16 +55,37 @@ public class ChecksumErrorActivity extends AbstractActivity implements
     @XStreamImplicit
     protected List<SPath> paths;
 
+    @XStreamImplicit(itemFieldName = "signatures")
+    protected List<byte[]> signatures;
+
     public ChecksumErrorActivity(User source, User target, List<SPath> paths,
         String recoveryID) {
+        this(source, target, paths, null, recoveryID);
+    }
+
+    /**
+     * @param signatures
+     *            the block signatures of the user's version of the files with
+     *            the same index in <code>paths</code>, an empty array if the
+     *            whole content of a file should be sent, may be
+     *            <code>null</code>
+     */
+    public ChecksumErrorActivity(User source, User target, List<SPath> paths,
+        List<byte[]> signatures, String recoveryID) {
 
         super(source);
 
         if (target == null)
             throw new IllegalArgumentException("target must not be null");
 
+        if (signatures != null
+            && (paths == null || paths.size() != signatures.size()))
+            throw new IllegalArgumentException(
+                "there must be signatures for every path");
+
         this.target = target;
         this.paths = paths;
+        this.signatures = signatures;
         this.recoveryID = recoveryID;
     }
 
@@ -72,6 +98,21 @@ public class ChecksumErrorActivity extends AbstractActivity implements
         return paths;
     }
 
+    /**
+     * Returns the block signatures of the file with the given index in
+     * {@link #getPaths()}.
+     * 
+     * @return the signatures or <code>null</code> if the whole content of the
+     *         file should be sent
+     */
+    public byte[] getSignatures(int index) {
+        if (signatures == null || signatures.size() <= index)
+            return null;
+
+        final byte[] data = signatures.get(index);
+        return data == null || data.length == 0 ? null : data;
+    }
+
     /**
      * Each ChecksumError has a unique ID, which should be used to identify a
      * recovery session
@@ -90,6 +131,7 @@ public class ChecksumErrorActivity extends AbstractActivity implements
         final int prime = 31;
         int result = super.hashCode();
         result = prime * result + ObjectUtils.hashCode(paths);
+        result = prime * result + hashCode(signatures);
         result = prime * result + ObjectUtils.hashCode(recoveryID);
         result = prime * result + ObjectUtils.hashCode(target);
         return result;
@@ -110,12 +152,41 @@ public class ChecksumErrorActivity extends AbstractActivity implements
             return false;
         if (!ObjectUtils.equals(this.paths, other.paths))
             return false;
+        if (!equals(this.signatures, other.signatures))
+            return false;
         if (!ObjectUtils.equals(this.target, other.target))
             return false;
 
         return true;
     }
 
+    private static int hashCode(List<byte[]> signatures) {
+        if (signatures == null)
+            return 0;
+
+        int result = 1;
+
+        for (byte[] data : signatures)
+            result = 31 * result + Arrays.hashCode(data);
+
+        return result;
+    }
+
+    private static boolean equals(List<byte[]> a, List<byte[]> b) {
+        if (a == null || b == null)
+            return a == b;
+
+        if (a.size() != b.size())
+            return false;
+
+        for (int i = 0; i < a.size(); i++) {
+            if (!Arrays.equals(a.get(i), b.get(i)))
+                return false;
+        }
+
+        return true;
+    }
+
     @Override
     public String toString() {
         return "ChecksumErrorActivity(src: " + getSource() + ", target: "
@@ -21,6 +21,13 @@ public class RecoveryFileActivity extends FileActivity implements
     @XStreamAsAttribute
     private User target;
 
+    /**
+     * The difference to the content of the target, see
+     * {@link de.fu_berlin.inf.dpp.concurrent.watchdog.BlockDelta}. Is
+     * <code>null</code> if the activity contains the whole content.
+     */
+    private byte[] delta;
+
     public RecoveryFileActivity(User source, User target, Type type,
         SPath newPath, SPath oldPath, byte[] data, String encoding) {
 
@@ -67,6 +74,33 @@ public class RecoveryFileActivity extends FileActivity implements
         return createFromFileActivity(fileActivity, target, encoding);
     }
 
+    /**
+     * Utility method for creating a RecoveryFileActivity of type
+     * {@link FileActivity.Type#CREATED} that only contains the difference to
+     * the content of the target. The content has to be restored with
+     * {@link #withContent(byte[])} before the activity can be executed.
+     * 
+     * @param source
+     *            The User that has created this Activity.
+     * @param path
+     *            The SPath of the affected resource.
+     * @param delta
+     *            the delta to the content of the target
+     * @param target
+     *            The User this Activity will be send to.
+     * @param encoding
+     *            the encoding the restored content must be encoded with
+     */
+    public static RecoveryFileActivity createdFromDelta(User source,
+        SPath path, byte[] delta, User target, String encoding) {
+
+        RecoveryFileActivity activity = created(source, path, new byte[0],
+            target, encoding);
+
+        activity.delta = delta;
+        return activity;
+    }
+
     /**
      * Utility method for creating a RecoveryFileActivity of type
      * {@link FileActivity.Type#REMOVED} for a given path.
@@ -115,12 +149,33 @@ public class RecoveryFileActivity extends FileActivity implements
             activity.content, encoding);
     }
 
+    /**
+     * Returns the difference to the content of the target.
+     * 
+     * @return the delta or <code>null</code> if the activity contains the
+     *         whole content
+     */
+    public byte[] getDelta() {
+        return delta;
+    }
+
+    /**
+     * Returns a copy of this activity with the given content instead of the
+     * delta.
+     */
+    public RecoveryFileActivity withContent(byte[] content) {
+        return new RecoveryFileActivity(getSource(), target, type, getPath(),
+            oldPath, content, encoding);
+    }
+
     @Override
     public String toString() {
         return "RecoveryFileActivity [target=" + target + ", dst:path="
             + getPath() + ", src:path=" + (oldPath == null ? "N/A" : oldPath)
             + ", type=" + type + ", encoding="
             + (encoding == null ? "N/A" : encoding) + ", content="
-            + (content == null ? "0" : content.length) + " byte(s)]";
+            + (content == null ? "0" : content.length) + " byte(s)"
+            + (delta == null ? "" : ", delta=" + delta.length + " byte(s)")
+            + "]";
     }
 }
@@ -0,0 +1,225 @@
+package de.fu_berlin.inf.dpp.communication.extensions;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Base64;
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.provider.ProviderManager;
+import org.xmlpull.v1.XmlPullParser;
+
+import de.fu_berlin.inf.dpp.activities.IActivity;
+import de.fu_berlin.inf.dpp.misc.binary.BinaryActivityCodec;
+import de.fu_berlin.inf.dpp.net.IBinaryPacketExtension;
+import de.fu_berlin.inf.dpp.net.IBinaryPacketExtensionProvider;
+import de.fu_berlin.inf.dpp.net.ICompressedPacketExtension;
+import de.fu_berlin.inf.dpp.net.SharedPayload;
+import de.fu_berlin.inf.dpp.net.xmpp.JID;
+
+/**
+ * Packet extension that transports an {@link ActivitiesExtension} in the
+ * compact format of the {@link BinaryActivityCodec} instead of XML.
+ * <p>
+ * The provider restores the payload as a regular
+ * {@linkplain ActivitiesExtension#PROVIDER activities extension}, so receivers
+ * can use {@link ActivitiesExtension.Provider#getPayload} and the packet
+ * filters of the activities extension without knowing which format was used
+ * for the transmission.
+ */
+public class BinaryActivitiesExtension implements IBinaryPacketExtension,
+    ICompressedPacketExtension {
+
+    public static final Provider PROVIDER = new Provider();
+
+    private static final String ELEMENT_NAME = "bados";
+
+    private final byte[] data;
+
+    /** the encoded activities if they are shared with other extensions */
+    private final SharedPayload activities;
+
+    private BinaryActivitiesExtension(byte[] data) {
+        this.data = data;
+        this.activities = null;
+    }
+
+    private BinaryActivitiesExtension(byte[] header, SharedPayload activities) {
+        this.data = header;
+        this.activities = activities;
+    }
+
+    @Override
+    public String getElementName() {
+        return ELEMENT_NAME;
+    }
+
+    @Override
+    public String getNamespace() {
+        return SarosPacketExtension.EXTENSION_NAMESPACE;
+    }
+
+    @Override
+    public byte[] toByteArray() {
+        return activities == null ? data : activities.toByteArray(data);
+    }
+
+    @Override
+    public byte[] toCompressedByteArray() {
+        return activities == null ? null : activities
+            .toCompressedByteArray(data);
+    }
+
+    @Override
+    public String toXML() {
+        final byte[] payload = toByteArray();
+
+        StringBuilder buf = new StringBuilder(payload.length * 4 / 3 + 64);
+        buf.append("<").append(getElementName()).append(" xmlns=\"")
+            .append(getNamespace()).append("\">");
+        buf.append(new String(Base64.encodeBase64(payload)));
+        buf.append("</").append(getElementName()).append(">");
+        return buf.toString();
+    }
+
+    public static class Provider implements IBinaryPacketExtensionProvider {
+
+        private volatile BinaryActivityCodec codec;
+
+        private Provider() {
+            ProviderManager.getInstance().addExtensionProvider(ELEMENT_NAME,
+                SarosPacketExtension.EXTENSION_NAMESPACE, this);
+        }
+
+        /**
+         * Registers the codec that is used to encode and decode the activities.
+         * A previously registered codec will be replaced.
+         */
+        public synchronized void registerCodec(BinaryActivityCodec codec) {
+            this.codec = codec;
+        }
+
+        /**
+         * Unregisters the given codec if it is the currently registered one.
+         */
+        public synchronized void unregisterCodec(BinaryActivityCodec codec) {
+            if (this.codec == codec)
+                this.codec = null;
+        }
+
+        /**
+         * Creates a binary packet extension for the given activities
+         * extension.
+         *
+         * @param recipient
+         *            the recipient of the extension
+         * @param extension
+         *            the activities extension to encode
+         * @return the binary packet extension or <code>null</code> if no
+         *         codec is registered, the recipient does not support the
+         *         binary format, or the activities cannot be encoded
+         */
+        public PacketExtension create(JID recipient,
+            ActivitiesExtension extension) {
+
+            final BinaryActivityCodec currentCodec = codec;
+
+            if (currentCodec == null || !currentCodec.isSupportedBy(recipient))
+                return null;
+
+            final byte[] data = currentCodec.encode(recipient, extension);
+
+            return data == null ? null : new BinaryActivitiesExtension(data);
+        }
+
+        /**
+         * Returns whether activities send to the given recipient can be
+         * encoded in the binary format.
+         */
+        public boolean isSupportedBy(JID recipient) {
+            final BinaryActivityCodec currentCodec = codec;
+            return currentCodec != null && currentCodec.isSupportedBy(recipient);
+        }
+
+        /**
+         * Encodes the given activities once so they can be included in the
+         * extensions for several recipients, see
+         * {@link #create(JID, ActivitiesExtension, SharedPayload)}.
+         *
+         * @param activities
+         *            the activities to encode
+         * @return the encoded activities or <code>null</code> if no codec is
+         *         registered or the activities cannot be encoded
+         */
+        public SharedPayload encodeActivities(List<IActivity> activities) {
+            final BinaryActivityCodec currentCodec = codec;
+
+            if (currentCodec == null)
+                return null;
+
+            final byte[] data = currentCodec.encodeActivities(activities);
+
+            return data == null ? null : new SharedPayload(data);
+        }
+
+        /**
+         * Creates a binary packet extension for the given activities extension
+         * whose activities are already encoded.
+         *
+         * @param recipient
+         *            the recipient of the extension
+         * @param extension
+         *            the activities extension to encode
+         * @param activities
+         *            the activities of the extension as returned by
+         *            {@link #encodeActivities(List)}
+         * @return the binary packet extension or <code>null</code> if no
+         *         codec is registered or the recipient does not support the
+         *         binary format
+         */
+        public PacketExtension create(JID recipient,
+            ActivitiesExtension extension, SharedPayload activities) {
+
+            final BinaryActivityCodec currentCodec = codec;
+
+            if (currentCodec == null || !currentCodec.isSupportedBy(recipient))
+                return null;
+
+            return new BinaryActivitiesExtension(
+                currentCodec.encodeHeader(recipient, extension), activities);
+        }
+
+        /**
+         * Reports that a binary packet extension created for the given
+         * recipient could not be sent, see
+         * {@link BinaryActivityCodec#sendFailed(JID)}.
+         */
+        public void sendFailed(JID recipient) {
+            final BinaryActivityCodec currentCodec = codec;
+
+            if (currentCodec != null)
+                currentCodec.sendFailed(recipient);
+        }
+
+        @Override
+        public PacketExtension parseExtension(byte[] data, JID sender)
+            throws IOException {
+            final BinaryActivityCodec currentCodec = codec;
+
+            if (currentCodec == null)
+                throw new IOException(
+                    "cannot decode activities, no codec is registered");
+
+            return ActivitiesExtension.PROVIDER
+                .create(currentCodec.decode(data, sender));
+        }
+
+        @Override
+        public PacketExtension parseExtension(XmlPullParser parser)
+            throws Exception {
+            // the sender is not known here, see BinaryActivityCodec#decode
+            return parseExtension(
+                Base64.decodeBase64(parser.nextText().getBytes("US-ASCII")),
+                null);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package de.fu_berlin.inf.dpp.communication.extensions;
+
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+import de.fu_berlin.inf.dpp.negotiation.FileList;
+
+/**
+ * Contains the content of the folders requested with a
+ * {@link ProjectNegotiationManifestRequestExtension}. The file list carries the
+ * id of the project.
+ */
+@XStreamAlias(/* ProjectNegotiationManifest */"PNMA")
+public class ProjectNegotiationManifestExtension extends
+    ProjectNegotiationExtension {
+
+    public static final Provider PROVIDER = new Provider();
+
+    private final FileList fileList;
+
+    public ProjectNegotiationManifestExtension(String sessionID,
+        String negotiationID, FileList fileList) {
+        super(sessionID, negotiationID);
+        this.fileList = fileList;
+    }
+
+    public FileList getFileList() {
+        return fileList;
+    }
+
+    public static class Provider
+        extends
+        ProjectNegotiationExtension.Provider<ProjectNegotiationManifestExtension> {
+
+        private Provider() {
+            super("pnma", ProjectNegotiationManifestExtension.class,
+                FileList.class);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package de.fu_berlin.inf.dpp.communication.extensions;
+
+import java.util.List;
+
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+import com.thoughtworks.xstream.annotations.XStreamAsAttribute;
+import com.thoughtworks.xstream.annotations.XStreamImplicit;
+
+/**
+ * Requests the content of folders that were collapsed in the file list of a
+ * project negotiation offering. Answered with a
+ * {@link ProjectNegotiationManifestExtension}.
+ */
+@XStreamAlias(/* ProjectNegotiationManifestRequest */"PNMRQ")
+public class ProjectNegotiationManifestRequestExtension extends
+    ProjectNegotiationExtension {
+
+    public static final Provider PROVIDER = new Provider();
+
+    @XStreamAlias("pid")
+    @XStreamAsAttribute
+    private final String projectID;
+
+    @XStreamImplicit(itemFieldName = "folder")
+    private final List<String> folders;
+
+    public ProjectNegotiationManifestRequestExtension(String sessionID,
+        String negotiationID, String projectID, List<String> folders) {
+        super(sessionID, negotiationID);
+        this.projectID = projectID;
+        this.folders = folders;
+    }
+
+    public String getProjectID() {
+        return projectID;
+    }
+
+    public List<String> getFolders() {
+        return folders;
+    }
+
+    public static class Provider
+        extends
+        ProjectNegotiationExtension.Provider<ProjectNegotiationManifestRequestExtension> {
+
+        private Provider() {
+            super("pnmrq", ProjectNegotiationManifestRequestExtension.class);
+        }
+    }
+}
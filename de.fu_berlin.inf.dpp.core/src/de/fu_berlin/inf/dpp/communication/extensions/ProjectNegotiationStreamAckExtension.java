@@ -0,0 +1,43 @@
+package de.fu_berlin.inf.dpp.communication.extensions;
+
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+import com.thoughtworks.xstream.annotations.XStreamAsAttribute;
+
+/**
+ * Acknowledges the receiving of {@link ProjectNegotiationStreamExtension
+ * stream chunks} so the sender can limit the amount of chunks that are in
+ * transit.
+ */
+@XStreamAlias(/* ProjectNegotiationStreamAck */"PNSA")
+public class ProjectNegotiationStreamAckExtension extends
+    ProjectNegotiationExtension {
+
+    public static final Provider PROVIDER = new Provider();
+
+    @XStreamAlias("r")
+    @XStreamAsAttribute
+    private final int received;
+
+    /**
+     * @param received
+     *            the number of chunks that were received so far
+     */
+    public ProjectNegotiationStreamAckExtension(String sessionID,
+        String negotiationID, int received) {
+        super(sessionID, negotiationID);
+        this.received = received;
+    }
+
+    public int getReceived() {
+        return received;
+    }
+
+    public static class Provider
+        extends
+        ProjectNegotiationExtension.Provider<ProjectNegotiationStreamAckExtension> {
+
+        private Provider() {
+            super("pnsa", ProjectNegotiationStreamAckExtension.class);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package de.fu_berlin.inf.dpp.communication.extensions;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.apache.commons.codec.binary.Base64;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.provider.ProviderManager;
+import org.xmlpull.v1.XmlPullParser;
+
+import de.fu_berlin.inf.dpp.net.IBinaryPacketExtension;
+import de.fu_berlin.inf.dpp.net.IBinaryPacketExtensionProvider;
+import de.fu_berlin.inf.dpp.net.ICompressedPacketExtension;
+import de.fu_berlin.inf.dpp.net.xmpp.JID;
+
+/**
+ * Packet extension that transports a chunk of the project contents that are
+ * streamed to the remote side during a project negotiation. The chunks of a
+ * negotiation are numbered consecutively so the receiver can detect lost or
+ * reordered chunks.
+ * <p>
+ * The extension is transmitted in its binary representation over binary stream
+ * connections, all other transports use a Base64 encoded XML representation.
+ * The sender may {@linkplain #setCompressedData compress} the binary
+ * representation in advance.
+ */
+public class ProjectNegotiationStreamExtension implements
+    IBinaryPacketExtension, ICompressedPacketExtension {
+
+    public static final Provider PROVIDER = new Provider();
+
+    private static final String ELEMENT_NAME = "pnstream";
+
+    private final String sessionID;
+
+    private final String negotiationID;
+
+    private final int sequenceNumber;
+
+    private final byte[] data;
+
+    private final int offset;
+
+    private final int length;
+
+    private byte[] compressedData;
+
+    /**
+     * Creates a new stream extension. The data is <b>not</b> copied.
+     * 
+     * @param sessionID
+     *            the id of the session
+     * @param negotiationID
+     *            the id of the project negotiation
+     * @param sequenceNumber
+     *            the sequence number of this chunk, starting with 0
+     * @param data
+     *            array containing the chunk
+     * @param offset
+     *            start of the chunk in the array
+     * @param length
+     *            length of the chunk
+     */
+    public ProjectNegotiationStreamExtension(String sessionID,
+        String negotiationID, int sequenceNumber, byte[] data, int offset,
+        int length) {
+        this.sessionID = sessionID;
+        this.negotiationID = negotiationID;
+        this.sequenceNumber = sequenceNumber;
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public String getSessionID() {
+        return sessionID;
+    }
+
+    public String getNegotiationID() {
+        return negotiationID;
+    }
+
+    public int getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Sets the {@linkplain #toByteArray() binary representation} of this
+     * extension compressed in the zlib format.
+     */
+    public void setCompressedData(byte[] compressedData) {
+        this.compressedData = compressedData;
+    }
+
+    @Override
+    public byte[] toCompressedByteArray() {
+        return compressedData;
+    }
+
+    @Override
+    public String getElementName() {
+        return ELEMENT_NAME;
+    }
+
+    @Override
+    public String getNamespace() {
+        return SarosPacketExtension.EXTENSION_NAMESPACE;
+    }
+
+    @Override
+    public byte[] toByteArray() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+            length + 64);
+
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+            out.writeUTF(sessionID);
+            out.writeUTF(negotiationID);
+            out.writeInt(sequenceNumber);
+            out.write(data, offset, length);
+            out.flush();
+        } catch (IOException e) {
+            // cannot happen
+            throw new RuntimeException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public String toXML() {
+        StringBuilder buf = new StringBuilder(length * 4 / 3 + 128);
+        buf.append("<").append(getElementName()).append(" xmlns=\"")
+            .append(getNamespace()).append("\">");
+        buf.append(new String(Base64.encodeBase64(toByteArray())));
+        buf.append("</").append(getElementName()).append(">");
+        return buf.toString();
+    }
+
+    public static class Provider implements IBinaryPacketExtensionProvider {
+
+        private Provider() {
+            ProviderManager.getInstance().addExtensionProvider(ELEMENT_NAME,
+                SarosPacketExtension.EXTENSION_NAMESPACE, this);
+        }
+
+        /**
+         * Returns the stream extension of the given packet.
+         * 
+         * @return the stream extension or <code>null</code> if the packet does
+         *         not contain a stream extension
+         */
+        public ProjectNegotiationStreamExtension getPayload(Packet packet) {
+            PacketExtension extension = packet.getExtension(ELEMENT_NAME,
+                SarosPacketExtension.EXTENSION_NAMESPACE);
+
+            if (!(extension instanceof ProjectNegotiationStreamExtension))
+                return null;
+
+            return (ProjectNegotiationStreamExtension) extension;
+        }
+
+        public PacketFilter getPacketFilter(final String sessionID,
+            final String negotiationID) {
+
+            return new PacketFilter() {
+                @Override
+                public boolean accept(Packet packet) {
+                    ProjectNegotiationStreamExtension extension = getPayload(packet);
+
+                    if (extension == null)
+                        return false;
+
+                    return sessionID.equals(extension.getSessionID())
+                        && negotiationID.equals(extension.getNegotiationID());
+                }
+            };
+        }
+
+        @Override
+        public PacketExtension parseExtension(byte[] data, JID sender)
+            throws IOException {
+            final DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(data));
+
+            final String sessionID = in.readUTF();
+            final String negotiationID = in.readUTF();
+            final int sequenceNumber = in.readInt();
+
+            final int offset = data.length - in.available();
+
+            return new ProjectNegotiationStreamExtension(sessionID,
+                negotiationID, sequenceNumber, data, offset, data.length
+                    - offset);
+        }
+
+        @Override
+        public PacketExtension parseExtension(XmlPullParser parser)
+            throws Exception {
+            return parseExtension(
+                Base64.decodeBase64(parser.nextText().getBytes("US-ASCII")),
+                null);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package de.fu_berlin.inf.dpp.communication.extensions;
+
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+
+import org.jivesoftware.smack.packet.PacketExtension;
+
+import de.fu_berlin.inf.dpp.activities.IActivity;
+import de.fu_berlin.inf.dpp.misc.xstream.XStreamExtensionProvider.XStreamPacketExtension;
+import de.fu_berlin.inf.dpp.net.ICompressedPacketExtension;
+import de.fu_berlin.inf.dpp.net.SharedPayload;
+import de.fu_berlin.inf.dpp.net.xmpp.JID;
+
+/**
+ * Creates the packet extensions for a list of activities that is sent to
+ * several recipients. The activities are only serialized and compressed once,
+ * for each recipient only the header with its sequence number is written.
+ * <p>
+ * The created extensions are regular {@linkplain BinaryActivitiesExtension
+ * binary} or {@linkplain ActivitiesExtension XStream} activities extensions,
+ * so receivers do not notice any difference.
+ * <p>
+ * This class is not thread safe.
+ */
+public final class SharedActivities {
+
+    private static final String SEQUENCE_NUMBER_ATTRIBUTE = " seq=\"";
+
+    private final String sessionID;
+
+    private final List<IActivity> activities;
+
+    private boolean isBinaryEncoded;
+
+    private SharedPayload binaryActivities;
+
+    private boolean isXMLEncoded;
+
+    /* XML of the extension up to the value of the sequence number */
+    private byte[] xmlPrefix;
+
+    /* XML of the extension after the value of the sequence number */
+    private SharedPayload xmlSuffix;
+
+    /**
+     * @param sessionID
+     *            the session id the activities belong to
+     * @param activities
+     *            the activities, the list must not be modified afterwards
+     */
+    public SharedActivities(String sessionID, List<IActivity> activities) {
+        this.sessionID = sessionID;
+        this.activities = activities;
+    }
+
+    /**
+     * Creates the packet extension with the activities for the given
+     * recipient.
+     *
+     * @param recipient
+     *            the recipient of the activities
+     * @param sequenceNumber
+     *            the sequence number of the first activity
+     * @return the packet extension to send to the recipient
+     */
+    public PacketExtension create(JID recipient, int sequenceNumber) {
+        final ActivitiesExtension extension = new ActivitiesExtension(
+            sessionID, activities, sequenceNumber);
+
+        if (BinaryActivitiesExtension.PROVIDER.isSupportedBy(recipient)) {
+            if (!isBinaryEncoded) {
+                binaryActivities = BinaryActivitiesExtension.PROVIDER
+                    .encodeActivities(activities);
+                isBinaryEncoded = true;
+            }
+
+            final PacketExtension binaryExtension = binaryActivities == null ? null
+                : BinaryActivitiesExtension.PROVIDER.create(recipient,
+                    extension, binaryActivities);
+
+            if (binaryExtension != null)
+                return binaryExtension;
+        }
+
+        if (!isXMLEncoded) {
+            encodeXML();
+            isXMLEncoded = true;
+        }
+
+        if (xmlSuffix == null)
+            return ActivitiesExtension.PROVIDER.create(extension);
+
+        final byte[] sequenceNumberBytes = toUTF8(String
+            .valueOf(sequenceNumber));
+
+        final byte[] header = new byte[xmlPrefix.length
+            + sequenceNumberBytes.length];
+
+        System.arraycopy(xmlPrefix, 0, header, 0, xmlPrefix.length);
+        System.arraycopy(sequenceNumberBytes, 0, header, xmlPrefix.length,
+            sequenceNumberBytes.length);
+
+        return new SharedXStreamPacketExtension(extension, header, xmlSuffix);
+    }
+
+    /*
+     * The XML is created once with a placeholder sequence number which is
+     * replaced per recipient. The sequence number is the last attribute of
+     * the root element of the extension, so the placeholder is always its
+     * first occurrence.
+     */
+    private void encodeXML() {
+        final String xml = ActivitiesExtension.PROVIDER.create(
+            new ActivitiesExtension(sessionID, activities, 0)).toXML();
+
+        final int index = xml.indexOf(SEQUENCE_NUMBER_ATTRIBUTE + "0\"");
+
+        if (index == -1)
+            return;
+
+        final int split = index + SEQUENCE_NUMBER_ATTRIBUTE.length();
+
+        xmlPrefix = toUTF8(xml.substring(0, split));
+        xmlSuffix = new SharedPayload(toUTF8(xml.substring(split + 1)));
+    }
+
+    private static byte[] toUTF8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(
+                "invalid Java installation, UTF-8 charset must be included per specification",
+                e);
+        }
+    }
+
+    private static class SharedXStreamPacketExtension extends
+        XStreamPacketExtension<ActivitiesExtension> implements
+        ICompressedPacketExtension {
+
+        private final byte[] header;
+
+        private final SharedPayload suffix;
+
+        private SharedXStreamPacketExtension(ActivitiesExtension extension,
+            byte[] header, SharedPayload suffix) {
+            super(ActivitiesExtension.PROVIDER, extension);
+            this.header = header;
+            this.suffix = suffix;
+        }
+
+        @Override
+        public String toXML() {
+            try {
+                return new String(suffix.toByteArray(header), "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(
+                    "invalid Java installation, UTF-8 charset must be included per specification",
+                    e);
+            }
+        }
+
+        @Override
+        public byte[] toCompressedByteArray() {
+            return suffix.toCompressedByteArray(header);
+        }
+    }
+}
@@ -21,8 +21,8 @@
 package de.fu_berlin.inf.dpp.concurrent.jupiter.internal;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
+import java.util.ListIterator;
 
 import javax.swing.undo.CannotRedoException;
 import javax.swing.undo.CannotUndoException;
@@ -37,7 +37,9 @@ import de.fu_berlin.inf.dpp.concurrent.jupiter.InclusionTransformation;
 import de.fu_berlin.inf.dpp.concurrent.jupiter.Operation;
 import de.fu_berlin.inf.dpp.concurrent.jupiter.Timestamp;
 import de.fu_berlin.inf.dpp.concurrent.jupiter.TransformationException;
+import de.fu_berlin.inf.dpp.concurrent.jupiter.internal.text.DeleteOperation;
 import de.fu_berlin.inf.dpp.concurrent.jupiter.internal.text.GOTOInclusionTransformation;
+import de.fu_berlin.inf.dpp.concurrent.jupiter.internal.text.InsertOperation;
 import de.fu_berlin.inf.dpp.concurrent.jupiter.internal.text.NoOperation;
 import de.fu_berlin.inf.dpp.concurrent.jupiter.internal.text.TimestampOperation;
 import de.fu_berlin.inf.dpp.session.User;
@@ -49,6 +51,9 @@ public class Jupiter implements Algorithm {
 
     private static final Logger log = Logger.getLogger(Jupiter.class);
 
+    private static final boolean COMPACT_OPERATIONS = !Boolean
+        .getBoolean("de.fu_berlin.inf.dpp.concurrent.jupiter.DISABLE_OPERATION_COMPACTION");
+
     /**
      * The inclusion transformation function used to transform operations.
      */
@@ -75,6 +80,13 @@ public class Jupiter implements Algorithm {
      */
     protected final List<OperationWrapper> ackJupiterActivityList;
 
+    /**
+     * Flag indicating whether adjacent insert and delete operations in the
+     * {@link #ackJupiterActivityList} are merged into one operation while they
+     * are not acknowledged.
+     */
+    protected final boolean compactOperations;
+
     /**
      * Class constructor that creates a new Jupiter algorithm.
      * 
@@ -82,9 +94,23 @@ public class Jupiter implements Algorithm {
      *            true if the algorithm resides on the client side
      */
     public Jupiter(boolean isClientSide) {
+        this(isClientSide, COMPACT_OPERATIONS);
+    }
+
+    /**
+     * Class constructor that creates a new Jupiter algorithm.
+     * 
+     * @param isClientSide
+     *            true if the algorithm resides on the client side
+     * @param compactOperations
+     *            true if adjacent unacknowledged insert and delete operations
+     *            should be merged
+     */
+    public Jupiter(boolean isClientSide, boolean compactOperations) {
         this.inclusion = new GOTOInclusionTransformation();
         this.vectorTime = new JupiterVectorTime(0, 0);
         this.isClientSide = isClientSide;
+        this.compactOperations = compactOperations;
         this.ackJupiterActivityList = new ArrayList<OperationWrapper>();
     }
 
@@ -97,8 +123,14 @@ public class Jupiter implements Algorithm {
             op, source, editor);
 
         // add(op, myMsgs) to outgoing;
-        this.ackJupiterActivityList.add(new OperationWrapper(op,
-            this.vectorTime.getLocalOperationCount()));
+        final int count = this.vectorTime.getLocalOperationCount();
+
+        final int size = this.ackJupiterActivityList.size();
+
+        if (!compactOperations || size == 0
+            || !this.ackJupiterActivityList.get(size - 1).merge(op, count)) {
+            this.ackJupiterActivityList.add(new OperationWrapper(op, count));
+        }
 
         // myMsgs = myMsgs + 1;
         this.vectorTime = this.vectorTime.incrementLocalOperationCount();
@@ -227,13 +259,31 @@ public class Jupiter implements Algorithm {
      *            the remote JupiterVectorTime
      */
     protected void discardAcknowledgedOperations(JupiterVectorTime time) {
-        Iterator<OperationWrapper> iter = this.ackJupiterActivityList
-            .iterator();
+        final int remoteOperationCount = time.getRemoteOperationCount();
+
+        ListIterator<OperationWrapper> iter = this.ackJupiterActivityList
+            .listIterator();
         while (iter.hasNext()) {
             OperationWrapper wrap = iter.next();
-            if (wrap.getLocalOperationCount() < time.getRemoteOperationCount()) {
-                iter.remove();
+
+            if (wrap.getLocalOperationCount() >= remoteOperationCount)
+                break;
+
+            iter.remove();
+
+            if (wrap.getLastLocalOperationCount() < remoteOperationCount)
+                continue;
+
+            /*
+             * only a part of the merged operations has been acknowledged, keep
+             * the remaining ones
+             */
+            for (OperationWrapper part : wrap.expand()) {
+                if (part.getLocalOperationCount() >= remoteOperationCount)
+                    iter.add(part);
             }
+
+            break;
         }
         // ASSERT msg.myMsgs == otherMsgs
         assert time.getLocalOperationCount() == this.vectorTime
@@ -254,6 +304,21 @@ public class Jupiter implements Algorithm {
             .size(); ackJupiterActivityListCnt++) {
             OperationWrapper wrap = this.ackJupiterActivityList
                 .get(ackJupiterActivityListCnt);
+
+            /*
+             * the transformation against a merged operation is only equal to
+             * the transformation against its parts if both operations do not
+             * touch each other, otherwise transform against the parts
+             */
+            if (wrap.isMerged() && !wrap.isDisjoint(newOp)) {
+                this.ackJupiterActivityList.remove(ackJupiterActivityListCnt);
+                this.ackJupiterActivityList.addAll(ackJupiterActivityListCnt,
+                    wrap.expand());
+
+                wrap = this.ackJupiterActivityList
+                    .get(ackJupiterActivityListCnt);
+            }
+
             Operation existingOp = wrap.getOperation();
 
             Operation transformedOp;
@@ -269,9 +334,7 @@ public class Jupiter implements Algorithm {
                 existingOp = this.inclusion.transform(existingOp, newOp,
                     Boolean.TRUE);
             }
-            this.ackJupiterActivityList
-                .set(ackJupiterActivityListCnt, new OperationWrapper(
-                    existingOp, wrap.getLocalOperationCount()));
+            wrap.op = existingOp;
 
             newOp = transformedOp;
         }
@@ -309,19 +372,35 @@ public class Jupiter implements Algorithm {
      * algorithm. A OperationWrapper instance is created with an operation and
      * the current local operation count and inserted into the outgoing queue
      * (see {@link Jupiter#ackJupiterActivityList}).
-     * 
-     * @valueObject Instances of this class should be treated as value objects
-     *              and should be treated as immutable.
-     * 
+     * <p>
+     * Consecutive insert operations that continue each other and consecutive
+     * delete operations that remove adjacent text (e.g typing or pressing
+     * backspace several times) can be merged into one wrapper. Such a wrapper
+     * covers the local operation counts of all merged operations and remembers
+     * how the operations were merged, so it can be {@linkplain #expand()
+     * expanded} into the original operations again.
+     *
      * @see Jupiter#generateJupiterActivity(Operation, User, SPath)
      * @see Jupiter#receiveJupiterActivity(JupiterActivity)
      */
     protected static class OperationWrapper {
 
-        protected final Operation op;
+        protected Operation op;
 
         protected final int count;
 
+        /** number of merged operations */
+        private int parts = 1;
+
+        /** text lengths of the merged operations, null if nothing is merged */
+        private int[] lengths;
+
+        /** origins of the merged insert operations */
+        private int[] origins;
+
+        /** true if the merged delete operations were performed backwards */
+        private boolean backwards;
+
         OperationWrapper(Operation op, int count) {
             this.op = op;
             this.count = count;
@@ -335,12 +414,220 @@ public class Jupiter implements Algorithm {
             return this.count;
         }
 
+        /**
+         * Returns the local operation count of the last operation that was
+         * merged into this wrapper.
+         */
+        int getLastLocalOperationCount() {
+            return this.count + this.parts - 1;
+        }
+
+        /**
+         * Returns whether this wrapper contains more than one operation.
+         */
+        boolean isMerged() {
+            return this.parts > 1;
+        }
+
+        /**
+         * Tries to merge the given operation that was generated right after
+         * the operation(s) of this wrapper.
+         *
+         * @return <code>true</code> if the operation was merged,
+         *         <code>false</code> if the operation must be wrapped on its own
+         */
+        boolean merge(Operation next, int nextCount) {
+            if (nextCount != getLastLocalOperationCount() + 1)
+                return false;
+
+            if (this.op instanceof InsertOperation
+                && next instanceof InsertOperation) {
+
+                final InsertOperation insert = (InsertOperation) this.op;
+                final InsertOperation nextInsert = (InsertOperation) next;
+
+                if (nextInsert.getPosition() != insert.getPosition()
+                    + insert.getTextLength())
+                    return false;
+
+                addPart(insert.getTextLength(), insert.getOrigin(),
+                    nextInsert.getTextLength(), nextInsert.getOrigin());
+
+                this.op = new InsertOperation(insert.getPosition(),
+                    insert.getText() + nextInsert.getText(),
+                    insert.getOrigin());
+
+                return true;
+            }
+
+            if (this.op instanceof DeleteOperation
+                && next instanceof DeleteOperation) {
+
+                final DeleteOperation delete = (DeleteOperation) this.op;
+                final DeleteOperation nextDelete = (DeleteOperation) next;
+
+                if ((this.parts == 1 || !this.backwards)
+                    && nextDelete.getPosition() == delete.getPosition()) {
+
+                    addPart(delete.getTextLength(), 0,
+                        nextDelete.getTextLength(), 0);
+
+                    this.op = new DeleteOperation(delete.getPosition(),
+                        delete.getText() + nextDelete.getText());
+
+                    return true;
+                }
+
+                if ((this.parts == 1 || this.backwards)
+                    && nextDelete.getPosition() + nextDelete.getTextLength() == delete
+                        .getPosition()) {
+
+                    addPart(delete.getTextLength(), 0,
+                        nextDelete.getTextLength(), 0);
+
+                    this.backwards = true;
+                    this.op = new DeleteOperation(nextDelete.getPosition(),
+                        nextDelete.getText() + delete.getText());
+
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        private void addPart(int firstLength, int firstOrigin, int length,
+            int origin) {
+
+            if (this.lengths == null) {
+                this.lengths = new int[4];
+                this.origins = new int[4];
+                this.lengths[0] = firstLength;
+                this.origins[0] = firstOrigin;
+            } else if (this.parts == this.lengths.length) {
+                final int[] newLengths = new int[this.parts * 2];
+                final int[] newOrigins = new int[this.parts * 2];
+                System.arraycopy(this.lengths, 0, newLengths, 0, this.parts);
+                System.arraycopy(this.origins, 0, newOrigins, 0, this.parts);
+                this.lengths = newLengths;
+                this.origins = newOrigins;
+            }
+
+            this.lengths[this.parts] = length;
+            this.origins[this.parts] = origin;
+            this.parts++;
+        }
+
+        /**
+         * Returns whether the given operation, which must be based on the same
+         * document state as the operation of this wrapper, does neither
+         * overlap nor touch the text range of this wrapper. Only in this case
+         * the transformation against the merged operation yields the same
+         * results as the transformation against all of its parts.
+         */
+        boolean isDisjoint(Operation other) {
+            if (other instanceof NoOperation
+                || other instanceof TimestampOperation)
+                return true;
+
+            final int start;
+            final int end;
+
+            if (this.op instanceof InsertOperation) {
+                start = ((InsertOperation) this.op).getPosition();
+                end = start;
+            } else if (this.op instanceof DeleteOperation) {
+                start = ((DeleteOperation) this.op).getPosition();
+                end = start + ((DeleteOperation) this.op).getTextLength();
+            } else {
+                return false;
+            }
+
+            if (other instanceof InsertOperation) {
+                final int position = ((InsertOperation) other).getPosition();
+
+                if (start == end)
+                    return position != start;
+
+                return position < start || position > end;
+            }
+
+            if (other instanceof DeleteOperation) {
+                final int position = ((DeleteOperation) other).getPosition();
+
+                return position + ((DeleteOperation) other).getTextLength() < start
+                    || position > end;
+            }
+
+            return false;
+        }
+
+        /**
+         * Returns the operations that were merged into this wrapper, each
+         * wrapped on its own, in the order they were generated.
+         */
+        List<OperationWrapper> expand() {
+            final List<OperationWrapper> result = new ArrayList<OperationWrapper>(
+                this.parts);
+
+            if (!isMerged()) {
+                result.add(this);
+                return result;
+            }
+
+            if (this.op instanceof InsertOperation) {
+                final InsertOperation insert = (InsertOperation) this.op;
+                final String text = insert.getText();
+
+                int offset = 0;
+
+                for (int i = 0; i < this.parts; i++) {
+                    result.add(new OperationWrapper(new InsertOperation(
+                        insert.getPosition() + offset, text.substring(offset,
+                            offset + this.lengths[i]), this.origins[i]),
+                        this.count + i));
+
+                    offset += this.lengths[i];
+                }
+
+                return result;
+            }
+
+            final DeleteOperation delete = (DeleteOperation) this.op;
+            final String text = delete.getText();
+
+            int offset = this.backwards ? text.length() : 0;
+
+            for (int i = 0; i < this.parts; i++) {
+                final String partText;
+                final int position;
+
+                if (this.backwards) {
+                    offset -= this.lengths[i];
+                    partText = text
+                        .substring(offset, offset + this.lengths[i]);
+                    position = delete.getPosition() + offset;
+                } else {
+                    partText = text
+                        .substring(offset, offset + this.lengths[i]);
+                    position = delete.getPosition();
+                    offset += this.lengths[i];
+                }
+
+                result.add(new OperationWrapper(new DeleteOperation(position,
+                    partText), this.count + i));
+            }
+
+            return result;
+        }
+
         /**
          * {@inheritDoc}
          */
         @Override
         public String toString() {
-            return ("OperationWrapper(" + this.op + ", " + this.count + ")");
+            return ("OperationWrapper(" + this.op + ", " + this.count
+                + (isMerged() ? "-" + getLastLocalOperationCount() : "") + ")");
         }
     }
 
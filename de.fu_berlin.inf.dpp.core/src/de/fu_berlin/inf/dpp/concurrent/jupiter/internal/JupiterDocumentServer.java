@@ -49,8 +49,7 @@ public class JupiterDocumentServer {
         return proxies.remove(user) != null;
     }
 
-    // FIXME why is this not synchronized ?!
-    public Map<User, JupiterActivity> transformJupiterActivity(
+    public synchronized Map<User, JupiterActivity> transformJupiterActivity(
         final JupiterActivity activity) throws TransformationException {
 
         final Map<User, JupiterActivity> result = new HashMap<User, JupiterActivity>();
@@ -117,7 +116,7 @@ public class JupiterDocumentServer {
             addProxyClient(user);
     }
 
-    public Map<User, ChecksumActivity> withTimestamp(
+    public synchronized Map<User, ChecksumActivity> withTimestamp(
         final ChecksumActivity activity) throws TransformationException {
 
         final Map<User, ChecksumActivity> result = new HashMap<User, ChecksumActivity>();
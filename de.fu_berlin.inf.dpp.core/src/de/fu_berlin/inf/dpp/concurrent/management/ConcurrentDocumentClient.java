@@ -1,7 +1,10 @@
 package de.fu_berlin.inf.dpp.concurrent.management;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 
@@ -11,10 +14,12 @@ import de.fu_berlin.inf.dpp.activities.FileActivity;
 import de.fu_berlin.inf.dpp.activities.IActivity;
 import de.fu_berlin.inf.dpp.activities.IActivityReceiver;
 import de.fu_berlin.inf.dpp.activities.JupiterActivity;
+import de.fu_berlin.inf.dpp.activities.RecoveryFileActivity;
 import de.fu_berlin.inf.dpp.activities.SPath;
 import de.fu_berlin.inf.dpp.activities.TextEditActivity;
 import de.fu_berlin.inf.dpp.concurrent.jupiter.Operation;
 import de.fu_berlin.inf.dpp.concurrent.jupiter.TransformationException;
+import de.fu_berlin.inf.dpp.concurrent.watchdog.BlockDelta;
 import de.fu_berlin.inf.dpp.session.ISarosSession;
 
 /**
@@ -38,6 +43,12 @@ public class ConcurrentDocumentClient {
 
     private final JupiterClient jupiterClient;
 
+    /**
+     * The contents the signatures of a running consistency recovery were
+     * created from, the deltas sent by the host are applied to them.
+     */
+    private final Map<SPath, String> recoveryBases = new ConcurrentHashMap<SPath, String>();
+
     public ConcurrentDocumentClient(ISarosSession sarosSession) {
 
         this.sarosSession = sarosSession;
@@ -119,6 +130,11 @@ public class ConcurrentDocumentClient {
 
             } else if (activity instanceof ChecksumActivity) {
                 activities.add(receiveChecksum((ChecksumActivity) activity));
+            } else if (activity instanceof RecoveryFileActivity) {
+                IActivity recovery = receiveRecovery((RecoveryFileActivity) activity);
+
+                if (recovery != null)
+                    activities.add(recovery);
             } else {
                 activities.add(activity);
             }
@@ -145,6 +161,62 @@ public class ConcurrentDocumentClient {
         return activity;
     }
 
+    /**
+     * Restores the content of a RecoveryFileActivity that only contains the
+     * delta to the registered recovery base.
+     * 
+     * @return the activity with the whole content or <code>null</code> if the
+     *         content could not be restored
+     */
+    private IActivity receiveRecovery(RecoveryFileActivity activity) {
+        final SPath path = activity.getPath();
+        final byte[] delta = activity.getDelta();
+
+        if (delta == null) {
+            recoveryBases.remove(path);
+            return activity;
+        }
+
+        final String base = recoveryBases.get(path);
+
+        if (base == null) {
+            log.error("received recovery delta without a base for file: "
+                + path);
+            return null;
+        }
+
+        try {
+            final String content = BlockDelta.applyDelta(base, delta);
+            recoveryBases.remove(path);
+            return activity.withContent(content.getBytes(activity
+                .getEncoding()));
+        } catch (IOException e) {
+            log.error("could not apply recovery delta for file: " + path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Registers the content the signatures for a consistency recovery of the
+     * given file were created from. A {@link RecoveryFileActivity} containing
+     * a delta for the file is applied to this content.
+     * 
+     * @client
+     */
+    public void addRecoveryBase(SPath path, String content) {
+        recoveryBases.put(path, content);
+    }
+
+    /**
+     * Removes the recovery base of the given file.
+     * 
+     * @return <code>true</code> if the base was still registered, i.e no
+     *         recovery of the file was applied since it was added
+     */
+    public boolean removeRecoveryBase(SPath path) {
+        return recoveryBases.remove(path) != null;
+    }
+
     /**
      * Used to remove JupiterClientDocuments for deleted files
      */
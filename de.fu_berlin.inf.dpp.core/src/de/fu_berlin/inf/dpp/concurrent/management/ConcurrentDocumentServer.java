@@ -1,9 +1,16 @@
 package de.fu_berlin.inf.dpp.concurrent.management;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 import org.picocontainer.Startable;
@@ -41,6 +48,23 @@ public class ConcurrentDocumentServer implements Startable {
 
     private final JupiterServer server;
 
+    /**
+     * Counter that is incremented for every modification of a shared file.
+     */
+    private final AtomicLong modificationCounter = new AtomicLong();
+
+    /**
+     * Value of the {@link #modificationCounter} at the last modification of a
+     * path.
+     */
+    private final ConcurrentMap<SPath, Long> lastModifications = new ConcurrentHashMap<SPath, Long>();
+
+    /**
+     * Modification stamps that were obtained but not released yet, guarded by
+     * itself.
+     */
+    private final Queue<Long> outstandingStamps = new PriorityQueue<Long>();
+
     /**
      * {@link ISessionListener} for updating Jupiter documents on the host.
      */
@@ -70,6 +94,12 @@ public class ConcurrentDocumentServer implements Startable {
     @Override
     public void stop() {
         sarosSession.removeListener(sessionListener);
+
+        synchronized (outstandingStamps) {
+            outstandingStamps.clear();
+        }
+
+        lastModifications.clear();
     }
 
     /**
@@ -87,6 +117,11 @@ public class ConcurrentDocumentServer implements Startable {
     private final IActivityReceiver hostReceiver = new AbstractActivityReceiver() {
         @Override
         public void receive(final FileActivity activity) {
+            markModified(activity.getPath());
+
+            if (activity.getOldPath() != null)
+                markModified(activity.getOldPath());
+
             if (activity.getType() == FileActivity.Type.REMOVED) {
                 server.removePath(activity.getPath());
             }
@@ -142,6 +177,13 @@ public class ConcurrentDocumentServer implements Startable {
 
         final List<QueueItem> result = new ArrayList<QueueItem>();
 
+        /*
+         * mark the path before the transformation so that callers of
+         * getModifiedPaths never miss a modification that is already in
+         * progress
+         */
+        markModified(activity.getPath());
+
         // Sync jupiterActivity with jupiter document server
         final Map<User, JupiterActivity> outgoing;
 
@@ -181,6 +223,88 @@ public class ConcurrentDocumentServer implements Startable {
         server.reset(path, user);
     }
 
+    /**
+     * Returns the current modification stamp. Use
+     * {@link #getModifiedPaths(long)} with the returned stamp to find out
+     * which files were modified afterwards. The stamp must be released with
+     * {@link #releaseModificationStamp(long)} once it is no longer used.
+     * 
+     * @host
+     */
+    public long getModificationStamp() {
+        synchronized (outstandingStamps) {
+            final long stamp = modificationCounter.get();
+            outstandingStamps.add(stamp);
+            return stamp;
+        }
+    }
+
+    /**
+     * Releases a stamp obtained by {@link #getModificationStamp()}. The
+     * modifications that are older than all stamps still in use are
+     * forgotten.
+     * 
+     * @host
+     */
+    public void releaseModificationStamp(final long stamp) {
+        final long oldestStamp;
+
+        synchronized (outstandingStamps) {
+            if (!outstandingStamps.remove(stamp))
+                return;
+
+            oldestStamp = outstandingStamps.isEmpty() ? modificationCounter
+                .get() : outstandingStamps.peek();
+        }
+
+        /*
+         * stamps that are obtained from now on are at least as new as the
+         * oldest stamp, so they can never see the removed modifications
+         */
+        for (final Entry<SPath, Long> entry : lastModifications.entrySet()) {
+            if (entry.getValue() <= oldestStamp)
+                lastModifications.remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Returns the paths of all files that were modified by a
+     * {@link JupiterActivity} or a {@link FileActivity} after the given
+     * modification stamp was obtained.
+     * 
+     * @host
+     * 
+     * @param stamp
+     *            a stamp obtained by {@link #getModificationStamp()}
+     * @return the paths of the modified files
+     */
+    public Set<SPath> getModifiedPaths(final long stamp) {
+        final Set<SPath> result = new HashSet<SPath>();
+
+        for (final Entry<SPath, Long> entry : lastModifications.entrySet()) {
+            if (entry.getValue() > stamp)
+                result.add(entry.getKey());
+        }
+
+        return result;
+    }
+
+    private void markModified(final SPath path) {
+        if (path == null)
+            return;
+
+        final Long modification = modificationCounter.incrementAndGet();
+
+        // concurrent modifications of the same path, keep the latest one
+        for (;;) {
+            final Long last = lastModifications.putIfAbsent(path, modification);
+
+            if (last == null || last >= modification
+                || lastModifications.replace(path, last, modification))
+                return;
+        }
+    }
+
     /**
      * Does the actual work of transforming a ChecksumActivity.
      */
@@ -18,6 +18,10 @@ import de.fu_berlin.inf.dpp.session.User;
  * number of paths.
  * 
  * (in contrast to a JupiterDocumentServer which only handles a single path)
+ * 
+ * The transformation of activities is only synchronized on the
+ * JupiterDocumentServer of the affected path, so activities for different paths
+ * can be transformed concurrently.
  */
 public class JupiterServer {
 
@@ -94,11 +98,11 @@ public class JupiterServer {
         return docServer;
     }
 
-    public synchronized void reset(final SPath path, final User user) {
+    public void reset(final SPath path, final User user) {
         getServer(path).reset(user);
     }
 
-    public synchronized Map<User, JupiterActivity> transform(
+    public Map<User, JupiterActivity> transform(
         final JupiterActivity activity) throws TransformationException {
 
         final JupiterDocumentServer docServer = getServer(activity.getPath());
@@ -106,7 +110,7 @@ public class JupiterServer {
         return docServer.transformJupiterActivity(activity);
     }
 
-    public synchronized Map<User, ChecksumActivity> withTimestamp(
+    public Map<User, ChecksumActivity> withTimestamp(
         final ChecksumActivity activity) throws TransformationException {
 
         final JupiterDocumentServer docServer = getServer(activity.getPath());
@@ -0,0 +1,397 @@
+package de.fu_berlin.inf.dpp.concurrent.watchdog;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Calculates the difference between two versions of a document the way rsync
+ * does. The side holding the outdated version {@linkplain #createSignatures
+ * creates signatures} of its blocks. The side holding the current version
+ * {@linkplain #createDelta creates a delta} that refers to all blocks it finds
+ * in its own version and only contains the remaining ranges as text. The delta
+ * is then {@linkplain #applyDelta applied} to the outdated version.
+ * <p>
+ * The blocks are found at any offset by comparing a rolling checksum first and
+ * a stronger hash only if the rolling checksum matches, so creating a delta
+ * takes linear time. The size of a delta is proportional to the size of the
+ * differences, the size of the signatures to the square root of the document
+ * length.
+ */
+public final class BlockDelta {
+
+    static final int MIN_BLOCK_SIZE = 256;
+
+    static final int MAX_BLOCK_SIZE = 16 * 1024;
+
+    private static final int END = 0;
+    private static final int COPY = 1;
+    private static final int LITERAL = 2;
+
+    /** maximum chars per literal that always fit into a modified UTF-8 string */
+    private static final int MAX_LITERAL_LENGTH = 65535 / 3;
+
+    private static final int NO_BLOCK = -1;
+
+    private BlockDelta() {
+        // NOP
+    }
+
+    /**
+     * Creates the block signatures of the given content.
+     *
+     * @param content
+     *            the outdated content of the document
+     * @return the signatures to be passed to {@link #createDelta}
+     */
+    public static byte[] createSignatures(String content) {
+        final int length = content.length();
+        final int blockSize = getBlockSize(length);
+        final int blockCount = (length + blockSize - 1) / blockSize;
+
+        final ByteArrayOutputStream bout = new ByteArrayOutputStream(
+            8 + blockCount * 12);
+
+        final DataOutputStream out = new DataOutputStream(bout);
+
+        try {
+            out.writeInt(blockSize);
+            out.writeInt(length);
+
+            for (int start = 0; start < length; start += blockSize) {
+                final int end = Math.min(start + blockSize, length);
+                out.writeInt(weakChecksum(content, start, end));
+                out.writeLong(strongHash(content, start, end));
+            }
+
+            out.flush();
+        } catch (IOException e) {
+            // cannot happen, the data is written to memory
+            throw new IllegalStateException(e);
+        }
+
+        return bout.toByteArray();
+    }
+
+    /**
+     * Creates the delta that transforms the content the given signatures were
+     * created from into the given content.
+     *
+     * @param signatures
+     *            the signatures of the outdated content
+     * @param content
+     *            the current content of the document
+     * @return the delta to be passed to {@link #applyDelta}
+     * @throws IOException
+     *             if the signatures are malformed
+     */
+    public static byte[] createDelta(byte[] signatures, String content)
+        throws IOException {
+
+        final DataInputStream in = new DataInputStream(
+            new ByteArrayInputStream(signatures));
+
+        final int blockSize = in.readInt();
+        final int baseLength = in.readInt();
+
+        if (blockSize < 1 || baseLength < 0
+            || (baseLength + (long) blockSize - 1) / blockSize * 12 != in
+                .available())
+            throw new IOException("malformed signatures");
+
+        final int blockCount = (baseLength + blockSize - 1) / blockSize;
+
+        final int[] weak = new int[blockCount];
+        final long[] strong = new long[blockCount];
+
+        for (int i = 0; i < blockCount; i++) {
+            weak[i] = in.readInt();
+            strong[i] = in.readLong();
+        }
+
+        final int lastBlockLength = blockCount == 0 ? 0 : baseLength
+            - (blockCount - 1) * blockSize;
+
+        /*
+         * hash table of the full blocks: the table holds the first block of a
+         * chain per weak checksum, next[] the following ones
+         */
+        final int fullBlocks = lastBlockLength == blockSize ? blockCount
+            : blockCount - 1;
+
+        final int mask = Integer.highestOneBit(Math.max(fullBlocks, 1) * 2) - 1;
+
+        final int[] table = new int[mask + 1];
+        final int[] next = new int[blockCount];
+
+        Arrays.fill(table, NO_BLOCK);
+
+        for (int i = fullBlocks - 1; i >= 0; i--) {
+            final int slot = mix(weak[i]) & mask;
+            next[i] = table[slot];
+            table[slot] = i;
+        }
+
+        final DeltaWriter writer = new DeltaWriter(content, blockSize,
+            baseLength);
+
+        final int length = content.length();
+
+        int position = 0;
+        int literalStart = 0;
+        int expectedBlock = 0;
+
+        int checksum = length >= blockSize ? weakChecksum(content, 0,
+            blockSize) : 0;
+
+        while (fullBlocks > 0 && position + blockSize <= length) {
+
+            int block = NO_BLOCK;
+
+            // unchanged documents are mostly a sequence of consecutive blocks
+            if (expectedBlock < fullBlocks && weak[expectedBlock] == checksum
+                && strong[expectedBlock] == strongHash(content, position,
+                    position + blockSize)) {
+                block = expectedBlock;
+            } else {
+                for (int i = table[mix(checksum) & mask]; i != NO_BLOCK; i = next[i]) {
+                    if (weak[i] == checksum
+                        && strong[i] == strongHash(content, position, position
+                            + blockSize)) {
+                        block = i;
+                        break;
+                    }
+                }
+            }
+
+            if (block != NO_BLOCK) {
+                writer.literal(literalStart, position);
+                writer.copy(block);
+
+                position += blockSize;
+                literalStart = position;
+                expectedBlock = block + 1;
+
+                if (position + blockSize <= length)
+                    checksum = weakChecksum(content, position, position
+                        + blockSize);
+
+                continue;
+            }
+
+            if (position + blockSize < length)
+                checksum = roll(checksum, content.charAt(position),
+                    content.charAt(position + blockSize), blockSize);
+
+            position++;
+        }
+
+        // the last block is usually shorter, it can only match at the end
+        if (lastBlockLength > 0 && lastBlockLength < blockSize
+            && length - literalStart >= lastBlockLength) {
+
+            final int start = length - lastBlockLength;
+            final int last = blockCount - 1;
+
+            if (weak[last] == weakChecksum(content, start, length)
+                && strong[last] == strongHash(content, start, length)) {
+                writer.literal(literalStart, start);
+                writer.copy(last);
+                literalStart = length;
+            }
+        }
+
+        writer.literal(literalStart, length);
+
+        return writer.finish();
+    }
+
+    /**
+     * Applies the delta to the content the signatures were created from.
+     *
+     * @param base
+     *            the outdated content of the document
+     * @param delta
+     *            the delta as returned by {@link #createDelta}
+     * @return the current content of the document
+     * @throws IOException
+     *             if the delta is malformed, was not created for the given
+     *             content or the result does not match the current content
+     */
+    public static String applyDelta(String base, byte[] delta)
+        throws IOException {
+
+        final DataInputStream in = new DataInputStream(
+            new ByteArrayInputStream(delta));
+
+        final int blockSize = in.readInt();
+        final int baseLength = in.readInt();
+        final int length = in.readInt();
+        final int hash = in.readInt();
+
+        if (blockSize < 1 || length < 0)
+            throw new IOException("malformed delta");
+
+        if (baseLength != base.length())
+            throw new IOException("delta was created for a content of "
+                + baseLength + " chars, but the content has " + base.length()
+                + " chars");
+
+        final StringBuilder content = new StringBuilder(length);
+
+        while (true) {
+            final int type = in.readUnsignedByte();
+
+            if (type == END)
+                break;
+
+            switch (type) {
+            case COPY:
+                final long start = (long) in.readInt() * blockSize;
+                final long end = Math.min(start + (long) in.readInt()
+                    * blockSize, baseLength);
+
+                if (start < 0 || start >= end)
+                    throw new IOException("invalid block range");
+
+                content.append(base, (int) start, (int) end);
+                break;
+            case LITERAL:
+                content.append(in.readUTF());
+                break;
+            default:
+                throw new IOException("unknown delta instruction: " + type);
+            }
+
+            if (content.length() > length)
+                break;
+        }
+
+        final String result = content.toString();
+
+        if (result.length() != length || result.hashCode() != hash)
+            throw new IOException(
+                "the content created from the delta does not match the original content");
+
+        return result;
+    }
+
+    /*
+     * roughly the square root of the length like rsync, so the sizes of the
+     * signatures and of a delta for a small change grow equally
+     */
+    private static int getBlockSize(int length) {
+        final int blockSize = (int) Math.sqrt(length);
+        return Math.min(MAX_BLOCK_SIZE, Math.max(MIN_BLOCK_SIZE, blockSize));
+    }
+
+    /*
+     * Adler-32 like checksum with both sums modulo 2^16, the chars of a window
+     * can be exchanged one by one in constant time
+     */
+    private static int weakChecksum(String content, int start, int end) {
+        int a = 0;
+        int b = 0;
+
+        for (int i = start; i < end; i++) {
+            a += content.charAt(i);
+            b += a;
+        }
+
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    private static int roll(int checksum, char out, char in, int blockSize) {
+        final int a = ((checksum & 0xFFFF) - out + in) & 0xFFFF;
+        final int b = ((checksum >>> 16) - blockSize * out + a) & 0xFFFF;
+        return a | (b << 16);
+    }
+
+    // 64 bit FNV-1a
+    private static long strongHash(String content, int start, int end) {
+        long hash = 0xcbf29ce484222325L;
+
+        for (int i = start; i < end; i++) {
+            hash ^= content.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        return hash;
+    }
+
+    private static int mix(int checksum) {
+        return checksum ^ (checksum >>> 16);
+    }
+
+    /**
+     * Writes the instructions of a delta, consecutive blocks are combined into
+     * one copy instruction.
+     */
+    private static final class DeltaWriter {
+
+        private final String content;
+
+        private final ByteArrayOutputStream bout = new ByteArrayOutputStream(
+            256);
+
+        private final DataOutputStream out = new DataOutputStream(bout);
+
+        private int copyStart = NO_BLOCK;
+
+        private int copyCount;
+
+        private DeltaWriter(String content, int blockSize, int baseLength)
+            throws IOException {
+            this.content = content;
+
+            out.writeInt(blockSize);
+            out.writeInt(baseLength);
+            out.writeInt(content.length());
+            out.writeInt(content.hashCode());
+        }
+
+        private void copy(int block) throws IOException {
+            if (copyStart != NO_BLOCK && copyStart + copyCount == block) {
+                copyCount++;
+                return;
+            }
+
+            flushCopy();
+            copyStart = block;
+            copyCount = 1;
+        }
+
+        private void literal(int start, int end) throws IOException {
+            if (start == end)
+                return;
+
+            flushCopy();
+
+            for (int i = start; i < end; i += MAX_LITERAL_LENGTH) {
+                out.writeByte(LITERAL);
+                out.writeUTF(content.substring(i,
+                    Math.min(i + MAX_LITERAL_LENGTH, end)));
+            }
+        }
+
+        private byte[] finish() throws IOException {
+            flushCopy();
+            out.writeByte(END);
+            out.flush();
+            return bout.toByteArray();
+        }
+
+        private void flushCopy() throws IOException {
+            if (copyStart == NO_BLOCK)
+                return;
+
+            out.writeByte(COPY);
+            out.writeInt(copyStart);
+            out.writeInt(copyCount);
+            copyStart = NO_BLOCK;
+        }
+    }
+}
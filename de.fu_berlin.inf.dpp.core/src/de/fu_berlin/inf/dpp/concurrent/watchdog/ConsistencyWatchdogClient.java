@@ -1,8 +1,11 @@
 package de.fu_berlin.inf.dpp.concurrent.watchdog;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
@@ -19,8 +22,12 @@ import de.fu_berlin.inf.dpp.activities.ChecksumActivity;
 import de.fu_berlin.inf.dpp.activities.ChecksumErrorActivity;
 import de.fu_berlin.inf.dpp.activities.FileActivity;
 import de.fu_berlin.inf.dpp.activities.SPath;
+import de.fu_berlin.inf.dpp.activities.TextEditActivity;
 import de.fu_berlin.inf.dpp.annotations.Component;
+import de.fu_berlin.inf.dpp.concurrent.management.ConcurrentDocumentClient;
+import de.fu_berlin.inf.dpp.editor.AbstractSharedEditorListener;
 import de.fu_berlin.inf.dpp.editor.IEditorManager;
+import de.fu_berlin.inf.dpp.editor.ISharedEditorListener;
 import de.fu_berlin.inf.dpp.monitoring.IProgressMonitor;
 import de.fu_berlin.inf.dpp.monitoring.NullProgressMonitor;
 import de.fu_berlin.inf.dpp.monitoring.remote.RemoteProgressManager;
@@ -30,6 +37,7 @@ import de.fu_berlin.inf.dpp.session.IActivityConsumer;
 import de.fu_berlin.inf.dpp.session.IActivityConsumer.Priority;
 import de.fu_berlin.inf.dpp.session.ISarosSession;
 import de.fu_berlin.inf.dpp.session.UserFormatUtils;
+import de.fu_berlin.inf.dpp.versioning.VersionManager;
 
 /**
  * This class is responsible for two things:
@@ -42,6 +50,9 @@ import de.fu_berlin.inf.dpp.session.UserFormatUtils;
  * <li>Send a ChecksumError to the host, if the user wants to recover from an
  * inconsistency. See {@link #runRecovery}</li>
  * </ol>
+ * If the host supports it, the ChecksumError contains the
+ * {@linkplain BlockDelta block signatures} of larger files, so the host only
+ * has to send the differences.
  * This class both produces and consumes activities.
  */
 @Component(module = "consistency")
@@ -53,6 +64,13 @@ public class ConsistencyWatchdogClient extends AbstractActivityProducer
 
     private static final Random RANDOM = new Random();
 
+    /**
+     * Minimum length of a document for which signatures are sent, the full
+     * content of smaller documents is hardly larger than a delta.
+     */
+    private static final int MIN_DELTA_RECOVERY_LENGTH = Integer.getInteger(
+        "de.fu_berlin.inf.dpp.consistency.MIN_DELTA_RECOVERY_LENGTH", 4096);
+
     /**
      * boolean condition variable used to interrupt another thread from
      * performing a recovery in {@link #runRecovery}
@@ -81,18 +99,34 @@ public class ConsistencyWatchdogClient extends AbstractActivityProducer
 
     private final Set<SPath> pathsWithWrongChecksums = new CopyOnWriteArraySet<SPath>();
 
+    /**
+     * Files whose delta could not be applied, the next recovery requests their
+     * whole content.
+     */
+    private final Set<SPath> pathsWithFailedDeltaRecovery = new CopyOnWriteArraySet<SPath>();
+
+    /*
+     * Checksums of the local documents. Like the text edits, the checksums
+     * from the host are processed on the UI thread, so no locking is needed.
+     */
+    private final Map<SPath, DocumentChecksum> localChecksums = new HashMap<SPath, DocumentChecksum>();
+
     private final RemoteProgressManager remoteProgressManager;
 
     private final ISarosSession session;
 
+    private final VersionManager versionManager;
+
     public ConsistencyWatchdogClient(final ISarosSession session,
         final IsInconsistentObservable inconsistencyToResolve,
         final IEditorManager editorManager,
-        final RemoteProgressManager remoteProgressManager) {
+        final RemoteProgressManager remoteProgressManager,
+        final VersionManager versionManager) {
         this.session = session;
         this.inconsistencyToResolve = inconsistencyToResolve;
         this.editorManager = editorManager;
         this.remoteProgressManager = remoteProgressManager;
+        this.versionManager = versionManager;
     }
 
     private final IActivityConsumer consumer = new AbstractActivityConsumer() {
@@ -114,6 +148,12 @@ public class ConsistencyWatchdogClient extends AbstractActivityProducer
 
         @Override
         public void receive(FileActivity fileActivity) {
+            // the content of the documents is replaced without text edits
+            localChecksums.remove(fileActivity.getPath());
+
+            if (fileActivity.getOldPath() != null)
+                localChecksums.remove(fileActivity.getOldPath());
+
             if (!fileActivity.isRecovery())
                 return;
 
@@ -127,20 +167,34 @@ public class ConsistencyWatchdogClient extends AbstractActivityProducer
         }
     };
 
+    private final ISharedEditorListener sharedEditorListener = new AbstractSharedEditorListener() {
+        @Override
+        public void textEdited(TextEditActivity textEdit) {
+            DocumentChecksum checksum = localChecksums.get(textEdit.getPath());
+
+            if (checksum != null)
+                checksum.update(textEdit);
+        }
+    };
+
     @Override
     public void start() {
         inconsistencyToResolve.setValue(false);
 
         session.addActivityConsumer(consumer, Priority.ACTIVE);
         session.addActivityProducer(this);
+        editorManager.addSharedEditorListener(sharedEditorListener);
     }
 
     @Override
     public void stop() {
         session.removeActivityConsumer(consumer);
         session.removeActivityProducer(this);
+        editorManager.removeSharedEditorListener(sharedEditorListener);
 
         pathsWithWrongChecksums.clear();
+        pathsWithFailedDeltaRecovery.clear();
+        localChecksums.clear();
 
         // abort running recoveries
         cancelRecovery.set(true);
@@ -223,9 +277,12 @@ public class ConsistencyWatchdogClient extends AbstractActivityProducer
                     + UserFormatUtils.getDisplayName(currentSession
                         .getLocalUser()), filesRemaining.get());
 
+            final List<byte[]> signatures = createSignatures(currentSession,
+                pathsOfHandledFiles);
+
             fireActivity(new ChecksumErrorActivity(
                 currentSession.getLocalUser(), currentSession.getHost(),
-                pathsOfHandledFiles, recoveryID));
+                pathsOfHandledFiles, signatures, recoveryID));
 
             try {
                 // block until all inconsistencies are resolved
@@ -255,6 +312,9 @@ public class ConsistencyWatchdogClient extends AbstractActivityProducer
             } finally {
                 // Inform others for progress...
                 remoteProgress.done();
+
+                if (signatures != null)
+                    removeRecoveryBases(currentSession, pathsOfHandledFiles);
             }
 
         } finally {
@@ -263,6 +323,62 @@ public class ConsistencyWatchdogClient extends AbstractActivityProducer
         }
     }
 
+    /**
+     * Creates the signatures of the given files and registers the contents
+     * they were created from as recovery bases.
+     * 
+     * @return the signatures in the order of the paths, an empty array for
+     *         files whose whole content is requested, or <code>null</code> if
+     *         the host does not support delta recoveries
+     */
+    private List<byte[]> createSignatures(final ISarosSession currentSession,
+        final List<SPath> paths) {
+
+        if (!versionManager.isFeatureSupported(currentSession.getHost()
+            .getJID(), VersionManager.FEATURE_DELTA_RECOVERY))
+            return null;
+
+        final ConcurrentDocumentClient documentClient = currentSession
+            .getConcurrentDocumentClient();
+
+        final List<byte[]> signatures = new ArrayList<byte[]>(paths.size());
+
+        for (final SPath path : paths) {
+            String content = null;
+
+            if (!pathsWithFailedDeltaRecovery.remove(path)
+                && path.getFile().exists())
+                content = editorManager.getContent(path);
+
+            if (content == null || content.length() < MIN_DELTA_RECOVERY_LENGTH) {
+                signatures.add(new byte[0]);
+                continue;
+            }
+
+            documentClient.addRecoveryBase(path, content);
+            signatures.add(BlockDelta.createSignatures(content));
+        }
+
+        return signatures;
+    }
+
+    /*
+     * A base that is still registered was not used, e.g because the delta did
+     * not match it or the recovery was aborted. Request the whole content next
+     * time.
+     */
+    private void removeRecoveryBases(final ISarosSession currentSession,
+        final List<SPath> paths) {
+
+        final ConcurrentDocumentClient documentClient = currentSession
+            .getConcurrentDocumentClient();
+
+        for (final SPath path : paths) {
+            if (documentClient.removeRecoveryBase(path))
+                pathsWithFailedDeltaRecovery.add(path);
+        }
+    }
+
     private String getNextRecoveryID() {
         return Long.toHexString(RANDOM.nextLong());
     }
@@ -296,24 +412,56 @@ public class ConsistencyWatchdogClient extends AbstractActivityProducer
             return true;
         }
 
-        final String editorContent = editorManager.getContent(path);
+        DocumentChecksum localChecksum = localChecksums.get(path);
+
+        if (localChecksum == null) {
+            /*
+             * Drop the checksums of documents the host no longer reports. They
+             * would need a full update anyway.
+             */
+            Iterator<DocumentChecksum> it = localChecksums.values().iterator();
 
-        if (editorContent == null) {
+            while (it.hasNext()) {
+                if (it.next().isDirty())
+                    it.remove();
+            }
+
+            localChecksum = new DocumentChecksum(path);
+            localChecksums.put(path, localChecksum);
+        }
+
+        boolean isFullyUpdated = false;
+
+        if (localChecksum.isDirty()) {
+            localChecksum.update(editorManager.getContent(path));
+            isFullyUpdated = true;
+        }
+
+        if (!isFullyUpdated && !matches(localChecksum, checksum)) {
+            /*
+             * The checksum may have missed a change of the document, so verify
+             * it against the whole content before reporting an inconsistency.
+             */
+            localChecksum.markDirty();
+            localChecksum.update(editorManager.getContent(path));
+        }
+
+        if (localChecksum.getLength() == DocumentChecksum.NOT_AVAILABLE) {
             LOG.debug("Inconsistency detected -> no editor content found for resource: "
                 + path);
 
+            localChecksum.markDirty();
             return true;
         }
 
-        if ((editorContent.length() != checksum.getLength())
-            || (editorContent.hashCode() != checksum.getHash())) {
+        if (!matches(localChecksum, checksum)) {
 
             LOG.debug(String.format(
                 "Inconsistency detected -> %s L(%d %s %d) H(%x %s %x)",
-                path.toString(), editorContent.length(),
-                editorContent.length() == checksum.getLength() ? "==" : "!=",
-                checksum.getLength(), editorContent.hashCode(),
-                editorContent.hashCode() == checksum.getHash() ? "==" : "!=",
+                path.toString(), localChecksum.getLength(),
+                localChecksum.getLength() == checksum.getLength() ? "==" : "!=",
+                checksum.getLength(), localChecksum.getHash(),
+                localChecksum.getHash() == checksum.getHash() ? "==" : "!=",
                 checksum.getHash()));
 
             return true;
@@ -322,6 +470,12 @@ public class ConsistencyWatchdogClient extends AbstractActivityProducer
         return false;
     }
 
+    private static boolean matches(DocumentChecksum localChecksum,
+        ChecksumActivity checksum) {
+        return localChecksum.getLength() == checksum.getLength()
+            && localChecksum.getHash() == checksum.getHash();
+    }
+
     private void performCheck(ChecksumActivity checksumActivity) {
 
         final ISarosSession currentSession = session;
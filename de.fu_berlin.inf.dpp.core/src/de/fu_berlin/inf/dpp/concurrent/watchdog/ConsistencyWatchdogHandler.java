@@ -2,6 +2,8 @@ package de.fu_berlin.inf.dpp.concurrent.watchdog;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.CancellationException;
 
@@ -91,9 +93,58 @@ public final class ConsistencyWatchdogHandler extends AbstractActivityProducer
         });
     }
 
+    /**
+     * Re-synchronizes the given files with the given user, i.e the content of
+     * the files is sent to the user and the Jupiter documents of the user are
+     * reset. All users of the session are stopped during the recovery.
+     * <p>
+     * This is used to repair files that were modified while they were
+     * transferred to the user, e.g during a project negotiation. Must not be
+     * called from the UI thread.
+     * 
+     * @host
+     * 
+     * @param user
+     *            the user whose files must be recovered
+     * @param paths
+     *            the paths of the files to recover
+     * @throws CancellationException
+     *             if the users of the session could not be stopped
+     */
+    public void recoverFiles(final User user, final Collection<SPath> paths)
+        throws CancellationException {
+
+        assert session.isHost();
+
+        LOG.debug("recovering files " + paths + " of user " + user);
+
+        runRecovery(user, new ArrayList<SPath>(paths), null, null);
+    }
+
     private void runRecovery(final ChecksumErrorActivity checksumError)
         throws CancellationException {
 
+        final List<SPath> paths = checksumError.getPaths();
+        final List<byte[]> signatures = new ArrayList<byte[]>(paths.size());
+
+        for (int i = 0; i < paths.size(); i++)
+            signatures.add(checksumError.getSignatures(i));
+
+        runRecovery(checksumError.getSource(), paths, signatures,
+            checksumError.getRecoveryID());
+    }
+
+    /*
+     * All users are stopped, not only the inconsistent one. Otherwise the
+     * Jupiter server could send transformed edits of the other users to the
+     * inconsistent user that are not applied to the local document yet when
+     * its content is read, or that were already applied before the reset, and
+     * the file would be inconsistent again right after the recovery.
+     */
+    private void runRecovery(final User inconsistentUser,
+        final List<SPath> paths, final List<byte[]> signatures,
+        final String recoveryID) throws CancellationException {
+
         List<StartHandle> startHandles = null;
 
         try {
@@ -101,7 +152,7 @@ public final class ConsistencyWatchdogHandler extends AbstractActivityProducer
             startHandles = session.getStopManager().stop(session.getUsers(),
                 "Consistency recovery");
 
-            recoverFiles(checksumError);
+            recoverFiles(inconsistentUser, paths, signatures, recoveryID);
 
             /*
              * We have to start the StartHandle of the inconsistent user first
@@ -113,7 +164,7 @@ public final class ConsistencyWatchdogHandler extends AbstractActivityProducer
             // find the StartHandle of the inconsistent user
             StartHandle inconsistentStartHandle = null;
             for (StartHandle startHandle : startHandles) {
-                if (checksumError.getSource().equals(startHandle.getUser())) {
+                if (inconsistentUser.equals(startHandle.getUser())) {
                     inconsistentStartHandle = startHandle;
                     break;
                 }
@@ -133,20 +184,26 @@ public final class ConsistencyWatchdogHandler extends AbstractActivityProducer
         }
     }
 
-    private void recoverFiles(final ChecksumErrorActivity checksumError) {
+    private void recoverFiles(final User inconsistentUser,
+        final List<SPath> paths, final List<byte[]> signatures,
+        final String recoveryID) {
 
         synchronizer.syncExec(new Runnable() {
             @Override
             public void run() {
 
-                for (final SPath path : checksumError.getPaths()) {
+                for (int i = 0; i < paths.size(); i++) {
+
+                    recoverFile(inconsistentUser, paths.get(i),
+                        signatures == null ? null : signatures.get(i));
 
-                    recoverFile(checksumError.getSource(), path);
+                    // no one is waiting for the end of a requested recovery
+                    if (recoveryID == null)
+                        continue;
 
                     // Tell the user that we sent all files
                     fireActivity(new ChecksumErrorActivity(session
-                        .getLocalUser(), checksumError.getSource(), null,
-                        checksumError.getRecoveryID()));
+                        .getLocalUser(), inconsistentUser, null, recoveryID));
 
                 }
             }
@@ -156,8 +213,13 @@ public final class ConsistencyWatchdogHandler extends AbstractActivityProducer
     /**
      * Recover a single file for the given user (that is either send the file or
      * tell the user to remove it).
+     * 
+     * @param signatures
+     *            the block signatures of the user's version of the file or
+     *            <code>null</code> to send the whole content
      */
-    private void recoverFile(final User from, final SPath path) {
+    private void recoverFile(final User from, final SPath path,
+        final byte[] signatures) {
 
         final IFile file = path.getFile();
 
@@ -199,8 +261,15 @@ public final class ConsistencyWatchdogHandler extends AbstractActivityProducer
             return;
         }
 
-        fireActivity(RecoveryFileActivity.created(user, path, content, from,
-            charset));
+        final byte[] delta = createDelta(signatures, text, path);
+
+        if (delta != null && delta.length < content.length) {
+            fireActivity(RecoveryFileActivity.createdFromDelta(user, path,
+                delta, from, charset));
+        } else {
+            fireActivity(RecoveryFileActivity.created(user, path, content,
+                from, charset));
+        }
 
         /*
          * Immediately follow up with a new checksum activity so that the remote
@@ -213,4 +282,19 @@ public final class ConsistencyWatchdogHandler extends AbstractActivityProducer
         fireActivity(new ChecksumActivity(user, path, checksum.getHash(),
             checksum.getLength(), null));
     }
+
+    private static byte[] createDelta(final byte[] signatures,
+        final String text, final SPath path) {
+
+        if (signatures == null)
+            return null;
+
+        try {
+            return BlockDelta.createDelta(signatures, text);
+        } catch (IOException e) {
+            LOG.warn("received malformed signatures for file: " + path
+                + ", sending the whole content", e);
+            return null;
+        }
+    }
 }
@@ -1,14 +1,13 @@
 package de.fu_berlin.inf.dpp.concurrent.watchdog;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 import org.picocontainer.Startable;
@@ -21,21 +20,29 @@ import de.fu_berlin.inf.dpp.editor.AbstractSharedEditorListener;
 import de.fu_berlin.inf.dpp.editor.IEditorManager;
 import de.fu_berlin.inf.dpp.editor.ISharedEditorListener;
 import de.fu_berlin.inf.dpp.editor.remote.UserEditorStateManager;
+import de.fu_berlin.inf.dpp.editor.text.Rope;
 import de.fu_berlin.inf.dpp.session.AbstractActivityProducer;
 import de.fu_berlin.inf.dpp.session.ISarosSession;
+import de.fu_berlin.inf.dpp.session.User;
 import de.fu_berlin.inf.dpp.synchronize.Blockable;
 import de.fu_berlin.inf.dpp.synchronize.StopManager;
 import de.fu_berlin.inf.dpp.synchronize.UISynchronizer;
-import de.fu_berlin.inf.dpp.util.NamedThreadFactory;
 import de.fu_berlin.inf.dpp.util.ThreadUtils;
 
 /**
  * The server side of the <i>consistency watchdog</i> infrastructure. It
- * periodically checksums the files associated with all locally and remotely
- * open {@link IEditorManager editors} in the current session. It then sends
- * these checksums to all watchdog clients, which can compare them with their
- * own checksum calculations to detect inconsistencies and request file recovery
- * if needed.
+ * checksums the files associated with all locally and remotely open
+ * {@link IEditorManager editors} in the current session. It then sends these
+ * checksums to all watchdog clients, which can compare them with their own
+ * checksum calculations to detect inconsistencies and request file recovery if
+ * needed.
+ * <p>
+ * The checksums are calculated shortly after a burst of edits has ended and
+ * less frequently while the documents are not modified. A checksum is only
+ * sent if it changed, if a user opened the document since it was sent or if
+ * it was not sent for {@link #RESEND_INTERVAL}. The content of documents whose
+ * checksums must be calculated from scratch is read on the UI thread, where
+ * the editors have to be accessed anyway, but it is hashed outside of it.
  * <p>
  * This component is only run on the session's host.
  */
@@ -46,48 +53,103 @@ public class ConsistencyWatchdogServer extends AbstractActivityProducer
     private static final Logger LOG = Logger
         .getLogger(ConsistencyWatchdogServer.class);
 
-    private static final long CHECKSUM_CALCULATION_INTERVAL = 10000;
+    /** Time without edits after which a burst of edits is considered over. */
+    private static final long QUIET_PERIOD = 1000;
+
+    /** Maximum time a check is postponed while documents are being edited. */
+    private static final long MAX_BURST_DELAY = 10000;
+
+    /** Initial delay between two checks while no document is modified. */
+    private static final long MIN_IDLE_INTERVAL = 2000;
+
+    /** The delay between idle checks doubles until it reaches this value. */
+    private static final long MAX_IDLE_INTERVAL = 30000;
+
+    /** Time after which an unchanged checksum is sent again. */
+    private static final long RESEND_INTERVAL = 60000;
+
+    /** Maximum time to spend on reading documents in one check. */
+    private static final long ROUND_TIME_BUDGET = 500;
+
     private static final long TERMINATION_TIMEOUT = 10000;
 
+    private static final long NO_BURST = -1;
+
     private final ISarosSession session;
     private final IEditorManager editorManager;
     private final UserEditorStateManager userEditorStateManager;
     private final StopManager stopManager;
     private final UISynchronizer synchronizer;
 
+    /*
+     * The checksums and the broadcast states are only accessed on the UI
+     * thread
+     */
     private final Map<SPath, DocumentChecksum> documentChecksums = new HashMap<SPath, DocumentChecksum>();
-    private ScheduledThreadPoolExecutor checksumCalculationExecutor;
-    private Future<?> checksumCalculationFuture;
+    private final Map<SPath, BroadcastState> broadcastStates = new HashMap<SPath, BroadcastState>();
+
     private boolean blocked;
 
+    private final Object scheduleLock = new Object();
+
+    // guarded by scheduleLock
+    private boolean stopped;
+    private long nextCheckTime;
+    private long burstStart = NO_BURST;
+    private long lastEditTime;
+    private long idleInterval = MIN_IDLE_INTERVAL;
+
+    private Thread checksumCalculationThread;
+
+    /**
+     * Describes the checksum that was last sent for a document.
+     */
+    private static final class BroadcastState {
+        private final int hash;
+        private final int length;
+        private final Set<User> usersWithOpenEditor;
+        private final long time;
+
+        private BroadcastState(DocumentChecksum checksum,
+            Set<User> usersWithOpenEditor) {
+            this.hash = checksum.getHash();
+            this.length = checksum.getLength();
+            this.usersWithOpenEditor = usersWithOpenEditor;
+            this.time = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * A document whose checksum has to be calculated from its whole content.
+     */
+    private static final class FullUpdate {
+        private final SPath path;
+        private final int revision;
+        private String text;
+        private Rope content;
+        private boolean done;
+
+        private FullUpdate(DocumentChecksum checksum) {
+            this.path = checksum.getPath();
+            this.revision = checksum.getRevision();
+        }
+    }
+
     private final Runnable checksumCalculation = new Runnable() {
-        /**
-         * Called periodically to calculate new checksums for all editors and
-         * send them to clients.
-         */
         @Override
         public void run() {
-            /*
-             * Run on the UI thread to guarantee that the editor contents won't
-             * be changed while we calculate the checksums. We also do this to
-             * synchronize with block().
-             */
-            synchronizer.syncExec(ThreadUtils.wrapSafe(LOG, new Runnable() {
-                @Override
-                public void run() {
-                    if (blocked)
-                        return;
-                    calculateChecksums();
-                }
-            }));
+            while (awaitNextCheck()) {
+                final boolean completed = calculateChecksums();
+                scheduleNextCheck(completed);
+            }
         }
     };
 
     private ISharedEditorListener sharedEditorListener = new AbstractSharedEditorListener() {
         /**
-         * Marks checksums as dirty as soon as their associated documents are
-         * modified. With this information, checksum calculation can be avoided
-         * when the document hasn't changed between checksum iterations.
+         * Applies the modifications of the documents to their checksums, so
+         * the checksums do not have to be calculated from the whole content of
+         * the documents in the next iteration.
          */
         @Override
         public void textEdited(TextEditActivity textEdit) {
@@ -95,7 +157,9 @@ public class ConsistencyWatchdogServer extends AbstractActivityProducer
                 .getPath());
 
             if (checksum != null)
-                checksum.markDirty();
+                checksum.update(textEdit);
+
+            editPerformed();
         }
     };
 
@@ -134,16 +198,13 @@ public class ConsistencyWatchdogServer extends AbstractActivityProducer
         stopManager.addBlockable(this);
         editorManager.addSharedEditorListener(sharedEditorListener);
 
-        checksumCalculationExecutor = new ScheduledThreadPoolExecutor(1,
-            new NamedThreadFactory("Consistency-Watchdog-Server", false));
-
-        checksumCalculationExecutor
-            .setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
-
-        checksumCalculationFuture = checksumCalculationExecutor
-            .scheduleWithFixedDelay(checksumCalculation, 0,
-                CHECKSUM_CALCULATION_INTERVAL, TimeUnit.MILLISECONDS);
+        synchronized (scheduleLock) {
+            stopped = false;
+            nextCheckTime = System.currentTimeMillis();
+        }
 
+        checksumCalculationThread = ThreadUtils.runSafeAsync(
+            "dpp-consistency-watchdog-server", LOG, checksumCalculation);
     }
 
     @Override
@@ -152,21 +213,21 @@ public class ConsistencyWatchdogServer extends AbstractActivityProducer
         stopManager.removeBlockable(this);
         editorManager.removeSharedEditorListener(sharedEditorListener);
 
-        checksumCalculationFuture.cancel(false);
-        checksumCalculationExecutor.shutdown();
+        synchronized (scheduleLock) {
+            stopped = true;
+            scheduleLock.notifyAll();
+        }
 
-        boolean isTerminated = false;
         boolean terminationWasInterrupted = false;
 
         try {
-            isTerminated = checksumCalculationExecutor.awaitTermination(
-                TERMINATION_TIMEOUT, TimeUnit.MILLISECONDS);
+            checksumCalculationThread.join(TERMINATION_TIMEOUT);
         } catch (InterruptedException e) {
             LOG.warn("Interrupted while waiting for consistency watchdog to terminate");
             terminationWasInterrupted = true;
         }
 
-        if (!isTerminated)
+        if (checksumCalculationThread.isAlive())
             LOG.error("Consistency watchdog server is still running");
 
         /*
@@ -177,6 +238,7 @@ public class ConsistencyWatchdogServer extends AbstractActivityProducer
             @Override
             public void run() {
                 documentChecksums.clear();
+                broadcastStates.clear();
             }
         });
 
@@ -210,13 +272,130 @@ public class ConsistencyWatchdogServer extends AbstractActivityProducer
         blocked = false;
     }
 
-    private void calculateChecksums() {
-        Set<SPath> localEditors = editorManager.getOpenEditors();
-        Set<SPath> remoteEditors = userEditorStateManager.getOpenEditors();
+    /*
+     * Called on every local and remote edit. Makes sure a check is performed
+     * soon after the edits end.
+     */
+    private void editPerformed() {
+        synchronized (scheduleLock) {
+            lastEditTime = System.currentTimeMillis();
+
+            if (burstStart == NO_BURST)
+                burstStart = lastEditTime;
+
+            idleInterval = MIN_IDLE_INTERVAL;
+
+            final long checkTime = lastEditTime + QUIET_PERIOD;
+
+            if (checkTime < nextCheckTime) {
+                nextCheckTime = checkTime;
+                scheduleLock.notifyAll();
+            }
+        }
+    }
+
+    /*
+     * Blocks until the next check is due. Returns false if the watchdog was
+     * stopped.
+     */
+    private boolean awaitNextCheck() {
+        synchronized (scheduleLock) {
+            while (!stopped) {
+                final long now = System.currentTimeMillis();
+
+                if (now < nextCheckTime) {
+                    try {
+                        scheduleLock.wait(nextCheckTime - now);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                    continue;
+                }
+
+                // postpone the check until the edits are over
+                if (burstStart != NO_BURST) {
+                    final long quietTime = lastEditTime + QUIET_PERIOD;
+                    final long deadline = burstStart + MAX_BURST_DELAY;
+
+                    if (now < quietTime && now < deadline) {
+                        nextCheckTime = Math.min(quietTime, deadline);
+                        continue;
+                    }
+                }
+
+                burstStart = NO_BURST;
+                nextCheckTime = Long.MAX_VALUE;
+                return true;
+            }
+
+            return false;
+        }
+    }
+
+    private void scheduleNextCheck(boolean completed) {
+        synchronized (scheduleLock) {
+            final long now = System.currentTimeMillis();
 
+            // edits during the check already scheduled the next one
+            if (burstStart != NO_BURST)
+                return;
+
+            if (!completed) {
+                nextCheckTime = now + MIN_IDLE_INTERVAL;
+                return;
+            }
+
+            nextCheckTime = now + idleInterval;
+            idleInterval = Math.min(idleInterval * 2, MAX_IDLE_INTERVAL);
+        }
+    }
+
+    /*
+     * Performs one check. Returns false if not all checksums could be
+     * calculated within the time budget.
+     */
+    private boolean calculateChecksums() {
+        final List<FullUpdate> updates = new ArrayList<FullUpdate>();
+
+        synchronizer.syncExec(ThreadUtils.wrapSafe(LOG, new Runnable() {
+            @Override
+            public void run() {
+                if (!blocked)
+                    prepareChecksums(updates);
+            }
+        }));
+
+        for (FullUpdate update : updates) {
+            if (!update.done || update.text == null)
+                continue;
+
+            update.content = Rope.valueOf(update.text);
+            update.text = null;
+        }
+
+        final boolean[] completed = new boolean[] { true };
+
+        synchronizer.syncExec(ThreadUtils.wrapSafe(LOG, new Runnable() {
+            @Override
+            public void run() {
+                if (!blocked)
+                    completed[0] = broadcastChecksums(updates);
+            }
+        }));
+
+        return completed[0];
+    }
+
+    /*
+     * Runs on the UI thread. Updates the set of checksums to the currently
+     * open documents and reads the content of the documents whose checksums
+     * need a full update, as long as the time budget allows it.
+     */
+    private void prepareChecksums(List<FullUpdate> updates) {
         Set<SPath> allEditors = new HashSet<SPath>();
-        allEditors.addAll(localEditors);
-        allEditors.addAll(remoteEditors);
+        allEditors.addAll(editorManager.getOpenEditors());
+        allEditors.addAll(userEditorStateManager.getOpenEditors());
 
         /*
          * Purge checksums from documents which have been closed since the last
@@ -231,59 +410,117 @@ public class ConsistencyWatchdogServer extends AbstractActivityProducer
 
             if (!allEditors.contains(entry.getKey())) {
                 it.remove();
+                broadcastStates.remove(entry.getKey());
             }
         }
 
-        /*
-         * Update or create checksums for all currently open documents.
-         */
-
         for (SPath docPath : allEditors) {
-            updateChecksum(docPath, localEditors, remoteEditors);
-            broadcastChecksum(docPath);
+            DocumentChecksum checksum = documentChecksums.get(docPath);
+
+            if (checksum == null) {
+                checksum = new DocumentChecksum(docPath);
+                documentChecksums.put(docPath, checksum);
+            }
+
+            if (checksum.isDirty())
+                updates.add(new FullUpdate(checksum));
         }
-    }
 
-    private void updateChecksum(SPath docPath, Set<SPath> localEditors,
-        Set<SPath> remoteEditors) {
+        final long deadline = System.currentTimeMillis() + ROUND_TIME_BUDGET;
+
+        for (FullUpdate update : updates) {
+            if (System.currentTimeMillis() > deadline)
+                break;
 
-        DocumentChecksum checksum = documentChecksums.get(docPath);
-        if (checksum == null) {
-            checksum = new DocumentChecksum(docPath);
-            documentChecksums.put(docPath, checksum);
+            update.text = editorManager.getContent(update.path);
+            update.done = true;
         }
+    }
+
+    /*
+     * Runs on the UI thread. Applies the full updates and sends the checksums
+     * that the clients have not seen yet. Returns false if there are
+     * checksums left that still need a full update.
+     */
+    private boolean broadcastChecksums(List<FullUpdate> updates) {
+        final Set<SPath> localEditors = editorManager.getOpenEditors();
+        final Set<SPath> remoteEditors = userEditorStateManager
+            .getOpenEditors();
 
-        if (!checksum.isDirty())
-            return;
+        boolean completed = true;
 
-        String content = editorManager.getContent(checksum.getPath());
+        for (FullUpdate update : updates) {
+            final DocumentChecksum checksum = documentChecksums
+                .get(update.path);
+
+            if (checksum == null)
+                continue;
+
+            if (!update.done
+                || !checksum.update(update.content, update.revision)) {
+                completed = false;
+                continue;
+            }
 
-        if (content == null) {
-            if (localEditors.contains(checksum.getPath())) {
+            if (update.content != null)
+                continue;
+
+            if (localEditors.contains(update.path)) {
                 LOG.error("EditorManager is in an inconsistent state. "
                     + "It is reporting a locally open editor but no"
                     + " document could be found in the underlying file system: "
                     + checksum);
             }
-            if (!remoteEditors.contains(checksum.getPath())) {
+            if (!remoteEditors.contains(update.path)) {
                 /*
                  * Since session participants do not report this document as
                  * open, they are right (and our EditorPool might be confused)
                  */
-                documentChecksums.remove(checksum.getPath());
-                return;
+                documentChecksums.remove(update.path);
+                broadcastStates.remove(update.path);
             }
         }
 
-        checksum.update(content);
+        final long now = System.currentTimeMillis();
+
+        for (DocumentChecksum checksum : documentChecksums.values()) {
+            if (checksum.isDirty())
+                continue;
+
+            final SPath path = checksum.getPath();
+            final Set<User> usersWithOpenEditor = getUsersWithOpenEditor(path);
+            final BroadcastState lastBroadcast = broadcastStates.get(path);
+
+            if (lastBroadcast != null
+                && lastBroadcast.hash == checksum.getHash()
+                && lastBroadcast.length == checksum.getLength()
+                && lastBroadcast.usersWithOpenEditor
+                    .containsAll(usersWithOpenEditor)
+                && now - lastBroadcast.time < RESEND_INTERVAL)
+                continue;
+
+            broadcastStates.put(path, new BroadcastState(checksum,
+                usersWithOpenEditor));
+
+            broadcastChecksum(checksum);
+        }
+
+        return completed;
     }
 
-    private void broadcastChecksum(SPath docPath) {
+    private Set<User> getUsersWithOpenEditor(SPath path) {
+        final Set<User> result = new HashSet<User>();
 
-        DocumentChecksum checksum = documentChecksums.get(docPath);
-        if (checksum == null)
-            return;
+        for (User user : session.getRemoteUsers()) {
+            if (userEditorStateManager.getState(user).getOpenEditors()
+                .contains(path))
+                result.add(user);
+        }
+
+        return result;
+    }
 
+    private void broadcastChecksum(DocumentChecksum checksum) {
         ChecksumActivity checksumActivity = new ChecksumActivity(
             session.getLocalUser(), checksum.getPath(), checksum.getHash(),
             checksum.getLength(), null);
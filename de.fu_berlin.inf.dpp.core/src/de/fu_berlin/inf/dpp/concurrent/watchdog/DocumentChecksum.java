@@ -1,11 +1,20 @@
 package de.fu_berlin.inf.dpp.concurrent.watchdog;
 
 import de.fu_berlin.inf.dpp.activities.SPath;
+import de.fu_berlin.inf.dpp.activities.TextEditActivity;
+import de.fu_berlin.inf.dpp.editor.text.Rope;
 
 /**
  * Represents a checksum of a document in the workspace. It consists of the
  * document's project-relative path, the content length and the content's string
  * hash code.
+ * <p>
+ * The checksum keeps a copy of the document's content, so it can be kept up to
+ * date by {@linkplain #update(TextEditActivity) applying the text edits} made
+ * to the document. The cost of such an update depends only on the size of the
+ * edit, not on the size of the document. As the copy may miss changes that are
+ * not reported as text edits, the checksum is recalculated from the whole
+ * content once it is older than {@link #FULL_UPDATE_INTERVAL}.
  */
 public class DocumentChecksum {
 
@@ -15,10 +24,21 @@ public class DocumentChecksum {
      * doesn't exist).
      */
     public static final int NOT_AVAILABLE = -1;
+
+    /**
+     * The time in milliseconds after which the checksum is considered to be
+     * {@linkplain #isDirty() dirty} even if all changes were applied as text
+     * edits.
+     */
+    public static final long FULL_UPDATE_INTERVAL = 60000;
+
     private SPath path;
+    private Rope content;
     private int length;
     private int hash;
     private boolean dirty;
+    private long lastFullUpdate;
+    private int revision;
 
     /**
      * Creates a new DocumentChecksum.
@@ -64,12 +84,23 @@ public class DocumentChecksum {
      * </p>
      * 
      * @return document content hash, or {@link #NOT_AVAILABLE} if not
-     *         available, or {@link #NOT_AVAILABLE} if not available
+     *         available
      */
     public int getHash() {
         return hash;
     }
 
+    /**
+     * Returns the revision of the checksum. The revision changes whenever the
+     * checksum is notified about a change of the document.
+     * 
+     * @return the current revision
+     * @see #update(Rope, int)
+     */
+    public int getRevision() {
+        return revision;
+    }
+
     /**
      * Returns whether the checksum (more specifically, what was calculated for
      * {@link #getHash()} and {@link #getLength()} in the last call to
@@ -77,17 +108,21 @@ public class DocumentChecksum {
      * current content.
      * <p>
      * Note that this determines whether {@link #update(String)} actually does
-     * any checksum calculations, so make sure to call {@link #markDirty()} to
-     * notify the checksum whenever the document changes.
+     * any checksum calculations, so make sure to call {@link #markDirty()} or
+     * {@link #update(TextEditActivity)} to notify the checksum whenever the
+     * document changes.
      * <p>
-     * A DocumentChecksum is automatically marked as dirty when it created.
+     * A DocumentChecksum is automatically marked as dirty when it created and
+     * when the last full calculation is older than
+     * {@link #FULL_UPDATE_INTERVAL}.
      * </p>
      * 
      * @return <code>true</code> if the checksum is out-of-sync,
      *         <code>false</code> if it is up-to-date
      */
     public boolean isDirty() {
-        return dirty;
+        return dirty
+            || System.currentTimeMillis() - lastFullUpdate >= FULL_UPDATE_INTERVAL;
     }
 
     /**
@@ -96,6 +131,8 @@ public class DocumentChecksum {
      */
     public void markDirty() {
         dirty = true;
+        content = null;
+        revision++;
     }
 
     /**
@@ -111,17 +148,82 @@ public class DocumentChecksum {
      *            document is does not exist locally
      */
     public void update(String documentContent) {
-        if (!dirty)
+        if (!isDirty())
             return;
 
+        update(documentContent == null ? null : Rope.valueOf(documentContent),
+            revision);
+    }
+
+    /**
+     * Like {@link #update(String)}, but takes content that was obtained while
+     * the checksum had the given {@linkplain #getRevision() revision}. If the
+     * checksum was notified about another change since then, the content is
+     * outdated and the checksum is left unchanged. This allows to read the
+     * document's content without blocking the notifications.
+     * 
+     * @param documentContent
+     *            the document's content, or <code>null</code> if the document
+     *            does not exist locally
+     * @param revision
+     *            the revision of the checksum when the content was read
+     * @return <code>false</code> if the content is outdated,
+     *         <code>true</code> otherwise
+     */
+    public boolean update(Rope documentContent, int revision) {
+        if (revision != this.revision)
+            return false;
+
+        if (!isDirty())
+            return true;
+
         if (documentContent == null) {
+            content = null;
             length = hash = NOT_AVAILABLE;
         } else {
-            length = documentContent.length();
-            hash = documentContent.hashCode();
+            content = documentContent;
+            length = content.length();
+            hash = content.contentHash();
         }
 
         dirty = false;
+        lastFullUpdate = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * Updates the checksum by applying the given text edit to the copy of the
+     * document's content. If the edit does not fit the copy, e.g. because the
+     * document was changed without notifying this checksum, the checksum is
+     * {@linkplain #markDirty() marked as dirty} instead. If the checksum is
+     * already dirty, it does nothing.
+     * 
+     * @param edit
+     *            a text edit that was applied to the associated document
+     */
+    public void update(TextEditActivity edit) {
+        if (dirty || content == null) {
+            revision++;
+            return;
+        }
+
+        final int offset = edit.getOffset();
+        final String replacedText = edit.getReplacedText();
+        final int end = offset + replacedText.length();
+
+        if (offset < 0 || end > content.length()
+            || !replacedText.equals(content.substring(offset, end))) {
+            markDirty();
+            return;
+        }
+
+        content = content.replace(offset, replacedText.length(),
+            edit.getText());
+
+        revision++;
+
+        length = content.length();
+        hash = content.contentHash();
     }
 
     @Override
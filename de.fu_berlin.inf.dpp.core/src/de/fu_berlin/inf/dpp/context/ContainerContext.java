@@ -29,6 +29,8 @@ import de.fu_berlin.inf.dpp.communication.extensions.KickUserExtension;
 import de.fu_berlin.inf.dpp.communication.extensions.LeaveSessionExtension;
 import de.fu_berlin.inf.dpp.communication.extensions.PingExtension;
 import de.fu_berlin.inf.dpp.communication.extensions.PongExtension;
+import de.fu_berlin.inf.dpp.communication.extensions.ProjectNegotiationManifestExtension;
+import de.fu_berlin.inf.dpp.communication.extensions.ProjectNegotiationManifestRequestExtension;
 import de.fu_berlin.inf.dpp.communication.extensions.ProjectNegotiationMissingFilesExtension;
 import de.fu_berlin.inf.dpp.communication.extensions.ProjectNegotiationOfferingExtension;
 import de.fu_berlin.inf.dpp.communication.extensions.SessionStatusRequestExtension;
@@ -140,6 +142,9 @@ public class ContainerContext implements IContainerContext {
             Class.forName(ProjectNegotiationOfferingExtension.class.getName());
             Class.forName(ProjectNegotiationMissingFilesExtension.class
                 .getName());
+            Class.forName(ProjectNegotiationManifestRequestExtension.class
+                .getName());
+            Class.forName(ProjectNegotiationManifestExtension.class.getName());
 
             // General session extensions
             Class.forName(ActivitiesExtension.class.getName());
@@ -90,6 +90,16 @@ public class UserEditorStateManager implements IActivityConsumer, Startable {
         state.consumer.exec(activity);
     }
 
+    @Override
+    public void beginTextEdits(SPath path) {
+        // NOP, the states are updated per activity
+    }
+
+    @Override
+    public void endTextEdits(SPath path) {
+        // NOP, the states are updated per activity
+    }
+
     /* Public methods */
 
     /**
@@ -0,0 +1,426 @@
+package de.fu_berlin.inf.dpp.editor.text;
+
+/**
+ * An immutable text buffer which is optimized for editing large documents.
+ * <p>
+ * The text is stored in chunks of limited size which form a balanced binary
+ * tree (AVL tree) ordered by their position in the text. Inserting or deleting
+ * text therefore only creates <code>O(log n)</code> new nodes instead of
+ * copying the whole document, and all other nodes are shared between the old
+ * and the new rope. As a rope never changes, it can be read (e.g. written to
+ * disk) without holding any lock while other threads continue editing.
+ * <p>
+ * Consecutive small edits, e.g. typing, are merged into the neighboring chunks
+ * so the tree does not degrade into one node per keystroke.
+ * <p>
+ * Every node caches the hash of its text, so {@link #contentHash()} is
+ * available in constant time after each edit.
+ */
+public final class Rope {
+
+    /** The empty rope. */
+    public static final Rope EMPTY = new Rope(null);
+
+    static final int MAX_CHUNK_LENGTH = 1024;
+
+    /*
+     * POWERS[i] = 31^i, the multiplier that String.hashCode() applies to a
+     * hash when i characters are appended (overflow is intended)
+     */
+    private static final int[] POWERS = new int[MAX_CHUNK_LENGTH + 1];
+
+    static {
+        POWERS[0] = 1;
+
+        for (int i = 1; i < POWERS.length; i++)
+            POWERS[i] = POWERS[i - 1] * 31;
+    }
+
+    private static final class Node {
+        private final Node left;
+        private final Node right;
+        private final String chunk;
+        private final int length;
+        private final int height;
+
+        /* the hash of the text of this subtree and 31^length */
+        private final int hash;
+        private final int power;
+
+        private Node(Node left, String chunk, Node right) {
+            this.left = left;
+            this.right = right;
+            this.chunk = chunk;
+            this.length = length(left) + chunk.length() + length(right);
+            this.height = Math.max(height(left), height(right)) + 1;
+
+            final int chunkPower = POWERS[chunk.length()];
+
+            this.hash = (hash(left) * chunkPower + chunk.hashCode())
+                * power(right) + hash(right);
+
+            this.power = power(left) * chunkPower * power(right);
+        }
+    }
+
+    private final Node root;
+
+    private Rope(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Returns a rope containing the given text.
+     *
+     * @param text
+     *            the initial text
+     * @return a rope with the given text
+     */
+    public static Rope valueOf(String text) {
+        if (text.length() == 0)
+            return EMPTY;
+
+        return new Rope(build(text));
+    }
+
+    /**
+     * Returns the number of characters in this rope.
+     */
+    public int length() {
+        return length(root);
+    }
+
+    /**
+     * Returns the hash of the text of this rope. The result is equal to
+     * <code>toString().hashCode()</code>, but is computed in constant time.
+     *
+     * @return the hash of the text
+     */
+    public int contentHash() {
+        return hash(root);
+    }
+
+    /**
+     * Returns a rope in which the given text is inserted at the given offset.
+     *
+     * @param offset
+     *            the offset to insert the text at
+     * @param text
+     *            the text to insert
+     * @return the new rope
+     * @throws IndexOutOfBoundsException
+     *             if the offset is not within the bounds of this rope
+     */
+    public Rope insert(int offset, String text) {
+        return replace(offset, 0, text);
+    }
+
+    /**
+     * Returns a rope in which the given range of text is deleted.
+     *
+     * @param offset
+     *            the offset of the range to delete
+     * @param length
+     *            the length of the range to delete
+     * @return the new rope
+     * @throws IndexOutOfBoundsException
+     *             if the range is not within the bounds of this rope
+     */
+    public Rope delete(int offset, int length) {
+        return replace(offset, length, "");
+    }
+
+    /**
+     * Returns a rope in which the given range of text is replaced with the
+     * given text.
+     *
+     * @param offset
+     *            the offset of the range to replace
+     * @param length
+     *            the length of the range to replace
+     * @param text
+     *            the text to insert instead
+     * @return the new rope
+     * @throws IndexOutOfBoundsException
+     *             if the range is not within the bounds of this rope
+     */
+    public Rope replace(int offset, int length, String text) {
+        checkRange(offset, offset + length);
+
+        if (length == 0 && text.length() == 0)
+            return this;
+
+        final Node[] head = split(root, offset);
+        final Node[] tail = split(head[1], length);
+
+        return new Rope(concat(head[0], text, tail[1]));
+    }
+
+    /**
+     * Returns the text in the given range.
+     *
+     * @param begin
+     *            the begin index, inclusive
+     * @param end
+     *            the end index, exclusive
+     * @return the text in the given range
+     * @throws IndexOutOfBoundsException
+     *             if the range is not within the bounds of this rope
+     */
+    public String substring(int begin, int end) {
+        checkRange(begin, end);
+
+        final StringBuilder builder = new StringBuilder(end - begin);
+        append(root, builder, begin, end);
+        return builder.toString();
+    }
+
+    /**
+     * Returns the whole text of this rope.
+     */
+    @Override
+    public String toString() {
+        return substring(0, length());
+    }
+
+    /**
+     * Returns the height of the tree, for testing purposes only.
+     */
+    int height() {
+        return height(root);
+    }
+
+    private void checkRange(int begin, int end) {
+        if (begin < 0 || begin > end || end > length())
+            throw new IndexOutOfBoundsException("range [" + begin + ", " + end
+                + ") is out of bounds, length: " + length());
+    }
+
+    private static int length(Node node) {
+        return node == null ? 0 : node.length;
+    }
+
+    private static int height(Node node) {
+        return node == null ? 0 : node.height;
+    }
+
+    private static int hash(Node node) {
+        return node == null ? 0 : node.hash;
+    }
+
+    private static int power(Node node) {
+        return node == null ? 1 : node.power;
+    }
+
+    private static void append(Node node, StringBuilder builder, int begin,
+        int end) {
+
+        if (node == null || begin >= end)
+            return;
+
+        final int leftLength = length(node.left);
+        final int chunkEnd = leftLength + node.chunk.length();
+
+        if (begin < leftLength)
+            append(node.left, builder, begin, Math.min(end, leftLength));
+
+        if (begin < chunkEnd && end > leftLength)
+            builder.append(node.chunk, Math.max(begin - leftLength, 0),
+                Math.min(end, chunkEnd) - leftLength);
+
+        if (end > chunkEnd)
+            append(node.right, builder, Math.max(begin - chunkEnd, 0), end
+                - chunkEnd);
+    }
+
+    /*
+     * Builds a perfectly balanced tree out of the chunks of the given text.
+     */
+    private static Node build(String text) {
+        final int chunks = (text.length() + MAX_CHUNK_LENGTH - 1)
+            / MAX_CHUNK_LENGTH;
+
+        return build(text, 0, chunks);
+    }
+
+    private static Node build(String text, int firstChunk, int lastChunk) {
+        if (firstChunk >= lastChunk)
+            return null;
+
+        final int middle = (firstChunk + lastChunk) >>> 1;
+        final int begin = middle * MAX_CHUNK_LENGTH;
+        final int end = Math.min(begin + MAX_CHUNK_LENGTH, text.length());
+
+        return new Node(build(text, firstChunk, middle), text.substring(begin,
+            end), build(text, middle + 1, lastChunk));
+    }
+
+    /*
+     * Concatenates left, text and right. The text is merged with the adjacent
+     * chunks if the result does not exceed the maximum chunk length.
+     */
+    private static Node concat(Node left, String text, Node right) {
+        if (left != null) {
+            final String last = last(left);
+
+            if (last.length() + text.length() <= MAX_CHUNK_LENGTH) {
+                text = last + text;
+                left = removeLast(left);
+            }
+        }
+
+        if (right != null) {
+            final String first = first(right);
+
+            if (first.length() + text.length() <= MAX_CHUNK_LENGTH) {
+                text = text + first;
+                right = removeFirst(right);
+            }
+        }
+
+        if (text.length() == 0)
+            return join(left, right);
+
+        if (text.length() <= MAX_CHUNK_LENGTH)
+            return join(left, text, right);
+
+        return join(join(left, build(text)), right);
+    }
+
+    /*
+     * Splits the tree at the given offset. Returns the trees containing the
+     * text before and after the offset.
+     */
+    private static Node[] split(Node node, int offset) {
+        if (node == null)
+            return new Node[2];
+
+        final int leftLength = length(node.left);
+        final int chunkEnd = leftLength + node.chunk.length();
+
+        if (offset <= leftLength) {
+            final Node[] parts = split(node.left, offset);
+            parts[1] = join(parts[1], node.chunk, node.right);
+            return parts;
+        }
+
+        if (offset >= chunkEnd) {
+            final Node[] parts = split(node.right, offset - chunkEnd);
+            parts[0] = join(node.left, node.chunk, parts[0]);
+            return parts;
+        }
+
+        final int index = offset - leftLength;
+
+        return new Node[] {
+            join(node.left, node.chunk.substring(0, index), null),
+            join(null, node.chunk.substring(index), node.right) };
+    }
+
+    /*
+     * Joins two trees where all text of the left one precedes the right one.
+     */
+    private static Node join(Node left, Node right) {
+        if (left == null)
+            return right;
+
+        if (right == null)
+            return left;
+
+        return join(removeLast(left), last(left), right);
+    }
+
+    /*
+     * Joins two trees with the given chunk in between, restoring the AVL
+     * balance on the way back up.
+     */
+    private static Node join(Node left, String chunk, Node right) {
+        if (height(left) > height(right) + 1)
+            return joinRight(left, chunk, right);
+
+        if (height(right) > height(left) + 1)
+            return joinLeft(left, chunk, right);
+
+        return new Node(left, chunk, right);
+    }
+
+    private static Node joinRight(Node left, String chunk, Node right) {
+        if (height(left.right) <= height(right) + 1) {
+            final Node node = new Node(left.right, chunk, right);
+
+            if (height(node) <= height(left.left) + 1)
+                return new Node(left.left, left.chunk, node);
+
+            return rotateLeft(new Node(left.left, left.chunk,
+                rotateRight(node)));
+        }
+
+        final Node node = joinRight(left.right, chunk, right);
+        final Node result = new Node(left.left, left.chunk, node);
+
+        if (height(node) <= height(left.left) + 1)
+            return result;
+
+        return rotateLeft(result);
+    }
+
+    private static Node joinLeft(Node left, String chunk, Node right) {
+        if (height(right.left) <= height(left) + 1) {
+            final Node node = new Node(left, chunk, right.left);
+
+            if (height(node) <= height(right.right) + 1)
+                return new Node(node, right.chunk, right.right);
+
+            return rotateRight(new Node(rotateLeft(node), right.chunk,
+                right.right));
+        }
+
+        final Node node = joinLeft(left, chunk, right.left);
+        final Node result = new Node(node, right.chunk, right.right);
+
+        if (height(node) <= height(right.right) + 1)
+            return result;
+
+        return rotateRight(result);
+    }
+
+    private static Node rotateLeft(Node node) {
+        final Node right = node.right;
+        return new Node(new Node(node.left, node.chunk, right.left),
+            right.chunk, right.right);
+    }
+
+    private static Node rotateRight(Node node) {
+        final Node left = node.left;
+        return new Node(left.left, left.chunk, new Node(left.right,
+            node.chunk, node.right));
+    }
+
+    private static String first(Node node) {
+        while (node.left != null)
+            node = node.left;
+
+        return node.chunk;
+    }
+
+    private static String last(Node node) {
+        while (node.right != null)
+            node = node.right;
+
+        return node.chunk;
+    }
+
+    private static Node removeFirst(Node node) {
+        if (node.left == null)
+            return node.right;
+
+        return join(removeFirst(node.left), node.chunk, node.right);
+    }
+
+    private static Node removeLast(Node node) {
+        if (node.right == null)
+            return node.left;
+
+        return join(node.left, node.chunk, removeLast(node.right));
+    }
+}
@@ -0,0 +1,538 @@
+package de.fu_berlin.inf.dpp.filesystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.picocontainer.Startable;
+
+/**
+ * Checksum cache {@link IChecksumCache implementation} that stores the
+ * checksums in a memory mapped file, so the checksums survive restarts of the
+ * application.
+ * <p>
+ * Each entry is validated against the size and the modification time of the
+ * file, so files that were modified while the application was not running are
+ * detected as well. If a {@link IFileContentChangedNotifier notifier} is
+ * provided, entries are additionally invalidated as soon as the content of a
+ * file changes.
+ * <p>
+ * A checksum is only stored if the size and the modification time of the file
+ * did not change between the lookup that missed and the call to
+ * {@link #addChecksum}, i.e while the caller calculated the checksum. Files
+ * that were modified less than {@link #MTIME_GRANULARITY} ago are not stored
+ * either, because another modification within the same tick of the file
+ * system clock would not change the modification time.
+ * <p>
+ * Like the {@link FileSystemChecksumCache} this implementation identifies files
+ * by a 128 bit hash of their location and is <b>NOT</b> capable of handling
+ * hash collisions. The entries are kept in an open addressing hash table that
+ * is directly stored in the file, i.e lookups and updates do not need any
+ * additional memory.
+ * <p>
+ * If the cache file cannot be used, e.g because it is locked by another
+ * process, the cache is disabled and behaves like a {@link NullChecksumCache}.
+ */
+public final class PersistentChecksumCache implements IChecksumCache,
+    Startable {
+
+    private static final Logger LOG = Logger
+        .getLogger(PersistentChecksumCache.class);
+
+    private static final int SEED = 0xCAFEBABE;
+
+    private static final int MAGIC = 0x5343534D;
+
+    private static final int VERSION = 1;
+
+    // magic, version, capacity, count
+    private static final int HEADER_SIZE = 16;
+
+    private static final int CAPACITY_OFFSET = 8;
+
+    private static final int COUNT_OFFSET = 12;
+
+    // h1, h2, size, modification time, checksum
+    private static final int ENTRY_SIZE = 40;
+
+    private static final int SIZE_OFFSET = 16;
+
+    private static final int TIMESTAMP_OFFSET = 24;
+
+    private static final int CHECKSUM_OFFSET = 32;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * If the table would exceed this capacity it is cleared instead, so the
+     * file cannot grow without limits.
+     */
+    private static final int MAX_CAPACITY = 1 << 22;
+
+    /**
+     * Time stamp of entries whose file content was reported as changed.
+     */
+    private static final long INVALID_TIMESTAMP = Long.MIN_VALUE;
+
+    /**
+     * Coarsest resolution of file modification times of the supported file
+     * systems in milliseconds (FAT uses 2 seconds).
+     */
+    private static final long MTIME_GRANULARITY = 2000;
+
+    /**
+     * Maximum number of files whose checksum is calculated at the same time,
+     * if this is exceeded the callers did not add the checksums they looked up.
+     */
+    private static final int MAX_PENDING_STATS = 1024;
+
+    private final File cacheFile;
+
+    private RandomAccessFile randomAccessFile;
+
+    private FileChannel channel;
+
+    private FileLock lock;
+
+    private MappedByteBuffer table;
+
+    private int capacity;
+
+    private int count;
+
+    private boolean opened;
+
+    /**
+     * Size and modification time of the files whose checksum was not found, as
+     * seen before the caller started to calculate the checksum.
+     */
+    private final Map<File, long[]> pendingStats = new HashMap<File, long[]>();
+
+    private final IFileContentChangedListener fileContentChangedListener = new IFileContentChangedListener() {
+
+        @Override
+        public void fileContentChanged(IFile file) {
+            invalidate(file);
+        }
+    };
+
+    /**
+     * Creates a persistent checksum cache.
+     *
+     * @param cacheFile
+     *            the file to store the checksums in, it will be created if it
+     *            does not exist
+     * @param fileContentChangedNotifier
+     *            notifier that reports file changes or <code>null</code> if
+     *            the entries should only be validated against the size and the
+     *            modification time of the files
+     */
+    public PersistentChecksumCache(File cacheFile,
+        IFileContentChangedNotifier fileContentChangedNotifier) {
+        this.cacheFile = cacheFile;
+
+        if (fileContentChangedNotifier != null)
+            fileContentChangedNotifier
+                .addFileContentChangedListener(fileContentChangedListener);
+    }
+
+    @Override
+    public synchronized void start() {
+        open();
+    }
+
+    @Override
+    public synchronized void stop() {
+        close();
+        opened = false;
+        pendingStats.clear();
+    }
+
+    @Override
+    public synchronized Long getChecksum(IFile file) {
+        final File localFile = toLocalFile(file);
+
+        if (localFile == null || !open())
+            return null;
+
+        final long length = localFile.length();
+        final long lastModified = localFile.lastModified();
+
+        final long[] key = createKey(localFile);
+        final int slot = findSlot(key);
+
+        if (isEmpty(slot) || !matches(getOffset(slot), length, lastModified)) {
+            logNoValidChecksum(localFile);
+
+            if (pendingStats.size() >= MAX_PENDING_STATS)
+                pendingStats.clear();
+
+            pendingStats.put(localFile, new long[] { length, lastModified });
+            return null;
+        }
+
+        final long checksum = table.getLong(getOffset(slot) + CHECKSUM_OFFSET);
+
+        if (LOG.isTraceEnabled())
+            LOG.trace("found valid checksum for file: " + localFile + " ["
+                + checksum + "]");
+
+        return checksum;
+    }
+
+    @Override
+    public synchronized boolean addChecksum(IFile file, long checksum) {
+        final File localFile = toLocalFile(file);
+
+        if (localFile == null || !open())
+            return false;
+
+        final long length = localFile.length();
+        final long lastModified = localFile.lastModified();
+
+        final long[] key = createKey(localFile);
+
+        int slot = findSlot(key);
+
+        final boolean exists = !isEmpty(slot);
+
+        final boolean wasInvalid = exists
+            && !matches(getOffset(slot), length, lastModified);
+
+        if (!isStable(localFile, length, lastModified))
+            return wasInvalid;
+
+        if (!exists) {
+            if ((count + 1) * 2 > capacity) {
+                if (!grow())
+                    return false;
+
+                slot = findSlot(key);
+            }
+
+            count++;
+            table.putInt(COUNT_OFFSET, count);
+        }
+
+        writeEntry(slot, key, length, lastModified, checksum);
+
+        return wasInvalid;
+    }
+
+    /**
+     * Checks whether the given file did not change since its checksum was
+     * looked up and is not racily modified, i.e a checksum calculated now is
+     * bound to the given size and modification time.
+     */
+    private boolean isStable(File file, long length, long lastModified) {
+        final long[] stat = pendingStats.remove(file);
+
+        if (stat != null && (stat[0] != length || stat[1] != lastModified)) {
+            if (LOG.isTraceEnabled())
+                LOG.trace("file changed while its checksum was calculated: "
+                    + file);
+
+            return false;
+        }
+
+        if (System.currentTimeMillis() - lastModified < MTIME_GRANULARITY) {
+            if (LOG.isTraceEnabled())
+                LOG.trace("not caching checksum of recently modified file: "
+                    + file);
+
+            return false;
+        }
+
+        return true;
+    }
+
+    private boolean matches(int offset, long length, long lastModified) {
+        return table.getLong(offset + SIZE_OFFSET) == length
+            && table.getLong(offset + TIMESTAMP_OFFSET) == lastModified;
+    }
+
+    private synchronized void invalidate(IFile file) {
+        final File localFile = toLocalFile(file);
+
+        if (localFile == null || !open())
+            return;
+
+        final int slot = findSlot(createKey(localFile));
+
+        if (isEmpty(slot))
+            return;
+
+        if (LOG.isTraceEnabled())
+            LOG.trace("invalidating checksum for file: " + localFile);
+
+        table.putLong(getOffset(slot) + TIMESTAMP_OFFSET, INVALID_TIMESTAMP);
+    }
+
+    /**
+     * Opens the cache file if it is not already open.
+     *
+     * @return <code>true</code> if the cache file can be used,
+     *         <code>false</code> if the cache is disabled
+     */
+    private boolean open() {
+        if (opened)
+            return table != null;
+
+        opened = true;
+
+        try {
+            final File parent = cacheFile.getParentFile();
+
+            if (parent != null && !parent.exists() && !parent.mkdirs())
+                throw new IOException("could not create directory: " + parent);
+
+            randomAccessFile = new RandomAccessFile(cacheFile, "rw");
+            channel = randomAccessFile.getChannel();
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                // already locked by this process
+                lock = null;
+            }
+
+            if (lock == null)
+                throw new IOException("cache file is used by another process");
+
+            if (!load())
+                initialize(INITIAL_CAPACITY);
+
+            LOG.debug("loaded checksum cache " + cacheFile + " with " + count
+                + " entries");
+
+            return true;
+        } catch (IOException e) {
+            LOG.warn("could not open checksum cache " + cacheFile
+                + ", checksums will not be cached: " + e.getMessage());
+            close();
+            return false;
+        }
+    }
+
+    private void close() {
+        if (table != null)
+            table.force();
+
+        table = null;
+
+        try {
+            if (lock != null)
+                lock.release();
+
+            if (randomAccessFile != null)
+                randomAccessFile.close();
+        } catch (IOException e) {
+            LOG.warn("could not close checksum cache " + cacheFile, e);
+        }
+
+        lock = null;
+        channel = null;
+        randomAccessFile = null;
+    }
+
+    /**
+     * Maps an existing cache file.
+     *
+     * @return <code>false</code> if the file does not contain a valid cache
+     */
+    private boolean load() throws IOException {
+        final long length = channel.size();
+
+        if (length < HEADER_SIZE)
+            return false;
+
+        final MappedByteBuffer header = channel.map(
+            FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+
+        final int newCapacity = header.getInt(CAPACITY_OFFSET);
+        final int newCount = header.getInt(COUNT_OFFSET);
+
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION
+            || newCapacity <= 0 || newCapacity > MAX_CAPACITY
+            || Integer.bitCount(newCapacity) != 1 || newCount < 0
+            || newCount > newCapacity
+            || length < HEADER_SIZE + (long) newCapacity * ENTRY_SIZE) {
+            LOG.warn("checksum cache " + cacheFile
+                + " is corrupted or outdated, discarding it");
+            return false;
+        }
+
+        map(newCapacity);
+        count = newCount;
+        return true;
+    }
+
+    /*
+     * The file is never truncated because this is not possible on some
+     * platforms as long as the file is mapped.
+     */
+    private void initialize(int newCapacity) throws IOException {
+        map(newCapacity);
+
+        final int limit = getOffset(newCapacity);
+
+        for (int offset = HEADER_SIZE; offset < limit; offset += 8)
+            table.putLong(offset, 0);
+
+        table.putInt(0, MAGIC);
+        table.putInt(4, VERSION);
+        table.putInt(CAPACITY_OFFSET, newCapacity);
+        table.putInt(COUNT_OFFSET, 0);
+
+        count = 0;
+    }
+
+    private void map(int newCapacity) throws IOException {
+        table = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE
+            + (long) newCapacity * ENTRY_SIZE);
+        capacity = newCapacity;
+    }
+
+    /**
+     * Doubles the capacity of the table. Entries that were invalidated are
+     * dropped. If the maximum capacity is reached the table is cleared.
+     *
+     * @return <code>false</code> if the cache is disabled due to an I/O error
+     */
+    private boolean grow() {
+        final long[] entries = new long[count * 5];
+
+        int size = 0;
+
+        for (int slot = 0; slot < capacity; slot++) {
+            if (isEmpty(slot))
+                continue;
+
+            final int offset = getOffset(slot);
+
+            if (table.getLong(offset + TIMESTAMP_OFFSET) == INVALID_TIMESTAMP)
+                continue;
+
+            for (int i = 0; i < 5; i++)
+                entries[size * 5 + i] = table.getLong(offset + i * 8);
+
+            size++;
+        }
+
+        int newCapacity = capacity;
+
+        while ((size + 1) * 2 > newCapacity)
+            newCapacity *= 2;
+
+        if (newCapacity > MAX_CAPACITY) {
+            LOG.debug("checksum cache " + cacheFile
+                + " reached its maximum size, clearing it");
+            newCapacity = INITIAL_CAPACITY;
+            size = 0;
+        }
+
+        try {
+            initialize(newCapacity);
+        } catch (IOException e) {
+            LOG.warn("could not resize checksum cache " + cacheFile
+                + ", checksums will not be cached: " + e.getMessage());
+            close();
+            return false;
+        }
+
+        for (int i = 0; i < size; i++) {
+            final long[] key = { entries[i * 5], entries[i * 5 + 1] };
+
+            writeEntry(findSlot(key), key, entries[i * 5 + 2],
+                entries[i * 5 + 3], entries[i * 5 + 4]);
+        }
+
+        count = size;
+        table.putInt(COUNT_OFFSET, count);
+
+        return true;
+    }
+
+    /**
+     * Returns the slot containing the given key or the empty slot where the
+     * key has to be inserted.
+     */
+    private int findSlot(long[] key) {
+        final int mask = capacity - 1;
+
+        int slot = (int) (key[0] ^ (key[0] >>> 32)) & mask;
+
+        while (!isEmpty(slot)) {
+            final int offset = getOffset(slot);
+
+            if (table.getLong(offset) == key[0]
+                && table.getLong(offset + 8) == key[1])
+                return slot;
+
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    private boolean isEmpty(int slot) {
+        final int offset = getOffset(slot);
+        return table.getLong(offset) == 0 && table.getLong(offset + 8) == 0;
+    }
+
+    /*
+     * The key is written last, so an entry that was only partially written
+     * when the application crashed is either empty or fails the validation.
+     */
+    private void writeEntry(int slot, long[] key, long size, long timestamp,
+        long checksum) {
+        final int offset = getOffset(slot);
+
+        table.putLong(offset + TIMESTAMP_OFFSET, INVALID_TIMESTAMP);
+        table.putLong(offset + SIZE_OFFSET, size);
+        table.putLong(offset + CHECKSUM_OFFSET, checksum);
+        table.putLong(offset + TIMESTAMP_OFFSET, timestamp);
+        table.putLong(offset + 8, key[1]);
+        table.putLong(offset, key[0]);
+    }
+
+    private static int getOffset(int slot) {
+        return HEADER_SIZE + slot * ENTRY_SIZE;
+    }
+
+    private static File toLocalFile(IFile file) {
+        final IPath location = file.getLocation();
+        return location == null ? null : location.toFile();
+    }
+
+    private static long[] createKey(File file) {
+        final long[] key;
+
+        try {
+            key = Murmur3.hash128(file.getAbsolutePath().getBytes("UTF-8"),
+                SEED);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(
+                "invalid Java installation, UTF-8 charset must be included per specification",
+                e);
+        }
+
+        // 0 marks empty slots
+        if (key[0] == 0 && key[1] == 0)
+            key[0] = 1;
+
+        return key;
+    }
+
+    private static void logNoValidChecksum(File file) {
+        if (LOG.isTraceEnabled())
+            LOG.trace("no valid checksum found for file: " + file);
+    }
+}
@@ -0,0 +1,715 @@
+package de.fu_berlin.inf.dpp.misc.binary;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.picocontainer.Startable;
+
+import de.fu_berlin.inf.dpp.activities.ChecksumActivity;
+import de.fu_berlin.inf.dpp.activities.IActivity;
+import de.fu_berlin.inf.dpp.activities.IResourceActivity;
+import de.fu_berlin.inf.dpp.activities.JupiterActivity;
+import de.fu_berlin.inf.dpp.activities.SPath;
+import de.fu_berlin.inf.dpp.activities.TextEditActivity;
+import de.fu_berlin.inf.dpp.activities.TextSelectionActivity;
+import de.fu_berlin.inf.dpp.activities.ViewportActivity;
+import de.fu_berlin.inf.dpp.annotations.Component;
+import de.fu_berlin.inf.dpp.communication.extensions.ActivitiesExtension;
+import de.fu_berlin.inf.dpp.communication.extensions.BinaryActivitiesExtension;
+import de.fu_berlin.inf.dpp.concurrent.jupiter.Operation;
+import de.fu_berlin.inf.dpp.concurrent.jupiter.Timestamp;
+import de.fu_berlin.inf.dpp.concurrent.jupiter.internal.JupiterVectorTime;
+import de.fu_berlin.inf.dpp.concurrent.jupiter.internal.text.DeleteOperation;
+import de.fu_berlin.inf.dpp.concurrent.jupiter.internal.text.InsertOperation;
+import de.fu_berlin.inf.dpp.concurrent.jupiter.internal.text.NoOperation;
+import de.fu_berlin.inf.dpp.concurrent.jupiter.internal.text.SplitOperation;
+import de.fu_berlin.inf.dpp.concurrent.jupiter.internal.text.TimestampOperation;
+import de.fu_berlin.inf.dpp.filesystem.IPathFactory;
+import de.fu_berlin.inf.dpp.net.xmpp.JID;
+import de.fu_berlin.inf.dpp.session.AbstractSessionListener;
+import de.fu_berlin.inf.dpp.session.ISarosSession;
+import de.fu_berlin.inf.dpp.session.ISessionListener;
+import de.fu_berlin.inf.dpp.session.User;
+import de.fu_berlin.inf.dpp.versioning.VersionManager;
+
+/**
+ * Converts {@linkplain ActivitiesExtension activities} from and to a compact
+ * binary format. Only the activity types that occur while users are typing
+ * and scrolling are supported, i.e {@link TextEditActivity},
+ * {@link JupiterActivity}, {@link TextSelectionActivity},
+ * {@link ViewportActivity} and {@link ChecksumActivity}. All other activities
+ * have to be transmitted with XStream.
+ * <p>
+ * The format is versioned by its first byte. Users are only written once per
+ * packet and referenced by their index afterwards. Paths are referenced by
+ * session wide ids (see {@link SessionPathTable}), the header of a packet
+ * contains the definitions of the ids the recipient does not know yet. All
+ * integer values are written as variable length quantities so small offsets
+ * and lengths only occupy a single byte.
+ * <p>
+ * The codec is only used for peers that announced
+ * {@link VersionManager#FEATURE_BINARY_ACTIVITIES} during the version exchange.
+ * It can be disabled for outgoing activities by setting the system property
+ * <code>de.fu_berlin.inf.dpp.communication.DISABLE_BINARY_ACTIVITIES</code> to
+ * <code>true</code>.
+ */
+@Component
+public class BinaryActivityCodec implements Startable {
+
+    private static final Logger LOG = Logger
+        .getLogger(BinaryActivityCodec.class);
+
+    private static final boolean DISABLED = Boolean
+        .getBoolean("de.fu_berlin.inf.dpp.communication.DISABLE_BINARY_ACTIVITIES");
+
+    /** version of the format, must be changed on every format modification */
+    static final int FORMAT_VERSION = 2;
+
+    private static final int TEXT_EDIT_ACTIVITY = 1;
+    private static final int TEXT_SELECTION_ACTIVITY = 2;
+    private static final int VIEWPORT_ACTIVITY = 3;
+    private static final int CHECKSUM_ACTIVITY = 4;
+    private static final int JUPITER_ACTIVITY = 5;
+
+    private static final int NO_OPERATION = 0;
+    private static final int INSERT_OPERATION = 1;
+    private static final int DELETE_OPERATION = 2;
+    private static final int SPLIT_OPERATION = 3;
+    private static final int TIMESTAMP_OPERATION = 4;
+
+    private static final int NO_TIMESTAMP = 0;
+    private static final int JUPITER_VECTOR_TIME = 1;
+
+    /** reference value for <code>null</code> users */
+    private static final int NULL_REFERENCE = 0;
+
+    private final ISarosSession session;
+    private final VersionManager versionManager;
+
+    private final SessionPathTable pathTable;
+
+    private final ISessionListener sessionListener = new AbstractSessionListener() {
+
+        @Override
+        public void userLeft(final User user) {
+            pathTable.removePeer(user.getJID());
+        }
+    };
+
+    public BinaryActivityCodec(ISarosSession session,
+        IPathFactory pathFactory, VersionManager versionManager) {
+        this.session = session;
+        this.versionManager = versionManager;
+        this.pathTable = new SessionPathTable(session, pathFactory);
+    }
+
+    @Override
+    public void start() {
+        session.addListener(sessionListener);
+        BinaryActivitiesExtension.PROVIDER.registerCodec(this);
+    }
+
+    @Override
+    public void stop() {
+        BinaryActivitiesExtension.PROVIDER.unregisterCodec(this);
+        session.removeListener(sessionListener);
+    }
+
+    /**
+     * Returns whether activities send to the given peer may be encoded with
+     * this codec.
+     *
+     * @param jid
+     *            the resource qualified JID of the peer
+     */
+    public boolean isSupportedBy(JID jid) {
+        return !DISABLED
+            && versionManager.isFeatureSupported(jid,
+                VersionManager.FEATURE_BINARY_ACTIVITIES);
+    }
+
+    /**
+     * Encodes the given extension.
+     *
+     * @param recipient
+     *            the recipient of the extension
+     * @param extension
+     *            the extension to encode
+     * @return the encoded extension or <code>null</code> if the extension
+     *         contains activities that are not supported by this codec
+     */
+    public byte[] encode(JID recipient, ActivitiesExtension extension) {
+        final byte[] activities = encodeActivities(extension.getActivities());
+
+        if (activities == null)
+            return null;
+
+        final byte[] header = encodeHeader(recipient, extension);
+
+        final byte[] data = new byte[header.length + activities.length];
+        System.arraycopy(header, 0, data, 0, header.length);
+        System.arraycopy(activities, 0, data, header.length, activities.length);
+
+        return data;
+    }
+
+    /**
+     * Encodes the header of the given extension, i.e everything but its
+     * activities. The encoded extension consists of the header followed by the
+     * {@linkplain #encodeActivities encoded activities}. This allows to encode
+     * activities that are sent to several recipients only once.
+     * <p>
+     * The header includes the definitions of all path ids used by the
+     * activities that were not sent to the recipient before. The activities
+     * must therefore already be encoded and the headers must be sent in the
+     * order they are created. If sending fails, {@link #sendFailed} has to be
+     * called.
+     *
+     * @param recipient
+     *            the recipient of the extension
+     * @param extension
+     *            the extension whose header should be encoded
+     * @return the encoded header
+     */
+    public byte[] encodeHeader(JID recipient, ActivitiesExtension extension) {
+        final List<IActivity> activities = extension.getActivities();
+
+        final int[] pathIDs = new int[activities.size()];
+        int pathCount = 0;
+
+        for (IActivity activity : activities) {
+            if (!(activity instanceof IResourceActivity))
+                continue;
+
+            final SPath path = ((IResourceActivity) activity).getPath();
+
+            if (path == null)
+                continue;
+
+            final int id = pathTable.findLocalID(path);
+
+            if (id != SessionPathTable.NULL_ID)
+                pathIDs[pathCount++] = id;
+        }
+
+        final int definitionCount = pathTable.announce(recipient, pathIDs,
+            pathCount);
+
+        final ByteArrayOutputStream bout = new ByteArrayOutputStream(16
+            + extension.getSessionID().length() + definitionCount * 64);
+
+        final Encoder encoder = new Encoder(new DataOutputStream(bout));
+
+        try {
+            encoder.out.writeByte(FORMAT_VERSION);
+            encoder.writeString(extension.getSessionID());
+            encoder.writeInt(extension.getSequenceNumber());
+            encoder.writeInt(activities.size());
+            encoder.writeUnsigned(definitionCount);
+
+            for (int i = 0; i < definitionCount; i++) {
+                final int id = pathIDs[i];
+                encoder.writeUnsigned(id);
+                encoder.writeString(pathTable.getLocalProjectID(id));
+                encoder.writeString(pathTable.getLocalPath(id));
+            }
+
+            encoder.out.flush();
+        } catch (IOException e) {
+            // cannot happen, the data is written to memory
+            throw new IllegalStateException(e);
+        }
+
+        return bout.toByteArray();
+    }
+
+    /**
+     * Reports that an extension encoded for the given recipient could not be
+     * sent. The path definitions it contained are sent again with the next
+     * extension for the recipient.
+     *
+     * @param recipient
+     *            the recipient of the extension
+     */
+    public void sendFailed(JID recipient) {
+        pathTable.resetAnnouncements(recipient);
+    }
+
+    /**
+     * Encodes the given activities without the header of an extension.
+     *
+     * @param activities
+     *            the activities to encode
+     * @return the encoded activities or <code>null</code> if the activities
+     *         are not supported by this codec
+     * @see #encodeHeader(JID, ActivitiesExtension)
+     */
+    public byte[] encodeActivities(List<IActivity> activities) {
+        for (IActivity activity : activities) {
+            if (!isEncodable(activity))
+                return null;
+        }
+
+        final ByteArrayOutputStream bout = new ByteArrayOutputStream(
+            64 + activities.size() * 32);
+
+        final Encoder encoder = new Encoder(new DataOutputStream(bout));
+
+        try {
+            for (IActivity activity : activities)
+                encoder.writeActivity(activity);
+
+            encoder.out.flush();
+        } catch (IOException e) {
+            LOG.debug("cannot encode activities: " + e.getMessage());
+            return null;
+        }
+
+        return bout.toByteArray();
+    }
+
+    /**
+     * Decodes an extension that was encoded with {@link #encode}.
+     *
+     * @param data
+     *            the encoded extension
+     * @param sender
+     *            the sender of the extension or <code>null</code> if it is
+     *            unknown, in this case only the paths defined in the extension
+     *            itself can be resolved
+     * @return the decoded extension
+     * @throws IOException
+     *             if the data is malformed or references users, projects or
+     *             paths that are not part of the current session
+     */
+    public ActivitiesExtension decode(byte[] data, JID sender)
+        throws IOException {
+        final Decoder decoder = new Decoder(new DataInputStream(
+            new ByteArrayInputStream(data)), pathTable.getRemotePaths(sender));
+
+        final int version = decoder.in.readUnsignedByte();
+
+        if (version != FORMAT_VERSION)
+            throw new IOException("unsupported format version: " + version);
+
+        final String sessionID = decoder.readString();
+        final int sequenceNumber = decoder.readInt();
+        final int count = decoder.readInt();
+
+        if (count < 0)
+            throw new IOException("invalid activity count: " + count);
+
+        final int definitionCount = decoder.readUnsigned();
+
+        for (int i = 0; i < definitionCount; i++) {
+            final int id = decoder.readUnsigned();
+
+            if (id <= SessionPathTable.NULL_ID)
+                throw new IOException("invalid path id: " + id);
+
+            final String projectID = decoder.readString();
+            decoder.paths.define(id, projectID, decoder.readString());
+        }
+
+        final List<IActivity> activities = new ArrayList<IActivity>(Math.min(
+            count, data.length));
+
+        try {
+            for (int i = 0; i < count; i++)
+                activities.add(decoder.readActivity());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("malformed activity data: " + e.getMessage(),
+                e);
+        }
+
+        return new ActivitiesExtension(sessionID, activities, sequenceNumber);
+    }
+
+    private static boolean isEncodable(IActivity activity) {
+        final Class<?> clazz = activity.getClass();
+
+        if (clazz == TextEditActivity.class
+            || clazz == TextSelectionActivity.class
+            || clazz == ViewportActivity.class)
+            return true;
+
+        if (clazz == ChecksumActivity.class)
+            return isEncodable(((ChecksumActivity) activity).getTimestamp());
+
+        if (clazz == JupiterActivity.class) {
+            final JupiterActivity jupiterActivity = (JupiterActivity) activity;
+            return jupiterActivity.getTimestamp() != null
+                && isEncodable(jupiterActivity.getTimestamp())
+                && isEncodable(jupiterActivity.getOperation());
+        }
+
+        return false;
+    }
+
+    private static boolean isEncodable(Timestamp timestamp) {
+        return timestamp == null
+            || timestamp.getClass() == JupiterVectorTime.class;
+    }
+
+    private static boolean isEncodable(Operation operation) {
+        if (operation == null)
+            return false;
+
+        final Class<?> clazz = operation.getClass();
+
+        if (clazz == SplitOperation.class) {
+            final SplitOperation split = (SplitOperation) operation;
+            return isEncodable(split.getFirst())
+                && isEncodable(split.getSecond());
+        }
+
+        return clazz == InsertOperation.class
+            || clazz == DeleteOperation.class || clazz == NoOperation.class
+            || clazz == TimestampOperation.class;
+    }
+
+    private final class Encoder {
+
+        private final DataOutputStream out;
+
+        private final Map<User, Integer> users = new HashMap<User, Integer>();
+
+        private Encoder(DataOutputStream out) {
+            this.out = out;
+        }
+
+        private void writeActivity(IActivity activity) throws IOException {
+            if (activity instanceof TextEditActivity) {
+                final TextEditActivity edit = (TextEditActivity) activity;
+                writeHeader(TEXT_EDIT_ACTIVITY, edit.getSource(),
+                    edit.getPath());
+                writeInt(edit.getOffset());
+                writeString(edit.getText());
+                writeString(edit.getReplacedText());
+            } else if (activity instanceof TextSelectionActivity) {
+                final TextSelectionActivity selection = (TextSelectionActivity) activity;
+                writeHeader(TEXT_SELECTION_ACTIVITY, selection.getSource(),
+                    selection.getPath());
+                writeInt(selection.getOffset());
+                writeInt(selection.getLength());
+            } else if (activity instanceof ViewportActivity) {
+                final ViewportActivity viewport = (ViewportActivity) activity;
+                writeHeader(VIEWPORT_ACTIVITY, viewport.getSource(),
+                    viewport.getPath());
+                writeInt(viewport.getStartLine());
+                writeInt(viewport.getNumberOfLines());
+            } else if (activity instanceof ChecksumActivity) {
+                final ChecksumActivity checksum = (ChecksumActivity) activity;
+                writeHeader(CHECKSUM_ACTIVITY, checksum.getSource(),
+                    checksum.getPath());
+                writeLong(checksum.getHash());
+                writeLong(checksum.getLength());
+                writeTimestamp(checksum.getTimestamp());
+            } else if (activity instanceof JupiterActivity) {
+                final JupiterActivity jupiter = (JupiterActivity) activity;
+                writeHeader(JUPITER_ACTIVITY, jupiter.getSource(),
+                    jupiter.getPath());
+                writeTimestamp(jupiter.getTimestamp());
+                writeOperation(jupiter.getOperation());
+            } else {
+                throw new IOException("unsupported activity: " + activity);
+            }
+        }
+
+        private void writeHeader(int type, User source, SPath path)
+            throws IOException {
+            out.writeByte(type);
+            writeUser(source);
+            writePath(path);
+        }
+
+        private void writeUser(User user) throws IOException {
+            if (user == null) {
+                writeInt(NULL_REFERENCE);
+                return;
+            }
+
+            final Integer index = users.get(user);
+
+            if (index != null) {
+                writeInt(index);
+                return;
+            }
+
+            final int newIndex = users.size() + 1;
+            users.put(user, newIndex);
+            writeInt(newIndex);
+            writeString(user.getJID().toString());
+        }
+
+        private void writePath(SPath path) throws IOException {
+            if (path == null) {
+                writeUnsigned(SessionPathTable.NULL_ID);
+                return;
+            }
+
+            final int id = pathTable.getLocalID(path);
+
+            if (id == SessionPathTable.NULL_ID)
+                throw new IOException("project " + path.getProject()
+                    + " is not shared");
+
+            writeUnsigned(id);
+        }
+
+        private void writeTimestamp(Timestamp timestamp) throws IOException {
+            if (timestamp == null) {
+                out.writeByte(NO_TIMESTAMP);
+                return;
+            }
+
+            final JupiterVectorTime vectorTime = (JupiterVectorTime) timestamp;
+            out.writeByte(JUPITER_VECTOR_TIME);
+            writeInt(vectorTime.getLocalOperationCount());
+            writeInt(vectorTime.getRemoteOperationCount());
+        }
+
+        private void writeOperation(Operation operation) throws IOException {
+            if (operation instanceof InsertOperation) {
+                final InsertOperation insert = (InsertOperation) operation;
+                out.writeByte(INSERT_OPERATION);
+                writeInt(insert.getPosition());
+                writeInt(insert.getOrigin());
+                writeString(insert.getText());
+            } else if (operation instanceof DeleteOperation) {
+                final DeleteOperation delete = (DeleteOperation) operation;
+                out.writeByte(DELETE_OPERATION);
+                writeInt(delete.getPosition());
+                writeString(delete.getText());
+            } else if (operation instanceof SplitOperation) {
+                final SplitOperation split = (SplitOperation) operation;
+                out.writeByte(SPLIT_OPERATION);
+                writeOperation(split.getFirst());
+                writeOperation(split.getSecond());
+            } else if (operation instanceof NoOperation) {
+                out.writeByte(NO_OPERATION);
+            } else if (operation instanceof TimestampOperation) {
+                out.writeByte(TIMESTAMP_OPERATION);
+            } else {
+                throw new IOException("unsupported operation: " + operation);
+            }
+        }
+
+        /*
+         * Strings are written char by char to preserve every UTF-16 code unit
+         * (including unpaired surrogates), ASCII only needs one byte per char.
+         */
+        private void writeString(String value) throws IOException {
+            final int length = value.length();
+            writeUnsigned(length);
+
+            for (int i = 0; i < length; i++)
+                writeUnsigned(value.charAt(i));
+        }
+
+        private void writeInt(int value) throws IOException {
+            // zig-zag encoding, small negative values stay small
+            writeUnsigned((value << 1) ^ (value >> 31));
+        }
+
+        private void writeLong(long value) throws IOException {
+            long v = (value << 1) ^ (value >> 63);
+
+            while ((v & ~0x7FL) != 0) {
+                out.writeByte((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+
+            out.writeByte((int) v);
+        }
+
+        private void writeUnsigned(int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                out.writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+
+            out.writeByte(value);
+        }
+    }
+
+    private final class Decoder {
+
+        private final DataInputStream in;
+
+        private final List<User> users = new ArrayList<User>();
+
+        private final SessionPathTable.RemotePaths paths;
+
+        private Decoder(DataInputStream in, SessionPathTable.RemotePaths paths) {
+            this.in = in;
+            this.paths = paths;
+        }
+
+        private IActivity readActivity() throws IOException {
+            final int type = in.readUnsignedByte();
+            final User source = readUser();
+            final SPath path = readPath();
+
+            switch (type) {
+            case TEXT_EDIT_ACTIVITY:
+                final int offset = readInt();
+                final String text = readString();
+                final String replacedText = readString();
+                return new TextEditActivity(source, offset, text,
+                    replacedText, path);
+            case TEXT_SELECTION_ACTIVITY:
+                final int selectionOffset = readInt();
+                final int selectionLength = readInt();
+                return new TextSelectionActivity(source, selectionOffset,
+                    selectionLength, path);
+            case VIEWPORT_ACTIVITY:
+                final int startLine = readInt();
+                final int numberOfLines = readInt();
+                return new ViewportActivity(source, startLine, numberOfLines,
+                    path);
+            case CHECKSUM_ACTIVITY:
+                final long hash = readLong();
+                final long length = readLong();
+                return new ChecksumActivity(source, path, hash, length,
+                    readTimestamp());
+            case JUPITER_ACTIVITY:
+                final Timestamp timestamp = readTimestamp();
+                return new JupiterActivity(timestamp, readOperation(), source,
+                    path);
+            default:
+                throw new IOException("unknown activity type: " + type);
+            }
+        }
+
+        private User readUser() throws IOException {
+            final int index = readInt();
+
+            if (index == NULL_REFERENCE)
+                return null;
+
+            if (index <= users.size())
+                return users.get(index - 1);
+
+            if (index != users.size() + 1)
+                throw new IOException("invalid user reference: " + index);
+
+            final JID jid = new JID(readString());
+            final User user = session.getUser(jid);
+
+            if (user == null)
+                throw new IOException("user " + jid
+                    + " is not part of the current session");
+
+            users.add(user);
+            return user;
+        }
+
+        private SPath readPath() throws IOException {
+            final int id = readUnsigned();
+
+            if (id == SessionPathTable.NULL_ID)
+                return null;
+
+            try {
+                return paths.resolve(id);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+
+        private Timestamp readTimestamp() throws IOException {
+            final int type = in.readUnsignedByte();
+
+            switch (type) {
+            case NO_TIMESTAMP:
+                return null;
+            case JUPITER_VECTOR_TIME:
+                final int localCount = readInt();
+                final int remoteCount = readInt();
+                return new JupiterVectorTime(localCount, remoteCount);
+            default:
+                throw new IOException("unknown timestamp type: " + type);
+            }
+        }
+
+        private Operation readOperation() throws IOException {
+            final int type = in.readUnsignedByte();
+
+            switch (type) {
+            case NO_OPERATION:
+                return new NoOperation();
+            case TIMESTAMP_OPERATION:
+                return new TimestampOperation();
+            case INSERT_OPERATION:
+                final int position = readInt();
+                final int origin = readInt();
+                return new InsertOperation(position, readString(), origin);
+            case DELETE_OPERATION:
+                final int deletePosition = readInt();
+                return new DeleteOperation(deletePosition, readString());
+            case SPLIT_OPERATION:
+                final Operation first = readOperation();
+                return new SplitOperation(first, readOperation());
+            default:
+                throw new IOException("unknown operation type: " + type);
+            }
+        }
+
+        private String readString() throws IOException {
+            final int length = readUnsigned();
+
+            if (length < 0 || length > in.available())
+                throw new EOFException("invalid string length: " + length);
+
+            final char[] chars = new char[length];
+
+            for (int i = 0; i < length; i++)
+                chars[i] = (char) readUnsigned();
+
+            return new String(chars);
+        }
+
+        private int readInt() throws IOException {
+            final int value = readUnsigned();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private long readLong() throws IOException {
+            long value = 0;
+
+            for (int shift = 0; shift < 64; shift += 7) {
+                final int b = in.readUnsignedByte();
+                value |= (long) (b & 0x7F) << shift;
+
+                if ((b & 0x80) == 0)
+                    return (value >>> 1) ^ -(value & 1);
+            }
+
+            throw new IOException("malformed variable length long");
+        }
+
+        private int readUnsigned() throws IOException {
+            int value = 0;
+
+            for (int shift = 0; shift < 32; shift += 7) {
+                final int b = in.readUnsignedByte();
+                value |= (b & 0x7F) << shift;
+
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+
+            throw new IOException("malformed variable length integer");
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package de.fu_berlin.inf.dpp.misc.binary;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.fu_berlin.inf.dpp.activities.SPath;
+import de.fu_berlin.inf.dpp.filesystem.IPathFactory;
+import de.fu_berlin.inf.dpp.filesystem.IProject;
+import de.fu_berlin.inf.dpp.net.xmpp.JID;
+import de.fu_berlin.inf.dpp.session.ISarosSession;
+import de.fu_berlin.inf.dpp.session.User;
+
+/**
+ * Session wide table of the paths that occur in binary encoded activities.
+ * <p>
+ * Every local path gets a compact id the first time it is encoded. The id is
+ * announced to each recipient once, together with the project id and the
+ * project relative path, all later activities only carry the id. The ids of
+ * the remote peers are stored per sender and resolved to the same
+ * {@link SPath} instance every time.
+ * <p>
+ * Announcements are tracked per {@link User} instance, so a peer that leaves
+ * and rejoins the session gets all definitions again. If sending a packet
+ * fails, the announcements of its recipient have to be
+ * {@linkplain #resetAnnouncements reset}. The table relies on the packets of a
+ * peer being encoded and decoded in the order they are sent.
+ */
+final class SessionPathTable {
+
+    /** id reference value for <code>null</code> paths */
+    static final int NULL_ID = 0;
+
+    private final ISarosSession session;
+    private final IPathFactory pathFactory;
+
+    // local ids, guarded by this
+
+    private final Map<SPath, Integer> localIDs = new HashMap<SPath, Integer>();
+
+    private String[] localProjectIDs = new String[16];
+
+    private String[] localPaths = new String[16];
+
+    private int nextID = 1;
+
+    /** ids already announced to a recipient, guarded by this */
+    private final Map<JID, Announcements> announcements = new HashMap<JID, Announcements>();
+
+    private final ConcurrentHashMap<JID, RemotePaths> remotePaths = new ConcurrentHashMap<JID, RemotePaths>();
+
+    private static final class Announcements {
+        private final User user;
+        private final BitSet ids = new BitSet();
+
+        private Announcements(User user) {
+            this.user = user;
+        }
+    }
+
+    /**
+     * The paths defined by a remote peer, indexed by their id.
+     */
+    final class RemotePaths {
+
+        private String[] projectIDs = new String[16];
+        private String[] paths = new String[16];
+        private SPath[] resolved = new SPath[16];
+
+        /**
+         * Stores the definition of the given id, replacing a previous one.
+         */
+        synchronized void define(int id, String projectID, String path) {
+            if (id >= resolved.length) {
+                final int length = Math.max(id + 1, resolved.length * 2);
+                projectIDs = Arrays.copyOf(projectIDs, length);
+                paths = Arrays.copyOf(paths, length);
+                resolved = Arrays.copyOf(resolved, length);
+            }
+
+            projectIDs[id] = projectID;
+            paths[id] = path;
+            resolved[id] = null;
+        }
+
+        /**
+         * Returns the path with the given id.
+         *
+         * @throws IllegalArgumentException
+         *             if the id was never defined or its project is not part
+         *             of the session
+         */
+        synchronized SPath resolve(int id) {
+            if (id <= NULL_ID || id >= resolved.length || paths[id] == null)
+                throw new IllegalArgumentException("invalid path reference: "
+                    + id);
+
+            SPath path = resolved[id];
+
+            if (path != null)
+                return path;
+
+            /*
+             * the project might not be known yet when the definition arrives,
+             * e.g while it is still negotiated
+             */
+            final IProject project = session.getProject(projectIDs[id]);
+
+            if (project == null)
+                throw new IllegalArgumentException(
+                    "there is no shared project for id '" + projectIDs[id]
+                        + "'");
+
+            path = new SPath(project, pathFactory.fromString(paths[id]));
+            resolved[id] = path;
+            return path;
+        }
+    }
+
+    SessionPathTable(ISarosSession session, IPathFactory pathFactory) {
+        this.session = session;
+        this.pathFactory = pathFactory;
+    }
+
+    /**
+     * Returns the id of the given local path and assigns a new one if the path
+     * is encoded for the first time.
+     *
+     * @return the id or {@link #NULL_ID} if the project of the path is not
+     *         shared
+     */
+    synchronized int getLocalID(SPath path) {
+        final Integer id = localIDs.get(path);
+
+        if (id != null)
+            return id;
+
+        final String projectID = session.getProjectID(path.getProject());
+
+        if (projectID == null)
+            return NULL_ID;
+
+        final int newID = nextID++;
+
+        if (newID >= localPaths.length) {
+            localProjectIDs = Arrays.copyOf(localProjectIDs,
+                localProjectIDs.length * 2);
+            localPaths = Arrays.copyOf(localPaths, localPaths.length * 2);
+        }
+
+        localProjectIDs[newID] = projectID;
+        localPaths[newID] = pathFactory.fromPath(path.getProjectRelativePath());
+        localIDs.put(path, newID);
+
+        return newID;
+    }
+
+    /**
+     * Returns the id of the given local path or {@link #NULL_ID} if no id was
+     * assigned to it yet.
+     */
+    synchronized int findLocalID(SPath path) {
+        final Integer id = localIDs.get(path);
+        return id == null ? NULL_ID : id;
+    }
+
+    synchronized String getLocalProjectID(int id) {
+        return localProjectIDs[id];
+    }
+
+    synchronized String getLocalPath(int id) {
+        return localPaths[id];
+    }
+
+    /**
+     * Marks the given local ids as announced to the recipient. The ids that
+     * were not announced to the recipient before are moved to the front of the
+     * array, their definitions have to be sent along with the activities.
+     *
+     * @param ids
+     *            the ids to announce, duplicates are allowed
+     * @param count
+     *            the number of valid entries in the array
+     * @return the number of ids that were not announced before
+     */
+    synchronized int announce(JID recipient, int[] ids, int count) {
+        final User user = session.getUser(recipient);
+
+        Announcements announced = announcements.get(recipient);
+
+        if (announced == null || announced.user != user) {
+            announced = new Announcements(user);
+            announcements.put(recipient, announced);
+        }
+
+        int newIDs = 0;
+
+        for (int i = 0; i < count; i++) {
+            final int id = ids[i];
+
+            if (announced.ids.get(id))
+                continue;
+
+            announced.ids.set(id);
+            ids[newIDs++] = id;
+        }
+
+        return newIDs;
+    }
+
+    /**
+     * Forgets which ids were announced to the recipient, all ids are announced
+     * again with the next packet. Must be called if a packet that may contain
+     * definitions could not be sent to the recipient.
+     */
+    synchronized void resetAnnouncements(JID recipient) {
+        announcements.remove(recipient);
+    }
+
+    /**
+     * Discards the announcements to and the definitions of the given peer,
+     * e.g because it left the session.
+     */
+    void removePeer(JID jid) {
+        resetAnnouncements(jid);
+        remotePaths.remove(jid);
+    }
+
+    /**
+     * Returns the paths defined by the given sender.
+     *
+     * @param sender
+     *            the sender or <code>null</code> if it is unknown, in this case
+     *            a new table is returned that is discarded afterwards
+     */
+    RemotePaths getRemotePaths(JID sender) {
+        if (sender == null)
+            return new RemotePaths();
+
+        RemotePaths paths = remotePaths.get(sender);
+
+        if (paths == null) {
+            paths = new RemotePaths();
+            final RemotePaths current = remotePaths.putIfAbsent(sender, paths);
+
+            if (current != null)
+                paths = current;
+        }
+
+        return paths;
+    }
+}
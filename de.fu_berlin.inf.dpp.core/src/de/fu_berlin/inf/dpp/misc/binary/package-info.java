@@ -0,0 +1,11 @@
+/**
+ * Besides XML (see the <code>misc.xstream</code> package) Saros can transfer
+ * the most frequent activities in a compact binary format which avoids the XML
+ * marshalling and parsing on the hot path of a session.
+ * <p>
+ * The binary format is only used for peers that announced support for it
+ * during the version exchange. All other peers and activities still use
+ * XStream.
+ */
+
+package de.fu_berlin.inf.dpp.misc.binary;
@@ -19,8 +19,14 @@
  */
 package de.fu_berlin.inf.dpp.negotiation;
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -34,9 +40,20 @@ import com.thoughtworks.xstream.annotations.XStreamOmitField;
 /**
  * A FileList is a list of resources -- files and folders -- which belong to the
  * same project. FileLists can be compared to other FileLists. Folders are
- * denoted by a trailing separator. Instances of this class are immutable. No
- * further modification is allowed after creation. Instances should be created
- * using the methods provided by the {@link FileListFactory}.
+ * denoted by a trailing separator. Instances should be created using the
+ * methods provided by the {@link FileListFactory}. After creation a file list
+ * is only modified by {@link #merge} and {@link #expand}, which replace its
+ * collapsed folders, so a file list must not be shared between threads while
+ * a negotiation is still resolving it.
+ * <p>
+ * The folders of a file list created for a project carry a Merkle hash over
+ * the names, checksums and hashes of their members, so two file lists can be
+ * compared subtree by subtree. A {@linkplain #getManifest manifest} of a file
+ * list only contains the upper levels of the tree, the deeper folders are
+ * collapsed to their hash. The receiver {@linkplain #merge merges} the
+ * collapsed folders that are equal to its own ones and requests the content
+ * of the remaining ones, so only the changed parts of a project are
+ * transferred.
  */
 
 // FIXME remove the projectID stuff, as it is mutable !
@@ -64,7 +81,7 @@ public class FileList {
      * foo/bar/foobar.txt will be stored as foo, bar, foo.txt, and foobar.txt
      */
     @XStreamAlias("f")
-    private static class File {
+    static class File {
 
         @XStreamAlias("p")
         @XStreamAsAttribute
@@ -80,6 +97,22 @@ public class FileList {
         @XStreamAsAttribute
         boolean isDirectory;
 
+        /**
+         * Merkle hash of a directory, <code>null</code> for files or if it was
+         * not computed.
+         */
+        @XStreamAlias("h")
+        @XStreamAsAttribute
+        Long hash;
+
+        /**
+         * Set if the members of this directory are omitted and only its hash
+         * is known.
+         */
+        @XStreamAlias("c")
+        @XStreamAsAttribute
+        Boolean collapsed;
+
         private File(String path, MetaData metaData, boolean isDirectory) {
             this.path = path;
             this.metaData = metaData;
@@ -182,6 +215,19 @@ public class FileList {
             return null;
         }
 
+        /**
+         * Returns the directory with the given path, this node itself for the
+         * empty path.
+         */
+        File getDirectory(String path) {
+            final File file = path.isEmpty() ? this : getFile(path);
+            return file == null || !file.isDirectory ? null : file;
+        }
+
+        boolean isCollapsed() {
+            return collapsed != null && collapsed;
+        }
+
         /**
          * Will be called recursively to find the file represented by the given
          * path segments.
@@ -271,6 +317,7 @@ public class FileList {
             result = prime * result + (isDirectory ? 1231 : 1237);
             result = prime * result + ObjectUtils.hashCode(metaData);
             result = prime * result + ObjectUtils.hashCode(path);
+            result = prime * result + (isCollapsed() ? 1231 : 1237);
             return result;
         }
 
@@ -288,6 +335,9 @@ public class FileList {
             if (isDirectory != other.isDirectory)
                 return false;
 
+            if (isCollapsed() != other.isCollapsed())
+                return false;
+
             if (!ObjectUtils.equals(path, other.path))
                 return false;
             if (!ObjectUtils.equals(metaData, other.metaData))
@@ -297,6 +347,76 @@ public class FileList {
 
             return true;
         }
+
+        /**
+         * Computes the hashes of this directory and of all directories below
+         * it. The members are ordered by name, so the hash does not depend on
+         * the order the paths were added in.
+         */
+        private void computeHash(final MessageDigest digest) {
+            for (File file : files) {
+                if (file.isDirectory)
+                    file.computeHash(digest);
+            }
+
+            final List<File> members = new ArrayList<File>(files);
+            Collections.sort(members, NAME_ORDER);
+
+            digest.reset();
+
+            for (File file : members) {
+                digest.update(toBytes(file.path));
+                digest.update((byte) 0);
+
+                if (file.isDirectory) {
+                    digest.update((byte) 'd');
+                    update(digest, file.hash);
+                } else if (file.metaData != null) {
+                    digest.update((byte) 'f');
+                    update(digest, file.metaData.checksum);
+                } else {
+                    digest.update((byte) 'n');
+                }
+            }
+
+            final byte[] result = digest.digest();
+
+            long value = 0;
+
+            for (int i = 0; i < 8; i++)
+                value = (value << 8) | (result[i] & 0xFF);
+
+            hash = value;
+        }
+
+        /**
+         * Returns a copy of this node without its members.
+         */
+        private File copy() {
+            final File file = new File(path, metaData, isDirectory);
+            file.hash = hash;
+            return file;
+        }
+    }
+
+    private static final Comparator<File> NAME_ORDER = new Comparator<File>() {
+        @Override
+        public int compare(File a, File b) {
+            return a.path.compareTo(b.path);
+        }
+    };
+
+    private static byte[] toBytes(String name) {
+        try {
+            return name.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void update(MessageDigest digest, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8)
+            digest.update((byte) (value >>> shift));
     }
 
     @XStreamAlias("md")
@@ -306,6 +426,15 @@ public class FileList {
         @XStreamAlias("crc")
         long checksum;
 
+        /**
+         * Content hash of a file the requesting side already has, see
+         * {@link LocalBlobStore#getContentHash}. Only set in the file lists of
+         * missing files.
+         */
+        @XStreamAlias("h")
+        @XStreamAsAttribute
+        Long contentHash;
+
         @Override
         public boolean equals(Object o) {
             if (o == this)
@@ -320,6 +449,9 @@ public class FileList {
             if (!ObjectUtils.equals(checksum, other.checksum))
                 return false;
 
+            if (!ObjectUtils.equals(contentHash, other.contentHash))
+                return false;
+
             return true;
         }
 
@@ -346,6 +478,10 @@ public class FileList {
         return root.getMetaData(path);
     }
 
+    File getRoot() {
+        return root;
+    }
+
     /**
      * Creates an empty file list.
      */
@@ -385,6 +521,178 @@ public class FileList {
     @XStreamOmitField
     private volatile List<String> cachedList = null;
 
+    /**
+     * Computes the Merkle hashes of all folders. Must be called after all
+     * paths and checksums were added.
+     */
+    void computeHashes() {
+        final MessageDigest digest;
+
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        root.computeHash(digest);
+    }
+
+    /**
+     * Returns the Merkle hash over the whole content of this file list.
+     * 
+     * @return the hash or <code>null</code> if no hashes were computed
+     */
+    Long getHash() {
+        return root.hash;
+    }
+
+    /**
+     * Returns a manifest of the given folders, i.e a file list that contains
+     * their members in breadth first order until the given number of entries
+     * is reached. The folders below are collapsed, only their hash is
+     * included. The members of the given folders are always included. The
+     * result contains the intermediate folders of the given paths, but without
+     * any further members or hashes.
+     * 
+     * @param folders
+     *            the paths of the folders, the empty path denotes the whole
+     *            file list, none of the folders may be inside another one
+     * @param maxEntries
+     *            the number of entries after which the remaining folders are
+     *            collapsed
+     * @throws IllegalArgumentException
+     *             if one of the folders does not exist
+     */
+    FileList getManifest(List<String> folders, int maxEntries) {
+        final FileList manifest = new FileList();
+
+        manifest.projectID = projectID;
+        manifest.encodings.addAll(encodings);
+
+        // pairs of the original folders and their copies in the manifest
+        final Deque<File[]> queue = new ArrayDeque<File[]>();
+
+        for (final String path : folders) {
+            final File folder = root.getDirectory(path);
+
+            if (folder == null || folder.isCollapsed())
+                throw new IllegalArgumentException("folder " + path
+                    + " is not part of the file list");
+
+            File copy = manifest.root;
+
+            if (!path.isEmpty()) {
+                manifest.addPath(path, null, true);
+                copy = manifest.root.getDirectory(path);
+            }
+
+            copy.hash = folder.hash;
+            queue.add(new File[] { folder, copy });
+        }
+
+        int requiredFolders = queue.size();
+        int entries = 0;
+
+        while (!queue.isEmpty()) {
+            final File[] pair = queue.poll();
+            final File folder = pair[0];
+            final File copy = pair[1];
+
+            if (requiredFolders > 0) {
+                requiredFolders--;
+            } else if (entries + folder.files.size() > maxEntries) {
+                copy.collapsed = Boolean.TRUE;
+                continue;
+            }
+
+            for (final File file : folder.files) {
+                final File fileCopy = file.copy();
+                copy.files.add(fileCopy);
+                entries++;
+
+                if (file.isDirectory && !file.files.isEmpty())
+                    queue.add(new File[] { file, fileCopy });
+            }
+        }
+
+        return manifest;
+    }
+
+    /**
+     * Replaces the collapsed folders of this file list by the members of the
+     * folders of the given file list that have the same hash.
+     * 
+     * @param other
+     *            a complete file list with computed hashes, e.g of the local
+     *            version of the project
+     * @return the paths of the collapsed folders that could not be replaced
+     */
+    List<String> merge(FileList other) {
+        final List<String> unresolved = new ArrayList<String>();
+
+        merge(root, "", other, unresolved);
+        cachedList = null;
+
+        return unresolved;
+    }
+
+    private static void merge(File folder, String path, FileList other,
+        List<String> unresolved) {
+
+        if (folder.isCollapsed()) {
+            final File otherFolder = other.root.getDirectory(path);
+
+            /*
+             * the members are shared with the other file list, this is fine as
+             * they are never modified
+             */
+            if (otherFolder != null && !otherFolder.isCollapsed()
+                && folder.hash != null && folder.hash.equals(otherFolder.hash)) {
+                folder.files = otherFolder.files;
+                folder.collapsed = null;
+            } else {
+                unresolved.add(path);
+            }
+
+            return;
+        }
+
+        for (File file : folder.files) {
+            if (file.isDirectory)
+                merge(file, file.appendTo(path) + DIR_SEPARATOR, other,
+                    unresolved);
+        }
+    }
+
+    /**
+     * Replaces the given collapsed folders of this file list by their members
+     * in the given manifest, which may contain collapsed folders itself.
+     * 
+     * @throws IllegalArgumentException
+     *             if a folder is not collapsed or the manifest does not
+     *             contain a matching folder
+     */
+    void expand(FileList manifest, List<String> folders) {
+        for (final String path : folders) {
+            final File folder = root.getDirectory(path);
+            final File expanded = manifest.root.getDirectory(path);
+
+            if (folder == null || !folder.isCollapsed())
+                throw new IllegalArgumentException("folder " + path
+                    + " is not collapsed");
+
+            if (expanded == null || expanded.isCollapsed()
+                || !ObjectUtils.equals(folder.hash, expanded.hash))
+                throw new IllegalArgumentException(
+                    "manifest contains no matching folder " + path);
+
+            folder.files = expanded.files;
+            folder.collapsed = null;
+        }
+
+        cachedList = null;
+    }
+
     /**
      * Returns an immutable list of all paths in this FileList.
      * <p>
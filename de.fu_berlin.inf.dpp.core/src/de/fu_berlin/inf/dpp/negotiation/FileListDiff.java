@@ -2,10 +2,11 @@ package de.fu_berlin.inf.dpp.negotiation;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
+import de.fu_berlin.inf.dpp.negotiation.FileList.File;
 import de.fu_berlin.inf.dpp.negotiation.FileList.MetaData;
 
 /**
@@ -46,6 +47,10 @@ public class FileListDiff {
      * <p>
      * If either of the two parameters is <code>null</code>, the result is an
      * empty diff.
+     * <p>
+     * The members of folders with the same Merkle hash are not compared, they
+     * are just added to the unaltered files and folders. Collapsed folders can
+     * only be compared if their hash matches.
      *
      * @param base
      *            The base {@link FileList}.
@@ -57,6 +62,8 @@ public class FileListDiff {
      *
      * @return a new {@link FileListDiff} which contains the difference
      *         information of the two {@link FileList}s.
+     * @throws IllegalArgumentException
+     *             if the content of a collapsed folder is needed
      */
     public static FileListDiff diff(final FileList base, final FileList target,
         final boolean excludeRemoved) {
@@ -66,93 +73,103 @@ public class FileListDiff {
         if (base == null || target == null)
             return result;
 
-        final List<String> basePaths = base.getPaths();
-        final List<String> targetPaths = target.getPaths();
+        result.compare(base.getRoot(), target.getRoot(), "", excludeRemoved);
 
-        /*
-         * TODO find better values to avoid multiple rehashing for larger file
-         * lists
-         */
-        final Set<String> baseFolders = new HashSet<String>(1024);
-        final Set<String> baseFiles = new HashSet<String>(1024);
+        return result;
+    }
 
-        final Set<String> targetFolders = new HashSet<String>(1024);
-        final Set<String> targetFiles = new HashSet<String>(1024);
+    /**
+     * Compares the members of the given folders. The members of folders with
+     * the same hash are equal and therefore not compared.
+     *
+     * @param path
+     *            the path of the folders including the trailing separator,
+     *            empty for the root of the file lists
+     */
+    private void compare(final File base, final File target,
+        final String path, final boolean excludeRemoved) {
 
-        for (final String path : basePaths) {
+        if (base.hash != null && base.hash.equals(target.hash)) {
+            final File folder = base.isCollapsed() ? target : base;
 
-            addAllFolders(baseFolders, path);
+            for (final File file : folder.files)
+                addAll(file, path, unalteredFiles, unalteredFolders);
 
-            if (!isFolder(path))
-                baseFiles.add(path);
+            return;
         }
 
-        for (final String path : targetPaths) {
+        if (base.isCollapsed() || target.isCollapsed())
+            throw new IllegalArgumentException("the content of folder '"
+                + path + "' is unknown");
 
-            addAllFolders(targetFolders, path);
+        final Map<String, File> baseMembers = new HashMap<String, File>(
+            base.files.size() * 2);
 
-            if (!isFolder(path))
-                targetFiles.add(path);
-        }
+        for (final File file : base.files)
+            baseMembers.put(file.path, file);
 
-        final Set<String> complementSet = new HashSet<String>(max(
-            baseFolders.size(), baseFiles.size(), targetFolders.size(),
-            targetFiles.size()));
+        for (final File file : target.files) {
+            final File baseFile = baseMembers.remove(file.path);
 
-        complementSet.addAll(targetFiles);
-        complementSet.removeAll(baseFiles);
+            if (baseFile == null) {
+                addAll(file, path, addedFiles, addedFolders);
+                continue;
+            }
 
-        result.addedFiles.addAll(complementSet);
+            if (file.isDirectory != baseFile.isDirectory) {
+                addAll(file, path, addedFiles, addedFolders);
 
-        if (!excludeRemoved) {
-            complementSet.clear();
-            complementSet.addAll(baseFiles);
-            complementSet.removeAll(targetFiles);
+                if (!excludeRemoved)
+                    addAll(baseFile, path, removedFiles, removedFolders);
 
-            result.removedFiles.addAll(complementSet);
-        }
-
-        final Set<String> intersectionSet = new HashSet<String>(max(
-            targetFiles.size(), targetFolders.size()));
+                continue;
+            }
 
-        intersectionSet.addAll(targetFiles);
-        intersectionSet.retainAll(baseFiles);
+            if (file.isDirectory) {
+                final String folderPath = path + file.path
+                    + FileList.DIR_SEPARATOR;
 
-        for (final String path : intersectionSet) {
+                unalteredFolders.add(folderPath);
+                compare(baseFile, file, folderPath, excludeRemoved);
+                continue;
+            }
 
-            final MetaData baseData = base.getMetaData(path);
-            final MetaData targetData = target.getMetaData(path);
+            final MetaData baseData = baseFile.metaData;
+            final MetaData targetData = file.metaData;
 
             if ((baseData == null && targetData == null)
                 || (baseData != null && targetData != null)
                 && (baseData.checksum == targetData.checksum)) {
-                result.unalteredFiles.add(path);
+                unalteredFiles.add(path + file.path);
             } else {
-                result.alteredFiles.add(path);
+                alteredFiles.add(path + file.path);
             }
         }
 
-        complementSet.clear();
-        complementSet.addAll(targetFolders);
-        complementSet.removeAll(baseFolders);
+        if (excludeRemoved)
+            return;
 
-        result.addedFolders.addAll(complementSet);
+        for (final File file : baseMembers.values())
+            addAll(file, path, removedFiles, removedFolders);
+    }
 
-        if (!excludeRemoved) {
-            complementSet.clear();
-            complementSet.addAll(baseFolders);
-            complementSet.removeAll(targetFolders);
+    /**
+     * Adds the given file or folder and all its members to the given lists.
+     */
+    private static void addAll(final File file, final String parentPath,
+        final List<String> files, final List<String> folders) {
 
-            result.removedFolders.addAll(complementSet);
+        if (!file.isDirectory) {
+            files.add(parentPath + file.path);
+            return;
         }
 
-        intersectionSet.clear();
-        intersectionSet.addAll(targetFolders);
-        intersectionSet.retainAll(baseFolders);
+        final String path = parentPath + file.path + FileList.DIR_SEPARATOR;
 
-        result.unalteredFolders.addAll(intersectionSet);
+        folders.add(path);
 
-        return result;
+        for (final File member : file.files)
+            addAll(member, path, files, folders);
     }
 
     /**
@@ -277,39 +294,4 @@ public class FileListDiff {
             + addedFolders + ", removedFolders=" + removedFolders
             + ", unalteredFolders=" + unalteredFolders + "]";
     }
-
-    private static boolean isFolder(final String path) {
-        return path.charAt(path.length() - 1) == FileList.DIR_SEPARATOR_CHAR;
-    }
-
-    private static void addAllFolders(final Set<String> into, final String path) {
-
-        int idx = path.length() - 1;
-
-        if (!isFolder(path))
-            idx = path.lastIndexOf(FileList.DIR_SEPARATOR_CHAR, idx - 1);
-
-        String subPath;
-
-        while (idx >= 0) {
-
-            subPath = path.substring(0, idx + 1);
-
-            if (into.contains(subPath))
-                break;
-
-            into.add(subPath);
-
-            idx = subPath.lastIndexOf(FileList.DIR_SEPARATOR_CHAR, idx - 1);
-        }
-    }
-
-    private static int max(int a, int... others) {
-        int max = a;
-
-        for (int i = 0; i < others.length; i++)
-            max = Math.max(max, others[i]);
-
-        return max;
-    }
 }
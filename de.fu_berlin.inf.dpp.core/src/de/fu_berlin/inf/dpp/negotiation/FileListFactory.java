@@ -1,10 +1,18 @@
 package de.fu_berlin.inf.dpp.negotiation;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.Arrays;
 import java.util.Deque;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.log4j.Logger;
 
@@ -17,6 +25,7 @@ import de.fu_berlin.inf.dpp.filesystem.IResource;
 import de.fu_berlin.inf.dpp.monitoring.IProgressMonitor;
 import de.fu_berlin.inf.dpp.monitoring.NullProgressMonitor;
 import de.fu_berlin.inf.dpp.negotiation.FileList.MetaData;
+import de.fu_berlin.inf.dpp.util.NamedThreadFactory;
 
 /**
  * Offers two ways to create {@link FileList file lists}.
@@ -32,6 +41,14 @@ public class FileListFactory {
 
     private static final Logger LOG = Logger.getLogger(FileListFactory.class);
 
+    /**
+     * Maximum number of threads that are used to calculate the checksums of
+     * the files. Defaults to the number of available processors.
+     */
+    private static final int CHECKSUM_THREADS = Integer.getInteger(
+        "de.fu_berlin.inf.dpp.negotiation.CHECKSUM_THREADS", Runtime
+            .getRuntime().availableProcessors());
+
     private IChecksumCache checksumCache;
     private IProgressMonitor monitor;
 
@@ -89,6 +106,8 @@ public class FileListFactory {
 
         addMembersToList(list, resources);
 
+        list.computeHashes();
+
         return list;
     }
 
@@ -131,38 +150,134 @@ public class FileListFactory {
             }
         }
 
+        calculateChecksums(list, files);
+    }
+
+    /**
+     * Calculates the checksums of the given files and stores them in the meta
+     * data of the file list. The checksums are calculated by up to
+     * {@link #CHECKSUM_THREADS} threads while the calling thread reports the
+     * progress. If the monitor is canceled no further checksums are calculated
+     * and the meta data of the remaining files is left untouched.
+     */
+    private void calculateChecksums(final FileList list,
+        final List<IFile> files) throws IOException {
+
         monitor.beginTask("Calculating checksums...", files.size());
 
-        for (IFile file : files) {
-            try {
+        final int threads = Math.min(CHECKSUM_THREADS, files.size());
+
+        if (threads <= 1) {
+            for (IFile file : files) {
+                if (monitor.isCanceled())
+                    return;
+
                 monitor.subTask(file.getProject().getName() + ": "
                     + file.getProjectRelativePath());
 
-                MetaData data = list.getMetaData(file.getProjectRelativePath()
-                    .toPortableString());
+                calculateChecksum(file, getMetaData(list, file));
+
+                monitor.worked(1);
+            }
+
+            return;
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(
+            threads, new NamedThreadFactory("FileListChecksumWorker-"));
+
+        final CompletionService<IFile> completionService = new ExecutorCompletionService<IFile>(
+            executor);
 
-                Long checksum = null;
+        final Iterator<IFile> it = files.iterator();
 
-                if (checksumCache != null)
-                    checksum = checksumCache.getChecksum(file);
+        /*
+         * do not flood the executor with tasks, otherwise a cancellation has to
+         * wait until all already submitted files are processed
+         */
+        final int maxPending = threads * 4;
 
-                data.checksum = checksum == null ? FileSystem.checksum(file)
-                    : checksum;
+        int pending = 0;
 
-                if (checksumCache != null) {
-                    boolean isInvalid = checksumCache.addChecksum(file,
-                        data.checksum);
+        try {
+            while (true) {
+                while (pending < maxPending && it.hasNext()
+                    && !monitor.isCanceled()) {
 
-                    if (isInvalid && checksum != null)
-                        LOG.warn("calculated checksum on dirty data: "
-                            + file.getFullPath());
+                    final IFile file = it.next();
+                    final MetaData data = getMetaData(list, file);
+
+                    completionService.submit(new Callable<IFile>() {
+                        @Override
+                        public IFile call() {
+                            calculateChecksum(file, data);
+                            return file;
+                        }
+                    });
+
+                    pending++;
                 }
 
-            } catch (IOException e) {
-                LOG.error(e);
+                if (pending == 0)
+                    break;
+
+                final IFile file = completionService.take().get();
+                pending--;
+
+                monitor.subTask(file.getProject().getName() + ": "
+                    + file.getProjectRelativePath());
+
+                monitor.worked(1);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                "interrupted while calculating checksums");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+
+            if (cause instanceof Error)
+                throw (Error) cause;
+
+            throw new IllegalStateException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static MetaData getMetaData(FileList list, IFile file) {
+        return list.getMetaData(file.getProjectRelativePath()
+            .toPortableString());
+    }
+
+    /*
+     * may be called concurrently, the checksum cache implementations are
+     * thread safe
+     */
+    private void calculateChecksum(IFile file, MetaData data) {
+        try {
+            Long checksum = null;
+
+            if (checksumCache != null)
+                checksum = checksumCache.getChecksum(file);
+
+            data.checksum = checksum == null ? FileSystem.checksum(file)
+                : checksum;
+
+            if (checksumCache != null) {
+                boolean isInvalid = checksumCache.addChecksum(file,
+                    data.checksum);
+
+                if (isInvalid && checksum != null)
+                    LOG.warn("calculated checksum on dirty data: "
+                        + file.getFullPath());
             }
 
-            monitor.worked(1);
+        } catch (IOException e) {
+            LOG.error(e);
         }
     }
 }
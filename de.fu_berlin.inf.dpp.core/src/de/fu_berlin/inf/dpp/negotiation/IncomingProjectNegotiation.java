@@ -2,6 +2,7 @@ package de.fu_berlin.inf.dpp.negotiation;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -16,7 +17,11 @@ import org.jivesoftware.smackx.filetransfer.FileTransferListener;
 import org.jivesoftware.smackx.filetransfer.FileTransferRequest;
 import org.jivesoftware.smackx.filetransfer.IncomingFileTransfer;
 
+import de.fu_berlin.inf.dpp.communication.extensions.ProjectNegotiationManifestExtension;
+import de.fu_berlin.inf.dpp.communication.extensions.ProjectNegotiationManifestRequestExtension;
 import de.fu_berlin.inf.dpp.communication.extensions.ProjectNegotiationMissingFilesExtension;
+import de.fu_berlin.inf.dpp.communication.extensions.ProjectNegotiationStreamAckExtension;
+import de.fu_berlin.inf.dpp.communication.extensions.ProjectNegotiationStreamExtension;
 import de.fu_berlin.inf.dpp.communication.extensions.StartActivityQueuingRequest;
 import de.fu_berlin.inf.dpp.communication.extensions.StartActivityQueuingResponse;
 import de.fu_berlin.inf.dpp.exceptions.LocalCancellationException;
@@ -55,8 +60,16 @@ public class IncomingProjectNegotiation extends ProjectNegotiation {
 
     private boolean running;
 
+    /**
+     * Guards the completion of the remote file lists. The negotiation itself
+     * is not locked while waiting for the host, so it can still be canceled.
+     */
+    private final Object fileListLock = new Object();
+
     private PacketCollector startActivityQueuingRequestCollector;
 
+    private PacketCollector streamCollector;
+
     public IncomingProjectNegotiation(
         final JID peer, //
         final String negotiationID, //
@@ -117,6 +130,8 @@ public class IncomingProjectNegotiation extends ProjectNegotiation {
         ArchiveTransferListener archiveTransferListener = new ArchiveTransferListener(
             ARCHIVE_TRANSFER_ID + getID());
 
+        final LocalBlobStore blobStore = new LocalBlobStore();
+
         Exception exception = null;
 
         createCollectors();
@@ -133,7 +148,8 @@ public class IncomingProjectNegotiation extends ProjectNegotiation {
 
             List<FileList> missingFiles = synchronizeProjectStructures(
                 projectMapping,
-                computeLocalVsRemoteDiff(projectMapping, monitor));
+                computeLocalVsRemoteDiff(projectMapping, blobStore, monitor),
+                blobStore);
 
             monitor.subTask("");
 
@@ -170,15 +186,20 @@ public class IncomingProjectNegotiation extends ProjectNegotiation {
 
             checkCancellation(CancelOption.NOTIFY_PEER);
 
-            boolean filesMissing = false;
+            int missingFileCount = 0;
 
             for (FileList list : missingFiles)
-                filesMissing |= list.getPaths().size() > 0;
-
-            // the host do not send an archive if we do not need any files
-            if (filesMissing)
-                receiveAndUnpackArchive(projectMapping,
-                    archiveTransferListener, monitor);
+                missingFileCount += list.getPaths().size();
+
+            // the host do not send any files if we do not need any files
+            if (missingFileCount > 0) {
+                if (awaitProjectContents(archiveTransferListener, monitor))
+                    receiveAndUnpackArchive(projectMapping,
+                        archiveTransferListener, monitor);
+                else
+                    receiveProjectStream(projectMapping, missingFileCount,
+                        monitor);
+            }
 
             /*
              * We are finished with the negotiation. Add all projects resources
@@ -225,6 +246,7 @@ public class IncomingProjectNegotiation extends ProjectNegotiation {
 
             fileReplacementInProgressObservable.replacementDone();
 
+            blobStore.dispose();
             deleteCollectors();
             monitor.done();
         }
@@ -255,6 +277,171 @@ public class IncomingProjectNegotiation extends ProjectNegotiation {
         return projectNegotiationData.get(id);
     }
 
+    /**
+     * Returns the complete file list of the remote project with the given id.
+     * The host may only offer a manifest of the file list in which folders are
+     * collapsed to their hash. Collapsed folders that are equal to the ones of
+     * the given local file list are taken from it, the content of the others
+     * is requested from the host. The file list of the
+     * {@linkplain #getProjectNegotiationData(String) negotiation data} is
+     * completed in place.
+     * 
+     * @param id
+     *            the id of the remote project
+     * @param localFileList
+     *            the file list of the local project the remote project is
+     *            mapped to, as created by
+     *            {@link FileListFactory#createFileList(IProject, List, IChecksumCache, IProgressMonitor)}
+     * @return the complete file list of the remote project
+     * @throws IOException
+     *             if the host does not answer or its answer does not match
+     *             the offered file list
+     */
+    public FileList getRemoteFileList(final String id,
+        final FileList localFileList) throws IOException {
+
+        final FileList remoteFileList = getProjectNegotiationData(id)
+            .getFileList();
+
+        synchronized (fileListLock) {
+            List<String> collapsedFolders = remoteFileList
+                .merge(localFileList);
+
+            if (collapsedFolders.isEmpty())
+                return remoteFileList;
+
+            final PacketCollector collector = receiver
+                .createCollector(ProjectNegotiationManifestExtension.PROVIDER
+                    .getPacketFilter(getSessionID(), getID()));
+
+            try {
+                while (!collapsedFolders.isEmpty()) {
+                    LOG.debug(this + " : requesting content of "
+                        + collapsedFolders.size() + " changed folder(s)");
+
+                    transmitter.send(ISarosSession.SESSION_CONNECTION_ID,
+                        getPeer(),
+                        ProjectNegotiationManifestRequestExtension.PROVIDER
+                            .create(new ProjectNegotiationManifestRequestExtension(
+                                getSessionID(), getID(), id, collapsedFolders)));
+
+                    final FileList manifest = awaitManifest(collector, id);
+
+                    try {
+                        remoteFileList.expand(manifest, collapsedFolders);
+                    } catch (IllegalArgumentException e) {
+                        throw new IOException(
+                            "received invalid file list from " + getPeer(), e);
+                    }
+
+                    collapsedFolders = remoteFileList.merge(localFileList);
+                }
+            } finally {
+                collector.cancel();
+            }
+        }
+
+        return remoteFileList;
+    }
+
+    private FileList awaitManifest(final PacketCollector collector,
+        final String id) throws IOException {
+
+        for (long timeLeft = PACKET_TIMEOUT; timeLeft > 0; timeLeft -= 1000) {
+            if (isCanceled())
+                throw new IOException("project negotiation was canceled");
+
+            final Packet packet = collector.nextResult(1000);
+
+            if (packet == null)
+                continue;
+
+            final FileList manifest = ProjectNegotiationManifestExtension.PROVIDER
+                .getPayload(packet).getFileList();
+
+            if (!id.equals(manifest.getProjectID()))
+                throw new IOException("received file list of project "
+                    + manifest.getProjectID() + " instead of " + id);
+
+            return manifest;
+        }
+
+        throw new IOException("received no response from " + getPeer()
+            + " while waiting for the file list");
+    }
+
+    /**
+     * Waits until the host either offers the archive with all missing files or
+     * starts to stream the missing files.
+     * 
+     * @return <code>true</code> if the host offers an archive,
+     *         <code>false</code> if the host streams the files
+     */
+    private boolean awaitProjectContents(
+        final ArchiveTransferListener archiveTransferListener,
+        final IProgressMonitor monitor) throws SarosCancellationException {
+
+        LOG.debug(this + " : waiting for the missing files");
+
+        monitor.subTask("Host is preparing project files. Waiting for the files...");
+
+        try {
+            while (!archiveTransferListener.hasReceived()
+                && !streamCollector.hasReceived()) {
+                checkCancellation(CancelOption.NOTIFY_PEER);
+                Thread.sleep(200);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LocalCancellationException();
+        }
+
+        return archiveTransferListener.hasReceived();
+    }
+
+    /**
+     * Receives the stream with all missing files and stores the files while
+     * they arrive.
+     */
+    private void receiveProjectStream(
+        final Map<String, IProject> localProjectMapping, final int fileCount,
+        final IProgressMonitor monitor) throws IOException,
+        SarosCancellationException {
+
+        final Map<String, IProject> projectMapping = new HashMap<String, IProject>(
+            localProjectMapping);
+
+        final ReceiveProjectStreamTask receiveTask = new ReceiveProjectStreamTask(
+            new StreamInputStream(), fileCount, projectMapping, PATH_DELIMITER,
+            monitor);
+
+        long startTime = System.currentTimeMillis();
+
+        LOG.debug(this + " : receiving project stream...");
+
+        try {
+            workspace.run(receiveTask,
+                projectMapping.values().toArray(new IResource[0]));
+        } catch (de.fu_berlin.inf.dpp.exceptions.OperationCanceledException e) {
+            LocalCancellationException canceled = new LocalCancellationException(
+                null, CancelOption.NOTIFY_PEER);
+            canceled.initCause(e);
+            throw canceled;
+        } catch (IOException e) {
+            // the cancellation may be wrapped by the workspace implementation
+            for (Throwable cause = e.getCause(); cause != null; cause = cause
+                .getCause()) {
+                if (cause instanceof SarosCancellationException)
+                    throw (SarosCancellationException) cause;
+            }
+
+            throw e;
+        }
+
+        LOG.debug(String.format("received project stream in %d s",
+            (System.currentTimeMillis() - startTime) / 1000));
+    }
+
     /**
      * Receives the archive with all missing files and unpacks it.
      */
@@ -341,6 +528,8 @@ public class IncomingProjectNegotiation extends ProjectNegotiation {
      *
      * @param localProjectMapping
      *            the local project mapping to use
+     * @param blobStore
+     *            the store to add the files of the local projects to
      * @param monitor
      * @return list of differences (one for each project) between the local and
      *         the remote side.
@@ -349,8 +538,8 @@ public class IncomingProjectNegotiation extends ProjectNegotiation {
      */
     private Map<String, FileListDiff> computeLocalVsRemoteDiff(
         final Map<String, IProject> localProjectMapping,
-        final IProgressMonitor monitor) throws SarosCancellationException,
-        IOException {
+        final LocalBlobStore blobStore, final IProgressMonitor monitor)
+        throws SarosCancellationException, IOException {
 
         LOG.debug(this + " : computing file and folder differences");
 
@@ -375,10 +564,12 @@ public class IncomingProjectNegotiation extends ProjectNegotiation {
             final ProjectNegotiationData data = getProjectNegotiationData(id);
 
             final FileListDiff diff = FileListDiff.diff(localProjectFileList,
-                data.getFileList(), data.isPartial());
+                getRemoteFileList(id, localProjectFileList), data.isPartial());
 
             checkCancellation(CancelOption.NOTIFY_PEER);
 
+            blobStore.addFiles(project, localProjectFileList);
+
             if (data.isPartial()
                 && (!diff.getRemovedFiles().isEmpty() || !diff
                     .getRemovedFolders().isEmpty()))
@@ -397,16 +588,45 @@ public class IncomingProjectNegotiation extends ProjectNegotiation {
      * Synchronize the project structures, deleting files and folders that are
      * not present on the remote side and creating empty folders that do not
      * exists and the local side.
+     * <p>
+     * Missing files whose content already exists on the local side, e.g
+     * because they were moved or renamed, are restored from the given blob
+     * store. They are still requested from the host together with the content
+     * hash of the restored content, so the host can skip them if they are
+     * equal.
      *
      * @param localProjectMapping
      * @param diffs
+     * @param blobStore
+     *            the store containing the files of the local projects
      * @return list of file lists (each for every project) containing the
      *         missing files that are not present on the local side.
      * @throws IOException
      */
     private List<FileList> synchronizeProjectStructures(
         final Map<String, IProject> localProjectMapping,
-        final Map<String, FileListDiff> diffs) throws IOException {
+        final Map<String, FileListDiff> diffs, final LocalBlobStore blobStore)
+        throws IOException {
+
+        /*
+         * the contents must be staged before any file is deleted or
+         * overwritten as they may be moved between the projects
+         */
+        final Map<String, Map<String, FileList.MetaData>> localContents = new HashMap<String, Map<String, FileList.MetaData>>();
+
+        int localContentCount = 0;
+
+        for (final String id : localProjectMapping.keySet()) {
+            final Map<String, FileList.MetaData> contents = stageLocalContents(
+                diffs.get(id), getProjectNegotiationData(id).getFileList(),
+                blobStore);
+
+            localContents.put(id, contents);
+            localContentCount += contents.size();
+        }
+
+        LOG.debug(this + " : found content of " + localContentCount
+            + " missing file(s) on the local side");
 
         LOG.debug(this
             + " : deleting files and folders, creating empty folders");
@@ -470,6 +690,16 @@ public class IncomingProjectNegotiation extends ProjectNegotiation {
                 .createEmptyFileList() : FileListFactory
                 .createFileList(missingFiles);
 
+            for (final Entry<String, FileList.MetaData> localContent : localContents
+                .get(id).entrySet()) {
+
+                final String path = localContent.getKey();
+                final FileList.MetaData metaData = localContent.getValue();
+
+                blobStore.restore(metaData.checksum, project.getFile(path));
+                fileList.addPath(path, metaData, false);
+            }
+
             fileList.setProjectID(id);
 
             result.add(fileList);
@@ -479,6 +709,45 @@ public class IncomingProjectNegotiation extends ProjectNegotiation {
         return result;
     }
 
+    /**
+     * Stages the contents of the missing files of the given diff that exist
+     * on the local side.
+     *
+     * @return the checksums and content hashes of the staged contents by path
+     */
+    private Map<String, FileList.MetaData> stageLocalContents(
+        final FileListDiff diff, final FileList remoteFileList,
+        final LocalBlobStore blobStore) {
+
+        final Map<String, FileList.MetaData> result = new HashMap<String, FileList.MetaData>();
+
+        final List<String> missingFiles = new ArrayList<String>();
+
+        missingFiles.addAll(diff.getAddedFiles());
+        missingFiles.addAll(diff.getAlteredFiles());
+
+        for (final String path : missingFiles) {
+            final FileList.MetaData remoteMetaData = remoteFileList
+                .getMetaData(path);
+
+            if (remoteMetaData == null)
+                continue;
+
+            final Long contentHash = blobStore.stage(remoteMetaData.checksum);
+
+            if (contentHash == null)
+                continue;
+
+            final FileList.MetaData metaData = new FileList.MetaData();
+            metaData.checksum = remoteMetaData.checksum;
+            metaData.contentHash = contentHash;
+
+            result.put(path, metaData);
+        }
+
+        return result;
+    }
+
     private void unpackArchive(final Map<String, IProject> localProjectMapping,
         final File archiveFile, final IProgressMonitor monitor)
         throws LocalCancellationException, IOException {
@@ -547,10 +816,15 @@ public class IncomingProjectNegotiation extends ProjectNegotiation {
         startActivityQueuingRequestCollector = receiver
             .createCollector(StartActivityQueuingRequest.PROVIDER
                 .getPacketFilter(getSessionID(), getID()));
+
+        streamCollector = receiver
+            .createCollector(ProjectNegotiationStreamExtension.PROVIDER
+                .getPacketFilter(getSessionID(), getID()));
     }
 
     private void deleteCollectors() {
         startActivityQueuingRequestCollector.cancel();
+        streamCollector.cancel();
     }
 
     private File receiveArchive(
@@ -650,6 +924,105 @@ public class IncomingProjectNegotiation extends ProjectNegotiation {
         }
     }
 
+    /**
+     * Input stream that returns the content of the chunks streamed by the host
+     * and acknowledges the receiving of the chunks. The host may send the
+     * chunks concurrently over several connections, so chunks that arrive
+     * early are kept until all preceding chunks arrived.
+     * <p>
+     * A cancellation of the negotiation is reported as an {@link IOException}
+     * with the {@link SarosCancellationException} as cause.
+     */
+    private class StreamInputStream extends InputStream {
+
+        private final Map<Integer, ProjectNegotiationStreamExtension> earlyChunks = new HashMap<Integer, ProjectNegotiationStreamExtension>();
+
+        private ProjectNegotiationStreamExtension chunk;
+
+        private int position;
+
+        private int received;
+
+        @Override
+        public int read() throws IOException {
+            awaitChunk();
+
+            return chunk.getData()[chunk.getOffset() + position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+
+            awaitChunk();
+
+            final int count = Math.min(len, chunk.getLength() - position);
+
+            System.arraycopy(chunk.getData(), chunk.getOffset() + position, b,
+                off, count);
+
+            position += count;
+            return count;
+        }
+
+        /*
+         * the end of the stream is marked inside the stream content so this
+         * stream never reports an end of file
+         */
+        private void awaitChunk() throws IOException {
+            while (chunk == null || position == chunk.getLength()) {
+                chunk = earlyChunks.remove(received);
+
+                if (chunk == null) {
+                    final ProjectNegotiationStreamExtension next = nextChunk();
+
+                    if (next.getSequenceNumber() < received
+                        || earlyChunks.containsKey(next.getSequenceNumber()))
+                        throw new IOException("project stream is corrupted, "
+                            + "received chunk " + next.getSequenceNumber()
+                            + " twice");
+
+                    if (next.getSequenceNumber() != received) {
+                        earlyChunks.put(next.getSequenceNumber(), next);
+                        continue;
+                    }
+
+                    chunk = next;
+                }
+
+                position = 0;
+                received++;
+
+                if (received % STREAM_ACK_INTERVAL == 0)
+                    transmitter.send(ISarosSession.SESSION_CONNECTION_ID,
+                        getPeer(), ProjectNegotiationStreamAckExtension.PROVIDER
+                            .create(new ProjectNegotiationStreamAckExtension(
+                                getSessionID(), getID(), received)));
+            }
+        }
+
+        private ProjectNegotiationStreamExtension nextChunk()
+            throws IOException {
+            final Packet packet;
+
+            try {
+                packet = collectPacket(streamCollector, PACKET_TIMEOUT);
+
+                if (packet == null)
+                    throw new LocalCancellationException(
+                        "received no data from " + getPeer()
+                            + " while receiving the project files",
+                        CancelOption.DO_NOT_NOTIFY_PEER);
+            } catch (SarosCancellationException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+
+            return ProjectNegotiationStreamExtension.PROVIDER
+                .getPayload(packet);
+        }
+    }
+
     private IResource getResource(IProject project, String path) {
         if (path.endsWith(FileList.DIR_SEPARATOR))
             return project.getFolder(path);
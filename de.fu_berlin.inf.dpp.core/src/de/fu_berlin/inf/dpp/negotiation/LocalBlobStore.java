@@ -0,0 +1,253 @@
+package de.fu_berlin.inf.dpp.negotiation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Adler32;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+import de.fu_berlin.inf.dpp.filesystem.FileSystem;
+import de.fu_berlin.inf.dpp.filesystem.IFile;
+import de.fu_berlin.inf.dpp.filesystem.IProject;
+
+/**
+ * Content addressed store of the files that already exist on the local side.
+ * The files of the local file lists are indexed by their checksum, so the
+ * content of a remote file can be found regardless of its path, e.g after the
+ * file was renamed or moved to another project.
+ * <p>
+ * The content of a local file is {@linkplain #stage(long) staged} into a
+ * temporary file before the local files are modified, so it is still
+ * available after its original file was deleted or overwritten. Staged
+ * contents are identified by their checksum and their
+ * {@linkplain #getContentHash(IFile) content hash}, which the remote side can
+ * use to verify that the contents are really equal before it skips the
+ * transfer of a file.
+ * <p>
+ * This class is <b>not</b> thread safe.
+ */
+final class LocalBlobStore {
+
+    private static final Logger LOG = Logger.getLogger(LocalBlobStore.class);
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private static final class Blob {
+        private final File file;
+        private final long contentHash;
+
+        private Blob(File file, long contentHash) {
+            this.file = file;
+            this.contentHash = contentHash;
+        }
+    }
+
+    /** local files by checksum */
+    private final Map<Long, List<IFile>> locations = new HashMap<Long, List<IFile>>();
+
+    /** staged contents by checksum, <code>null</code> if no content was found */
+    private final Map<Long, Blob> blobs = new HashMap<Long, Blob>();
+
+    /**
+     * Adds the files of the given file list to the index.
+     *
+     * @param project
+     *            the local project the file list was created from
+     * @param fileList
+     *            a file list containing the checksums of the files
+     */
+    void addFiles(final IProject project, final FileList fileList) {
+        for (final String path : fileList.getPaths()) {
+            final FileList.MetaData metaData = fileList.getMetaData(path);
+
+            if (metaData == null)
+                continue;
+
+            List<IFile> files = locations.get(metaData.checksum);
+
+            if (files == null) {
+                files = new ArrayList<IFile>(1);
+                locations.put(metaData.checksum, files);
+            }
+
+            files.add(project.getFile(path));
+        }
+    }
+
+    /**
+     * Copies the content of a local file with the given checksum into the
+     * store.
+     *
+     * @return the content hash of the staged content or <code>null</code> if
+     *         there is no readable local file with the given checksum
+     */
+    Long stage(final long checksum) {
+        if (blobs.containsKey(checksum)) {
+            final Blob blob = blobs.get(checksum);
+            return blob == null ? null : blob.contentHash;
+        }
+
+        final List<IFile> files = locations.get(checksum);
+
+        Blob blob = null;
+
+        for (int i = 0; files != null && i < files.size() && blob == null; i++) {
+            try {
+                blob = copy(files.get(i), checksum);
+            } catch (IOException e) {
+                LOG.warn("failed to stage content of " + files.get(i), e);
+            }
+        }
+
+        blobs.put(checksum, blob);
+
+        return blob == null ? null : blob.contentHash;
+    }
+
+    /**
+     * Writes the staged content with the given checksum to the given file. All
+     * necessary folders are created.
+     *
+     * @throws IllegalStateException
+     *             if no content with the given checksum was staged
+     */
+    void restore(final long checksum, final IFile file) throws IOException {
+        final Blob blob = blobs.get(checksum);
+
+        if (blob == null)
+            throw new IllegalStateException("no content with checksum "
+                + checksum + " was staged");
+
+        FileSystem.createFolder(file);
+
+        final InputStream in = new BufferedInputStream(new FileInputStream(
+            blob.file), BUFFER_SIZE);
+
+        try {
+            if (!file.exists())
+                file.create(in, false);
+            else
+                file.setContents(in, false, true);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Deletes all staged contents.
+     */
+    void dispose() {
+        for (final Blob blob : blobs.values()) {
+            if (blob != null && !blob.file.delete())
+                LOG.warn("could not delete staged file: " + blob.file);
+        }
+
+        blobs.clear();
+        locations.clear();
+    }
+
+    /**
+     * Calculates the content hash of the given file, i.e the first 8 bytes of
+     * the MD5 hash of its content.
+     */
+    static long getContentHash(final IFile file) throws IOException {
+        final MessageDigest digest = createDigest();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+
+        final InputStream in = file.getContents();
+
+        try {
+            int read;
+
+            while ((read = in.read(buffer)) != -1)
+                digest.update(buffer, 0, read);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+
+        return toLong(digest.digest());
+    }
+
+    /*
+     * the checksum in the index may be outdated, so it is verified while the
+     * content is copied
+     */
+    private static Blob copy(final IFile source, final long checksum)
+        throws IOException {
+
+        if (!source.exists())
+            return null;
+
+        final MessageDigest digest = createDigest();
+        final Adler32 adler = new Adler32();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+
+        final File file = File.createTempFile("saros_blob_", null);
+
+        boolean staged = false;
+
+        InputStream in = null;
+        OutputStream out = null;
+
+        try {
+            in = source.getContents();
+            out = new BufferedOutputStream(new FileOutputStream(file),
+                BUFFER_SIZE);
+
+            int read;
+
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                adler.update(buffer, 0, read);
+                out.write(buffer, 0, read);
+            }
+
+            out.close();
+
+            staged = adler.getValue() == checksum;
+        } finally {
+            IOUtils.closeQuietly(in);
+            IOUtils.closeQuietly(out);
+
+            if (!staged && !file.delete())
+                LOG.warn("could not delete staged file: " + file);
+        }
+
+        if (!staged) {
+            LOG.debug("content of " + source + " changed since it was indexed");
+            return null;
+        }
+
+        return new Blob(file, toLong(digest.digest()));
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long toLong(final byte[] digest) {
+        long value = 0;
+
+        for (int i = 0; i < 8; i++)
+            value = (value << 8) | (digest[i] & 0xFF);
+
+        return value;
+    }
+}
@@ -113,10 +113,17 @@ public final class NegotiationFactory {
         final JID remoteAddress, final List<IProject> resources,
         final ISarosSessionManager sessionManager, final ISarosSession session) {
 
+        IEditorManager editorManager = context
+            .getComponent(IEditorManager.class);
+
+        // some applications only provide an editor manager per session
+        if (editorManager == null)
+            editorManager = session.getComponent(IEditorManager.class);
+
         return new OutgoingProjectNegotiation(remoteAddress, resources,
-            sessionManager, session, /* editorManager */
-            context.getComponent(IEditorManager.class), workspace,
-            checksumCache, connectionService, transmitter, receiver);
+            sessionManager, session, editorManager, workspace,
+            checksumCache, versionManager, connectionService,
+            connectionManager, transmitter, receiver);
     }
 
     public IncomingProjectNegotiation newIncomingProjectNegotiation(
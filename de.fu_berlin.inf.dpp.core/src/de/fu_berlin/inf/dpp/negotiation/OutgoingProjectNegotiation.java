@@ -2,20 +2,32 @@ package de.fu_berlin.inf.dpp.negotiation;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.CancellationException;
 
 import org.apache.log4j.Logger;
 import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.filter.OrFilter;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smackx.filetransfer.OutgoingFileTransfer;
 
+import de.fu_berlin.inf.dpp.activities.SPath;
+import de.fu_berlin.inf.dpp.communication.extensions.ProjectNegotiationManifestExtension;
+import de.fu_berlin.inf.dpp.communication.extensions.ProjectNegotiationManifestRequestExtension;
 import de.fu_berlin.inf.dpp.communication.extensions.ProjectNegotiationMissingFilesExtension;
 import de.fu_berlin.inf.dpp.communication.extensions.ProjectNegotiationOfferingExtension;
+import de.fu_berlin.inf.dpp.communication.extensions.ProjectNegotiationStreamAckExtension;
+import de.fu_berlin.inf.dpp.communication.extensions.ProjectNegotiationStreamExtension;
 import de.fu_berlin.inf.dpp.communication.extensions.StartActivityQueuingRequest;
 import de.fu_berlin.inf.dpp.communication.extensions.StartActivityQueuingResponse;
+import de.fu_berlin.inf.dpp.concurrent.watchdog.ConsistencyWatchdogHandler;
 import de.fu_berlin.inf.dpp.editor.IEditorManager;
 import de.fu_berlin.inf.dpp.exceptions.LocalCancellationException;
 import de.fu_berlin.inf.dpp.exceptions.OperationCanceledException;
@@ -28,9 +40,11 @@ import de.fu_berlin.inf.dpp.filesystem.IWorkspace;
 import de.fu_berlin.inf.dpp.monitoring.IProgressMonitor;
 import de.fu_berlin.inf.dpp.monitoring.SubProgressMonitor;
 import de.fu_berlin.inf.dpp.negotiation.NegotiationTools.CancelOption;
+import de.fu_berlin.inf.dpp.net.IConnectionManager;
 import de.fu_berlin.inf.dpp.net.IReceiver;
 import de.fu_berlin.inf.dpp.net.ITransmitter;
 import de.fu_berlin.inf.dpp.net.PacketCollector;
+import de.fu_berlin.inf.dpp.net.stream.StreamMode;
 import de.fu_berlin.inf.dpp.net.xmpp.JID;
 import de.fu_berlin.inf.dpp.net.xmpp.XMPPConnectionService;
 import de.fu_berlin.inf.dpp.session.ISarosSession;
@@ -38,6 +52,7 @@ import de.fu_berlin.inf.dpp.session.ISarosSessionManager;
 import de.fu_berlin.inf.dpp.session.SessionEndReason;
 import de.fu_berlin.inf.dpp.session.User;
 import de.fu_berlin.inf.dpp.synchronize.StartHandle;
+import de.fu_berlin.inf.dpp.versioning.VersionManager;
 
 public class OutgoingProjectNegotiation extends ProjectNegotiation {
 
@@ -48,12 +63,72 @@ public class OutgoingProjectNegotiation extends ProjectNegotiation {
 
     private static final Random NEGOTIATION_ID_GENERATOR = new Random();
 
+    /**
+     * If set the project contents are always sent as a zip archive while the
+     * whole session is stopped, even if the remote side supports streaming.
+     */
+    private static final boolean DISABLE_STREAMING = Boolean
+        .getBoolean("de.fu_berlin.inf.dpp.negotiation.project.DISABLE_STREAMING");
+
+    /**
+     * Size of the chunks the project contents are split into when streaming.
+     */
+    private static final int STREAM_CHUNK_SIZE = 32 * 1024;
+
+    /**
+     * Maximum number of streamed chunks that are not acknowledged yet. This
+     * includes the chunks that are not sent yet, so it also bounds the memory
+     * used for pending chunks.
+     */
+    private static final int STREAM_WINDOW = 4 * STREAM_ACK_INTERVAL;
+
+    /**
+     * Number of threads that compress and send the chunks of a project stream
+     * if the peer can reorder the chunks.
+     */
+    private static final int STREAM_WORKERS = Integer.getInteger(
+        "de.fu_berlin.inf.dpp.negotiation.project.STREAM_WORKERS", Math.min(4,
+            Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Number of connections a project stream is sent over if the peer can
+     * reorder the chunks and is connected directly.
+     */
+    private static final int STREAM_CONNECTIONS = Integer.getInteger(
+        "de.fu_berlin.inf.dpp.negotiation.project.STREAM_CONNECTIONS", 2);
+
+    /**
+     * Prefix of the ids of the additional connections a project stream is sent
+     * over.
+     */
+    private static final String STREAM_CONNECTION_ID = "saros-pn-stream/";
+
+    /**
+     * Number of entries of a file list manifest after which the remaining
+     * folders are collapsed.
+     */
+    private static final int MANIFEST_ENTRIES = Integer.getInteger(
+        "de.fu_berlin.inf.dpp.negotiation.project.MANIFEST_ENTRIES", 1000);
+
     private final IEditorManager editorManager;
 
+    private final VersionManager versionManager;
+
+    private final IConnectionManager connectionManager;
+
+    /**
+     * The complete file lists of the offered projects by project id, used to
+     * answer requests for collapsed folders of the sent manifests.
+     */
+    private final Map<String, FileList> offeredFileLists = new HashMap<String, FileList>();
+
+    /** collects the remote file list and requests for collapsed folders */
     private PacketCollector remoteFileListResponseCollector;
 
     private PacketCollector startActivityQueuingResponseCollector;
 
+    private PacketCollector streamAckCollector;
+
     public OutgoingProjectNegotiation( //
         final JID peer, //
         final List<IProject> projects, //
@@ -65,8 +140,10 @@ public class OutgoingProjectNegotiation extends ProjectNegotiation {
 
         final IWorkspace workspace, //
         final IChecksumCache checksumCache, //
+        final VersionManager versionManager, //
 
         final XMPPConnectionService connectionService, //
+        final IConnectionManager connectionManager, //
         final ITransmitter transmitter, //
         final IReceiver receiver//
     )
@@ -79,6 +156,8 @@ public class OutgoingProjectNegotiation extends ProjectNegotiation {
         this.projects = projects;
 
         this.editorManager = editorManager;
+        this.versionManager = versionManager;
+        this.connectionManager = connectionManager;
     }
 
     public Status run(IProgressMonitor monitor) {
@@ -87,6 +166,9 @@ public class OutgoingProjectNegotiation extends ProjectNegotiation {
 
         File zipArchive = null;
 
+        // only set if the project contents are streamed
+        Long modificationStamp = null;
+
         observeMonitor(monitor);
 
         Exception exception = null;
@@ -96,6 +178,17 @@ public class OutgoingProjectNegotiation extends ProjectNegotiation {
                 // FIXME: the logic will try to send this to the remote contact
                 throw new IOException("not connected to a XMPP server");
 
+            final boolean streaming = isStreamingSupported();
+
+            /*
+             * remember the current state of the documents, all files that are
+             * modified from now on are not guaranteed to be transferred
+             * correctly because the session is not stopped while streaming
+             */
+            if (streaming)
+                modificationStamp = session.getConcurrentDocumentServer()
+                    .getModificationStamp();
+
             /*
              * FIXME save editors first, then do the file list and zip stuff
              * inside a Workspace Runnable with file locks !. There is a small
@@ -115,36 +208,24 @@ public class OutgoingProjectNegotiation extends ProjectNegotiation {
             List<FileList> fileLists = getRemoteFileList(monitor);
             monitor.subTask("");
 
-            List<StartHandle> stoppedUsers = null;
-            try {
-                stoppedUsers = stopUsers(monitor);
-                monitor.subTask("");
-
-                sendAndAwaitActivityQueueingActivation(monitor);
-                monitor.subTask("");
-
-                User user = session.getUser(getPeer());
-
-                if (user == null)
-                    throw new LocalCancellationException(null,
-                        CancelOption.DO_NOT_NOTIFY_PEER);
-
-                /*
-                 * inform all listeners that the peer has started queuing and
-                 * can therefore process IResourceActivities now
-                 * 
-                 * TODO this needs a review as this is called inside the
-                 * "blocked" section and so it is not allowed to send resource
-                 * activities at this time. Maybe change the description of the
-                 * listener interface ?
-                 */
-                session.userStartedQueuing(user);
-
-                zipArchive = createProjectArchive(fileLists, monitor);
+            if (streaming) {
+                startQueuing(monitor);
+                streamProjectContents(fileLists, monitor);
                 monitor.subTask("");
-            } finally {
-                if (stoppedUsers != null)
-                    startUsers(stoppedUsers);
+            } else {
+                List<StartHandle> stoppedUsers = null;
+                try {
+                    stoppedUsers = stopUsers(monitor);
+                    monitor.subTask("");
+
+                    startQueuing(monitor);
+
+                    zipArchive = createProjectArchive(fileLists, monitor);
+                    monitor.subTask("");
+                } finally {
+                    if (stoppedUsers != null)
+                        startUsers(stoppedUsers);
+                }
             }
 
             checkCancellation(CancelOption.NOTIFY_PEER);
@@ -159,12 +240,19 @@ public class OutgoingProjectNegotiation extends ProjectNegotiation {
                 throw new LocalCancellationException(null,
                     CancelOption.DO_NOT_NOTIFY_PEER);
 
+            if (streaming)
+                synchronizeModifiedFiles(user, modificationStamp, monitor);
+
             session.userFinishedProjectNegotiation(user);
 
         } catch (Exception e) {
             exception = e;
         } finally {
 
+            if (modificationStamp != null)
+                session.getConcurrentDocumentServer().releaseModificationStamp(
+                    modificationStamp);
+
             if (zipArchive != null && !zipArchive.delete())
                 LOG.warn("could not delete archive file: "
                     + zipArchive.getAbsolutePath());
@@ -226,13 +314,26 @@ public class OutgoingProjectNegotiation extends ProjectNegotiation {
 
         checkCancellation(CancelOption.NOTIFY_PEER);
 
-        Packet packet = collectPacket(remoteFileListResponseCollector,
-            60 * 60 * 1000);
+        Packet packet;
 
-        if (packet == null)
-            throw new LocalCancellationException("received no response from "
-                + getPeer() + " while waiting for the file list",
-                CancelOption.DO_NOT_NOTIFY_PEER);
+        while (true) {
+            packet = collectPacket(remoteFileListResponseCollector,
+                60 * 60 * 1000);
+
+            if (packet == null)
+                throw new LocalCancellationException(
+                    "received no response from " + getPeer()
+                        + " while waiting for the file list",
+                    CancelOption.DO_NOT_NOTIFY_PEER);
+
+            ProjectNegotiationManifestRequestExtension request = ProjectNegotiationManifestRequestExtension.PROVIDER
+                .getPayload(packet);
+
+            if (request == null)
+                break;
+
+            sendManifest(request);
+        }
 
         List<FileList> remoteFileLists = ProjectNegotiationMissingFilesExtension.PROVIDER
             .getPayload(packet).getFileLists();
@@ -246,6 +347,39 @@ public class OutgoingProjectNegotiation extends ProjectNegotiation {
         return remoteFileLists;
     }
 
+    /**
+     * Sends the content of the requested collapsed folders.
+     */
+    private void sendManifest(
+        final ProjectNegotiationManifestRequestExtension request)
+        throws IOException, LocalCancellationException {
+
+        final FileList fileList = offeredFileLists.get(request.getProjectID());
+
+        final FileList manifest;
+
+        try {
+            if (fileList == null)
+                throw new IllegalArgumentException("project "
+                    + request.getProjectID() + " is not offered");
+
+            manifest = fileList.getManifest(request.getFolders(),
+                MANIFEST_ENTRIES);
+        } catch (IllegalArgumentException e) {
+            throw new LocalCancellationException(
+                "received invalid file list request from " + getPeer() + ": "
+                    + e.getMessage(), CancelOption.NOTIFY_PEER);
+        }
+
+        LOG.debug(this + " : sending content of "
+            + request.getFolders().size() + " collapsed folder(s)");
+
+        transmitter.send(ISarosSession.SESSION_CONNECTION_ID, getPeer(),
+            ProjectNegotiationManifestExtension.PROVIDER
+                .create(new ProjectNegotiationManifestExtension(getSessionID(),
+                    getID(), manifest)));
+    }
+
     @Override
     protected void executeCancellation() {
         if (session.getRemoteUsers().isEmpty())
@@ -290,33 +424,247 @@ public class OutgoingProjectNegotiation extends ProjectNegotiation {
     }
 
     /**
+     * Starts the activity queuing on the remote side and informs all listeners
+     * that the peer has started queuing.
+     */
+    private void startQueuing(IProgressMonitor monitor) throws IOException,
+        SarosCancellationException {
+
+        sendAndAwaitActivityQueueingActivation(monitor);
+        monitor.subTask("");
+
+        User user = session.getUser(getPeer());
+
+        if (user == null)
+            throw new LocalCancellationException(null,
+                CancelOption.DO_NOT_NOTIFY_PEER);
+
+        /*
+         * inform all listeners that the peer has started queuing and can
+         * therefore process IResourceActivities now
+         * 
+         * TODO this needs a review as this is called inside the "blocked"
+         * section (if the project contents are sent as archive) and so it is
+         * not allowed to send resource activities at this time. Maybe change
+         * the description of the listener interface ?
+         */
+        session.userStartedQueuing(user);
+    }
+
+    /**
+     * Returns whether the project contents can be streamed to the peer without
+     * stopping the session. This is only possible on the host, because only
+     * the host knows which files are modified during the transfer.
+     */
+    private boolean isStreamingSupported() {
+        if (DISABLE_STREAMING || !session.isHost() || versionManager == null)
+            return false;
+
+        if (session.getComponent(ConsistencyWatchdogHandler.class) == null)
+            return false;
+
+        return versionManager.isFeatureSupported(getPeer(),
+            VersionManager.FEATURE_PROJECT_STREAMING);
+    }
+
+    /**
+     * Returns whether the peer accepts file list manifests with collapsed
+     * folders.
+     */
+    private boolean isManifestSupported() {
+        return versionManager != null
+            && versionManager.isFeatureSupported(getPeer(),
+                VersionManager.FEATURE_FILE_LIST_MANIFEST);
+    }
+
+    /**
+     * Streams the files denoted by the file lists to the peer. The session is
+     * <b>not</b> stopped and the files are not locked while they are read, so
+     * the users can continue to work. Files that are modified in the meantime
+     * must be synchronized afterwards, which stops the users briefly, see
+     * {@link #synchronizeModifiedFiles(User, long, IProgressMonitor)}.
+     * <p>
+     * Files the peer already restored from its local content are skipped if
+     * the content is equal, but the stream is always sent so the peer does not
+     * wait for it in vain.
+     * <p>
+     * If the peer can reorder the chunks of the stream, the chunks are
+     * compressed by several threads and sent over additional connections if
+     * the peer is connected directly.
+     * 
      * @param fileLists
-     *            a list of file lists containing the files to archive
-     * @return zip file containing all files denoted by the file lists or
-     *         <code>null</code> if the file lists do not contain any files
+     *            a list of file lists containing the files to stream
      */
-    private File createProjectArchive(final List<FileList> fileLists,
+    private void streamProjectContents(final List<FileList> fileLists,
         final IProgressMonitor monitor) throws IOException,
         SarosCancellationException {
 
-        boolean skip = true;
-
         int fileCount = 0;
 
-        for (final FileList list : fileLists) {
-            skip &= list.getPaths().isEmpty();
+        for (final FileList list : fileLists)
             fileCount += list.getPaths().size();
-        }
 
-        if (skip)
-            return null;
+        if (fileCount == 0)
+            return;
+
+        final List<IFile> files = new ArrayList<IFile>(fileCount);
+        final List<String> fileAlias = new ArrayList<String>(fileCount);
+
+        collectFiles(fileLists, files, fileAlias, true);
 
         checkCancellation(CancelOption.NOTIFY_PEER);
 
-        final List<IFile> filesToCompress = new ArrayList<IFile>(fileCount);
-        final List<String> fileAlias = new ArrayList<String>(fileCount);
+        LOG.debug(this + " : streaming " + files.size() + " file(s), "
+            + (fileCount - files.size())
+            + " file(s) are already available on the remote side");
+
+        final boolean parallel = isParallelStreamingSupported();
+
+        final List<String> connectionIDs = openStreamConnections(parallel);
+
+        final ProjectStreamSender sender = new ProjectStreamSender(transmitter,
+            getPeer(), connectionIDs, parallel ? Math.min(STREAM_WINDOW,
+                Math.max(1, STREAM_WORKERS)) : 1, STREAM_WINDOW);
+
+        try {
+            new SendProjectStreamTask(new StreamOutputStream(sender), files,
+                fileAlias, null).run(monitor);
+        } catch (OperationCanceledException e) {
+            LocalCancellationException canceled = new LocalCancellationException();
+            canceled.initCause(e);
+            throw canceled;
+        } catch (IOException e) {
+            if (e.getCause() instanceof SarosCancellationException)
+                throw (SarosCancellationException) e.getCause();
+
+            throw e;
+        } finally {
+            sender.dispose();
+            closeStreamConnections(connectionIDs);
+        }
+
+        LOG.debug(this + " : project contents streamed over "
+            + connectionIDs.size() + " connection(s), last compression level: "
+            + sender.getLevel());
+    }
+
+    /**
+     * Returns whether the peer can receive the chunks of a project stream out
+     * of order.
+     */
+    private boolean isParallelStreamingSupported() {
+        return versionManager.isFeatureSupported(getPeer(),
+            VersionManager.FEATURE_PARALLEL_STREAMING);
+    }
+
+    /**
+     * Returns the ids of the connections to send the project stream over. The
+     * session connection is always used. Additional connections are only
+     * established if they are direct connections like the session connection,
+     * connections that are mediated by a server would not increase the
+     * throughput.
+     */
+    private List<String> openStreamConnections(final boolean parallel) {
+        final List<String> connectionIDs = new ArrayList<String>();
+
+        connectionIDs.add(ISarosSession.SESSION_CONNECTION_ID);
+
+        if (!parallel
+            || connectionManager == null
+            || connectionManager.getTransferMode(
+                ISarosSession.SESSION_CONNECTION_ID, getPeer()) != StreamMode.SOCKS5_DIRECT)
+            return connectionIDs;
 
-        final List<IResource> projectsToLock = new ArrayList<IResource>();
+        for (int i = 1; i < STREAM_CONNECTIONS; i++) {
+            final String connectionID = STREAM_CONNECTION_ID + getID() + "/"
+                + i;
+
+            try {
+                connectionManager.connect(connectionID, getPeer());
+            } catch (IOException e) {
+                LOG.warn(this + " : could not establish additional stream "
+                    + "connection: " + e.getMessage());
+                break;
+            }
+
+            if (connectionManager.getTransferMode(connectionID, getPeer()) != StreamMode.SOCKS5_DIRECT) {
+                connectionManager.closeConnection(connectionID, getPeer());
+                break;
+            }
+
+            connectionIDs.add(connectionID);
+        }
+
+        return connectionIDs;
+    }
+
+    private void closeStreamConnections(final List<String> connectionIDs) {
+        for (final String connectionID : connectionIDs) {
+            if (!connectionID.equals(ISarosSession.SESSION_CONNECTION_ID))
+                connectionManager.closeConnection(connectionID, getPeer());
+        }
+    }
+
+    /**
+     * Re-sends all files of the negotiated projects that were modified after
+     * the given modification stamp was obtained, because the peer may have
+     * received an outdated version of them or missed some of their changes.
+     * <p>
+     * All users are stopped while the files are re-sent, otherwise edits that
+     * are transformed for the peer while the content is read could be missing
+     * in the re-sent content or be applied twice. This is short compared to
+     * stopping the session for the whole negotiation.
+     */
+    private void synchronizeModifiedFiles(final User user,
+        final long modificationStamp, final IProgressMonitor monitor) {
+
+        final Set<SPath> modifiedPaths = session.getConcurrentDocumentServer()
+            .getModifiedPaths(modificationStamp);
+
+        final List<SPath> pathsToSynchronize = new ArrayList<SPath>();
+
+        for (final SPath path : modifiedPaths) {
+            final IFile file = path.getFile();
+
+            if (projects.contains(path.getProject())
+                && (!file.exists() || session.isShared(file)))
+                pathsToSynchronize.add(path);
+        }
+
+        if (pathsToSynchronize.isEmpty())
+            return;
+
+        LOG.debug(this + " : synchronizing " + pathsToSynchronize.size()
+            + " file(s) that were modified during the negotiation");
+
+        monitor.beginTask("Synchronizing modified files...",
+            IProgressMonitor.UNKNOWN);
+
+        try {
+            session.getComponent(ConsistencyWatchdogHandler.class)
+                .recoverFiles(user, pathsToSynchronize);
+        } catch (CancellationException e) {
+            // the consistency watchdog will detect the inconsistency later
+            LOG.warn("failed to synchronize modified files", e);
+        } finally {
+            monitor.done();
+        }
+    }
+
+    /**
+     * Collects the files denoted by the file lists and their names (project id
+     * and path separated by the {@link #PATH_DELIMITER}).
+     * 
+     * @param skipAvailableFiles
+     *            if <code>true</code> the files the peer already has are not
+     *            collected
+     * @return the projects of the collected files
+     */
+    private List<IProject> collectFiles(final List<FileList> fileLists,
+        final List<IFile> files, final List<String> fileAlias,
+        final boolean skipAvailableFiles) throws LocalCancellationException {
+
+        final List<IProject> result = new ArrayList<IProject>();
 
         for (final FileList list : fileLists) {
             final String projectID = list.getProjectID();
@@ -328,14 +676,7 @@ public class OutgoingProjectNegotiation extends ProjectNegotiation {
                     + projectID + " was unshared during synchronization",
                     CancelOption.NOTIFY_PEER);
 
-            projectsToLock.add(project);
-
-            /*
-             * force editor buffer flush because we read the files from the
-             * underlying storage
-             */
-            if (editorManager != null)
-                editorManager.saveEditors(project);
+            result.add(project);
 
             final StringBuilder aliasBuilder = new StringBuilder();
 
@@ -346,13 +687,87 @@ public class OutgoingProjectNegotiation extends ProjectNegotiation {
             for (final String path : list.getPaths()) {
 
                 // assert path is relative !
-                filesToCompress.add(project.getFile(path));
+                final IFile file = project.getFile(path);
+
+                if (skipAvailableFiles && isAvailable(file, list, path))
+                    continue;
+
+                files.add(file);
                 aliasBuilder.append(path);
                 fileAlias.add(aliasBuilder.toString());
                 aliasBuilder.setLength(prefixLength);
             }
         }
 
+        return result;
+    }
+
+    /**
+     * Returns whether the peer already has the content of the given file, i.e
+     * it sent the content hash of its local content along with the path and
+     * the hash matches.
+     */
+    private boolean isAvailable(final IFile file, final FileList list,
+        final String path) {
+
+        final FileList.MetaData metaData = list.getMetaData(path);
+
+        if (metaData == null || metaData.contentHash == null)
+            return false;
+
+        try {
+            return file.exists()
+                && metaData.contentHash == LocalBlobStore
+                    .getContentHash(file);
+        } catch (IOException e) {
+            LOG.warn("failed to calculate content hash of " + file, e);
+            return false;
+        }
+    }
+
+    /**
+     * @param fileLists
+     *            a list of file lists containing the files to archive
+     * @return zip file containing all files denoted by the file lists or
+     *         <code>null</code> if the file lists do not contain any files
+     */
+    private File createProjectArchive(final List<FileList> fileLists,
+        final IProgressMonitor monitor) throws IOException,
+        SarosCancellationException {
+
+        boolean skip = true;
+
+        int fileCount = 0;
+
+        for (final FileList list : fileLists) {
+            skip &= list.getPaths().isEmpty();
+            fileCount += list.getPaths().size();
+        }
+
+        if (skip)
+            return null;
+
+        checkCancellation(CancelOption.NOTIFY_PEER);
+
+        final List<IFile> filesToCompress = new ArrayList<IFile>(fileCount);
+        final List<String> fileAlias = new ArrayList<String>(fileCount);
+
+        /*
+         * an archive must not be empty, so the files the peer already has are
+         * sent nevertheless
+         */
+        final List<IProject> projectsToLock = collectFiles(fileLists,
+            filesToCompress, fileAlias, false);
+
+        /*
+         * force editor buffer flush because we read the files from the
+         * underlying storage
+         */
+        if (editorManager != null) {
+            for (final IProject project : projectsToLock)
+                editorManager.saveEditors(project);
+        }
+
         LOG.debug(this + " : creating archive");
 
         File tempArchive = null;
@@ -373,18 +788,25 @@ public class OutgoingProjectNegotiation extends ProjectNegotiation {
     }
 
     private void createCollectors() {
-        remoteFileListResponseCollector = receiver
-            .createCollector(ProjectNegotiationMissingFilesExtension.PROVIDER
-                .getPacketFilter(getSessionID(), getID()));
+        remoteFileListResponseCollector = receiver.createCollector(new OrFilter(
+            ProjectNegotiationMissingFilesExtension.PROVIDER.getPacketFilter(
+                getSessionID(), getID()),
+            ProjectNegotiationManifestRequestExtension.PROVIDER
+                .getPacketFilter(getSessionID(), getID())));
 
         startActivityQueuingResponseCollector = receiver
             .createCollector(StartActivityQueuingResponse.PROVIDER
                 .getPacketFilter(getSessionID(), getID()));
+
+        streamAckCollector = receiver
+            .createCollector(ProjectNegotiationStreamAckExtension.PROVIDER
+                .getPacketFilter(getSessionID(), getID()));
     }
 
     private void deleteCollectors() {
         remoteFileListResponseCollector.cancel();
         startActivityQueuingResponseCollector.cancel();
+        streamAckCollector.cancel();
     }
 
     private void sendArchive(File archive, JID remoteContact,
@@ -423,6 +845,8 @@ public class OutgoingProjectNegotiation extends ProjectNegotiation {
                 "Creating file list and calculating file checksums. This may take a while...",
                 projectsToShare.size() * scale);
 
+        final boolean sendManifests = isManifestSupported();
+
         List<ProjectNegotiationData> negData = new ArrayList<ProjectNegotiationData>(
             projectsToShare.size());
 
@@ -451,6 +875,16 @@ public class OutgoingProjectNegotiation extends ProjectNegotiation {
                 String projectID = session.getProjectID(project);
                 projectFileList.setProjectID(projectID);
 
+                offeredFileLists.put(projectID, projectFileList);
+
+                /*
+                 * the peer only requests the content of the collapsed folders
+                 * that differ from its own version of the project
+                 */
+                if (sendManifests)
+                    projectFileList = projectFileList.getManifest(
+                        Collections.singletonList(""), MANIFEST_ENTRIES);
+
                 ProjectNegotiationData data = new ProjectNegotiationData(
                     projectID, project.getName(), partial, projectFileList);
 
@@ -468,6 +902,11 @@ public class OutgoingProjectNegotiation extends ProjectNegotiation {
             }
         }
 
+        // the file list of the last project may be incomplete
+        if (monitor.isCanceled())
+            throw new LocalCancellationException(null,
+                CancelOption.DO_NOT_NOTIFY_PEER);
+
         monitor.done();
 
         return negData;
@@ -508,4 +947,96 @@ public class OutgoingProjectNegotiation extends ProjectNegotiation {
     public String toString() {
         return "OPN [remote side: " + getPeer() + "]";
     }
+
+    /**
+     * Output stream that sends everything written to it in chunks of
+     * {@link #STREAM_CHUNK_SIZE} bytes to the peer using a
+     * {@link ProjectStreamSender}. Blocks if the peer has not acknowledged the
+     * receiving of the last {@link #STREAM_WINDOW} chunks.
+     * <p>
+     * A cancellation of the negotiation is reported as an {@link IOException}
+     * with the {@link SarosCancellationException} as cause.
+     */
+    private class StreamOutputStream extends OutputStream {
+
+        private final ProjectStreamSender sender;
+
+        private byte[] buffer = new byte[STREAM_CHUNK_SIZE];
+
+        private int size;
+
+        private int sent;
+
+        private int acknowledged;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (size == buffer.length)
+                sendChunk();
+
+            buffer[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (size == buffer.length)
+                    sendChunk();
+
+                final int count = Math.min(len, buffer.length - size);
+
+                System.arraycopy(b, off, buffer, size, count);
+
+                size += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        private StreamOutputStream(final ProjectStreamSender sender) {
+            this.sender = sender;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (size > 0)
+                sendChunk();
+
+            sender.flush();
+        }
+
+        private void sendChunk() throws IOException {
+            awaitAcknowledgement();
+
+            // the chunk is sent asynchronously so the buffer cannot be reused
+            sender.send(new ProjectNegotiationStreamExtension(getSessionID(),
+                getID(), sent, buffer, 0, size));
+
+            sent++;
+            size = 0;
+            buffer = new byte[STREAM_CHUNK_SIZE];
+        }
+
+        private void awaitAcknowledgement() throws IOException {
+            while (sent - acknowledged >= STREAM_WINDOW) {
+                final Packet packet;
+
+                try {
+                    packet = collectPacket(streamAckCollector, PACKET_TIMEOUT);
+
+                    if (packet == null)
+                        throw new LocalCancellationException(
+                            "received no response from " + getPeer()
+                                + " while sending the project files",
+                            CancelOption.DO_NOT_NOTIFY_PEER);
+                } catch (SarosCancellationException e) {
+                    throw new IOException(e.getMessage(), e);
+                }
+
+                acknowledged = Math.max(acknowledged,
+                    ProjectNegotiationStreamAckExtension.PROVIDER.getPayload(
+                        packet).getReceived());
+            }
+        }
+    }
 }
@@ -53,6 +53,12 @@ public abstract class ProjectNegotiation extends Negotiation {
     protected static final long PACKET_TIMEOUT = Long.getLong(
         "de.fu_berlin.inf.dpp.negotiation.project.PACKET_TIMEOUT", 30000L);
 
+    /**
+     * Number of received chunks after which the receiver of a project stream
+     * acknowledges the receiving.
+     */
+    protected static final int STREAM_ACK_INTERVAL = 16;
+
     protected final ISarosSessionManager sessionManager;
 
     protected final ISarosSession session;
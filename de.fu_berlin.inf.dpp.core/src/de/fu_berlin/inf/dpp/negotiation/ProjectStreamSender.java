@@ -0,0 +1,274 @@
+package de.fu_berlin.inf.dpp.negotiation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import org.apache.log4j.Logger;
+
+import de.fu_berlin.inf.dpp.communication.extensions.ProjectNegotiationStreamExtension;
+import de.fu_berlin.inf.dpp.net.ITransmitter;
+import de.fu_berlin.inf.dpp.net.xmpp.JID;
+import de.fu_berlin.inf.dpp.util.NamedThreadFactory;
+
+/**
+ * Compresses the chunks of a project stream on a pool of worker threads and
+ * sends them over one or more connections, the chunks are distributed round
+ * robin by their sequence number. With more than one worker or connection the
+ * chunks may arrive out of order, so this must only be used if the peer can
+ * reorder them. With a single worker and connection the chunks are sent in
+ * the order they are passed to {@link #send}.
+ * <p>
+ * The compression level adapts to the speed of the link: the workers measure
+ * how long they compress and how long they send the chunks. If sending takes
+ * clearly longer, the link is the bottleneck and the level is raised. If
+ * compressing takes clearly longer, the level is lowered down to storing the
+ * data uncompressed.
+ */
+final class ProjectStreamSender {
+
+    private static final Logger LOG = Logger
+        .getLogger(ProjectStreamSender.class);
+
+    /** the compression levels to choose from, ordered by compression ratio */
+    private static final int[] LEVELS = { Deflater.NO_COMPRESSION,
+        Deflater.BEST_SPEED, 3, 6 };
+
+    /** number of chunks after which the compression level is adjusted */
+    private static final int ADJUST_INTERVAL = 16;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final ITransmitter transmitter;
+    private final JID peer;
+    private final List<String> connectionIDs;
+
+    private final ExecutorService executor;
+    private final Semaphore pendingChunks;
+    private final int maxPendingChunks;
+
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+
+    private volatile int levelIndex = 1;
+
+    private volatile IOException failure;
+
+    private volatile boolean disposed;
+
+    /** time in nanoseconds the workers spent compressing chunks */
+    private final AtomicLong compressionTime = new AtomicLong();
+
+    /** time in nanoseconds the workers spent sending chunks */
+    private final AtomicLong sendTime = new AtomicLong();
+
+    // only accessed by the calling thread
+
+    private int chunkCount;
+
+    /**
+     * @param transmitter
+     *            the transmitter to send the chunks with
+     * @param peer
+     *            the peer to send the chunks to
+     * @param connectionIDs
+     *            the ids of the connections to send the chunks over, must not
+     *            be empty
+     * @param workers
+     *            the number of threads that compress and send the chunks
+     * @param maxPendingChunks
+     *            the maximum number of chunks that are not sent yet, should
+     *            match the number of chunks the peer may leave unacknowledged
+     */
+    ProjectStreamSender(final ITransmitter transmitter, final JID peer,
+        final List<String> connectionIDs, final int workers,
+        final int maxPendingChunks) {
+
+        if (connectionIDs.isEmpty())
+            throw new IllegalArgumentException("no connection to send over");
+
+        if (maxPendingChunks < workers)
+            throw new IllegalArgumentException(
+                "less pending chunks than workers: " + maxPendingChunks);
+
+        this.transmitter = transmitter;
+        this.peer = peer;
+        this.connectionIDs = new ArrayList<String>(connectionIDs);
+
+        this.maxPendingChunks = maxPendingChunks;
+        pendingChunks = new Semaphore(maxPendingChunks);
+
+        executor = Executors.newFixedThreadPool(workers,
+            new NamedThreadFactory("ProjectStreamSender-"));
+    }
+
+    /**
+     * Compresses and sends the given chunk asynchronously. Blocks if too many
+     * chunks are not sent yet. The chunk must not be modified afterwards.
+     *
+     * @throws IOException
+     *             if sending a previous chunk failed
+     */
+    void send(final ProjectNegotiationStreamExtension chunk)
+        throws IOException {
+        checkFailure();
+
+        acquire(1);
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compressAndSend(chunk);
+                    } finally {
+                        pendingChunks.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            pendingChunks.release();
+            throw e;
+        }
+
+        if (++chunkCount % ADJUST_INTERVAL == 0)
+            adjustLevel();
+    }
+
+    /**
+     * Waits until all chunks were sent.
+     *
+     * @throws IOException
+     *             if sending a chunk failed
+     */
+    void flush() throws IOException {
+        acquire(maxPendingChunks);
+        pendingChunks.release(maxPendingChunks);
+        checkFailure();
+    }
+
+    /**
+     * Stops the workers. Chunks that are not sent yet are discarded.
+     */
+    void dispose() {
+        disposed = true;
+        executor.shutdownNow();
+
+        Deflater deflater;
+
+        while ((deflater = deflaters.poll()) != null)
+            deflater.end();
+    }
+
+    /** Returns the current compression level. */
+    int getLevel() {
+        return LEVELS[levelIndex];
+    }
+
+    private void compressAndSend(final ProjectNegotiationStreamExtension chunk) {
+        if (failure != null)
+            return;
+
+        try {
+            final long start = System.nanoTime();
+
+            chunk.setCompressedData(compress(chunk.toByteArray(), getLevel()));
+
+            final long compressed = System.nanoTime();
+
+            transmitter.send(
+                connectionIDs.get(chunk.getSequenceNumber()
+                    % connectionIDs.size()), peer, chunk);
+
+            compressionTime.addAndGet(compressed - start);
+            sendTime.addAndGet(System.nanoTime() - compressed);
+        } catch (IOException e) {
+            if (failure == null)
+                failure = e;
+        } catch (RuntimeException e) {
+            LOG.error("failed to send chunk " + chunk.getSequenceNumber(), e);
+
+            if (failure == null)
+                failure = new IOException(e.getMessage(), e);
+        }
+    }
+
+    private byte[] compress(final byte[] data, final int level) {
+        Deflater deflater = deflaters.poll();
+
+        if (deflater == null)
+            deflater = new Deflater(level);
+        else
+            deflater.setLevel(level);
+
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(
+                level == Deflater.NO_COMPRESSION ? data.length + 64
+                    : data.length / 2 + 64);
+
+            final byte[] buffer = new byte[BUFFER_SIZE];
+
+            while (!deflater.finished())
+                out.write(buffer, 0, deflater.deflate(buffer));
+
+            return out.toByteArray();
+        } finally {
+            deflater.reset();
+
+            if (disposed)
+                deflater.end();
+            else
+                deflaters.offer(deflater);
+        }
+    }
+
+    /*
+     * a side only counts as the bottleneck if it took clearly longer, otherwise
+     * the level would oscillate
+     */
+    private void adjustLevel() {
+        final long compression = compressionTime.getAndSet(0);
+        final long link = sendTime.getAndSet(0);
+
+        final int oldIndex = levelIndex;
+
+        if (link > 2 * compression && levelIndex < LEVELS.length - 1)
+            levelIndex++;
+        else if (compression > 2 * link && levelIndex > 0)
+            levelIndex--;
+
+        if (levelIndex != oldIndex && LOG.isDebugEnabled())
+            LOG.debug("changed compression level from " + LEVELS[oldIndex]
+                + " to " + LEVELS[levelIndex] + " [sending: " + link / 1000000
+                + " ms, compressing: " + compression / 1000000 + " ms]");
+    }
+
+    private void acquire(final int permits) throws IOException {
+        try {
+            pendingChunks.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                "interrupted while waiting for chunks to be sent");
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        final IOException e = failure;
+
+        if (e != null)
+            throw new IOException("failed to send project stream chunk: "
+                + e.getMessage(), e);
+    }
+}
@@ -0,0 +1,216 @@
+package de.fu_berlin.inf.dpp.negotiation;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import de.fu_berlin.inf.dpp.exceptions.OperationCanceledException;
+import de.fu_berlin.inf.dpp.filesystem.FileSystem;
+import de.fu_berlin.inf.dpp.filesystem.IFile;
+import de.fu_berlin.inf.dpp.filesystem.IProject;
+import de.fu_berlin.inf.dpp.filesystem.IWorkspace;
+import de.fu_berlin.inf.dpp.filesystem.IWorkspaceRunnable;
+import de.fu_berlin.inf.dpp.monitoring.IProgressMonitor;
+import de.fu_berlin.inf.dpp.session.ISarosSession;
+
+/**
+ * Reads the files that were written by a {@link SendProjectStreamTask} and
+ * stores them in the workspace. Files are stored as soon as their content
+ * arrives, so there is no need to buffer the whole transfer.
+ */
+public class ReceiveProjectStreamTask implements IWorkspaceRunnable {
+
+    private static final Logger LOG = Logger
+        .getLogger(ReceiveProjectStreamTask.class);
+
+    private final DataInputStream in;
+    private final int fileCount;
+    private final IProgressMonitor monitor;
+    private final Map<String, IProject> idToProjectMapping;
+    private final String delimiter;
+
+    /**
+     * Creates a receive task for a project stream that can be executed by
+     * {@link IWorkspace#run}. All necessary folders will be created on the fly.
+     * </P> <b>Important:</b> Existing files will be <b>overwritten without
+     * confirmation</b>!
+     * 
+     * @param in
+     *            the stream to read from, it is not closed by this task
+     * @param fileCount
+     *            the expected number of files, only used for progress report
+     * @param idToProjectMapping
+     *            map containing the id to project mapping (see also
+     *            {@link ISarosSession#getProjectID(de.fu_berlin.inf.dpp.filesystem.IProject)}
+     * @param monitor
+     *            monitor that is used for progress report and cancellation or
+     *            <code>null</code> to use the monitor provided by the
+     *            {@link #run(IProgressMonitor)} method
+     */
+    public ReceiveProjectStreamTask(final InputStream in, final int fileCount,
+        final Map<String, IProject> idToProjectMapping, final String delimiter,
+        final IProgressMonitor monitor) {
+        this.in = new DataInputStream(in);
+        this.fileCount = fileCount;
+        this.idToProjectMapping = idToProjectMapping;
+        this.delimiter = delimiter;
+        this.monitor = monitor;
+    }
+
+    @Override
+    public void run(IProgressMonitor monitor) throws IOException,
+        OperationCanceledException {
+        if (this.monitor != null)
+            monitor = this.monitor;
+
+        int received = 0;
+
+        try {
+            monitor.beginTask("Receiving files", fileCount);
+
+            int marker;
+
+            while ((marker = in.readUnsignedByte()) == SendProjectStreamTask.FILE_MARKER) {
+
+                if (monitor.isCanceled())
+                    throw new OperationCanceledException();
+
+                final String entryName = in.readUTF();
+
+                final ContentInputStream content = new ContentInputStream(in);
+
+                storeFile(entryName, content, monitor);
+
+                // skip everything the file system did not consume
+                content.skipRemaining();
+
+                received++;
+                monitor.worked(1);
+            }
+
+            if (marker != SendProjectStreamTask.END_MARKER)
+                throw new IOException("corrupted project stream, marker: "
+                    + marker);
+
+        } finally {
+            monitor.done();
+        }
+
+        LOG.debug("received " + received + " file(s)");
+    }
+
+    private void storeFile(final String entryName, final InputStream content,
+        final IProgressMonitor monitor) throws IOException {
+
+        final int delimiterIdx = entryName.indexOf(delimiter);
+
+        if (delimiterIdx == -1) {
+            LOG.warn("skipping stream entry " + entryName
+                + ", entry is not valid");
+            return;
+        }
+
+        final String id = entryName.substring(0, delimiterIdx);
+
+        final String path = entryName.substring(delimiterIdx + 1,
+            entryName.length());
+
+        final IProject project = idToProjectMapping.get(id);
+
+        if (project == null) {
+            LOG.warn("skipping stream entry " + entryName
+                + ", unknown project id: " + id);
+            return;
+        }
+
+        final IFile file = project.getFile(path);
+
+        FileSystem.createFolder(file);
+
+        monitor.subTask("receiving: " + path);
+
+        if (!file.exists())
+            file.create(content, false);
+        else
+            file.setContents(content, false, true);
+
+        if (LOG.isTraceEnabled())
+            LOG.trace("file written to disk: " + path);
+    }
+
+    /**
+     * Input stream that returns the chunks of a single file and reports the end
+     * of the stream when the terminating chunk is reached.
+     */
+    private static class ContentInputStream extends InputStream {
+
+        private final DataInputStream in;
+
+        private int remaining;
+
+        private boolean eof;
+
+        ContentInputStream(final DataInputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk())
+                return -1;
+
+            remaining--;
+            return in.readUnsignedByte();
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+            throws IOException {
+            if (len == 0)
+                return 0;
+
+            if (!nextChunk())
+                return -1;
+
+            final int read = in.read(b, off, Math.min(len, remaining));
+
+            if (read == -1)
+                throw new IOException("unexpected end of project stream");
+
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public void close() {
+            // the underlying stream must stay open for the next file
+        }
+
+        void skipRemaining() throws IOException {
+            while (nextChunk()) {
+                in.readFully(new byte[remaining]);
+                remaining = 0;
+            }
+        }
+
+        private boolean nextChunk() throws IOException {
+            if (eof)
+                return false;
+
+            if (remaining > 0)
+                return true;
+
+            remaining = in.readInt();
+
+            if (remaining < 0)
+                throw new IOException("corrupted project stream, chunk size: "
+                    + remaining);
+
+            eof = remaining == 0;
+            return !eof;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package de.fu_berlin.inf.dpp.negotiation;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.time.StopWatch;
+import org.apache.log4j.Logger;
+
+import de.fu_berlin.inf.dpp.exceptions.OperationCanceledException;
+import de.fu_berlin.inf.dpp.filesystem.IFile;
+import de.fu_berlin.inf.dpp.monitoring.IProgressMonitor;
+import de.fu_berlin.inf.dpp.monitoring.NullProgressMonitor;
+import de.fu_berlin.inf.dpp.util.CoreUtils;
+
+/**
+ * Writes the contents of files to a stream that can be read by the
+ * {@link ReceiveProjectStreamTask}. In contrast to the
+ * {@link CreateArchiveTask} the files are written one after another as soon as
+ * they are read, so the receiver can already store the first files while the
+ * remaining files are still read.
+ * <p>
+ * The stream consists of one record per file followed by an end marker. A
+ * record starts with a file marker and the alias of the file followed by the
+ * content of the file, split into chunks with a leading length. A chunk of
+ * length 0 terminates the content.
+ * <p>
+ * Files that no longer exist are skipped. This task does <b>not</b> need to be
+ * executed inside a workspace runnable, i.e other threads may modify the files
+ * while they are read. It is up to the caller to handle such modifications.
+ */
+public class SendProjectStreamTask {
+
+    static final int FILE_MARKER = 1;
+
+    static final int END_MARKER = 0;
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private static final Logger LOG = Logger
+        .getLogger(SendProjectStreamTask.class);
+
+    private final OutputStream out;
+    private final List<IFile> files;
+    private final List<String> alias;
+    private final IProgressMonitor monitor;
+
+    /**
+     * @param out
+     *            the stream to write to, it is flushed but not closed when the
+     *            task has finished
+     * @param files
+     *            the files to write
+     * @param alias
+     *            the names of the files as they should be announced to the
+     *            receiver
+     * @param monitor
+     *            monitor that is used for progress report and cancellation or
+     *            <code>null</code> to use the monitor provided by the
+     *            {@link #run(IProgressMonitor)} method
+     */
+    public SendProjectStreamTask(final OutputStream out,
+        final List<IFile> files, final List<String> alias,
+        final IProgressMonitor monitor) {
+        this.out = out;
+        this.files = files;
+        this.alias = alias;
+        this.monitor = monitor;
+    }
+
+    public void run(IProgressMonitor monitor) throws IOException,
+        OperationCanceledException {
+        if (this.monitor != null)
+            monitor = this.monitor;
+
+        if (monitor == null)
+            monitor = new NullProgressMonitor();
+
+        assert files.size() == alias.size();
+
+        final StopWatch stopWatch = new StopWatch();
+        stopWatch.start();
+
+        final DataOutputStream dataOut = new DataOutputStream(out);
+
+        final Iterator<String> aliasIt = alias.iterator();
+
+        final byte[] buffer = new byte[BUFFER_SIZE];
+
+        long totalWritten = 0L;
+
+        monitor.beginTask("Sending files...", files.size());
+
+        try {
+            for (final IFile file : files) {
+
+                final String entryName = aliasIt.next();
+
+                if (monitor.isCanceled())
+                    throw new OperationCanceledException();
+
+                if (!file.exists()) {
+                    LOG.debug("skipping file " + file
+                        + ", it was deleted in the meantime");
+                    monitor.worked(1);
+                    continue;
+                }
+
+                if (LOG.isTraceEnabled())
+                    LOG.trace("sending file: " + entryName);
+
+                monitor.subTask("sending file: " + file.getFullPath());
+
+                dataOut.writeByte(FILE_MARKER);
+                dataOut.writeUTF(entryName);
+
+                InputStream in = null;
+
+                try {
+                    in = file.getContents();
+
+                    int read;
+
+                    while ((read = in.read(buffer)) > 0) {
+
+                        if (monitor.isCanceled())
+                            throw new OperationCanceledException(
+                                "sending of file '" + entryName
+                                    + "' was canceled");
+
+                        dataOut.writeInt(read);
+                        dataOut.write(buffer, 0, read);
+
+                        totalWritten += read;
+                    }
+                } finally {
+                    IOUtils.closeQuietly(in);
+                }
+
+                dataOut.writeInt(0);
+                monitor.worked(1);
+            }
+
+            dataOut.writeByte(END_MARKER);
+            dataOut.flush();
+        } finally {
+            monitor.done();
+        }
+
+        stopWatch.stop();
+
+        LOG.debug(String.format("sent %d file(s), I/O: [%s]", files.size(),
+            CoreUtils.throughput(totalWritten, stopWatch.getTime())));
+    }
+}
@@ -0,0 +1,25 @@
+package de.fu_berlin.inf.dpp.net;
+
+import org.jivesoftware.smack.packet.PacketExtension;
+
+import de.fu_berlin.inf.dpp.net.internal.DataTransferManager;
+
+/**
+ * A {@link PacketExtension} that provides its own binary representation. If
+ * such an extension is send over a binary stream connection (see
+ * {@link DataTransferManager}) the binary representation is used as payload
+ * instead of the UTF-8 encoded {@linkplain PacketExtension#toXML() XML}
+ * representation.
+ * <p>
+ * The receiving side must have an {@link IBinaryPacketExtensionProvider}
+ * installed for the element name and namespace of the extension.
+ */
+public interface IBinaryPacketExtension extends PacketExtension {
+
+    /**
+     * Returns the binary representation of this extension.
+     * 
+     * @return the binary representation of this extension
+     */
+    public byte[] toByteArray();
+}
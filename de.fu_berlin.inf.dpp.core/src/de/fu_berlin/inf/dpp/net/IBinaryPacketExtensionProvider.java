@@ -0,0 +1,32 @@
+package de.fu_berlin.inf.dpp.net;
+
+import java.io.IOException;
+
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.provider.PacketExtensionProvider;
+
+import de.fu_berlin.inf.dpp.net.xmpp.JID;
+
+/**
+ * A {@link PacketExtensionProvider} that is able to restore packet extensions
+ * from the payload created by {@link IBinaryPacketExtension#toByteArray()}.
+ */
+public interface IBinaryPacketExtensionProvider extends
+    PacketExtensionProvider {
+
+    /**
+     * Restores a packet extension from its binary representation.
+     * 
+     * @param data
+     *            the binary representation of the extension
+     * @param sender
+     *            the sender of the extension or <code>null</code> if it is not
+     *            known
+     * @return the restored packet extension
+     * @throws IOException
+     *             if the data is malformed or cannot be restored in the current
+     *             context
+     */
+    public PacketExtension parseExtension(byte[] data, JID sender)
+        throws IOException;
+}
@@ -0,0 +1,26 @@
+package de.fu_berlin.inf.dpp.net;
+
+import org.jivesoftware.smack.packet.PacketExtension;
+
+import de.fu_berlin.inf.dpp.net.internal.DataTransferManager;
+
+/**
+ * A {@link PacketExtension} that is able to provide its payload already
+ * compressed, e.g because most of the payload was compressed once for several
+ * recipients (see {@link SharedPayload}). If such an extension is send over a
+ * binary stream connection (see {@link DataTransferManager}) the compressed
+ * payload is used instead of compressing the payload again.
+ */
+public interface ICompressedPacketExtension extends PacketExtension {
+
+    /**
+     * Returns the payload of this extension compressed in the zlib format. The
+     * payload is either the UTF-8 encoded {@linkplain PacketExtension#toXML()
+     * XML} representation or the {@linkplain IBinaryPacketExtension binary
+     * representation} of this extension.
+     *
+     * @return the compressed payload or <code>null</code> if it is not
+     *         available
+     */
+    public byte[] toCompressedByteArray();
+}
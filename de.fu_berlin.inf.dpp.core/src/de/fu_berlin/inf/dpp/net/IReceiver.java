@@ -64,6 +64,18 @@ public interface IReceiver {
      */
     public PacketCollector createCollector(PacketFilter filter);
 
+    /**
+     * Returns the number of received packets that are waiting to be
+     * deserialized or forwarded to the listeners.
+     */
+    public int getQueuedPacketCount();
+
+    /**
+     * Returns the maximum number of received packets that were waiting to be
+     * deserialized or forwarded to the listeners at the same time.
+     */
+    public int getMaxQueuedPacketCount();
+
     /**
      * FOR INTERNAL USE
      */
@@ -3,9 +3,10 @@ package de.fu_berlin.inf.dpp.net;
 import de.fu_berlin.inf.dpp.net.stream.StreamMode;
 
 /**
- * Listener for tracking network traffic. </p><b>Note:</b> It is up to the
- * implementation to do synchronization as the methods offered by this listener
- * may be called in parallel.
+ * Listener for tracking network traffic. The compression ratio of a transfer
+ * is the ratio of its compressed and uncompressed size. </p><b>Note:</b> It
+ * is up to the implementation to do synchronization as the methods offered by
+ * this listener may be called in parallel.
  */
 public interface ITransferListener {
 
@@ -21,9 +22,12 @@ public interface ITransferListener {
      *            the uncompressed size of the data
      * @param duration
      *            time in milliseconds it took to send the data
+     * @param compressionTime
+     *            time in nanoseconds it took to compress the data, 0 if the
+     *            data was not compressed by the sender
      */
     public void sent(StreamMode mode, long sizeCompressed,
-        long sizeUncompressed, long duration);
+        long sizeUncompressed, long duration, long compressionTime);
 
     /**
      * Gets called when data was received. The actual size of the real data that
@@ -38,7 +42,10 @@ public interface ITransferListener {
      *            the uncompressed size of the data
      * @param duration
      *            time in milliseconds it took to receive the data
+     * @param decompressionTime
+     *            time in nanoseconds it took to decompress the data, 0 if the
+     *            data was not compressed
      */
     public void received(StreamMode mode, long sizeCompressed,
-        long sizeUncompressed, long duration);
+        long sizeUncompressed, long duration, long decompressionTime);
 }
@@ -0,0 +1,169 @@
+package de.fu_berlin.inf.dpp.net;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+/**
+ * Payload for packets that are sent to several recipients and only differ in
+ * a small header, e.g the sequence number of activities. The body that is
+ * shared by all recipients is compressed only once. The compressed form of a
+ * packet is assembled by prepending the header of the recipient as an
+ * uncompressed deflate block, the result is a regular zlib stream that
+ * inflates to the header followed by the body.
+ * <p>
+ * This class is thread safe.
+ */
+public final class SharedPayload {
+
+    /** zlib header for deflate with a 32K window and default compression */
+    private static final byte[] ZLIB_HEADER = { 0x78, (byte) 0x9C };
+
+    /** max length of an uncompressed deflate block */
+    private static final int MAX_STORED_BLOCK_LENGTH = 0xFFFF;
+
+    private static final int ADLER_BASE = 65521;
+
+    private final byte[] body;
+
+    private final int bodyChecksum;
+
+    /* raw deflate stream of the body, created on first use */
+    private byte[] compressedBody;
+
+    /**
+     * Creates a shared payload for the given body. The array must not be
+     * modified afterwards.
+     *
+     * @param body
+     *            the part of the payload that is equal for all recipients
+     */
+    public SharedPayload(byte[] body) {
+        this.body = body;
+
+        final Adler32 adler = new Adler32();
+        adler.update(body);
+        bodyChecksum = (int) adler.getValue();
+    }
+
+    /**
+     * Returns the uncompressed payload for the given header.
+     */
+    public byte[] toByteArray(byte[] header) {
+        final byte[] data = new byte[header.length + body.length];
+        System.arraycopy(header, 0, data, 0, header.length);
+        System.arraycopy(body, 0, data, header.length, body.length);
+        return data;
+    }
+
+    /**
+     * Returns the payload for the given header compressed in the zlib format.
+     * Only the header is processed by this call, the compressed body is reused
+     * for all headers.
+     */
+    public byte[] toCompressedByteArray(byte[] header) {
+        final byte[] deflatedBody = getCompressedBody();
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(
+            ZLIB_HEADER.length + header.length + deflatedBody.length + 5
+                * (header.length / MAX_STORED_BLOCK_LENGTH + 1) + 4);
+
+        out.write(ZLIB_HEADER, 0, ZLIB_HEADER.length);
+
+        int offset = 0;
+
+        do {
+            final int length = Math.min(header.length - offset,
+                MAX_STORED_BLOCK_LENGTH);
+
+            // BFINAL = 0, BTYPE = 00 (no compression), padded to a full byte
+            out.write(0);
+            out.write(length & 0xFF);
+            out.write(length >>> 8);
+            out.write(~length & 0xFF);
+            out.write((~length >>> 8) & 0xFF);
+            out.write(header, offset, length);
+
+            offset += length;
+        } while (offset < header.length);
+
+        out.write(deflatedBody, 0, deflatedBody.length);
+
+        final Adler32 adler = new Adler32();
+        adler.update(header);
+
+        final int checksum = combine((int) adler.getValue(), bodyChecksum,
+            body.length);
+
+        out.write(checksum >>> 24);
+        out.write((checksum >>> 16) & 0xFF);
+        out.write((checksum >>> 8) & 0xFF);
+        out.write(checksum & 0xFF);
+
+        return out.toByteArray();
+    }
+
+    private synchronized byte[] getCompressedBody() {
+        if (compressedBody != null)
+            return compressedBody;
+
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION,
+            true);
+
+        try {
+            deflater.setInput(body);
+            deflater.finish();
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(
+                body.length / 2 + 16);
+
+            final byte[] buffer = new byte[Math.min(body.length + 64, 8192)];
+
+            while (!deflater.finished()) {
+                final int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+
+            compressedBody = out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+
+        return compressedBody;
+    }
+
+    /**
+     * Returns the Adler-32 checksum of two concatenated byte sequences.
+     *
+     * @param first
+     *            checksum of the first sequence
+     * @param second
+     *            checksum of the second sequence
+     * @param secondLength
+     *            length of the second sequence
+     */
+    static int combine(int first, int second, int secondLength) {
+        final long remainder = secondLength % ADLER_BASE;
+
+        long sum1 = first & 0xFFFFL;
+        long sum2 = (remainder * sum1) % ADLER_BASE;
+
+        sum1 += (second & 0xFFFFL) + ADLER_BASE - 1;
+        sum2 += ((first >>> 16) & 0xFFFFL) + ((second >>> 16) & 0xFFFFL)
+            + ADLER_BASE - remainder;
+
+        if (sum1 >= ADLER_BASE)
+            sum1 -= ADLER_BASE;
+
+        if (sum1 >= ADLER_BASE)
+            sum1 -= ADLER_BASE;
+
+        if (sum2 >= (ADLER_BASE << 1))
+            sum2 -= (ADLER_BASE << 1);
+
+        if (sum2 >= ADLER_BASE)
+            sum2 -= ADLER_BASE;
+
+        return (int) (sum1 | (sum2 << 16));
+    }
+}
@@ -26,8 +26,9 @@ import de.fu_berlin.inf.dpp.net.xmpp.JID;
  * The threading requirements of this class are the following:
  *
  * send() is a reentrant method for sending data. Any number of threads can call
- * it in parallel. </p> <b>Note:</b> The maximum number of concurrent threads is
- * 32 !
+ * it in parallel. The chunks of concurrent transfers are interleaved according
+ * to the {@link TransferPriority priority} of the transfers. </p>
+ * <b>Note:</b> The maximum number of concurrent threads is 32 !
  *
  *
  * @author sszuecs
@@ -56,6 +57,12 @@ public class BinaryChannelConnection implements IByteStreamConnection {
      */
     private static final int CHUNKSIZE = 32 * 1024 - 1;
 
+    /**
+     * Size of the output buffer, large enough to hold the header and the data
+     * of a chunk so both are written to the stream at once
+     */
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
     private IByteStreamConnectionListener listener;
     private ReceiverThread receiveThread;
 
@@ -66,10 +73,17 @@ public class BinaryChannelConnection implements IByteStreamConnection {
 
     private IDPool idPool = new IDPool();
 
+    private final ChannelScheduler scheduler = new ChannelScheduler();
+
+    private final LatencyStatistics latencyStatistics = new LatencyStatistics();
+
     private boolean connected;
     private boolean initialized;
 
     private Map<Integer, ByteArrayOutputStream> pendingFragmentedPackets = new HashMap<Integer, ByteArrayOutputStream>();
+
+    /** only accessed by the receiver thread */
+    private final byte[] chunkBuffer = new byte[CHUNKSIZE];
     private Map<Integer, BinaryXMPPExtension> pendingXMPPExtensions = new HashMap<Integer, BinaryXMPPExtension>();
 
     private DataInputStream inputStream;
@@ -126,7 +140,7 @@ public class BinaryChannelConnection implements IByteStreamConnection {
         this.mode = mode;
 
         outputStream = new DataOutputStream(new BufferedOutputStream(
-            stream.getOutputStream()));
+            stream.getOutputStream(), OUTPUT_BUFFER_SIZE));
         inputStream = new DataInputStream(new BufferedInputStream(
             stream.getInputStream()));
     }
@@ -214,67 +228,78 @@ public class BinaryChannelConnection implements IByteStreamConnection {
         if (fragmentId < 0)
             throw new IOException("concurrent access threshold exceeded");
 
+        final long start = System.nanoTime();
+
         try {
 
             Integer namespaceId;
             Integer elementNameId;
 
-            synchronized (this) {
-                boolean sendUpdate = false;
-
-                final String namespace = data.getNamespace();
-                namespaceId = outNamespaceCache.get(namespace);
-
-                if (namespaceId == null) {
-                    if (nextNamespaceId > 255)
-                        throw new IOException("namespace cache limit exceeded");
+            assert content.length > 0;
 
-                    namespaceId = Integer.valueOf(nextNamespaceId++);
-                    outNamespaceCache.put(namespace, namespaceId);
+            final int chunks = ((content.length - 1) / CHUNKSIZE) + 1;
 
-                    if (LOG.isTraceEnabled())
-                        LOG.trace("updated outgoing namespace cache, id: "
-                            + namespaceId + " , namespace: " + namespace);
+            /*
+             * the cache updates and the transfer description are written
+             * together, otherwise an id may be used before its update was send
+             */
+            scheduler.acquire(ChannelScheduler.CONTROL);
 
-                    outputStream.write(Opcode.NAMESPACE_UPDATE);
-                    outputStream.write(namespaceId);
-                    outputStream.writeUTF(namespace);
-                    sendUpdate = true;
+            try {
+                synchronized (this) {
+                    final String namespace = data.getNamespace();
+                    namespaceId = outNamespaceCache.get(namespace);
+
+                    if (namespaceId == null) {
+                        if (nextNamespaceId > 255)
+                            throw new IOException(
+                                "namespace cache limit exceeded");
+
+                        namespaceId = Integer.valueOf(nextNamespaceId++);
+                        outNamespaceCache.put(namespace, namespaceId);
+
+                        if (LOG.isTraceEnabled())
+                            LOG.trace("updated outgoing namespace cache, id: "
+                                + namespaceId + " , namespace: " + namespace);
+
+                        outputStream.write(Opcode.NAMESPACE_UPDATE);
+                        outputStream.write(namespaceId);
+                        outputStream.writeUTF(namespace);
+                    }
+
+                    final String elementName = data.getElementName();
+                    elementNameId = outElementNameCache.get(elementName);
+
+                    if (elementNameId == null) {
+                        if (nextElementNameId > 65535)
+                            throw new IOException(
+                                "element name cache limit exceeded");
+
+                        elementNameId = Integer.valueOf(nextElementNameId++);
+                        outElementNameCache.put(elementName, elementNameId);
+
+                        if (LOG.isTraceEnabled())
+                            LOG.trace("updated outgoing element name cache, id: "
+                                + elementNameId
+                                + " , element name: "
+                                + elementName);
+
+                        outputStream.write(Opcode.ELEMENT_NAME_UPDATE);
+                        outputStream.writeShort(elementNameId);
+                        outputStream.writeUTF(elementName);
+                    }
                 }
 
-                final String elementName = data.getElementName();
-                elementNameId = outElementNameCache.get(elementName);
-
-                if (elementNameId == null) {
-                    if (nextElementNameId > 65535)
-                        throw new IOException(
-                            "element name cache limit exceeded");
+                sendTransferDescription(fragmentId, chunks, namespaceId,
+                    elementNameId, data.compressContent());
 
-                    elementNameId = Integer.valueOf(nextElementNameId++);
-                    outElementNameCache.put(elementName, elementNameId);
-
-                    if (LOG.isTraceEnabled())
-                        LOG.trace("updated outgoing element name cache, id: "
-                            + elementNameId + " , element name: " + elementName);
-
-                    outputStream.write(Opcode.ELEMENT_NAME_UPDATE);
-                    outputStream.writeShort(elementNameId);
-                    outputStream.writeUTF(elementName);
-                    sendUpdate = true;
-                }
-
-                if (sendUpdate)
-                    outputStream.flush();
+                splitAndSend(content, chunks, fragmentId, data.getPriority());
+            } finally {
+                scheduler.release();
             }
 
-            assert content.length > 0;
-
-            int chunks = ((content.length - 1) / CHUNKSIZE) + 1;
-
-            sendTransferDescription(fragmentId, chunks, namespaceId,
-                elementNameId, data.compressContent());
-
-            splitAndSend(content, chunks, fragmentId);
+            latencyStatistics.record(data.getPriority(), System.nanoTime()
+                - start);
         } catch (IOException e) {
             close();
             throw e;
@@ -283,6 +308,16 @@ public class BinaryChannelConnection implements IByteStreamConnection {
         }
     }
 
+    @Override
+    public LatencyStatistics getLatencyStatistics() {
+        return latencyStatistics;
+    }
+
+    /** Returns the scheduler of the output, used by tests only. */
+    ChannelScheduler getScheduler() {
+        return scheduler;
+    }
+
     /**
      * Reads the next XMPP extension.
      *
@@ -361,31 +396,49 @@ public class BinaryChannelConnection implements IByteStreamConnection {
                         "payload length field contains corrupted value: 0 < "
                             + payloadLength + " <= " + CHUNKSIZE);
 
-                byte[] payload = new byte[payloadLength];
-                inputStream.readFully(payload);
+                final BinaryXMPPExtension extension = pendingXMPPExtensions
+                    .get(fragmentId);
+
+                if (extension == null)
+                    throw new ProtocolException(
+                        "received data for unknown fragment: " + fragmentId);
+
+                final boolean lastChunk = extension.isLastChunk();
 
                 ByteArrayOutputStream out = pendingFragmentedPackets
                     .get(fragmentId);
 
-                if (out == null) {
-                    out = new ByteArrayOutputStream(payloadLength * 2);
-                    pendingFragmentedPackets.put(fragmentId, out);
-                }
+                byte[] payload;
+
+                /*
+                 * most packets consist of a single chunk, read them directly
+                 * into the payload instead of copying them via the buffer
+                 */
+                if (lastChunk && out == null) {
+                    payload = new byte[payloadLength];
+                    inputStream.readFully(payload);
+                } else {
+                    inputStream.readFully(chunkBuffer, 0, payloadLength);
 
-                out.write(payload);
-                out.flush();
+                    if (out == null) {
+                        out = new ByteArrayOutputStream(payloadLength * 2);
+                        pendingFragmentedPackets.put(fragmentId, out);
+                    }
 
-                if (!pendingXMPPExtensions.get(fragmentId).isLastChunk())
-                    break;
+                    out.write(chunkBuffer, 0, payloadLength);
 
-                pendingFragmentedPackets.remove(fragmentId);
+                    if (!lastChunk)
+                        break;
+
+                    pendingFragmentedPackets.remove(fragmentId);
+
+                    payload = out.toByteArray();
+                    out = null; // help GC
+                }
 
                 BinaryXMPPExtension fullyReceivedTransferObject = pendingXMPPExtensions
                     .remove(fragmentId);
 
-                payload = out.toByteArray();
-                out = null; // help GC
-
                 fullyReceivedTransferObject.setPayload(payload.length, payload);
 
                 return fullyReceivedTransferObject;
@@ -437,8 +490,8 @@ public class BinaryChannelConnection implements IByteStreamConnection {
             "interrupted while reading stream data");
     }
 
-    private synchronized void sendData(int fragmentId, byte[] data, int offset,
-        int length) throws IOException {
+    private void sendData(int fragmentId, byte[] data, int offset, int length)
+        throws IOException {
 
         if (LOG.isTraceEnabled()) {
             LOG.trace("sending data: id=" + fragmentId + ", len=" + length
@@ -449,10 +502,16 @@ public class BinaryChannelConnection implements IByteStreamConnection {
         outputStream.writeShort(fragmentId);
         outputStream.writeInt(length);
         outputStream.write(data, offset, length);
-        outputStream.flush();
+
+        /*
+         * a waiting thread writes right after this one and flushes the stream
+         * itself, so consecutive chunks are coalesced into fewer writes
+         */
+        if (scheduler.getQueueLength() == 0)
+            outputStream.flush();
     }
 
-    private synchronized void sendTransferDescription(int fragmentId,
+    private void sendTransferDescription(int fragmentId,
         int chunks, int namespaceId, int elementNameId, boolean compress)
         throws IOException {
 
@@ -466,14 +525,23 @@ public class BinaryChannelConnection implements IByteStreamConnection {
         outputStream.write(namespaceId);
         outputStream.writeShort(elementNameId);
         outputStream.write(compress ? 1 : 0);
-        outputStream.flush();
+
+        /*
+         * not flushed, the first data chunk of the transfer is always written
+         * afterwards
+         */
     }
 
     /**
      * Splits the given data into chunks of CHUNKSIZE to send the BinaryPackets.
+     * The calling thread must own the scheduler. The scheduler is reacquired
+     * for each chunk, so chunks of transfers with a higher priority can be
+     * send in between.
      */
-    private void splitAndSend(byte[] data, int chunks, int fragmentId)
-        throws IOException {
+    private void splitAndSend(byte[] data, int chunks, int fragmentId,
+        TransferPriority priority) throws IOException {
+
+        final int level = ChannelScheduler.levelOf(priority);
 
         int offset = 0;
         int length = 0;
@@ -482,6 +550,8 @@ public class BinaryChannelConnection implements IByteStreamConnection {
 
             length = Math.min(data.length - offset, CHUNKSIZE);
 
+            scheduler.reacquire(level);
+
             sendData(fragmentId, data, offset, length);
 
             offset += length;
@@ -0,0 +1,94 @@
+package de.fu_berlin.inf.dpp.net.internal;
+
+/**
+ * Grants exclusive access to the output of a byte stream connection. If
+ * several threads are waiting, the thread with the highest priority is
+ * preferred. Threads with the same priority are served in no particular order.
+ * <p>
+ * Control frames (e.g transfer descriptions) always have the highest priority,
+ * as they are small and the remote side needs them before any data of the
+ * corresponding transfer.
+ */
+final class ChannelScheduler {
+
+    /** Level for control frames */
+    static final int CONTROL = 0;
+
+    private final int[] waiting = new int[TransferPriority.values().length + 1];
+
+    private boolean busy;
+
+    /**
+     * Returns the level to use for the data of the given priority.
+     */
+    static int levelOf(TransferPriority priority) {
+        return priority.ordinal() + 1;
+    }
+
+    /**
+     * Blocks until the calling thread may write to the connection. Each call
+     * must be followed by a call to {@link #release()}. This method is not
+     * interruptible as aborting the write of a transfer would corrupt the
+     * stream, the interrupt status of the thread is restored on return.
+     */
+    synchronized void acquire(int level) {
+        boolean interrupted = false;
+
+        waiting[level]++;
+
+        try {
+            while (busy || isHigherLevelWaiting(level)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            waiting[level]--;
+        }
+
+        busy = true;
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    synchronized void release() {
+        busy = false;
+        notifyAll();
+    }
+
+    /**
+     * Releases the access of the calling thread and blocks until it may write
+     * again with the given level. The calling thread is queued before the
+     * access is released, so it cannot be overtaken by threads with a lower
+     * level that are already waiting. Each call must be followed by a call to
+     * {@link #release()}.
+     */
+    synchronized void reacquire(int level) {
+        release();
+        acquire(level);
+    }
+
+    /**
+     * Returns the number of threads that are waiting to write to the
+     * connection.
+     */
+    synchronized int getQueueLength() {
+        int count = 0;
+
+        for (int i = 0; i < waiting.length; i++)
+            count += waiting[i];
+
+        return count;
+    }
+
+    private boolean isHigherLevelWaiting(int level) {
+        for (int i = 0; i < level; i++)
+            if (waiting[i] > 0)
+                return true;
+
+        return false;
+    }
+}
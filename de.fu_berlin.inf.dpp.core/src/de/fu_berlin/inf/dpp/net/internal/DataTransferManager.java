@@ -1,6 +1,5 @@
 package de.fu_berlin.inf.dpp.net.internal;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.util.ArrayList;
@@ -12,9 +11,6 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.zip.DataFormatException;
-import java.util.zip.Deflater;
-import java.util.zip.Inflater;
 
 import org.apache.log4j.Logger;
 import org.jivesoftware.smack.Connection;
@@ -50,8 +46,6 @@ public class DataTransferManager implements IConnectionListener,
     private static final Logger LOG = Logger
         .getLogger(DataTransferManager.class);
 
-    private static final int CHUNKSIZE = 16 * 1024;
-
     private static final String DEFAULT_CONNECTION_ID = "default";
 
     private static final String IN = "in";
@@ -82,6 +76,8 @@ public class DataTransferManager implements IConnectionListener,
 
     private final List<IStreamService> streamServices = new CopyOnWriteArrayList<IStreamService>();
 
+    private final PacketCompressor compressor = new PacketCompressor();
+
     private final IByteStreamConnectionListener byteStreamConnectionListener = new IByteStreamConnectionListener() {
 
         @Override
@@ -102,23 +98,29 @@ public class DataTransferManager implements IConnectionListener,
                     + extension.getTransferDuration() + " ms ["
                     + extension.getTransferMode() + "]");
 
+            long decompressionTime = 0;
+
             if (extension.getTransferDescription().compressContent()) {
                 byte[] payload = extension.getPayload();
                 long compressedPayloadLength = payload.length;
 
+                final long decompressionStart = System.nanoTime();
+
                 try {
-                    payload = inflate(payload);
+                    payload = compressor.inflate(payload);
                 } catch (IOException e) {
                     LOG.error("could not decompress extension payload", e);
                     return;
                 }
 
+                decompressionTime = System.nanoTime() - decompressionStart;
+
                 extension.setPayload(compressedPayloadLength, payload);
             }
 
             notifyDataReceived(extension.getTransferMode(),
                 extension.getCompressedSize(), extension.getUncompressedSize(),
-                extension.getTransferDuration());
+                extension.getTransferDuration(), decompressionTime);
 
             receiver.processBinaryXMPPExtension(extension);
         }
@@ -194,6 +196,29 @@ public class DataTransferManager implements IConnectionListener,
     public void sendData(final String connectionID,
         final TransferDescription description, final byte[] data)
         throws IOException {
+        sendData(connectionID, description, data, null);
+    }
+
+    /**
+     * Sends the given data. If the data should be
+     * {@linkplain TransferDescription#compressContent() compressed} and the
+     * already compressed data is given, it is send instead of compressing the
+     * data again.
+     *
+     * @param connectionID
+     *            the id of the connection
+     * @param description
+     *            the description of the data
+     * @param data
+     *            the data to send
+     * @param compressedData
+     *            the data compressed in the zlib format or <code>null</code>
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public void sendData(final String connectionID,
+        final TransferDescription description, final byte[] data,
+        final byte[] compressedData) throws IOException {
 
         final JID connectionJID = currentLocalJID;
 
@@ -214,7 +239,8 @@ public class DataTransferManager implements IConnectionListener,
             LOG.trace("send " + description + ", data len=" + data.length
                 + " byte(s), connection=" + connection);
 
-        sendInternal(connectionID, connection, description, data);
+        sendInternal(connectionID, connection, description, data,
+            compressedData);
     }
 
     /**
@@ -241,13 +267,13 @@ public class DataTransferManager implements IConnectionListener,
 
         sendInternal(DEFAULT_CONNECTION_ID,
             connectInternal(DEFAULT_CONNECTION_ID, recipient),
-            transferDescription, payload);
+            transferDescription, payload, null);
     }
 
     private void sendInternal(final String connectionID,
         final IByteStreamConnection connection,
-        final TransferDescription description, byte[] payload)
-        throws IOException {
+        final TransferDescription description, byte[] payload,
+        final byte[] compressedPayload) throws IOException {
 
         boolean sendPacket = true;
 
@@ -259,9 +285,26 @@ public class DataTransferManager implements IConnectionListener,
             return;
 
         long sizeUncompressed = payload.length;
+        long compressionTime = 0;
 
-        if (description.compressContent())
-            payload = deflate(payload);
+        if (description.compressContent()) {
+            byte[] deflated = compressedPayload;
+
+            if (deflated == null) {
+                final long compressionStart = System.nanoTime();
+                deflated = compressor.deflate(payload);
+                compressionTime = System.nanoTime() - compressionStart;
+            }
+
+            /*
+             * small packets often grow when they are compressed, the receiver
+             * does not care as long as the description says so
+             */
+            if (deflated.length < payload.length)
+                payload = deflated;
+            else
+                description.setCompressContent(false);
+        }
 
         final long transferStartTime = System.currentTimeMillis();
 
@@ -274,7 +317,7 @@ public class DataTransferManager implements IConnectionListener,
         }
 
         notifyDataSent(connection.getMode(), payload.length, sizeUncompressed,
-            System.currentTimeMillis() - transferStartTime);
+            System.currentTimeMillis() - transferStartTime, compressionTime);
 
     }
 
@@ -368,6 +411,18 @@ public class DataTransferManager implements IConnectionListener,
         return connection == null ? StreamMode.NONE : connection.getMode();
     }
 
+    /**
+     * Returns the send latencies of the current connection to the given peer.
+     *
+     * @return the latency statistics or <code>null</code> if there is no
+     *         connection to the peer
+     */
+    public LatencyStatistics getLatencyStatistics(String connectionID, JID jid) {
+        IByteStreamConnection connection = getCurrentConnection(connectionID,
+            jid);
+        return connection == null ? null : connection.getLatencyStatistics();
+    }
+
     private IByteStreamConnection connectInternal(String connectionID, JID peer)
         throws IOException {
 
@@ -579,11 +634,12 @@ public class DataTransferManager implements IConnectionListener,
 
     private void notifyDataSent(final StreamMode mode,
         final long sizeCompressed, final long sizeUncompressed,
-        final long duration) {
+        final long duration, final long compressionTime) {
 
         for (final ITransferListener listener : transferListeners) {
             try {
-                listener.sent(mode, sizeCompressed, sizeUncompressed, duration);
+                listener.sent(mode, sizeCompressed, sizeUncompressed, duration,
+                    compressionTime);
             } catch (RuntimeException e) {
                 LOG.error("invoking sent() on listener: " + listener
                     + " failed", e);
@@ -593,55 +649,16 @@ public class DataTransferManager implements IConnectionListener,
 
     private void notifyDataReceived(final StreamMode mode,
         final long sizeCompressed, final long sizeUncompressed,
-        final long duration) {
+        final long duration, final long decompressionTime) {
 
         for (final ITransferListener listener : transferListeners) {
             try {
                 listener.received(mode, sizeCompressed, sizeUncompressed,
-                    duration);
+                    duration, decompressionTime);
             } catch (RuntimeException e) {
                 LOG.error("invoking received() on listener: " + listener
                     + " failed", e);
             }
         }
     }
-
-    private static byte[] deflate(byte[] input) {
-
-        Deflater compressor = new Deflater(Deflater.DEFLATED);
-        compressor.setInput(input);
-        compressor.finish();
-
-        ByteArrayOutputStream bos = new ByteArrayOutputStream(input.length);
-
-        byte[] buf = new byte[CHUNKSIZE];
-
-        while (!compressor.finished()) {
-            int count = compressor.deflate(buf);
-            bos.write(buf, 0, count);
-        }
-
-        return bos.toByteArray();
-    }
-
-    private static byte[] inflate(byte[] input) throws IOException {
-
-        ByteArrayOutputStream bos;
-        Inflater decompressor = new Inflater();
-
-        decompressor.setInput(input, 0, input.length);
-        bos = new ByteArrayOutputStream(input.length);
-
-        byte[] buf = new byte[CHUNKSIZE];
-
-        try {
-            while (!decompressor.finished()) {
-                int count = decompressor.inflate(buf);
-                bos.write(buf, 0, count);
-            }
-            return bos.toByteArray();
-        } catch (DataFormatException e) {
-            throw new IOException("failed to inflate data", e);
-        }
-    }
 }
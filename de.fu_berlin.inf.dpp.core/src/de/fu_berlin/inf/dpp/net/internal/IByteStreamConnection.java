@@ -45,4 +45,11 @@ public interface IByteStreamConnection {
     public String getConnectionID();
 
     public StreamMode getMode();
+
+    /**
+     * Returns the send latencies of this connection per priority class.
+     *
+     * @return the latency statistics, never <code>null</code>
+     */
+    public LatencyStatistics getLatencyStatistics();
 }
\ No newline at end of file
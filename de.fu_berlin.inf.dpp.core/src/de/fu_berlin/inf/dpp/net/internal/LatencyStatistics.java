@@ -0,0 +1,85 @@
+package de.fu_berlin.inf.dpp.net.internal;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the send latencies of a byte stream connection per
+ * {@link TransferPriority priority class}. The latency of a transfer is the
+ * time from passing the data to the connection until the last byte was handed
+ * over to the underlying stream, i.e it includes the time the transfer was
+ * waiting for transfers of the same or a higher priority.
+ * <p>
+ * This class is thread safe.
+ */
+public final class LatencyStatistics {
+
+    private final long[] counts = new long[TransferPriority.values().length];
+
+    private final long[] totalLatencies = new long[counts.length];
+
+    private final long[] maxLatencies = new long[counts.length];
+
+    /**
+     * Records the latency of a transfer.
+     *
+     * @param priority
+     *            the priority class of the transfer
+     * @param latency
+     *            the latency in nanoseconds
+     */
+    synchronized void record(TransferPriority priority, long latency) {
+        final int index = priority.ordinal();
+
+        counts[index]++;
+        totalLatencies[index] += latency;
+
+        if (latency > maxLatencies[index])
+            maxLatencies[index] = latency;
+    }
+
+    /**
+     * Returns the number of transfers of the given priority class.
+     */
+    public synchronized long getCount(TransferPriority priority) {
+        return counts[priority.ordinal()];
+    }
+
+    /**
+     * Returns the average latency of the transfers of the given priority class
+     * in microseconds or 0 if there were no transfers.
+     */
+    public synchronized long getAverageLatency(TransferPriority priority) {
+        final int index = priority.ordinal();
+
+        if (counts[index] == 0)
+            return 0;
+
+        return TimeUnit.NANOSECONDS.toMicros(totalLatencies[index]
+            / counts[index]);
+    }
+
+    /**
+     * Returns the maximum latency of the transfers of the given priority class
+     * in microseconds.
+     */
+    public synchronized long getMaxLatency(TransferPriority priority) {
+        return TimeUnit.NANOSECONDS.toMicros(maxLatencies[priority.ordinal()]);
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder builder = new StringBuilder("LatencyStatistics [");
+
+        for (TransferPriority priority : TransferPriority.values()) {
+            if (priority.ordinal() > 0)
+                builder.append(", ");
+
+            builder.append(priority).append(": count=")
+                .append(getCount(priority)).append(", avg=")
+                .append(getAverageLatency(priority)).append(" us, max=")
+                .append(getMaxLatency(priority)).append(" us");
+        }
+
+        return builder.append("]").toString();
+    }
+}
@@ -0,0 +1,125 @@
+package de.fu_berlin.inf.dpp.net.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses the payload of packets that are sent over a
+ * {@link IByteStreamConnection}. The {@link Deflater} and {@link Inflater}
+ * instances are reused for all packets, so small packets do not pay for the
+ * setup of the native compressor every time.
+ * <p>
+ * Each packet is compressed on its own in the zlib format. A shared deflate
+ * stream per connection would compress even better, but the chunks of
+ * concurrent transfers are interleaved on the connection and the remote side
+ * would have to inflate the packets in exactly the order they were compressed.
+ * <p>
+ * This class is thread safe.
+ */
+public final class PacketCompressor {
+
+    private static final int CHUNKSIZE = 16 * 1024;
+
+    /** max number of idle compressors that are kept for reuse */
+    private static final int MAX_POOL_SIZE = 8;
+
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+
+    private final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+
+    /**
+     * Compresses the given data.
+     *
+     * @param data
+     *            the data to compress
+     * @return the compressed data
+     */
+    public byte[] deflate(byte[] data) {
+        Deflater deflater = deflaters.poll();
+
+        if (deflater == null)
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(
+                Math.min(data.length / 2 + 64, CHUNKSIZE));
+
+            final byte[] buffer = new byte[Math.min(data.length + 64,
+                CHUNKSIZE)];
+
+            while (!deflater.finished()) {
+                final int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+
+            return out.toByteArray();
+        } finally {
+            deflater.reset();
+
+            if (deflaters.size() < MAX_POOL_SIZE)
+                deflaters.offer(deflater);
+            else
+                deflater.end();
+        }
+    }
+
+    /**
+     * Decompresses the given data.
+     *
+     * @param data
+     *            the compressed data
+     * @return the decompressed data
+     * @throws IOException
+     *             if the data is corrupted
+     */
+    public byte[] inflate(byte[] data) throws IOException {
+        Inflater inflater = inflaters.poll();
+
+        if (inflater == null)
+            inflater = new Inflater();
+
+        try {
+            inflater.setInput(data);
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(
+                data.length * 2);
+
+            final byte[] buffer = new byte[CHUNKSIZE];
+
+            while (!inflater.finished()) {
+                final int count = inflater.inflate(buffer);
+
+                if (count > 0) {
+                    out.write(buffer, 0, count);
+                    continue;
+                }
+
+                if (inflater.needsDictionary())
+                    throw new IOException(
+                        "data was compressed with an unknown dictionary");
+
+                if (inflater.needsInput())
+                    throw new IOException("compressed data is truncated");
+            }
+
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("failed to inflate data", e);
+        } finally {
+            inflater.reset();
+
+            if (inflaters.size() < MAX_POOL_SIZE)
+                inflaters.offer(inflater);
+            else
+                inflater.end();
+        }
+    }
+}
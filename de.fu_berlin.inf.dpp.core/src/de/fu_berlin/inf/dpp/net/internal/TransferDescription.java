@@ -30,6 +30,11 @@ public class TransferDescription {
      */
     private boolean compress;
 
+    /**
+     * Local scheduling hint, it is not part of the data that is send.
+     */
+    private TransferPriority priority = TransferPriority.NORMAL;
+
     public static TransferDescription newDescription() {
         return new TransferDescription();
     }
@@ -79,10 +84,20 @@ public class TransferDescription {
         return compress;
     }
 
+    TransferDescription setPriority(TransferPriority priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    public TransferPriority getPriority() {
+        return priority;
+    }
+
     @Override
     public String toString() {
         return "TransferDescription [elementName=" + elementName
             + ", namespace=" + namespace + ", recipient=" + recipient
-            + ", sender=" + sender + ", compress=" + compress + "]";
+            + ", sender=" + sender + ", compress=" + compress + ", priority="
+            + priority + "]";
     }
 }
\ No newline at end of file
@@ -0,0 +1,25 @@
+package de.fu_berlin.inf.dpp.net.internal;
+
+/**
+ * The priority classes of the data that is sent over a byte stream connection.
+ * Chunks of data with a higher priority are sent before chunks of data with a
+ * lower priority, even if the lower priority data was passed to the connection
+ * first. The constants are declared in descending order of their priority.
+ */
+public enum TransferPriority {
+    /**
+     * Small packets that should be delivered as fast as possible, e.g
+     * activities without file contents.
+     */
+    INTERACTIVE,
+
+    /**
+     * Default priority.
+     */
+    NORMAL,
+
+    /**
+     * Large transfers that may be delayed, e.g file contents.
+     */
+    BULK
+}
@@ -1,10 +1,19 @@
 package de.fu_berlin.inf.dpp.net.internal;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 import org.jivesoftware.smack.Connection;
@@ -15,23 +24,71 @@ import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.PacketExtension;
 import org.jivesoftware.smack.provider.PacketExtensionProvider;
 import org.jivesoftware.smack.provider.ProviderManager;
+import org.picocontainer.Disposable;
 import org.xmlpull.mxp1.MXParser;
 import org.xmlpull.v1.XmlPullParser;
 
 import de.fu_berlin.inf.dpp.annotations.Component;
 import de.fu_berlin.inf.dpp.net.ConnectionState;
 import de.fu_berlin.inf.dpp.net.DispatchThreadContext;
+import de.fu_berlin.inf.dpp.net.IBinaryPacketExtensionProvider;
 import de.fu_berlin.inf.dpp.net.IReceiver;
 import de.fu_berlin.inf.dpp.net.PacketCollector;
 import de.fu_berlin.inf.dpp.net.PacketCollector.CancelHook;
 import de.fu_berlin.inf.dpp.net.xmpp.IConnectionListener;
+import de.fu_berlin.inf.dpp.net.xmpp.JID;
 import de.fu_berlin.inf.dpp.net.xmpp.XMPPConnectionService;
-
+import de.fu_berlin.inf.dpp.util.NamedThreadFactory;
+import de.fu_berlin.inf.dpp.util.ThreadUtils;
+
+/**
+ * Receives packets and forwards them to the registered listeners. All
+ * listeners are called from the {@linkplain DispatchThreadContext dispatch
+ * thread}. Received binary packets are deserialized concurrently by a set of
+ * parser threads. All packets of a sender are deserialized by the same thread
+ * in the order they were received, because binary extensions may refer to
+ * state established by earlier packets of the same sender. The packets of a
+ * sender are also forwarded in the order they were received.
+ */
 @Component(module = "net")
-public class XMPPReceiver implements IReceiver {
+public class XMPPReceiver implements IReceiver, Disposable {
 
     private static final Logger LOG = Logger.getLogger(XMPPReceiver.class);
 
+    /**
+     * Number of threads that deserialize received binary packets. A value of
+     * <code>1</code> or lower deserializes the packets on the dispatch thread.
+     */
+    private static final int PARSER_THREADS = Integer.getInteger(
+        "de.fu_berlin.inf.dpp.net.RECEIVER_PARSER_THREADS",
+        Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /** idle time in seconds after which a parser thread terminates */
+    private static final long PARSER_KEEP_ALIVE = 60;
+
+    /**
+     * Queue depth from which on a new maximum of waiting packets is logged.
+     */
+    private static final int QUEUE_DEPTH_LOG_THRESHOLD = 16;
+
+    /**
+     * A received packet that waits until it is deserialized and all packets
+     * that were received before from the same sender are forwarded.
+     */
+    private static final class PendingPacket {
+        private final String sender;
+
+        // guarded by pendingPackets
+        private boolean done;
+
+        // guarded by pendingPackets, null if the packet could not be restored
+        private Packet packet;
+
+        private PendingPacket(String sender) {
+            this.sender = sender;
+        }
+    }
+
     private final DispatchThreadContext dispatchThreadContext;
 
     private Map<PacketListener, PacketFilter> listeners = Collections
@@ -39,6 +96,28 @@ public class XMPPReceiver implements IReceiver {
 
     private XmlPullParser parser;
 
+    /*
+     * Single threaded executors, the packets of a sender are always
+     * deserialized by the same one. Is null if the packets are deserialized on
+     * the dispatch thread. Parsers are not thread safe, so every parser thread
+     * uses its own one.
+     */
+    private final ExecutorService[] parserExecutors;
+
+    private final ThreadLocal<XmlPullParser> parserThreadParser = new ThreadLocal<XmlPullParser>() {
+        @Override
+        protected XmlPullParser initialValue() {
+            return new MXParser();
+        }
+    };
+
+    /** pending packets per sender, guarded by itself */
+    private final Map<String, Queue<PendingPacket>> pendingPackets = new HashMap<String, Queue<PendingPacket>>();
+
+    private final AtomicInteger queuedPacketCount = new AtomicInteger();
+
+    private final AtomicInteger maxQueuedPacketCount = new AtomicInteger();
+
     private final PacketListener smackPacketListener = new PacketListener() {
 
         @Override
@@ -72,9 +151,36 @@ public class XMPPReceiver implements IReceiver {
         this.dispatchThreadContext = dispatchThreadContext;
         this.parser = new MXParser();
 
+        if (PARSER_THREADS > 1) {
+            parserExecutors = new ExecutorService[PARSER_THREADS];
+
+            for (int i = 0; i < parserExecutors.length; i++) {
+                final ThreadPoolExecutor executor = new ThreadPoolExecutor(1,
+                    1, PARSER_KEEP_ALIVE, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new NamedThreadFactory("Receiver-Parser-" + i + "-"));
+
+                executor.allowCoreThreadTimeOut(true);
+                parserExecutors[i] = executor;
+            }
+        } else {
+            parserExecutors = null;
+        }
+
         connectionService.addListener(connectionListener);
     }
 
+    @Override
+    public void dispose() {
+        if (parserExecutors != null) {
+            for (ExecutorService executor : parserExecutors)
+                executor.shutdownNow();
+        }
+
+        LOG.debug("maximum number of packets waiting to be forwarded: "
+            + maxQueuedPacketCount.get());
+    }
+
     @Override
     public void addPacketListener(PacketListener listener, PacketFilter filter) {
         listeners.put(listener, filter);
@@ -87,12 +193,23 @@ public class XMPPReceiver implements IReceiver {
 
     @Override
     public void processPacket(final Packet packet) {
-        dispatchThreadContext.executeAsDispatch(new Runnable() {
-            @Override
-            public void run() {
-                forwardPacket(packet);
-            }
-        });
+        if (parserExecutors == null) {
+            dispatchThreadContext.executeAsDispatch(new Runnable() {
+                @Override
+                public void run() {
+                    forwardPacket(packet);
+                }
+            });
+            return;
+        }
+
+        /*
+         * the packet is already parsed but must not overtake binary packets of
+         * the same sender that are still being deserialized
+         */
+        complete(
+            enqueue(getSenderKey(packet.getFrom() == null ? null : new JID(
+                packet.getFrom()))), packet);
     }
 
     @Override
@@ -111,17 +228,160 @@ public class XMPPReceiver implements IReceiver {
     @Override
     public void processBinaryXMPPExtension(final BinaryXMPPExtension extension) {
 
-        dispatchThreadContext.executeAsDispatch(new Runnable() {
+        if (parserExecutors == null) {
+            dispatchThreadContext.executeAsDispatch(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    Packet packet = convertBinaryXMPPExtension(extension,
+                        parser);
+
+                    if (packet != null)
+                        forwardPacket(packet);
+                }
+            });
+            return;
+        }
+
+        final PendingPacket pending = enqueue(getSenderKey(extension
+            .getTransferDescription().getSender()));
 
+        final ExecutorService parserExecutor = parserExecutors[(pending.sender
+            .hashCode() & Integer.MAX_VALUE) % parserExecutors.length];
+
+        try {
+            parserExecutor.execute(ThreadUtils.wrapSafe(LOG, new Runnable() {
+
+                @Override
+                public void run() {
+                    Packet packet = null;
+
+                    try {
+                        packet = convertBinaryXMPPExtension(extension,
+                            parserThreadParser.get());
+                    } finally {
+                        complete(pending, packet);
+                    }
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            LOG.warn("dropping packet because the receiver is disposed: "
+                + extension.getTransferDescription());
+
+            complete(pending, null);
+        }
+    }
+
+    /**
+     * Appends a new pending packet to the queue of the given sender.
+     */
+    private PendingPacket enqueue(String sender) {
+        final PendingPacket pending = new PendingPacket(sender);
+
+        synchronized (pendingPackets) {
+            Queue<PendingPacket> queue = pendingPackets.get(sender);
+
+            if (queue == null) {
+                queue = new ArrayDeque<PendingPacket>();
+                pendingPackets.put(sender, queue);
+            }
+
+            queue.add(pending);
+        }
+
+        final int queued = queuedPacketCount.incrementAndGet();
+
+        int max;
+
+        while (queued > (max = maxQueuedPacketCount.get())) {
+            if (!maxQueuedPacketCount.compareAndSet(max, queued))
+                continue;
+
+            if (queued >= QUEUE_DEPTH_LOG_THRESHOLD
+                && Integer.bitCount(queued) == 1)
+                LOG.debug(queued + " packets are waiting to be forwarded");
+
+            break;
+        }
+
+        return pending;
+    }
+
+    /**
+     * Marks the pending packet as deserialized and forwards all packets of its
+     * sender that are no longer waiting for earlier packets.
+     * 
+     * @param packet
+     *            the deserialized packet or <code>null</code> if it could not
+     *            be deserialized
+     */
+    private void complete(final PendingPacket pending, Packet packet) {
+        synchronized (pendingPackets) {
+            pending.packet = packet;
+            pending.done = true;
+        }
+
+        dispatchThreadContext.executeAsDispatch(new Runnable() {
             @Override
             public void run() {
+                forwardPendingPackets(pending.sender);
+            }
+        });
+    }
 
-                Packet packet = convertBinaryXMPPExtension(extension);
+    /**
+     * Forwards the deserialized packets at the head of the sender's queue.
+     * 
+     * @sarosThread must be called from the Dispatch Thread
+     */
+    private void forwardPendingPackets(String sender) {
+        while (true) {
+            final Packet packet;
 
-                if (packet != null)
-                    forwardPacket(packet);
+            synchronized (pendingPackets) {
+                final Queue<PendingPacket> queue = pendingPackets.get(sender);
+
+                if (queue == null || !queue.peek().done)
+                    return;
+
+                packet = queue.poll().packet;
+
+                if (queue.isEmpty())
+                    pendingPackets.remove(sender);
             }
-        });
+
+            queuedPacketCount.decrementAndGet();
+
+            if (packet == null)
+                continue;
+
+            try {
+                forwardPacket(packet);
+            } catch (RuntimeException e) {
+                LOG.error("internal error while forwarding packet " + packet,
+                    e);
+            }
+        }
+    }
+
+    @Override
+    public int getQueuedPacketCount() {
+        return queuedPacketCount.get();
+    }
+
+    @Override
+    public int getMaxQueuedPacketCount() {
+        return maxQueuedPacketCount.get();
+    }
+
+    /**
+     * Returns the key the packets of the given sender are ordered by. Packets
+     * and binary extensions carry the sender in different forms, so both are
+     * reduced to the bare JID, i.e the same sender as in {@link JID#equals}.
+     */
+    private static String getSenderKey(JID sender) {
+        return sender == null ? "" : sender.getBase();
     }
 
     /**
@@ -150,10 +410,11 @@ public class XMPPReceiver implements IReceiver {
      * original {@link PacketExtension} and returns a new packet containing the
      * deserialized packet extension.
      * 
-     * This method is <b>not</b> thread safe and <b>must not</b> accessed by
-     * multiple threads concurrently.
+     * The given parser <b>must not</b> be accessed by multiple threads
+     * concurrently.
      */
-    private Packet convertBinaryXMPPExtension(BinaryXMPPExtension transferObject) {
+    private Packet convertBinaryXMPPExtension(
+        BinaryXMPPExtension transferObject, XmlPullParser parser) {
 
         TransferDescription description = transferObject
             .getTransferDescription();
@@ -173,6 +434,20 @@ public class XMPPReceiver implements IReceiver {
 
         PacketExtension extension = null;
 
+        if (provider instanceof IBinaryPacketExtensionProvider) {
+            try {
+                extension = ((IBinaryPacketExtensionProvider) provider)
+                    .parseExtension(transferObject.getPayload(),
+                        description.getSender());
+            } catch (IOException e) {
+                LOG.error("could not deserialize binary transfer object payload: "
+                    + e.getMessage(), e);
+                return null;
+            }
+
+            return createPacket(description, extension);
+        }
+
         try {
             parser.setInput(
                 new ByteArrayInputStream(transferObject.getPayload()), "UTF-8");
@@ -188,10 +463,19 @@ public class XMPPReceiver implements IReceiver {
                     + e.getMessage(), e);
 
             // just to be safe
-            parser = new MXParser();
+            if (parser == this.parser)
+                this.parser = new MXParser();
+            else
+                parserThreadParser.set(new MXParser());
+
             return null;
         }
 
+        return createPacket(description, extension);
+    }
+
+    private static Packet createPacket(TransferDescription description,
+        PacketExtension extension) {
         Packet packet = new Message();
         packet.setPacketID(Packet.ID_NOT_AVAILABLE);
         packet.setFrom(description.getSender().toString());
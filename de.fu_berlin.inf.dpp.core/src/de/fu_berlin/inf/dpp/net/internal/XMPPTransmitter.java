@@ -29,6 +29,8 @@ import org.jivesoftware.smack.packet.PacketExtension;
 
 import de.fu_berlin.inf.dpp.annotations.Component;
 import de.fu_berlin.inf.dpp.net.ConnectionState;
+import de.fu_berlin.inf.dpp.net.IBinaryPacketExtension;
+import de.fu_berlin.inf.dpp.net.ICompressedPacketExtension;
 import de.fu_berlin.inf.dpp.net.ITransmitter;
 import de.fu_berlin.inf.dpp.net.xmpp.IConnectionListener;
 import de.fu_berlin.inf.dpp.net.xmpp.JID;
@@ -49,6 +51,23 @@ public class XMPPTransmitter implements ITransmitter, IConnectionListener {
             "de.fu_berlin.inf.dpp.net.transmitter.PACKET_EXTENSION_COMPRESS_THRESHOLD",
             32);
 
+    /**
+     * size in bytes up to which a packet extension is send with interactive
+     * priority
+     */
+    private static final int INTERACTIVE_PRIORITY_THRESHOLD = Integer
+        .getInteger(
+            "de.fu_berlin.inf.dpp.net.transmitter.INTERACTIVE_PRIORITY_THRESHOLD",
+            4 * 1024);
+
+    /**
+     * size in bytes that a packet extension must exceed to be send with bulk
+     * priority
+     */
+    private static final int BULK_PRIORITY_THRESHOLD = Integer.getInteger(
+        "de.fu_berlin.inf.dpp.net.transmitter.BULK_PRIORITY_THRESHOLD",
+        32 * 1024);
+
     private final DataTransferManager dataManager;
 
     private Connection connection;
@@ -79,16 +98,42 @@ public class XMPPTransmitter implements ITransmitter, IConnectionListener {
             .setElementName(extension.getElementName())
             .setNamespace(extension.getNamespace());
 
-        byte[] data = extension.toXML().getBytes("UTF-8");
+        final byte[] data;
+        byte[] compressedData = null;
 
-        if (data.length > PACKET_EXTENSION_COMPRESS_THRESHOLD)
+        if (extension instanceof IBinaryPacketExtension)
+            data = ((IBinaryPacketExtension) extension).toByteArray();
+        else
+            data = extension.toXML().getBytes("UTF-8");
+
+        if (data.length > PACKET_EXTENSION_COMPRESS_THRESHOLD) {
             transferDescription.setCompressContent(true);
 
+            if (extension instanceof ICompressedPacketExtension)
+                compressedData = ((ICompressedPacketExtension) extension)
+                    .toCompressedByteArray();
+        }
+
+        /*
+         * the size of the data determines how long it occupies the stream, so
+         * the chunks of small packets are sent before the remaining chunks of
+         * large packets that share the connection, e.g project stream chunks.
+         * This does not reorder the activities: they are sent one after
+         * another and applied by the receiver in the order of their sequence
+         * numbers, so a large FileActivity still delays all activities that
+         * were created after it.
+         */
+        if (data.length <= INTERACTIVE_PRIORITY_THRESHOLD)
+            transferDescription.setPriority(TransferPriority.INTERACTIVE);
+        else if (data.length > BULK_PRIORITY_THRESHOLD)
+            transferDescription.setPriority(TransferPriority.BULK);
+
         // recipient is included in the transfer description
         if (connectionID == null)
             dataManager.sendData(transferDescription, data);
         else
-            dataManager.sendData(connectionID, transferDescription, data);
+            dataManager.sendData(connectionID, transferDescription, data,
+                compressedData);
 
     }
 
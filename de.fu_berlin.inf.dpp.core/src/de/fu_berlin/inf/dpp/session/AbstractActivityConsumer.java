@@ -3,6 +3,7 @@ package de.fu_berlin.inf.dpp.session;
 import de.fu_berlin.inf.dpp.activities.AbstractActivityReceiver;
 import de.fu_berlin.inf.dpp.activities.IActivity;
 import de.fu_berlin.inf.dpp.activities.IActivityReceiver;
+import de.fu_berlin.inf.dpp.activities.SPath;
 import de.fu_berlin.inf.dpp.activities.TextSelectionActivity;
 
 /**
@@ -84,4 +85,24 @@ public abstract class AbstractActivityConsumer extends AbstractActivityReceiver
     public void exec(IActivity activity) {
         activity.dispatch(this);
     }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Does nothing by default.
+     */
+    @Override
+    public void beginTextEdits(SPath path) {
+        // NOP
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Does nothing by default.
+     */
+    @Override
+    public void endTextEdits(SPath path) {
+        // NOP
+    }
 }
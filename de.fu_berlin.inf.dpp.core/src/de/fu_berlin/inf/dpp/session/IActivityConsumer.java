@@ -1,6 +1,8 @@
 package de.fu_berlin.inf.dpp.session;
 
 import de.fu_berlin.inf.dpp.activities.IActivity;
+import de.fu_berlin.inf.dpp.activities.SPath;
+import de.fu_berlin.inf.dpp.activities.TextEditActivity;
 
 /**
  * Implementations of this class can be
@@ -72,4 +74,34 @@ public interface IActivityConsumer {
      * (EDT).
      */
     public void exec(IActivity activity);
+
+    /**
+     * Announces that several consecutive {@linkplain TextEditActivity text
+     * edits} of the same document are about to be {@linkplain #exec(IActivity)
+     * executed}, e.g. because a remote user pasted or reformatted a larger
+     * piece of text. Consumers may use this to apply the edits as one bulk
+     * change and to defer expensive updates until
+     * {@link #endTextEdits(SPath)} is called. Every edit is still passed to
+     * {@link #exec(IActivity)}.
+     * <p>
+     * Implementations may expect that this method is called from the UI thread
+     * (EDT).
+     * 
+     * @param path
+     *            the document the following text edits belong to
+     */
+    public void beginTextEdits(SPath path);
+
+    /**
+     * Announces that all text edits announced by
+     * {@link #beginTextEdits(SPath)} were executed. This method is called even
+     * if the execution of an edit failed.
+     * <p>
+     * Implementations may expect that this method is called from the UI thread
+     * (EDT).
+     * 
+     * @param path
+     *            the document the text edits belonged to
+     */
+    public void endTextEdits(SPath path);
 }
@@ -3,6 +3,8 @@ package de.fu_berlin.inf.dpp.session;
 import java.util.List;
 
 import de.fu_berlin.inf.dpp.activities.IActivity;
+import de.fu_berlin.inf.dpp.activities.SPath;
+import de.fu_berlin.inf.dpp.activities.TextEditActivity;
 import de.fu_berlin.inf.dpp.session.internal.ActivityHandler;
 
 /**
@@ -32,4 +34,15 @@ public interface IActivityHandlerCallback {
      *            the activity to execute
      */
     public void execute(IActivity activity);
+
+    /**
+     * Gets called when several consecutive text edits of the same document
+     * should be executed. The edits must be executed in the given order.
+     * 
+     * @param path
+     *            the path of the document all text edits belong to
+     * @param textEdits
+     *            the text edits to execute
+     */
+    public void executeTextEdits(SPath path, List<TextEditActivity> textEdits);
 }
@@ -9,6 +9,7 @@ import de.fu_berlin.inf.dpp.concurrent.watchdog.ConsistencyWatchdogHandler;
 import de.fu_berlin.inf.dpp.concurrent.watchdog.ConsistencyWatchdogServer;
 import de.fu_berlin.inf.dpp.editor.FollowModeManager;
 import de.fu_berlin.inf.dpp.editor.remote.UserEditorStateManager;
+import de.fu_berlin.inf.dpp.misc.binary.BinaryActivityCodec;
 import de.fu_berlin.inf.dpp.misc.xstream.SPathConverter;
 import de.fu_berlin.inf.dpp.misc.xstream.UserConverter;
 import de.fu_berlin.inf.dpp.session.internal.ActivityHandler;
@@ -63,6 +64,9 @@ public class SarosCoreSessionContextFactory implements
         container.addComponent(SPathConverter.class);
         container.addComponent(UserConverter.class);
 
+        // Session-dependent binary activity format
+        container.addComponent(BinaryActivityCodec.class);
+
         // Other
         container.addComponent(ActivityHandler.class);
         container.addComponent(ActivitySequencer.class);
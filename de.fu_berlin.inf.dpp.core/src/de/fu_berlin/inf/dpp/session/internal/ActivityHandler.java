@@ -1,20 +1,32 @@
 package de.fu_berlin.inf.dpp.session.internal;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 import org.picocontainer.Startable;
 
 import de.fu_berlin.inf.dpp.activities.ActivityOptimizer;
 import de.fu_berlin.inf.dpp.activities.ChecksumActivity;
+import de.fu_berlin.inf.dpp.activities.FileActivity;
 import de.fu_berlin.inf.dpp.activities.IActivity;
 import de.fu_berlin.inf.dpp.activities.IResourceActivity;
 import de.fu_berlin.inf.dpp.activities.ITargetedActivity;
 import de.fu_berlin.inf.dpp.activities.JupiterActivity;
 import de.fu_berlin.inf.dpp.activities.QueueItem;
+import de.fu_berlin.inf.dpp.activities.SPath;
+import de.fu_berlin.inf.dpp.activities.TextEditActivity;
 import de.fu_berlin.inf.dpp.concurrent.management.ConcurrentDocumentClient;
 import de.fu_berlin.inf.dpp.concurrent.management.ConcurrentDocumentServer;
 import de.fu_berlin.inf.dpp.concurrent.management.TransformationResult;
@@ -22,6 +34,7 @@ import de.fu_berlin.inf.dpp.session.IActivityHandlerCallback;
 import de.fu_berlin.inf.dpp.session.ISarosSession;
 import de.fu_berlin.inf.dpp.session.User;
 import de.fu_berlin.inf.dpp.synchronize.UISynchronizer;
+import de.fu_berlin.inf.dpp.util.NamedThreadFactory;
 import de.fu_berlin.inf.dpp.util.ThreadUtils;
 
 /**
@@ -57,6 +70,16 @@ public final class ActivityHandler implements Startable {
         DISPATCH_MODE = dispatchModeToUse;
     }
 
+    /**
+     * Number of threads that are used on the host to transform the activities
+     * of different documents concurrently. A value of <code>1</code> or lower
+     * disables the concurrent transformation, the activities are then
+     * transformed by the calling thread.
+     */
+    private static final int TRANSFORMATION_THREADS = Integer.getInteger(
+        "de.fu_berlin.inf.dpp.session.ACTIVITY_TRANSFORMATION_THREADS", Runtime
+            .getRuntime().availableProcessors());
+
     private final LinkedBlockingQueue<List<IActivity>> dispatchQueue = new LinkedBlockingQueue<List<IActivity>>();
 
     private final IActivityHandlerCallback callback;
@@ -76,6 +99,31 @@ public final class ActivityHandler implements Startable {
      */
     private Thread dispatchThread;
 
+    /*
+     * Used on the host to transform the activities of different documents
+     * concurrently. Is null if the concurrent transformation is disabled.
+     */
+    private volatile ExecutorService transformationExecutor;
+
+    /*
+     * Guards the pending activities below and the forwarding of activities on
+     * the host, so the activities leave in the order they were received in
+     * per source and per document.
+     */
+    private final Object forwardLock = new Object();
+
+    /*
+     * The latest not yet forwarded activity per document, the activities of a
+     * document form a lane that is transformed one after another. A move joins
+     * the lanes of its old and new path.
+     */
+    private final Map<SPath, PendingActivity> lastActivityByDocument = new HashMap<SPath, PendingActivity>();
+
+    /*
+     * The latest not yet forwarded activity per source.
+     */
+    private final Map<User, PendingActivity> lastActivityBySource = new HashMap<User, PendingActivity>();
+
     private final Runnable dispatchThreadRunnable = new Runnable() {
 
         final List<List<IActivity>> pendingActivities = new ArrayList<List<IActivity>>();
@@ -122,12 +170,17 @@ public final class ActivityHandler implements Startable {
      * Transforms and dispatches the activities. The
      * {@linkplain IActivityHandlerCallback callback} will be notified about the
      * results.
+     * <p>
+     * On the host the activities are transformed per document. The activities
+     * of one document wait for the earlier activities of the same document
+     * only, even across calls of this method. Nevertheless the activities of a
+     * user are always forwarded in the order they were received in.
      * 
      * @param activities
      *            an <b>immutable</b> list containing the activities
      */
 
-    public synchronized void handleIncomingActivities(List<IActivity> activities) {
+    public void handleIncomingActivities(List<IActivity> activities) {
 
         if (session.isHost()) {
             /**
@@ -141,13 +194,8 @@ public final class ActivityHandler implements Startable {
              *               recipients.)
              */
 
-            TransformationResult result = directServerActivities(activities);
-            for (QueueItem item : result.getSendToPeers()) {
-                List<User> recipients = getRecipientsForQueueItem(item);
-                callback.send(recipients, item.activity);
-            }
-
-            activities = result.getLocalActivities();
+            forwardServerActivities(activities);
+            return;
         }
 
         /**
@@ -160,6 +208,10 @@ public final class ActivityHandler implements Startable {
          *               necessary, and then forwards it to the SarosSession.
          */
 
+        dispatch(activities);
+    }
+
+    private void dispatch(final List<IActivity> activities) {
         if (activities.isEmpty())
             return;
 
@@ -259,6 +311,11 @@ public final class ActivityHandler implements Startable {
 
     @Override
     public void start() {
+        if (TRANSFORMATION_THREADS > 1)
+            transformationExecutor = Executors.newFixedThreadPool(
+                TRANSFORMATION_THREADS, new NamedThreadFactory(
+                    "dpp-activity-transformer-"));
+
         if (DISPATCH_MODE == DISPATCH_MODE_ASYNC)
             return;
 
@@ -268,6 +325,23 @@ public final class ActivityHandler implements Startable {
 
     @Override
     public void stop() {
+        final ExecutorService executor = transformationExecutor;
+
+        if (executor != null) {
+            executor.shutdown();
+
+            try {
+                if (!executor.awaitTermination(TIMEOUT, TimeUnit.MILLISECONDS))
+                    LOG.error("activity transformation threads are still "
+                        + "running");
+            } catch (InterruptedException e) {
+                LOG.warn("interrupted while waiting for the activity "
+                    + "transformation threads to terminate");
+
+                Thread.currentThread().interrupt();
+            }
+        }
+
         if (DISPATCH_MODE == DISPATCH_MODE_ASYNC)
             return;
 
@@ -338,6 +412,16 @@ public final class ActivityHandler implements Startable {
             @Override
             public void run() {
 
+                /*
+                 * Consecutive text edits of the same document are collected
+                 * and executed together, so the editors can apply them as one
+                 * bulk change. The transformation does not depend on the
+                 * content of the documents, so it does not matter that the
+                 * collected edits are executed after the next activity was
+                 * transformed.
+                 */
+                final List<TextEditActivity> textEdits = new ArrayList<TextEditActivity>();
+
                 for (IActivity activity : optimizedActivities) {
 
                     User source = activity.getSource();
@@ -365,6 +449,21 @@ public final class ActivityHandler implements Startable {
                         .transformFromJupiter(activity);
 
                     for (IActivity transformedActivity : transformedActivities) {
+
+                        if (transformedActivity instanceof TextEditActivity) {
+                            TextEditActivity textEdit = (TextEditActivity) transformedActivity;
+
+                            if (!textEdits.isEmpty()
+                                && !textEdits.get(0).getPath()
+                                    .equals(textEdit.getPath()))
+                                executeTextEdits(textEdits);
+
+                            textEdits.add(textEdit);
+                            continue;
+                        }
+
+                        executeTextEdits(textEdits);
+
                         try {
                             callback.execute(transformedActivity);
                         } catch (Exception e) {
@@ -373,6 +472,8 @@ public final class ActivityHandler implements Startable {
                         }
                     }
                 }
+
+                executeTextEdits(textEdits);
             }
         };
 
@@ -397,52 +498,377 @@ public final class ActivityHandler implements Startable {
     }
 
     /**
-     * This method is responsible for directing activities received at the
-     * server to the various clients.
+     * Executes the collected text edits and clears the given list afterwards.
+     * Edits that were made one after another, e.g. by typing, are merged
+     * first. Several edits are passed to the
+     * {@linkplain IActivityHandlerCallback callback} at once, a single edit is
+     * executed like any other activity.
+     * 
+     * @param textEdits
+     *            consecutive text edits of the same document
+     */
+    private void executeTextEdits(final List<TextEditActivity> textEdits) {
+        if (textEdits.isEmpty())
+            return;
+
+        try {
+            /*
+             * the edits are wrapped in JupiterActivities before, so they can
+             * only be merged after the transformation
+             */
+            final List<IActivity> mergedTextEdits = textEdits.size() == 1 ? null
+                : ActivityOptimizer.optimize(textEdits,
+                    ActivityOptimizer.TEXT_EDITS);
+
+            if (mergedTextEdits == null)
+                callback.execute(textEdits.get(0));
+            else if (mergedTextEdits.size() == 1)
+                callback.execute(mergedTextEdits.get(0));
+            else {
+                final List<TextEditActivity> batch = new ArrayList<TextEditActivity>(
+                    mergedTextEdits.size());
+
+                for (IActivity textEdit : mergedTextEdits)
+                    batch.add((TextEditActivity) textEdit);
+
+                callback.executeTextEdits(batch.get(0).getPath(), batch);
+            }
+        } catch (Exception e) {
+            LOG.error("failed to execute text edits: " + textEdits, e);
+        } finally {
+            textEdits.clear();
+        }
+    }
+
+    /**
+     * Transforms the activities received at the server and forwards them to
+     * the various clients and the local user. Returns before the activities
+     * are forwarded if the concurrent transformation is enabled.
      * 
      * @param activities
      *            A list of incoming activities
-     * @return A number of targeted activities.
      */
-    private TransformationResult directServerActivities(
-        List<IActivity> activities) {
+    private void forwardServerActivities(final List<IActivity> activities) {
+        final List<PendingActivity> runnable = new ArrayList<PendingActivity>();
 
-        TransformationResult result = new TransformationResult(
-            session.getLocalUser());
+        synchronized (forwardLock) {
+            final List<IActivity> localActivities = new ArrayList<IActivity>();
 
-        final List<User> remoteUsers = session.getRemoteUsers();
-        final List<User> allUsers = session.getUsers();
+            for (final IActivity activity : activities) {
+                final PendingActivity pending = new PendingActivity(activity);
 
-        for (IActivity activity : activities) {
-            documentServer.checkFileDeleted(activity);
+                link(pending);
 
-            if (activity instanceof JupiterActivity
-                || activity instanceof ChecksumActivity) {
+                if (pending.paths.isEmpty())
+                    finishTransformation(pending, null, runnable,
+                        localActivities);
+                else if (pending.unfinishedPredecessors == 0)
+                    runnable.add(pending);
+            }
 
-                result.addAll(documentServer.transformIncoming(activity));
-            } else if (activity instanceof ITargetedActivity) {
-                ITargetedActivity target = (ITargetedActivity) activity;
-                result.add(new QueueItem(target.getTarget(), activity));
+            dispatch(localActivities);
+        }
 
-            } else if (remoteUsers.size() > 0) {
+        runTransformations(runnable);
+    }
 
-                // We must not send the activity back to the sender
-                List<User> receivers = new ArrayList<User>();
-                for (User user : allUsers) {
-                    if (!user.equals(activity.getSource())) {
-                        receivers.add(user);
-                    }
+    /**
+     * Transforms the given activities and all activities that become ready
+     * for their transformation afterwards, either on the calling thread or on
+     * the threads of the {@link #transformationExecutor}.
+     */
+    private void runTransformations(final List<PendingActivity> runnable) {
+        final ExecutorService executor = transformationExecutor;
+
+        final Deque<PendingActivity> inline = new ArrayDeque<PendingActivity>();
+
+        for (final PendingActivity pending : runnable) {
+            if (!submit(executor, pending))
+                inline.add(pending);
+        }
+
+        PendingActivity pending;
+
+        while ((pending = inline.poll()) != null) {
+            for (final PendingActivity next : transformAndForward(pending)) {
+                if (!submit(executor, next))
+                    inline.add(next);
+            }
+        }
+    }
+
+    private boolean submit(final ExecutorService executor,
+        final PendingActivity pending) {
+
+        if (executor == null)
+            return false;
+
+        try {
+            executor.execute(ThreadUtils.wrapSafe(LOG, new Runnable() {
+                @Override
+                public void run() {
+                    runTransformations(transformAndForward(pending));
                 }
-                result.add(new QueueItem(receivers, activity));
+            }));
+            return true;
+        } catch (RejectedExecutionException e) {
+            // the handler is stopping
+            return false;
+        }
+    }
 
-                /*
-                 * should we really execute an activity from a user that is
-                 * about to or has left the session ?
-                 */
-            } else if (!(session.getLocalUser().equals(activity.getSource()))) {
-                result.executeLocally.add(activity);
+    /**
+     * Transforms the activity with the {@link ConcurrentDocumentServer} and
+     * forwards it and all activities that were waiting for it.
+     * 
+     * @return the activities that can be transformed now
+     */
+    private List<PendingActivity> transformAndForward(
+        final PendingActivity pending) {
+
+        final IActivity activity = pending.activity;
+
+        /*
+         * a failure must not keep the activity pending, that would block all
+         * later activities of the same source and documents forever
+         */
+        try {
+            documentServer.checkFileDeleted(activity);
+        } catch (RuntimeException e) {
+            LOG.error("failed to update the document server for activity: "
+                + activity, e);
+        }
+
+        List<QueueItem> transformed = null;
+
+        if (!(activity instanceof FileActivity)) {
+            try {
+                transformed = documentServer.transformIncoming(activity);
+            } catch (RuntimeException e) {
+                LOG.error("failed to transform activity: " + activity, e);
             }
         }
-        return result;
+
+        final List<PendingActivity> runnable = new ArrayList<PendingActivity>();
+
+        synchronized (forwardLock) {
+            final List<IActivity> localActivities = new ArrayList<IActivity>();
+
+            finishTransformation(pending, transformed, runnable,
+                localActivities);
+
+            dispatch(localActivities);
+        }
+
+        return runnable;
+    }
+
+    /**
+     * Registers the activity as the latest activity of its source and its
+     * documents, so it is transformed after the earlier activities of its
+     * documents and forwarded after the earlier activities of its source and
+     * its documents. The caller must hold the {@link #forwardLock}.
+     */
+    private void link(final PendingActivity pending) {
+        for (final SPath path : pending.paths) {
+            final PendingActivity predecessor = lastActivityByDocument.put(
+                path, pending);
+
+            if (predecessor == null)
+                continue;
+
+            if (!predecessor.transformed
+                && !predecessor.transformationSuccessors.contains(pending)) {
+                predecessor.transformationSuccessors.add(pending);
+                pending.unfinishedPredecessors++;
+            }
+
+            addForwardingDependency(predecessor, pending);
+        }
+
+        addForwardingDependency(
+            lastActivityBySource.put(pending.activity.getSource(), pending),
+            pending);
+    }
+
+    private static void addForwardingDependency(
+        final PendingActivity predecessor, final PendingActivity pending) {
+
+        if (predecessor == null || predecessor.forwarded
+            || predecessor.forwardingSuccessors.contains(pending))
+            return;
+
+        predecessor.forwardingSuccessors.add(pending);
+        pending.unforwardedPredecessors++;
+    }
+
+    /**
+     * Marks the activity as transformed and forwards it and all activities
+     * that were only waiting for it. The caller must hold the
+     * {@link #forwardLock}.
+     * 
+     * @param transformed
+     *            the result of the transformation or <code>null</code>
+     * @param runnable
+     *            the list to add the activities to that can be transformed
+     *            now
+     * @param localActivities
+     *            the list to add the activities to that must be executed
+     *            locally
+     */
+    private void finishTransformation(final PendingActivity pending,
+        final List<QueueItem> transformed,
+        final List<PendingActivity> runnable,
+        final List<IActivity> localActivities) {
+
+        pending.transformed = true;
+        pending.transformedItems = transformed;
+
+        for (final PendingActivity successor : pending.transformationSuccessors) {
+            if (--successor.unfinishedPredecessors == 0)
+                runnable.add(successor);
+        }
+
+        pending.transformationSuccessors.clear();
+
+        if (pending.unforwardedPredecessors > 0)
+            return;
+
+        final Deque<PendingActivity> ready = new ArrayDeque<PendingActivity>();
+
+        ready.add(pending);
+
+        PendingActivity next;
+
+        while ((next = ready.poll()) != null) {
+            forward(next, localActivities);
+
+            next.forwarded = true;
+
+            for (final PendingActivity successor : next.forwardingSuccessors) {
+                if (--successor.unforwardedPredecessors == 0
+                    && successor.transformed)
+                    ready.add(successor);
+            }
+
+            next.forwardingSuccessors.clear();
+
+            for (final SPath path : next.paths) {
+                if (lastActivityByDocument.get(path) == next)
+                    lastActivityByDocument.remove(path);
+            }
+
+            final User source = next.activity.getSource();
+
+            if (lastActivityBySource.get(source) == next)
+                lastActivityBySource.remove(source);
+        }
+    }
+
+    /**
+     * Directs a transformed activity received at the server to the various
+     * clients. The caller must hold the {@link #forwardLock}.
+     */
+    private void forward(final PendingActivity pending,
+        final List<IActivity> localActivities) {
+
+        final IActivity activity = pending.activity;
+
+        final TransformationResult result = new TransformationResult(
+            session.getLocalUser());
+
+        if (activity instanceof JupiterActivity
+            || activity instanceof ChecksumActivity) {
+
+            if (pending.transformedItems != null)
+                result.addAll(pending.transformedItems);
+
+        } else if (activity instanceof ITargetedActivity) {
+            ITargetedActivity target = (ITargetedActivity) activity;
+            result.add(new QueueItem(target.getTarget(), activity));
+
+        } else if (session.getRemoteUsers().size() > 0) {
+
+            // We must not send the activity back to the sender
+            List<User> receivers = new ArrayList<User>();
+            for (User user : session.getUsers()) {
+                if (!user.equals(activity.getSource())) {
+                    receivers.add(user);
+                }
+            }
+            result.add(new QueueItem(receivers, activity));
+
+            /*
+             * should we really execute an activity from a user that is about
+             * to or has left the session ?
+             */
+        } else if (!(session.getLocalUser().equals(activity.getSource()))) {
+            result.executeLocally.add(activity);
+        }
+
+        for (QueueItem item : result.getSendToPeers()) {
+            List<User> recipients = getRecipientsForQueueItem(item);
+            callback.send(recipients, item.activity);
+        }
+
+        localActivities.addAll(result.getLocalActivities());
+    }
+
+    /**
+     * Returns the paths of the documents the given activity is transformed
+     * for, i.e the path of a {@link JupiterActivity}, a
+     * {@link ChecksumActivity} or a {@link FileActivity} and in addition the
+     * old path of a moved file.
+     */
+    private static List<SPath> getDocumentPaths(final IActivity activity) {
+        if (activity instanceof JupiterActivity)
+            return Collections.singletonList(((JupiterActivity) activity)
+                .getPath());
+
+        if (activity instanceof ChecksumActivity)
+            return Collections.singletonList(((ChecksumActivity) activity)
+                .getPath());
+
+        if (!(activity instanceof FileActivity))
+            return Collections.emptyList();
+
+        final FileActivity fileActivity = (FileActivity) activity;
+
+        if (fileActivity.getOldPath() == null
+            || fileActivity.getOldPath().equals(fileActivity.getPath()))
+            return Collections.singletonList(fileActivity.getPath());
+
+        return Arrays.asList(fileActivity.getPath(), fileActivity.getOldPath());
+    }
+
+    /**
+     * An activity received at the host that is not forwarded yet.
+     */
+    private static final class PendingActivity {
+
+        private final IActivity activity;
+
+        private final List<SPath> paths;
+
+        /** activities of the same documents that are transformed after it */
+        private final List<PendingActivity> transformationSuccessors = new ArrayList<PendingActivity>();
+
+        /** activities that are forwarded after it */
+        private final List<PendingActivity> forwardingSuccessors = new ArrayList<PendingActivity>();
+
+        private int unfinishedPredecessors;
+
+        private int unforwardedPredecessors;
+
+        private boolean transformed;
+
+        private boolean forwarded;
+
+        private List<QueueItem> transformedItems;
+
+        private PendingActivity(final IActivity activity) {
+            this.activity = activity;
+            this.paths = getDocumentPaths(activity);
+        }
     }
 }
@@ -1,41 +1,224 @@
 package de.fu_berlin.inf.dpp.session.internal;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
 import de.fu_berlin.inf.dpp.activities.EditorActivity;
 import de.fu_berlin.inf.dpp.activities.EditorActivity.Type;
+import de.fu_berlin.inf.dpp.activities.FileActivity;
 import de.fu_berlin.inf.dpp.activities.IActivity;
 import de.fu_berlin.inf.dpp.activities.IResourceActivity;
 import de.fu_berlin.inf.dpp.activities.JupiterActivity;
 import de.fu_berlin.inf.dpp.activities.SPath;
+import de.fu_berlin.inf.dpp.activities.TextEditActivity;
+import de.fu_berlin.inf.dpp.activities.TextSelectionActivity;
+import de.fu_berlin.inf.dpp.activities.ViewportActivity;
+import de.fu_berlin.inf.dpp.concurrent.jupiter.internal.text.ITextOperation;
 import de.fu_berlin.inf.dpp.filesystem.IProject;
 import de.fu_berlin.inf.dpp.session.User;
 
 /**
  * This class enables the queuing of {@linkplain IActivity activities} for given
  * projects.
+ * <p>
+ * The queued activities of all projects may only occupy a limited amount of
+ * memory. If a {@linkplain Codec codec} is available, the activities that
+ * exceed this budget are appended to a temporary file and read back in their
+ * original order when the queue is flushed. Older selections and viewports of
+ * a user are dropped while they are still in memory as they are superseded by
+ * the newer ones anyway.
  */
 public class ActivityQueuer {
 
+    private static final Logger LOG = Logger.getLogger(ActivityQueuer.class);
+
+    /**
+     * Number of bytes the queued activities of all projects may occupy on the
+     * heap before they are spilled to disk.
+     */
+    static final long DEFAULT_MEMORY_BUDGET = Long.getLong(
+        "de.fu_berlin.inf.dpp.session.ACTIVITY_QUEUE_MEMORY_BUDGET",
+        8L * 1024L * 1024L);
+
+    /** rough estimate of the heap size of an activity without its content */
+    private static final long ACTIVITY_SIZE = 128;
+
+    /**
+     * Converts queued activities to and from the format of the spill files.
+     */
+    interface Codec {
+        public byte[] encode(List<IActivity> activities) throws IOException;
+
+        public List<IActivity> decode(byte[] data) throws IOException;
+    }
+
     private static class ProjectQueue {
         private final IProject project;
+
+        /**
+         * the activities queued after the spilled ones, compacted activities
+         * are replaced with <code>null</code>
+         */
         private final List<IResourceActivity> buffer;
+
+        /** index of the latest selection or viewport per user and path */
+        private final Map<CompactionKey, Integer> compactable;
+
+        private long bufferSize;
+        private SpillFile spillFile;
         private int readyToFlush;
 
         private ProjectQueue(IProject project) {
             this.project = project;
             buffer = new ArrayList<IResourceActivity>();
+            compactable = new HashMap<CompactionKey, Integer>();
             readyToFlush = 1;
         }
     }
 
+    private static class CompactionKey {
+        private final Class<?> type;
+        private final User source;
+        private final SPath path;
+
+        private CompactionKey(IResourceActivity activity) {
+            this.type = activity.getClass();
+            this.source = activity.getSource();
+            this.path = activity.getPath();
+        }
+
+        @Override
+        public int hashCode() {
+            return (type.hashCode() * 31 + source.hashCode()) * 31
+                + path.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+
+            if (!(obj instanceof CompactionKey))
+                return false;
+
+            final CompactionKey other = (CompactionKey) obj;
+
+            return type.equals(other.type) && source.equals(other.source)
+                && path.equals(other.path);
+        }
+    }
+
+    /**
+     * Append-only file of encoded activity lists, each one prefixed with its
+     * length.
+     */
+    private static class SpillFile {
+        private final File file;
+        private final DataOutputStream out;
+
+        /** number of records that were completely written */
+        private int records;
+
+        private SpillFile(File file) throws IOException {
+            this.file = file;
+            this.out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+        }
+
+        private static SpillFile create() throws IOException {
+            final File file = File.createTempFile("saros_queue_", ".dat");
+            file.deleteOnExit();
+
+            try {
+                return new SpillFile(file);
+            } catch (IOException e) {
+                file.delete();
+                throw e;
+            }
+        }
+
+        private void append(byte[] data) throws IOException {
+            out.writeInt(data.length);
+            out.write(data);
+            out.flush();
+            records++;
+        }
+
+        private void read(Codec codec, List<IResourceActivity> activities)
+            throws IOException {
+
+            out.close();
+
+            final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+
+            try {
+                for (int i = 0; i < records; i++) {
+                    final byte[] data = new byte[in.readInt()];
+                    in.readFully(data);
+
+                    for (IActivity activity : codec.decode(data))
+                        activities.add((IResourceActivity) activity);
+                }
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+
+        private void delete() {
+            IOUtils.closeQuietly(out);
+
+            if (!file.delete())
+                LOG.warn("could not delete activity queue file: " + file);
+        }
+    }
+
     private final List<ProjectQueue> projectQueues;
 
+    private final Codec codec;
+
+    private final long memoryBudget;
+
+    /** estimated heap size of all activities that are queued in memory */
+    private long queuedSize;
+
+    private boolean spillingFailed;
+
+    /**
+     * Creates an ActivityQueuer that keeps all queued activities in memory.
+     */
     public ActivityQueuer() {
+        this(null, DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Creates an ActivityQueuer that spills queued activities to disk once
+     * they exceed the given memory budget.
+     *
+     * @param codec
+     *            the codec to write and read the spilled activities or
+     *            <code>null</code> to keep all activities in memory
+     * @param memoryBudget
+     *            the estimated number of bytes the queued activities may
+     *            occupy on the heap
+     */
+    ActivityQueuer(final Codec codec, final long memoryBudget) {
         projectQueues = new ArrayList<ProjectQueue>();
+        this.codec = codec;
+        this.memoryBudget = memoryBudget;
     }
 
     /**
@@ -62,6 +245,9 @@ public class ActivityQueuer {
         flushQueues(activitiesToExecute);
         queueActivities(activitiesToExecute, activities);
 
+        if (queuedSize > memoryBudget && codec != null && !spillingFailed)
+            spillQueues();
+
         return activitiesToExecute;
     }
 
@@ -117,6 +303,20 @@ public class ActivityQueuer {
         }
     }
 
+    /**
+     * Discards all queued activities and deletes the files of spilled
+     * activities. Must be called when the session ends.
+     */
+    public synchronized void dispose() {
+        for (final ProjectQueue projectQueue : projectQueues) {
+            if (projectQueue.spillFile != null)
+                projectQueue.spillFile.delete();
+        }
+
+        projectQueues.clear();
+        queuedSize = 0;
+    }
+
     private boolean alreadyRememberedEditorActivity(
         final Map<SPath, List<User>> editorActivities, final SPath spath,
         final User user) {
@@ -162,7 +362,7 @@ public class ActivityQueuer {
                     }
 
                     if (projectQueue != null) {
-                        projectQueue.buffer.add(resourceActivity);
+                        queue(projectQueue, resourceActivity);
                         continue;
                     }
 
@@ -174,6 +374,85 @@ public class ActivityQueuer {
 
     }
 
+    private void queue(final ProjectQueue projectQueue,
+        final IResourceActivity activity) {
+
+        if (activity instanceof TextSelectionActivity
+            || activity instanceof ViewportActivity) {
+
+            final Integer supersededIdx = projectQueue.compactable.put(
+                new CompactionKey(activity), projectQueue.buffer.size());
+
+            if (supersededIdx != null) {
+                final IResourceActivity superseded = projectQueue.buffer.set(
+                    supersededIdx, null);
+
+                release(projectQueue, estimateSize(superseded));
+            }
+        }
+
+        final long size = estimateSize(activity);
+
+        projectQueue.buffer.add(activity);
+        projectQueue.bufferSize += size;
+        queuedSize += size;
+    }
+
+    private void release(final ProjectQueue projectQueue, final long size) {
+        projectQueue.bufferSize -= size;
+        queuedSize -= size;
+    }
+
+    private void spillQueues() {
+        for (final ProjectQueue projectQueue : projectQueues) {
+            if (!spill(projectQueue)) {
+                spillingFailed = true;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Appends the activities of the queue that are held in memory to its spill
+     * file.
+     *
+     * @return <code>false</code> if the activities could not be written
+     */
+    private boolean spill(final ProjectQueue projectQueue) {
+        final List<IActivity> activities = new ArrayList<IActivity>(
+            projectQueue.buffer.size());
+
+        for (final IResourceActivity activity : projectQueue.buffer) {
+            if (activity != null)
+                activities.add(activity);
+        }
+
+        if (activities.isEmpty())
+            return true;
+
+        try {
+            final byte[] data = codec.encode(activities);
+
+            if (projectQueue.spillFile == null)
+                projectQueue.spillFile = SpillFile.create();
+
+            projectQueue.spillFile.append(data);
+        } catch (IOException e) {
+            LOG.error("failed to spill the queued activities of project "
+                + projectQueue.project + " to disk, keeping all queued"
+                + " activities in memory", e);
+            return false;
+        }
+
+        LOG.debug("spilled " + activities.size()
+            + " queued activities of project " + projectQueue.project);
+
+        release(projectQueue, projectQueue.bufferSize);
+        projectQueue.buffer.clear();
+        projectQueue.compactable.clear();
+        return true;
+    }
+
     private void flushQueues(final List<IActivity> activities) {
         final List<ProjectQueue> projectQueuesToRemove = new ArrayList<ProjectQueue>();
 
@@ -182,6 +461,28 @@ public class ActivityQueuer {
             if (projectQueue.readyToFlush > 0)
                 continue;
 
+            final List<IResourceActivity> queuedActivities = new ArrayList<IResourceActivity>();
+
+            if (projectQueue.spillFile != null) {
+                try {
+                    projectQueue.spillFile.read(codec, queuedActivities);
+                } catch (IOException e) {
+                    LOG.error("failed to read the spilled activities of project "
+                        + projectQueue.project + ", "
+                        + queuedActivities.size()
+                        + " activities could be restored", e);
+                } finally {
+                    projectQueue.spillFile.delete();
+                }
+            }
+
+            for (final IResourceActivity resourceActivity : projectQueue.buffer) {
+                if (resourceActivity != null)
+                    queuedActivities.add(resourceActivity);
+            }
+
+            release(projectQueue, projectQueue.bufferSize);
+
             /*
              * HACK: ensure that an editor activated activity is included for
              * all queued JupiterActivities and EditorActivities. Otherwise we
@@ -194,7 +495,7 @@ public class ActivityQueuer {
 
             final Map<SPath, List<User>> editorActivities = new HashMap<SPath, List<User>>();
 
-            for (final IResourceActivity resourceActivity : projectQueue.buffer) {
+            for (final IResourceActivity resourceActivity : queuedActivities) {
 
                 // path cannot be null, see for-loop below
                 final SPath path = resourceActivity.getPath();
@@ -240,4 +541,28 @@ public class ActivityQueuer {
 
         return null;
     }
+
+    private static long estimateSize(final IResourceActivity activity) {
+        long size = ACTIVITY_SIZE;
+
+        if (activity instanceof FileActivity) {
+            final byte[] content = ((FileActivity) activity).getContent();
+
+            if (content != null)
+                size += content.length;
+
+        } else if (activity instanceof JupiterActivity) {
+            for (final ITextOperation operation : ((JupiterActivity) activity)
+                .getOperation().getTextOperations())
+                size += 2L * operation.getTextLength();
+
+        } else if (activity instanceof TextEditActivity) {
+            final TextEditActivity textEdit = (TextEditActivity) activity;
+
+            size += 2L * (textEdit.getText().length() + textEdit
+                .getReplacedText().length());
+        }
+
+        return size;
+    }
 }
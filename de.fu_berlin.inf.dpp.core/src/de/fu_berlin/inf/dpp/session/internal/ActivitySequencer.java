@@ -22,13 +22,20 @@ package de.fu_berlin.inf.dpp.session.internal;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.log4j.Logger;
 import org.jivesoftware.smack.PacketListener;
@@ -40,6 +47,8 @@ import de.fu_berlin.inf.dpp.activities.ActivityOptimizer;
 import de.fu_berlin.inf.dpp.activities.FileActivity;
 import de.fu_berlin.inf.dpp.activities.IActivity;
 import de.fu_berlin.inf.dpp.communication.extensions.ActivitiesExtension;
+import de.fu_berlin.inf.dpp.communication.extensions.BinaryActivitiesExtension;
+import de.fu_berlin.inf.dpp.communication.extensions.SharedActivities;
 import de.fu_berlin.inf.dpp.net.DispatchThreadContext;
 import de.fu_berlin.inf.dpp.net.IReceiver;
 import de.fu_berlin.inf.dpp.net.ITransmitter;
@@ -70,29 +79,175 @@ public class ActivitySequencer implements Startable {
      */
     private static final int FIRST_SEQUENCE_NUMBER = 0;
 
+    /**
+     * Minimum time in milliseconds between two packets to the same user. The
+     * first activity after a pause is sent at once, activities that follow
+     * closely are buffered until the delay since the last packet expired. A
+     * value of zero sends the activities as soon as possible.
+     */
+    private static final long DEFAULT_BATCH_DELAY = Long.getLong(
+        "de.fu_berlin.inf.dpp.session.ACTIVITY_BATCH_DELAY", 10L);
+
+    /**
+     * Estimated number of bytes of activities buffered for a user that are
+     * sent without waiting for the batch delay to expire.
+     */
+    private static final long DEFAULT_BATCH_SIZE = Long.getLong(
+        "de.fu_berlin.inf.dpp.session.ACTIVITY_BATCH_SIZE", 64L * 1024L);
+
+    /**
+     * Estimated size of an activity without its file content, see
+     * {@link #estimateSize(IActivity)}.
+     */
+    private static final int MIN_ACTIVITY_SIZE = 512;
+
     private static class SequencedActivities {
+        private final JID recipient;
+        private final OutgoingBuffer buffer;
         private final int sequenceNumber;
         private final List<IActivity> activites;
 
-        private SequencedActivities(List<IActivity> activites,
-            int sequenceNumber) {
+        /** number of activities taken from the buffer before optimizing */
+        private final int drainedCount;
+
+        private SequencedActivities(JID recipient, OutgoingBuffer buffer,
+            List<IActivity> activites, int sequenceNumber, int drainedCount) {
+            this.recipient = recipient;
+            this.buffer = buffer;
             this.activites = activites;
             this.sequenceNumber = sequenceNumber;
+            this.drainedCount = drainedCount;
+        }
+    }
+
+    /**
+     * Key for activity lists that compares the activities by identity. Two
+     * recipients get the same packet if their lists contain the same activity
+     * instances in the same order.
+     */
+    private static class SharedActivitiesKey {
+        private final IActivity[] activities;
+        private final int hashCode;
+
+        private SharedActivitiesKey(List<IActivity> activities) {
+            this.activities = activities.toArray(new IActivity[activities
+                .size()]);
+
+            int hash = 1;
+
+            for (IActivity activity : this.activities)
+                hash = 31 * hash + System.identityHashCode(activity);
+
+            hashCode = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+
+            if (!(obj instanceof SharedActivitiesKey))
+                return false;
+
+            final IActivity[] other = ((SharedActivitiesKey) obj).activities;
+
+            if (other.length != activities.length)
+                return false;
+
+            for (int i = 0; i < activities.length; i++)
+                if (other[i] != activities[i])
+                    return false;
+
+            return true;
         }
     }
 
-    private static class ActivityBuffer<T> {
+    /**
+     * Sequence number of the next activity that is expected from a remote
+     * user.
+     */
+    private static class IncomingSequence {
+        private int nextSequenceNumber;
+
+        private IncomingSequence(int firstSequenceNumber) {
+            nextSequenceNumber = firstSequenceNumber;
+        }
+    }
+
+    /**
+     * Activities waiting to be sent to a remote user. Any thread may add
+     * activities to the queue, but only the sender thread removes them, so no
+     * lock is needed.
+     */
+    private static class OutgoingBuffer {
+        private final Queue<IActivity> activities = new ConcurrentLinkedQueue<IActivity>();
+
+        /** number of activities ever added to the queue */
+        private final AtomicLong enqueued = new AtomicLong();
+
         /**
-         * Helper flag to signal that there pending data is still send even if
-         * the buffer is already empty.
+         * number of activities that were removed from the queue and whose
+         * transmission is finished
          */
-        private boolean isInTransmission;
+        private final AtomicLong completed = new AtomicLong();
+
+        private final Queue<FlushRequest> flushRequests = new ConcurrentLinkedQueue<FlushRequest>();
+
+        /** estimated size of the activities in the queue */
+        private final AtomicLong pendingSize = new AtomicLong();
+
+        /** only accessed by the sender thread */
         private int nextSequenceNumber;
-        private final Deque<T> activities = new LinkedList<T>();
 
-        private ActivityBuffer(int firstSequenceNumber) {
+        /**
+         * time at which the last packet was taken from the queue, only
+         * accessed by the sender thread
+         */
+        private long lastSent;
+
+        /** only accessed by the sender thread */
+        private boolean hasSent;
+
+        private OutgoingBuffer(int firstSequenceNumber) {
             nextSequenceNumber = firstSequenceNumber;
         }
+
+        /**
+         * Releases all waiting flush requests whose activities are sent. If
+         * the buffer was discarded, all requests are released.
+         */
+        private void completeFlushRequests(boolean discarded) {
+            final long completedCount = completed.get();
+
+            for (Iterator<FlushRequest> it = flushRequests.iterator(); it
+                .hasNext();) {
+
+                final FlushRequest request = it.next();
+
+                if (discarded || request.target <= completedCount) {
+                    it.remove();
+                    request.done.countDown();
+                }
+            }
+        }
+    }
+
+    /**
+     * Completes when all activities that were added to a buffer before the
+     * request was made are sent.
+     */
+    private static class FlushRequest {
+        private final long target;
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private FlushRequest(long target) {
+            this.target = target;
+        }
     }
 
     private final PacketListener activitiesPacketListener = new PacketListener() {
@@ -108,67 +263,102 @@ public class ActivitySequencer implements Startable {
         @Override
         public void run() {
 
-            Map<JID, SequencedActivities> activitiesToSend = new HashMap<JID, SequencedActivities>();
+            List<SequencedActivities> activitiesToSend = new ArrayList<SequencedActivities>();
+
+            /*
+             * most activities are sent unchanged to all remote users, so they
+             * are only serialized once per round
+             */
+            Map<SharedActivitiesKey, SharedActivities> sharedActivities = new HashMap<SharedActivitiesKey, SharedActivities>();
 
-            send: while (true) {
+            List<IActivity> drained = new ArrayList<IActivity>();
+
+            while (!stopSending) {
                 activitiesToSend.clear();
+                sharedActivities.clear();
 
-                synchronized (bufferedOutgoingActivities) {
-                    if (stopSending)
-                        return;
+                /*
+                 * reset before the buffers are inspected, so activities that
+                 * are added from now on unpark this thread again
+                 */
+                senderSignalled.set(false);
+
+                /*
+                 * time until the next incomplete batch must be sent, zero if
+                 * there is none
+                 */
+                long parkNanos = 0;
 
-                    for (Entry<JID, ActivityBuffer<IActivity>> entry : bufferedOutgoingActivities
-                        .entrySet()) {
+                for (Entry<JID, OutgoingBuffer> entry : bufferedOutgoingActivities
+                    .entrySet()) {
 
-                        ActivityBuffer<IActivity> buffer = entry.getValue();
+                    OutgoingBuffer buffer = entry.getValue();
 
-                        if (buffer == null || buffer.activities.isEmpty())
-                            continue;
+                    if (buffer.activities.isEmpty())
+                        continue;
 
-                        List<IActivity> optimizedActivities = ActivityOptimizer
-                            .optimize(buffer.activities);
+                    final long now = System.nanoTime();
 
-                        buffer.activities.clear();
-                        buffer.isInTransmission = true;
+                    if (!isBatchComplete(buffer, now)) {
+                        final long remaining = buffer.lastSent
+                            + batchDelayNanos - now;
 
-                        int currentSequenceNumber = buffer.nextSequenceNumber;
-                        buffer.nextSequenceNumber += optimizedActivities.size();
+                        if (parkNanos == 0 || remaining < parkNanos)
+                            parkNanos = remaining;
 
-                        activitiesToSend.put(entry.getKey(),
-                            new SequencedActivities(optimizedActivities,
-                                currentSequenceNumber));
+                        continue;
                     }
 
-                    if (activitiesToSend.isEmpty()) {
-                        try {
-                            bufferedOutgoingActivities.wait();
-                            continue send;
-                        } catch (InterruptedException e) {
-                            return;
-                        }
+                    buffer.lastSent = now;
+                    buffer.hasSent = true;
+
+                    IActivity activity;
+                    long drainedSize = 0;
+
+                    while ((activity = buffer.activities.poll()) != null) {
+                        drained.add(activity);
+                        drainedSize += estimateSize(activity);
                     }
-                }
 
-                for (Entry<JID, SequencedActivities> e : activitiesToSend
-                    .entrySet()) {
-                    sendActivities(e.getKey(), e.getValue().activites,
-                        e.getValue().sequenceNumber);
+                    buffer.pendingSize.addAndGet(-drainedSize);
+
+                    if (drained.isEmpty())
+                        continue;
+
+                    List<IActivity> optimizedActivities = ActivityOptimizer
+                        .optimize(drained);
+
+                    int currentSequenceNumber = buffer.nextSequenceNumber;
+                    buffer.nextSequenceNumber += optimizedActivities.size();
+
+                    activitiesToSend.add(new SequencedActivities(entry
+                        .getKey(), buffer, optimizedActivities,
+                        currentSequenceNumber, drained.size()));
+
+                    drained.clear();
                 }
 
-                synchronized (bufferedOutgoingActivities) {
-                    for (Entry<JID, ActivityBuffer<IActivity>> entry : bufferedOutgoingActivities
-                        .entrySet()) {
+                if (activitiesToSend.isEmpty()) {
+                    if (parkNanos > 0)
+                        LockSupport.parkNanos(this, parkNanos);
+                    else
+                        LockSupport.park(this);
 
-                        ActivityBuffer<IActivity> buffer = entry.getValue();
+                    if (Thread.currentThread().isInterrupted())
+                        return;
 
-                        if (buffer == null)
-                            continue;
+                    continue;
+                }
 
-                        buffer.isInTransmission = false;
-                    }
+                for (SequencedActivities sequencedActivities : activitiesToSend) {
+                    sendActivities(sequencedActivities.recipient,
+                        sequencedActivities.activites,
+                        sequencedActivities.sequenceNumber, sharedActivities);
 
                     // notify waiting threads in flush method that we are done
-                    bufferedOutgoingActivities.notifyAll();
+                    OutgoingBuffer buffer = sequencedActivities.buffer;
+                    buffer.completed.addAndGet(sequencedActivities.drainedCount);
+                    buffer.completeFlushRequests(false);
                 }
             }
         }
@@ -179,10 +369,16 @@ public class ActivitySequencer implements Startable {
     private boolean started = false;
     private boolean stopped = false;
 
-    private boolean stopSending = false;
+    private volatile boolean stopSending = false;
     private final String currentSessionID;
 
-    private Thread activitySendThread;
+    private volatile Thread activitySendThread;
+
+    /**
+     * Set when the sender thread was unparked and has not yet looked at the
+     * buffers again. Avoids unparking the thread for every single activity.
+     */
+    private final AtomicBoolean senderSignalled = new AtomicBoolean();
 
     private final ISarosSession sarosSession;
 
@@ -192,13 +388,43 @@ public class ActivitySequencer implements Startable {
 
     private final DispatchThreadContext dispatchThread;
 
-    private final Map<JID, ActivityBuffer<IActivity>> bufferedIncomingActivities;
+    private final Map<JID, IncomingSequence> bufferedIncomingActivities;
+
+    private final ConcurrentMap<JID, OutgoingBuffer> bufferedOutgoingActivities;
 
-    private final Map<JID, ActivityBuffer<IActivity>> bufferedOutgoingActivities;
+    private final long batchDelayNanos;
+
+    private final long batchSize;
+
+    /** number of sent activity packets, only written by the sender thread */
+    private final AtomicLong sentPackets = new AtomicLong();
+
+    /** number of sent activities, only written by the sender thread */
+    private final AtomicLong sentActivities = new AtomicLong();
 
     public ActivitySequencer(final ISarosSession sarosSession,
         final ITransmitter transmitter, final IReceiver receiver,
         final DispatchThreadContext threadContext) {
+        this(sarosSession, transmitter, receiver, threadContext,
+            DEFAULT_BATCH_DELAY, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Creates a sequencer that coalesces the activities of a user into one
+     * packet while the last packet to the user was sent less than
+     * <code>batchDelay</code> milliseconds ago, until the delay expires or
+     * their estimated size reaches <code>batchSize</code> bytes, whichever
+     * happens first. Activities after a pause and flushing the activities of a
+     * user do not wait for the delay.
+     */
+    ActivitySequencer(final ISarosSession sarosSession,
+        final ITransmitter transmitter, final IReceiver receiver,
+        final DispatchThreadContext threadContext, final long batchDelay,
+        final long batchSize) {
+
+        this.batchDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0,
+            batchDelay));
+        this.batchSize = batchSize;
 
         this.dispatchThread = threadContext;
         this.sarosSession = sarosSession;
@@ -206,8 +432,8 @@ public class ActivitySequencer implements Startable {
         this.receiver = receiver;
         this.currentSessionID = sarosSession.getID();
 
-        this.bufferedIncomingActivities = new HashMap<JID, ActivityBuffer<IActivity>>();
-        this.bufferedOutgoingActivities = new HashMap<JID, ActivityBuffer<IActivity>>();
+        this.bufferedIncomingActivities = new HashMap<JID, IncomingSequence>();
+        this.bufferedOutgoingActivities = new ConcurrentHashMap<JID, OutgoingBuffer>();
     }
 
     /**
@@ -286,10 +512,8 @@ public class ActivitySequencer implements Startable {
 
         receiver.removePacketListener(activitiesPacketListener);
 
-        synchronized (bufferedOutgoingActivities) {
-            stopSending = true;
-            bufferedOutgoingActivities.notifyAll();
-        }
+        stopSending = true;
+        LockSupport.unpark(activitySendThread);
 
         boolean isStoppingInterrupted = false;
 
@@ -305,10 +529,8 @@ public class ActivitySequencer implements Startable {
         if (activitySendThread.isAlive())
             LOG.error(activitySendThread.getName() + " thread is still running");
 
-        synchronized (bufferedOutgoingActivities) {
-            bufferedOutgoingActivities.clear();
-            bufferedOutgoingActivities.notifyAll();
-        }
+        for (JID jid : bufferedOutgoingActivities.keySet())
+            discardOutgoingBuffer(jid);
 
         synchronized (bufferedIncomingActivities) {
             bufferedIncomingActivities.clear();
@@ -316,6 +538,12 @@ public class ActivitySequencer implements Startable {
 
         activitySendThread = null;
 
+        if (LOG.isDebugEnabled() && sentPackets.get() > 0) {
+            LOG.debug("sent " + sentActivities.get() + " activities in "
+                + sentPackets.get() + " packets, average batch size: "
+                + String.format("%.2f", getAverageBatchSize()));
+        }
+
         if (isStoppingInterrupted)
             Thread.currentThread().interrupt();
     }
@@ -330,8 +558,7 @@ public class ActivitySequencer implements Startable {
         boolean transmissionError = false;
 
         synchronized (bufferedIncomingActivities) {
-            ActivityBuffer<IActivity> buffer = bufferedIncomingActivities
-                .get(sender);
+            IncomingSequence buffer = bufferedIncomingActivities.get(sender);
 
             if (buffer == null) {
                 LOG.warn("dropping received activity from "
@@ -384,24 +611,25 @@ public class ActivitySequencer implements Startable {
         if (remoteRecipients.isEmpty())
             return;
 
-        synchronized (bufferedOutgoingActivities) {
-            for (User recipient : remoteRecipients) {
-                ActivityBuffer<IActivity> buffer = bufferedOutgoingActivities
-                    .get(recipient.getJID());
+        for (User recipient : remoteRecipients) {
+            OutgoingBuffer buffer = bufferedOutgoingActivities.get(recipient
+                .getJID());
 
-                if (buffer == null) {
-                    LOG.warn("cannot send activity to "
-                        + recipient
-                        + " because it is currently not registers, dropped activity: "
-                        + activity);
-                    continue;
-                }
-                buffer.activities.add(activity);
+            if (buffer == null) {
+                LOG.warn("cannot send activity to "
+                    + recipient
+                    + " because it is currently not registers, dropped activity: "
+                    + activity);
+                continue;
             }
 
-            // ActivitySender thread is flushing the buffers
-            bufferedOutgoingActivities.notifyAll();
+            buffer.activities.add(activity);
+            buffer.pendingSize.addAndGet(estimateSize(activity));
+            buffer.enqueued.incrementAndGet();
         }
+
+        // ActivitySender thread is flushing the buffers
+        signalSender();
     }
 
     /**
@@ -413,16 +641,13 @@ public class ActivitySequencer implements Startable {
      * @param user
      */
     public void registerUser(User user) {
-        synchronized (bufferedOutgoingActivities) {
-            if (bufferedOutgoingActivities.get(user.getJID()) == null)
-                bufferedOutgoingActivities.put(user.getJID(),
-                    new ActivityBuffer<IActivity>(FIRST_SEQUENCE_NUMBER));
-        }
+        bufferedOutgoingActivities.putIfAbsent(user.getJID(),
+            new OutgoingBuffer(FIRST_SEQUENCE_NUMBER));
 
         synchronized (bufferedIncomingActivities) {
             if (bufferedIncomingActivities.get(user.getJID()) == null)
                 bufferedIncomingActivities.put(user.getJID(),
-                    new ActivityBuffer<IActivity>(FIRST_SEQUENCE_NUMBER));
+                    new IncomingSequence(FIRST_SEQUENCE_NUMBER));
         }
     }
 
@@ -444,22 +669,35 @@ public class ActivitySequencer implements Startable {
      * @param user
      */
     public void flush(User user) {
+        final OutgoingBuffer buffer = bufferedOutgoingActivities.get(user
+            .getJID());
+
+        if (buffer == null)
+            return;
 
-        synchronized (bufferedOutgoingActivities) {
-            while (true) {
-                ActivityBuffer<IActivity> buffer = bufferedOutgoingActivities
-                    .get(user.getJID());
+        final FlushRequest request = new FlushRequest(buffer.enqueued.get());
 
-                if (buffer == null
-                    || (buffer.activities.size() == 0 && !buffer.isInTransmission))
-                    break;
+        if (buffer.completed.get() >= request.target)
+            return;
 
-                try {
-                    bufferedOutgoingActivities.wait();
-                } catch (InterruptedException e) {
-                    return;
-                }
-            }
+        buffer.flushRequests.add(request);
+
+        // the pending activities must not wait for the batch delay
+        signalSender();
+
+        /*
+         * the sender may have completed the activities before the request was
+         * added, or the buffer may have been discarded in the meantime
+         */
+        if (bufferedOutgoingActivities.get(user.getJID()) != buffer)
+            buffer.completeFlushRequests(true);
+        else
+            buffer.completeFlushRequests(false);
+
+        try {
+            request.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -471,18 +709,64 @@ public class ActivitySequencer implements Startable {
          * the user is not present.
          */
 
-        synchronized (bufferedOutgoingActivities) {
-            bufferedOutgoingActivities.put(jid, null);
-            bufferedOutgoingActivities.notifyAll();
-        }
+        discardOutgoingBuffer(jid);
 
         synchronized (bufferedIncomingActivities) {
-            bufferedIncomingActivities.put(jid, null);
+            bufferedIncomingActivities.remove(jid);
+        }
+    }
+
+    private void discardOutgoingBuffer(JID jid) {
+        final OutgoingBuffer buffer = bufferedOutgoingActivities.remove(jid);
+
+        if (buffer != null)
+            buffer.completeFlushRequests(true);
+    }
+
+    /**
+     * Returns whether the activities of the buffer should be sent now. Must
+     * only be called by the sender thread.
+     */
+    private boolean isBatchComplete(OutgoingBuffer buffer, long now) {
+        if (batchDelayNanos == 0 || !buffer.hasSent)
+            return true;
+
+        return now - buffer.lastSent >= batchDelayNanos
+            || buffer.pendingSize.get() >= batchSize
+            || !buffer.flushRequests.isEmpty();
+    }
+
+    /**
+     * Approximates the number of bytes the activity occupies when it is
+     * marshalled. FileActivities are measured by their content.
+     */
+    private static long estimateSize(IActivity activity) {
+        long size = MIN_ACTIVITY_SIZE;
+
+        if (activity instanceof FileActivity) {
+            final byte[] fileContent = ((FileActivity) activity).getContent();
+
+            if (fileContent != null)
+                size += fileContent.length;
         }
+
+        return size;
+    }
+
+    /**
+     * Wakes up the sender thread unless it was already woken up and did not
+     * look at the buffers since.
+     */
+    private void signalSender() {
+        final Thread sender = activitySendThread;
+
+        if (sender != null && !senderSignalled.getAndSet(true))
+            LockSupport.unpark(sender);
     }
 
     private void sendActivities(JID recipient, List<IActivity> activities,
-        int sequenceNumber) {
+        int sequenceNumber,
+        Map<SharedActivitiesKey, SharedActivities> sharedActivities) {
 
         if (activities.size() == 0)
             return;
@@ -502,8 +786,8 @@ public class ActivitySequencer implements Startable {
          */
 
         final int maxFileActivitySize = 256 * 1024; // 256 kB
-        final int minActivitySize = 512; // bytes
-        int currentFileActivitySize = 0;
+        long currentFileActivitySize = 0;
+        boolean containsFileContent = false;
 
         final List<IActivity> activitiesToMarshall = new ArrayList<IActivity>();
         final Iterator<IActivity> it = activities.iterator();
@@ -512,24 +796,41 @@ public class ActivitySequencer implements Startable {
 
             final IActivity activity = it.next();
 
-            if (activity instanceof FileActivity) {
-                final byte[] fileContent = ((FileActivity) (activity))
-                    .getContent();
-
-                if (fileContent != null)
-                    currentFileActivitySize += fileContent.length;
-            }
+            if (activity instanceof FileActivity
+                && ((FileActivity) activity).getContent() != null)
+                containsFileContent = true;
 
-            currentFileActivitySize += minActivitySize;
+            currentFileActivitySize += estimateSize(activity);
 
             activitiesToMarshall.add(activity);
 
             if (it.hasNext() && currentFileActivitySize < maxFileActivitySize)
                 continue;
 
-            final PacketExtension activityPacketExtension = ActivitiesExtension.PROVIDER
-                .create(new ActivitiesExtension(currentSessionID,
-                    activitiesToMarshall, sequenceNumber));
+            /*
+             * do not keep serialized file contents in memory until the other
+             * recipients are served, see the HACK above
+             */
+            final SharedActivitiesKey key = containsFileContent ? null
+                : new SharedActivitiesKey(activitiesToMarshall);
+
+            SharedActivities shared = key == null ? null : sharedActivities
+                .get(key);
+
+            if (shared == null) {
+                shared = new SharedActivities(currentSessionID,
+                    new ArrayList<IActivity>(activitiesToMarshall));
+
+                if (key != null)
+                    sharedActivities.put(key, shared);
+            }
+
+            /*
+             * prefers the binary format, it falls back to XStream if the
+             * recipient does not support it or the activities cannot be encoded
+             */
+            final PacketExtension activityPacketExtension = shared.create(
+                recipient, sequenceNumber);
 
             if (LOG.isTraceEnabled()) {
                 LOG.trace("send (" + String.format("%03d", activities.size())
@@ -542,9 +843,15 @@ public class ActivitySequencer implements Startable {
             try {
                 transmitter.send(ISarosSession.SESSION_CONNECTION_ID,
                     recipient, activityPacketExtension);
+
+                sentPackets.incrementAndGet();
+                sentActivities.addAndGet(activitiesToMarshall.size());
             } catch (IOException e) {
                 LOG.error("failed to sent activities: " + activities, e);
 
+                if (activityPacketExtension instanceof BinaryActivitiesExtension)
+                    BinaryActivitiesExtension.PROVIDER.sendFailed(recipient);
+
                 unregisterUser(recipient);
                 notifyTransmissionError(recipient);
                 return;
@@ -558,6 +865,7 @@ public class ActivitySequencer implements Startable {
                  */
                 activitiesToMarshall.clear();
                 currentFileActivitySize = 0;
+                containsFileContent = false;
             }
         }
 
@@ -612,9 +920,18 @@ public class ActivitySequencer implements Startable {
      * @return
      */
     boolean isUserRegistered(User user) {
-        synchronized (bufferedOutgoingActivities) {
-            return bufferedOutgoingActivities.get(user.getJID()) != null;
-        }
+        return bufferedOutgoingActivities.containsKey(user.getJID());
+    }
+
+    /**
+     * Returns the average number of activities that were sent in one packet.
+     * 
+     * @return the average batch size or <code>0</code> if nothing was sent yet
+     */
+    double getAverageBatchSize() {
+        final long packets = sentPackets.get();
+
+        return packets == 0 ? 0 : (double) sentActivities.get() / packets;
     }
 
     private void notifyTransmissionError(final JID user) {
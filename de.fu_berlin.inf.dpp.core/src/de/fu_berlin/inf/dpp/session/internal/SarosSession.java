@@ -42,6 +42,9 @@ import de.fu_berlin.inf.dpp.activities.IActivity;
 import de.fu_berlin.inf.dpp.activities.IFileSystemModificationActivity;
 import de.fu_berlin.inf.dpp.activities.IResourceActivity;
 import de.fu_berlin.inf.dpp.activities.NOPActivity;
+import de.fu_berlin.inf.dpp.activities.SPath;
+import de.fu_berlin.inf.dpp.activities.TextEditActivity;
+import de.fu_berlin.inf.dpp.communication.extensions.ActivitiesExtension;
 import de.fu_berlin.inf.dpp.communication.extensions.KickUserExtension;
 import de.fu_berlin.inf.dpp.communication.extensions.LeaveSessionExtension;
 import de.fu_berlin.inf.dpp.concurrent.management.ConcurrentDocumentClient;
@@ -207,6 +210,68 @@ public final class SarosSession implements ISarosSession {
                 updatePartialSharedResources((IFileSystemModificationActivity) activity);
 
         }
+
+        @Override
+        public void executeTextEdits(SPath path,
+            List<TextEditActivity> textEdits) {
+
+            for (IActivityConsumer consumer : passiveActivityConsumers)
+                beginTextEdits(consumer, path);
+
+            for (IActivityConsumer consumer : activeActivityConsumers)
+                beginTextEdits(consumer, path);
+
+            try {
+                for (TextEditActivity textEdit : textEdits)
+                    execute(textEdit);
+            } finally {
+                for (IActivityConsumer consumer : passiveActivityConsumers)
+                    endTextEdits(consumer, path);
+
+                for (IActivityConsumer consumer : activeActivityConsumers)
+                    endTextEdits(consumer, path);
+            }
+        }
+
+        private void beginTextEdits(IActivityConsumer consumer, SPath path) {
+            try {
+                consumer.beginTextEdits(path);
+            } catch (RuntimeException e) {
+                log.error("error while invoking activity consumer: "
+                    + consumer + ", begin of text edits for: " + path, e);
+            }
+        }
+
+        private void endTextEdits(IActivityConsumer consumer, SPath path) {
+            try {
+                consumer.endTextEdits(path);
+            } catch (RuntimeException e) {
+                log.error("error while invoking activity consumer: "
+                    + consumer + ", end of text edits for: " + path, e);
+            }
+        }
+    };
+
+    /*
+     * Spills the activities queued during a project negotiation in the same
+     * format they are transmitted. The converters of the session must be
+     * registered, so the spilled activities can only be read while the session
+     * is running.
+     */
+    private final ActivityQueuer.Codec queuedActivitiesCodec = new ActivityQueuer.Codec() {
+
+        @Override
+        public byte[] encode(List<IActivity> activities) throws IOException {
+            return ActivitiesExtension.PROVIDER
+                .create(new ActivitiesExtension(sessionID, activities, 0))
+                .toXML().getBytes("UTF-8");
+        }
+
+        @Override
+        public List<IActivity> decode(byte[] data) throws IOException {
+            return ActivitiesExtension.PROVIDER.parseString(
+                new String(data, "UTF-8")).getActivities();
+        }
     };
 
     // FIXME those parameter passing feels strange, find a better way
@@ -600,6 +665,8 @@ public final class SarosSession implements ISarosSession {
         sessionContainer.stop();
         sessionContainer.dispose();
 
+        activityQueuer.dispose();
+
         List<User> usersToNotify;
 
         if (isHost())
@@ -1039,7 +1106,8 @@ public final class SarosSession implements ISarosSession {
 
         this.sessionID = id;
         this.projectMapper = new SharedProjectMapper();
-        this.activityQueuer = new ActivityQueuer();
+        this.activityQueuer = new ActivityQueuer(queuedActivitiesCodec,
+            ActivityQueuer.DEFAULT_MEMORY_BUDGET);
         this.containerContext = context;
 
         // FIXME that should be passed in !
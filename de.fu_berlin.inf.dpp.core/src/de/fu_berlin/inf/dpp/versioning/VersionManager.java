@@ -2,12 +2,17 @@ package de.fu_berlin.inf.dpp.versioning;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 import org.jivesoftware.smack.PacketListener;
@@ -37,9 +42,59 @@ import de.fu_berlin.inf.dpp.net.xmpp.JID;
 @Component(module = "core")
 public class VersionManager {
 
+    /**
+     * Feature token announcing that activities can be received in the format
+     * of the
+     * {@linkplain de.fu_berlin.inf.dpp.communication.extensions.BinaryActivitiesExtension
+     * binary activities extension}.
+     */
+    public static final String FEATURE_BINARY_ACTIVITIES = "bados2";
+
+    /**
+     * Feature token announcing that project contents can be received as a
+     * {@linkplain de.fu_berlin.inf.dpp.communication.extensions.ProjectNegotiationStreamExtension
+     * stream} during a project negotiation instead of as a zip archive.
+     */
+    public static final String FEATURE_PROJECT_STREAMING = "pnstream1";
+
+    /**
+     * Feature token announcing that a consistency recovery can be answered
+     * with the
+     * {@linkplain de.fu_berlin.inf.dpp.concurrent.watchdog.BlockDelta
+     * differences} to the block signatures of the inconsistent files.
+     */
+    public static final String FEATURE_DELTA_RECOVERY = "rdelta1";
+
+    /**
+     * Feature token announcing that the file lists of a project negotiation
+     * can be received as a manifest with collapsed folders, see
+     * {@link de.fu_berlin.inf.dpp.negotiation.FileList}.
+     */
+    public static final String FEATURE_FILE_LIST_MANIFEST = "pnmanifest1";
+
+    /**
+     * Feature token announcing that the chunks of a project stream can be
+     * received out of order, i.e they may be sent concurrently over several
+     * connections.
+     */
+    public static final String FEATURE_PARALLEL_STREAMING = "pnstream2";
+
     private static final String VERSION_KEY = "version";
     private static final String COMPATIBILITY_KEY = "compatibility";
     private static final String ID_KEY = "id";
+    private static final String FEATURES_KEY = "features";
+
+    private static final String FEATURE_SEPARATOR = ",";
+
+    /**
+     * The features the local Saros instance announces during the version
+     * exchange. Older versions just ignore the unknown data.
+     */
+    private static final String LOCAL_FEATURES = FEATURE_BINARY_ACTIVITIES
+        + FEATURE_SEPARATOR + FEATURE_PROJECT_STREAMING + FEATURE_SEPARATOR
+        + FEATURE_DELTA_RECOVERY + FEATURE_SEPARATOR
+        + FEATURE_FILE_LIST_MANIFEST + FEATURE_SEPARATOR
+        + FEATURE_PARALLEL_STREAMING;
 
     private static final Random ID_GENERATOR = new Random();
 
@@ -54,6 +109,12 @@ public class VersionManager {
      */
     private volatile Map<Version, List<Version>> compatibilityChart = new HashMap<Version, List<Version>>();
 
+    /**
+     * The features of remote peers as announced during the last version
+     * exchange with them.
+     */
+    private final Map<JID, Set<String>> remoteFeatures = new ConcurrentHashMap<JID, Set<String>>();
+
     private final Version localVersion;
     private final ITransmitter transmitter;
     private final IReceiver receiver;
@@ -76,11 +137,15 @@ public class VersionManager {
                 return;
             }
 
+            updateRemoteFeatures(new JID(packet.getFrom()),
+                versionExchangeRequest);
+
             VersionExchangeExtension versionExchangeResponse = new VersionExchangeExtension();
 
             createResponseData: {
 
                 versionExchangeResponse.set(VERSION_KEY, localVersion.toString());
+                versionExchangeResponse.set(FEATURES_KEY, LOCAL_FEATURES);
                 versionExchangeResponse.set(COMPATIBILITY_KEY,
                     String.valueOf(Compatibility.UNKNOWN.getCode()));
 
@@ -179,6 +244,8 @@ public class VersionManager {
         if (versionExchangeResponse == null)
             return null;
 
+        updateRemoteFeatures(rqJID, versionExchangeResponse);
+
         Compatibility remoteCompatibility = Compatibility.UNKNOWN;
         Compatibility compatibility = Compatibility.UNKNOWN;
         Version remoteVersion = Version.INVALID;
@@ -228,6 +295,23 @@ public class VersionManager {
             remoteVersion);
     }
 
+    /**
+     * Returns whether the given peer announced support for the given feature
+     * during the last version exchange with it.
+     * 
+     * @param rqJID
+     *            the resource qualified JID of the peer
+     * @param feature
+     *            the feature token, e.g {@link #FEATURE_BINARY_ACTIVITIES}
+     * @return <code>true</code> if the peer supports the feature,
+     *         <code>false</code> if it does not or if no version exchange took
+     *         place with the peer yet
+     */
+    public boolean isFeatureSupported(final JID rqJID, final String feature) {
+        final Set<String> features = remoteFeatures.get(rqJID);
+        return features != null && features.contains(feature);
+    }
+
     /**
      * Sets an compatibility char that contains additional version information.
      * The chart should be loaded from a property file which must use the
@@ -303,6 +387,7 @@ public class VersionManager {
 
         versionExchangeRequest.set(VERSION_KEY, localVersion.toString());
         versionExchangeRequest.set(ID_KEY, String.valueOf(exchangeID));
+        versionExchangeRequest.set(FEATURES_KEY, LOCAL_FEATURES);
 
         IQ request = VersionExchangeExtension.PROVIDER
             .createIQ(versionExchangeRequest);
@@ -340,6 +425,24 @@ public class VersionManager {
         }
     }
 
+    private void updateRemoteFeatures(final JID rqJID,
+        final VersionExchangeExtension versionExchange) {
+
+        final String featuresString = versionExchange.get(FEATURES_KEY);
+
+        if (featuresString == null) {
+            remoteFeatures.put(rqJID, Collections.<String> emptySet());
+            return;
+        }
+
+        final Set<String> features = new HashSet<String>(
+            Arrays.asList(featuresString.split(FEATURE_SEPARATOR)));
+
+        LOG.debug("remote features of " + rqJID + ": " + features);
+
+        remoteFeatures.put(rqJID, features);
+    }
+
     /**
      * Compares the two given versions for compatibility. The result indicates
      * whether the local version is compatible with the remote version.
@@ -16,12 +16,18 @@ de.fu_berlin.inf.dpp.concurrent.TestSuite.class,
 
 de.fu_berlin.inf.dpp.concurrent.jupiter.test.puzzles.TestSuite.class,
 
+de.fu_berlin.inf.dpp.concurrent.watchdog.TestSuite.class,
+
 de.fu_berlin.inf.dpp.editor.colorstorage.TestSuite.class,
 
 de.fu_berlin.inf.dpp.editor.remote.TestSuite.class,
 
+de.fu_berlin.inf.dpp.editor.text.TestSuite.class,
+
 de.fu_berlin.inf.dpp.filesystem.TestSuite.class,
 
+de.fu_berlin.inf.dpp.misc.binary.TestSuite.class,
+
 de.fu_berlin.inf.dpp.misc.xstream.TestSuite.class,
 
 de.fu_berlin.inf.dpp.monitoring.TestSuite.class,
@@ -161,6 +161,142 @@ public class ActivityOptimizerTest {
         assertRange(23, 23, optimized, nop);
     }
 
+    @Test
+    public void testOptimizeSelectionsOfDifferentSources() {
+        SPath path = new SPath(fooProject, fooPath);
+
+        TextSelectionActivity aliceSelection = new TextSelectionActivity(
+            alice, 0, 1, path);
+
+        TextSelectionActivity bobSelection = new TextSelectionActivity(bob, 1,
+            1, path);
+
+        List<IActivity> activities = new ArrayList<IActivity>();
+        activities.add(aliceSelection);
+        activities.add(bobSelection);
+
+        assertEquals("selection of another user was dropped", activities,
+            ActivityOptimizer.optimize(activities));
+    }
+
+    @Test
+    public void testMergeTextEdits() {
+        SPath path = new SPath(fooProject, fooPath);
+        SPath otherPath = new SPath(fooProject, barPath);
+
+        List<IActivity> activities = new ArrayList<IActivity>();
+
+        // typing "abc", replacing "b" with "x" and deleting "c"
+        activities.add(new TextEditActivity(alice, 10, "a", "", path));
+        activities.add(new TextEditActivity(alice, 11, "b", "", path));
+        activities.add(new TextEditActivity(alice, 12, "c", "", path));
+        activities.add(new TextEditActivity(alice, 11, "x", "b", path));
+        activities.add(new TextEditActivity(alice, 12, "", "c", path));
+
+        // deleting two characters before the inserted text with backspace
+        activities.add(new TextEditActivity(alice, 9, "", "2", path));
+        activities.add(new TextEditActivity(alice, 8, "", "1", path));
+
+        // deleting characters after the inserted text
+        activities.add(new TextEditActivity(alice, 10, "", "3", path));
+
+        activities.add(nop);
+
+        // other user, other file and not adjacent
+        activities.add(new TextEditActivity(alice, 0, "d", "", path));
+        activities.add(new TextEditActivity(bob, 1, "e", "", path));
+        activities.add(new TextEditActivity(bob, 2, "f", "", otherPath));
+        activities.add(new TextEditActivity(bob, 5, "g", "", otherPath));
+
+        List<IActivity> optimized = ActivityOptimizer.optimize(activities);
+
+        assertEquals("text edits are not merged", 6, optimized.size());
+
+        assertEquals(new TextEditActivity(alice, 8, "ax", "123", path),
+            optimized.get(0));
+
+        assertSame(nop, optimized.get(1));
+
+        assertEquals(activities.subList(9, 13),
+            optimized.subList(2, optimized.size()));
+    }
+
+    @Test
+    public void testOptimizeEditorFlips() {
+        SPath foo = new SPath(fooProject, fooPath);
+        SPath bar = new SPath(fooProject, barPath);
+
+        EditorActivity activateFoo = new EditorActivity(alice,
+            EditorActivity.Type.ACTIVATED, foo);
+
+        List<IActivity> activities = new ArrayList<IActivity>();
+
+        activities.add(activateFoo);
+        activities.add(new EditorActivity(alice,
+            EditorActivity.Type.ACTIVATED, foo));
+        activities.add(new EditorActivity(alice, EditorActivity.Type.CLOSED,
+            foo));
+        activities.add(new EditorActivity(bob, EditorActivity.Type.ACTIVATED,
+            bar));
+        activities.add(new EditorActivity(alice,
+            EditorActivity.Type.ACTIVATED, foo));
+
+        // must be kept, closing a non active editor does not reset it
+        EditorActivity closeFoo = new EditorActivity(alice,
+            EditorActivity.Type.CLOSED, foo);
+
+        EditorActivity activateBar = new EditorActivity(alice,
+            EditorActivity.Type.ACTIVATED, bar);
+
+        activities.add(closeFoo);
+        activities.add(activateBar);
+
+        List<IActivity> optimized = ActivityOptimizer.optimize(activities);
+
+        assertEquals("editor activities are not optimally optimized", 4,
+            optimized.size());
+
+        assertSame(activities.get(3), optimized.get(0));
+        assertSame(activities.get(4), optimized.get(1));
+        assertSame(closeFoo, optimized.get(2));
+        assertSame(activateBar, optimized.get(3));
+    }
+
+    @Test
+    public void testOptimizeProgressUpdates() {
+        List<IActivity> activities = new ArrayList<IActivity>();
+
+        activities.add(new ProgressActivity(alice, bob, "p", 0, 10, "task",
+            ProgressActivity.ProgressAction.BEGINTASK));
+
+        for (int i = 1; i <= 5; i++) {
+            activities.add(new ProgressActivity(alice, bob, "p", i, 10, null,
+                ProgressActivity.ProgressAction.UPDATE));
+
+            activities.add(new ProgressActivity(alice, bob, "q", i, 10, null,
+                ProgressActivity.ProgressAction.UPDATE));
+        }
+
+        activities.add(new ProgressActivity(alice, bob, "p", 5, 10, "sub",
+            ProgressActivity.ProgressAction.SUBTASK));
+
+        activities.add(new ProgressActivity(alice, bob, "p", 6, 10, null,
+            ProgressActivity.ProgressAction.UPDATE));
+
+        List<IActivity> optimized = ActivityOptimizer.optimize(activities);
+
+        assertEquals("progress updates are not optimally optimized", 7,
+            optimized.size());
+
+        assertSame(activities.get(0), optimized.get(0));
+        assertSame(activities.get(1), optimized.get(1));
+        assertSame(activities.get(2), optimized.get(2));
+        assertSame(activities.get(9), optimized.get(3));
+        assertSame(activities.get(10), optimized.get(4));
+        assertSame(activities.get(11), optimized.get(5));
+        assertSame(activities.get(12), optimized.get(6));
+    }
+
     private void assertRange(int l, int h, List<IActivity> activities,
         IActivity activity) {
         for (int i = l; i <= h; i++)
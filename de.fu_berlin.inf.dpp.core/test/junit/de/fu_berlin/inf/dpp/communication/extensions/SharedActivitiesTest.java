@@ -0,0 +1,110 @@
+package de.fu_berlin.inf.dpp.communication.extensions;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Inflater;
+
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.junit.Test;
+
+import de.fu_berlin.inf.dpp.activities.EditorActivity;
+import de.fu_berlin.inf.dpp.activities.IActivity;
+import de.fu_berlin.inf.dpp.activities.NOPActivity;
+import de.fu_berlin.inf.dpp.net.ICompressedPacketExtension;
+import de.fu_berlin.inf.dpp.net.xmpp.JID;
+import de.fu_berlin.inf.dpp.session.User;
+
+public class SharedActivitiesTest {
+
+    private final User alice = new User(new JID("alice@test/Saros"), true,
+        true, 0, 0);
+
+    private final JID bobJID = new JID("bob@test/Saros");
+
+    private final JID carlJID = new JID("carl@test/Saros");
+
+    @Test
+    public void testExtensionsAreEqualToUnsharedExtensions() throws Exception {
+        final List<IActivity> activities = createActivities();
+
+        final SharedActivities shared = new SharedActivities("Session-ID",
+            activities);
+
+        for (int sequenceNumber : new int[] { 0, 7, 123456, -1 }) {
+            for (JID recipient : new JID[] { bobJID, carlJID }) {
+                final PacketExtension extension = shared.create(recipient,
+                    sequenceNumber);
+
+                final String expected = ActivitiesExtension.PROVIDER.create(
+                    new ActivitiesExtension("Session-ID", activities,
+                        sequenceNumber)).toXML();
+
+                assertEquals(expected, extension.toXML());
+
+                assertTrue(extension instanceof ICompressedPacketExtension);
+
+                assertArrayEquals(expected.getBytes("UTF-8"),
+                    inflate(((ICompressedPacketExtension) extension)
+                        .toCompressedByteArray()));
+            }
+        }
+    }
+
+    @Test
+    public void testPayloadContainsSequenceNumber() {
+        final SharedActivities shared = new SharedActivities("Session-ID",
+            createActivities());
+
+        final ActivitiesExtension payload = ActivitiesExtension.PROVIDER
+            .getPayload(shared.create(bobJID, 42));
+
+        assertEquals(42, payload.getSequenceNumber());
+        assertEquals(3, payload.getActivities().size());
+    }
+
+    @Test
+    public void testUnmarshalSharedExtension() throws Exception {
+        final SharedActivities shared = new SharedActivities("Session-ID",
+            createActivities());
+
+        final ActivitiesExtension payload = ActivitiesExtension.PROVIDER
+            .parseString(shared.create(carlJID, 4711).toXML());
+
+        assertEquals("Session-ID", payload.getSessionID());
+        assertEquals(4711, payload.getSequenceNumber());
+        assertEquals(createActivities(), payload.getActivities());
+    }
+
+    private List<IActivity> createActivities() {
+        final List<IActivity> activities = new ArrayList<IActivity>();
+
+        activities.add(new EditorActivity(alice,
+            EditorActivity.Type.ACTIVATED, null));
+        activities.add(new NOPActivity(alice, alice, 1));
+        activities.add(new NOPActivity(alice, alice, 2));
+
+        return activities;
+    }
+
+    private static byte[] inflate(byte[] data) throws Exception {
+        final Inflater inflater = new Inflater();
+        inflater.setInput(data);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+
+        try {
+            while (!inflater.finished())
+                out.write(buffer, 0, inflater.inflate(buffer));
+        } finally {
+            inflater.end();
+        }
+
+        return out.toByteArray();
+    }
+}
@@ -4,7 +4,8 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
-@Suite.SuiteClasses({ ActivitiesExtensionProviderTest.class })
+@Suite.SuiteClasses({ ActivitiesExtensionProviderTest.class,
+    SharedActivitiesTest.class })
 public class TestSuite {
     // the class remains completely empty,
     // being used only as a holder for the above annotations
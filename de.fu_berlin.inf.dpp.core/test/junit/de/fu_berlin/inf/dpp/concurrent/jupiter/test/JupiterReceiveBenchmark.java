@@ -0,0 +1,87 @@
+package de.fu_berlin.inf.dpp.concurrent.jupiter.test;
+
+import de.fu_berlin.inf.dpp.activities.JupiterActivity;
+import de.fu_berlin.inf.dpp.concurrent.jupiter.internal.Jupiter;
+import de.fu_berlin.inf.dpp.concurrent.jupiter.internal.JupiterVectorTime;
+import de.fu_berlin.inf.dpp.concurrent.jupiter.internal.text.InsertOperation;
+import de.fu_berlin.inf.dpp.concurrent.jupiter.test.util.JupiterTestCase;
+import de.fu_berlin.inf.dpp.session.User;
+
+/**
+ * Measures the cost of receiving a remote operation while a number of local
+ * operations are still unacknowledged, e.g a fast typist on a high latency
+ * link, with and without merging the unacknowledged operations.
+ * <p>
+ * This is not a unit test and is not part of any test suite. Run it manually
+ * with the core test class path, e.g
+ *
+ * <pre>
+ * java -cp ... de.fu_berlin.inf.dpp.concurrent.jupiter.test.JupiterReceiveBenchmark [pending ops ...]
+ * </pre>
+ */
+public class JupiterReceiveBenchmark {
+
+    private static final int WARMUP_ROUNDS = 3;
+
+    private static final int RECEIVES_PER_ROUND = 200;
+
+    private static final int ROUNDS = 50;
+
+    private static volatile Object sink;
+
+    public static void main(String... args) throws Exception {
+        int[] pendingCounts = { 50, 200, 1000 };
+
+        if (args.length > 0) {
+            pendingCounts = new int[args.length];
+
+            for (int i = 0; i < args.length; i++)
+                pendingCounts[i] = Integer.parseInt(args[i]);
+        }
+
+        final User local = JupiterTestCase.createUser("local");
+        final User remote = JupiterTestCase.createUser("remote");
+
+        for (int pending : pendingCounts) {
+            long uncompacted = 0;
+            long compacted = 0;
+
+            for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+                uncompacted = run(pending, false, local, remote);
+                compacted = run(pending, true, local, remote);
+            }
+
+            System.out.println("pending ops: " + pending + ", uncompacted: "
+                + uncompacted + " ns/receive, compacted: " + compacted
+                + " ns/receive");
+        }
+    }
+
+    private static long run(int pending, boolean compact, User local,
+        User remote) throws Exception {
+
+        long time = 0;
+
+        for (int round = 0; round < ROUNDS; round++) {
+            final Jupiter jupiter = new Jupiter(true, compact);
+
+            // the local user types at the end of the document
+            for (int i = 0; i < pending; i++)
+                jupiter.generateJupiterActivity(new InsertOperation(1000 + i,
+                    "x"), local, null);
+
+            final long start = System.nanoTime();
+
+            // the remote user types at the start without seeing our changes
+            for (int i = 0; i < RECEIVES_PER_ROUND; i++) {
+                sink = jupiter.receiveJupiterActivity(new JupiterActivity(
+                    new JupiterVectorTime(i, 0), new InsertOperation(i, "y"),
+                    remote, null));
+            }
+
+            time += System.nanoTime() - start;
+        }
+
+        return time / (ROUNDS * RECEIVES_PER_ROUND);
+    }
+}
@@ -0,0 +1,207 @@
+package de.fu_berlin.inf.dpp.concurrent.jupiter.test.puzzles;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.LinkedList;
+import java.util.Random;
+
+import org.junit.Test;
+
+import de.fu_berlin.inf.dpp.activities.JupiterActivity;
+import de.fu_berlin.inf.dpp.concurrent.jupiter.Operation;
+import de.fu_berlin.inf.dpp.concurrent.jupiter.TransformationException;
+import de.fu_berlin.inf.dpp.concurrent.jupiter.internal.Jupiter;
+import de.fu_berlin.inf.dpp.concurrent.jupiter.internal.text.DeleteOperation;
+import de.fu_berlin.inf.dpp.concurrent.jupiter.internal.text.ITextOperation;
+import de.fu_berlin.inf.dpp.concurrent.jupiter.internal.text.InsertOperation;
+import de.fu_berlin.inf.dpp.concurrent.jupiter.test.util.JupiterTestCase;
+import de.fu_berlin.inf.dpp.session.User;
+
+/**
+ * Checks that merging unacknowledged operations in the outgoing list of the
+ * Jupiter algorithm does not change the results of the transformations.
+ */
+public class OperationCompactionTest {
+
+    private static final String INITIAL_TEXT = "The quick brown fox jumps over the lazy dog";
+
+    private final User client = JupiterTestCase.createUser("client");
+
+    private final User server = JupiterTestCase.createUser("server");
+
+    @Test
+    public void testTypingWithConcurrentEdits() throws Exception {
+        for (long seed = 0; seed < 200; seed++) {
+            final String compacted = simulate(seed, true);
+            final String uncompacted = simulate(seed, false);
+
+            assertEquals("compaction changed the result, seed: " + seed,
+                uncompacted, compacted);
+        }
+    }
+
+    @Test
+    public void testPartialAcknowledgement() throws Exception {
+        final Site clientSite = new Site(new Jupiter(true, true), client,
+            "abc");
+        final Site serverSite = new Site(new Jupiter(false, true), server,
+            "abc");
+
+        clientSite.generate(new InsertOperation(3, "d"));
+        clientSite.generate(new InsertOperation(4, "e"));
+        clientSite.generate(new InsertOperation(5, "f"));
+
+        // the server has only seen the first operation
+        serverSite.receive(clientSite.outgoing.removeFirst());
+        serverSite.generate(new InsertOperation(4, "X"));
+
+        clientSite.receive(serverSite.outgoing.removeFirst());
+
+        while (!clientSite.outgoing.isEmpty())
+            serverSite.receive(clientSite.outgoing.removeFirst());
+
+        assertEquals("abcdXef", clientSite.document.toString());
+        assertEquals("abcdXef", serverSite.document.toString());
+    }
+
+    @Test
+    public void testBackspaceWithConcurrentInsert() throws Exception {
+        final Site clientSite = new Site(new Jupiter(true, true), client,
+            "abcdef");
+        final Site serverSite = new Site(new Jupiter(false, true), server,
+            "abcdef");
+
+        clientSite.generate(new DeleteOperation(5, "f"));
+        clientSite.generate(new DeleteOperation(4, "e"));
+        clientSite.generate(new DeleteOperation(3, "d"));
+
+        serverSite.generate(new InsertOperation(5, "X"));
+
+        clientSite.receive(serverSite.outgoing.removeFirst());
+
+        while (!clientSite.outgoing.isEmpty())
+            serverSite.receive(clientSite.outgoing.removeFirst());
+
+        assertEquals("abcX", clientSite.document.toString());
+        assertEquals("abcX", serverSite.document.toString());
+    }
+
+    /**
+     * Simulates a client that types, deletes and jumps around in the document
+     * while the server performs random edits and both sites receive the
+     * operations of the other site with random delays.
+     *
+     * @return the converged document
+     */
+    private String simulate(long seed, boolean compact)
+        throws TransformationException {
+
+        final Random random = new Random(seed);
+
+        final Site clientSite = new Site(new Jupiter(true, compact), client,
+            INITIAL_TEXT);
+
+        final Site serverSite = new Site(new Jupiter(false, compact), server,
+            INITIAL_TEXT);
+
+        int cursor = random.nextInt(INITIAL_TEXT.length());
+
+        for (int step = 0; step < 300; step++) {
+            final int action = random.nextInt(100);
+
+            final int clientLength = clientSite.document.length();
+
+            cursor = Math.min(cursor, clientLength);
+
+            if (action < 45) {
+                clientSite.generate(new InsertOperation(cursor, String
+                    .valueOf((char) ('a' + random.nextInt(26)))));
+                cursor++;
+            } else if (action < 55 && cursor > 0) {
+                clientSite.generate(new DeleteOperation(cursor - 1,
+                    clientSite.document.substring(cursor - 1, cursor)));
+                cursor--;
+            } else if (action < 60 && cursor < clientLength) {
+                clientSite.generate(new DeleteOperation(cursor,
+                    clientSite.document.substring(cursor, cursor + 1)));
+            } else if (action < 63) {
+                cursor = random.nextInt(clientLength + 1);
+            } else if (action < 73) {
+                serverSite.generateRandom(random);
+            } else if (action < 85 && !clientSite.outgoing.isEmpty()) {
+                serverSite.receive(clientSite.outgoing.removeFirst());
+            } else if (!serverSite.outgoing.isEmpty()) {
+                clientSite.receive(serverSite.outgoing.removeFirst());
+            }
+        }
+
+        while (!clientSite.outgoing.isEmpty() || !serverSite.outgoing.isEmpty()) {
+            if (!clientSite.outgoing.isEmpty())
+                serverSite.receive(clientSite.outgoing.removeFirst());
+
+            if (!serverSite.outgoing.isEmpty())
+                clientSite.receive(serverSite.outgoing.removeFirst());
+        }
+
+        assertEquals("documents did not converge, seed: " + seed
+            + ", compaction: " + compact, serverSite.document.toString(),
+            clientSite.document.toString());
+
+        return clientSite.document.toString();
+    }
+
+    private static class Site {
+
+        private final Jupiter jupiter;
+
+        private final User user;
+
+        private final StringBuilder document;
+
+        private final LinkedList<JupiterActivity> outgoing = new LinkedList<JupiterActivity>();
+
+        Site(Jupiter jupiter, User user, String text) {
+            this.jupiter = jupiter;
+            this.user = user;
+            this.document = new StringBuilder(text);
+        }
+
+        void generate(Operation op) {
+            apply(op);
+            outgoing.add(jupiter.generateJupiterActivity(op, user, null));
+        }
+
+        void generateRandom(Random random) {
+            final int length = document.length();
+            final int position = random.nextInt(length + 1);
+
+            if (length > 0 && random.nextBoolean()) {
+                final int end = Math.min(length,
+                    position + 1 + random.nextInt(3));
+
+                if (position < end) {
+                    generate(new DeleteOperation(position, document.substring(
+                        position, end)));
+                    return;
+                }
+            }
+
+            generate(new InsertOperation(position, "XY".substring(0,
+                1 + random.nextInt(2))));
+        }
+
+        void receive(JupiterActivity activity) throws TransformationException {
+            apply(jupiter.receiveJupiterActivity(activity));
+        }
+
+        private void apply(Operation op) {
+            for (ITextOperation textOp : op.getTextOperations()) {
+                if (textOp instanceof InsertOperation)
+                    document.insert(textOp.getPosition(), textOp.getText());
+                else
+                    document.delete(textOp.getPosition(), textOp.getPosition()
+                        + textOp.getTextLength());
+            }
+        }
+    }
+}
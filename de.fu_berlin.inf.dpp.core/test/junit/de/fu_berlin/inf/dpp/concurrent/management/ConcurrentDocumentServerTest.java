@@ -0,0 +1,126 @@
+package de.fu_berlin.inf.dpp.concurrent.management;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.fu_berlin.inf.dpp.activities.FileActivity;
+import de.fu_berlin.inf.dpp.activities.SPath;
+import de.fu_berlin.inf.dpp.session.ISarosSession;
+import de.fu_berlin.inf.dpp.session.User;
+
+public class ConcurrentDocumentServerTest {
+
+    private ConcurrentDocumentServer server;
+
+    private User user;
+
+    @Before
+    public void setUp() {
+        ISarosSession session = EasyMock.createNiceMock(ISarosSession.class);
+        EasyMock.replay(session);
+
+        user = EasyMock.createNiceMock(User.class);
+        EasyMock.replay(user);
+
+        server = new ConcurrentDocumentServer(session);
+    }
+
+    @Test
+    public void testModifiedPaths() {
+        final SPath before = createPath();
+        final SPath after = createPath();
+
+        modify(before);
+
+        final long stamp = server.getModificationStamp();
+
+        modify(after);
+
+        assertEquals(Collections.singleton(after),
+            server.getModifiedPaths(stamp));
+    }
+
+    @Test
+    public void testMoveModifiesBothPaths() {
+        final SPath oldPath = createPath();
+        final SPath newPath = createPath();
+
+        final long stamp = server.getModificationStamp();
+
+        server.checkFileDeleted(new FileActivity(user, FileActivity.Type.MOVED,
+            newPath, oldPath, null, null, FileActivity.Purpose.ACTIVITY));
+
+        assertEquals(new HashSet<SPath>(Arrays.asList(oldPath,
+            newPath)), server.getModifiedPaths(stamp));
+    }
+
+    @Test
+    public void testModificationsArePrunedAfterRelease() {
+        final SPath first = createPath();
+        final SPath second = createPath();
+
+        final long oldStamp = server.getModificationStamp();
+
+        modify(first);
+
+        final long newStamp = server.getModificationStamp();
+
+        modify(second);
+
+        server.releaseModificationStamp(newStamp);
+
+        // still needed for the outstanding old stamp
+        assertEquals(2, server.getModifiedPaths(oldStamp).size());
+
+        server.releaseModificationStamp(oldStamp);
+
+        final Set<SPath> modified = server.getModifiedPaths(-1);
+
+        assertTrue("modifications were not pruned: " + modified,
+            modified.isEmpty());
+    }
+
+    @Test
+    public void testModificationsOfOutstandingStampsAreKept() {
+        final SPath first = createPath();
+        final SPath second = createPath();
+
+        final long oldStamp = server.getModificationStamp();
+
+        modify(first);
+
+        final long newStamp = server.getModificationStamp();
+
+        modify(second);
+
+        server.releaseModificationStamp(oldStamp);
+
+        assertEquals(Collections.singleton(second),
+            server.getModifiedPaths(newStamp));
+
+        assertEquals("modification older than the outstanding stamp was "
+            + "not pruned", Collections.singleton(second),
+            server.getModifiedPaths(-1));
+    }
+
+    private void modify(SPath path) {
+        server.checkFileDeleted(new FileActivity(user,
+            FileActivity.Type.CREATED, path, null, new byte[0], null,
+            FileActivity.Purpose.ACTIVITY));
+    }
+
+    private static SPath createPath() {
+        SPath path = EasyMock.createMock(SPath.class);
+        EasyMock.replay(path);
+        return path;
+    }
+}
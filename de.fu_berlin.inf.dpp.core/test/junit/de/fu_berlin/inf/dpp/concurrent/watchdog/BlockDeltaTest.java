@@ -0,0 +1,121 @@
+package de.fu_berlin.inf.dpp.concurrent.watchdog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BlockDeltaTest {
+
+    private static String createText(long seed, int length) {
+        final Random random = new Random(seed);
+        final StringBuilder builder = new StringBuilder(length);
+
+        while (builder.length() < length) {
+            builder.append("line ").append(random.nextInt(100000));
+            builder.append(random.nextInt(10) == 0 ? " äöü\n" : "\n");
+        }
+
+        builder.setLength(length);
+        return builder.toString();
+    }
+
+    private static String recover(String base, String content)
+        throws IOException {
+        final byte[] delta = BlockDelta.createDelta(
+            BlockDelta.createSignatures(base), content);
+
+        return BlockDelta.applyDelta(base, delta);
+    }
+
+    @Test
+    public void testUnchangedContent() throws IOException {
+        final String text = createText(1, 100000);
+
+        final byte[] delta = BlockDelta.createDelta(
+            BlockDelta.createSignatures(text), text);
+
+        assertEquals(text, BlockDelta.applyDelta(text, delta));
+        assertTrue("delta of an unchanged text is too large: " + delta.length,
+            delta.length < 64);
+    }
+
+    @Test
+    public void testSmallChangeInLargeContent() throws IOException {
+        final String base = createText(2, 500000);
+        final String content = base.substring(0, 250000) + "changed"
+            + base.substring(250010);
+
+        final byte[] delta = BlockDelta.createDelta(
+            BlockDelta.createSignatures(base), content);
+
+        assertEquals(content, BlockDelta.applyDelta(base, delta));
+        assertTrue("delta is too large: " + delta.length,
+            delta.length < 4 * BlockDelta.MIN_BLOCK_SIZE * 3);
+    }
+
+    @Test
+    public void testInsertionsAndDeletions() throws IOException {
+        final String base = createText(3, 50000);
+
+        final String content = "header\n" + base.substring(0, 10000)
+            + base.substring(12345, 30000) + createText(4, 3000)
+            + base.substring(30000) + "footer";
+
+        assertEquals(content, recover(base, content));
+    }
+
+    @Test
+    public void testMovedBlocks() throws IOException {
+        final String base = createText(5, 20000);
+        final String content = base.substring(10000) + base.substring(0, 10000);
+
+        assertEquals(content, recover(base, content));
+    }
+
+    @Test
+    public void testCompletelyDifferentContent() throws IOException {
+        assertEquals("b", recover("a", "b"));
+
+        final String content = createText(7, 100000);
+        assertEquals(content, recover(createText(6, 30000), content));
+    }
+
+    @Test
+    public void testEmptyContents() throws IOException {
+        final String text = createText(8, 5000);
+
+        assertEquals(text, recover("", text));
+        assertEquals("", recover(text, ""));
+        assertEquals("", recover("", ""));
+    }
+
+    @Test
+    public void testLongLiteral() throws IOException {
+        final StringBuilder builder = new StringBuilder();
+
+        // three bytes per char in modified UTF-8
+        for (int i = 0; i < 70000; i++)
+            builder.append('€');
+
+        assertEquals(builder.toString(), recover("", builder.toString()));
+    }
+
+    @Test(expected = IOException.class)
+    public void testWrongBase() throws IOException {
+        final String base = createText(9, 10000);
+
+        final byte[] delta = BlockDelta.createDelta(
+            BlockDelta.createSignatures(base), base + "appended");
+
+        BlockDelta.applyDelta(base.replace('1', '2'), delta);
+    }
+
+    @Test(expected = IOException.class)
+    public void testMalformedSignatures() throws IOException {
+        BlockDelta.createDelta(new byte[] { 0, 0, 1, 0, 0, 0, 0, 100 }, "text");
+    }
+}
@@ -0,0 +1,138 @@
+package de.fu_berlin.inf.dpp.concurrent.watchdog;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.capture;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.easymock.Capture;
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.fu_berlin.inf.dpp.activities.ChecksumActivity;
+import de.fu_berlin.inf.dpp.activities.IActivity;
+import de.fu_berlin.inf.dpp.activities.SPath;
+import de.fu_berlin.inf.dpp.activities.TextEditActivity;
+import de.fu_berlin.inf.dpp.editor.IEditorManager;
+import de.fu_berlin.inf.dpp.editor.ISharedEditorListener;
+import de.fu_berlin.inf.dpp.editor.remote.UserEditorStateManager;
+import de.fu_berlin.inf.dpp.filesystem.IPath;
+import de.fu_berlin.inf.dpp.filesystem.IProject;
+import de.fu_berlin.inf.dpp.session.IActivityListener;
+import de.fu_berlin.inf.dpp.session.ISarosSession;
+import de.fu_berlin.inf.dpp.session.User;
+import de.fu_berlin.inf.dpp.synchronize.StopManager;
+import de.fu_berlin.inf.dpp.synchronize.UISynchronizer;
+
+public class ConsistencyWatchdogServerTest {
+
+    private final List<ChecksumActivity> sentChecksums = new CopyOnWriteArrayList<ChecksumActivity>();
+
+    private SPath path;
+    private User host;
+
+    private UISynchronizer synchronizer;
+    private ISharedEditorListener editorListener;
+    private ConsistencyWatchdogServer watchdog;
+
+    @Before
+    public void setUp() {
+        IProject project = EasyMock.createNiceMock(IProject.class);
+        IPath projectRelativePath = EasyMock.createNiceMock(IPath.class);
+        host = EasyMock.createNiceMock(User.class);
+
+        EasyMock.replay(project, projectRelativePath, host);
+
+        path = new SPath(project, projectRelativePath);
+
+        ISarosSession session = EasyMock.createNiceMock(ISarosSession.class);
+        expect(session.isHost()).andStubReturn(true);
+        expect(session.getLocalUser()).andStubReturn(host);
+        expect(session.getRemoteUsers()).andStubReturn(
+            Collections.<User> emptyList());
+
+        Capture<ISharedEditorListener> listener = new Capture<ISharedEditorListener>();
+
+        IEditorManager editorManager = EasyMock
+            .createNiceMock(IEditorManager.class);
+        editorManager.addSharedEditorListener(capture(listener));
+        expectLastCall().once();
+        expect(editorManager.getOpenEditors()).andStubReturn(
+            Collections.singleton(path));
+        expect(editorManager.getContent(anyObject(SPath.class)))
+            .andStubReturn("Hello World");
+
+        EasyMock.replay(session, editorManager);
+
+        // all runnables are executed mutually exclusive like on a UI thread
+        synchronizer = new UISynchronizer() {
+            @Override
+            public synchronized void syncExec(Runnable runnable) {
+                runnable.run();
+            }
+
+            @Override
+            public void asyncExec(Runnable runnable) {
+                syncExec(runnable);
+            }
+
+            @Override
+            public boolean isUIThread() {
+                return Thread.holdsLock(this);
+            }
+        };
+
+        watchdog = new ConsistencyWatchdogServer(session, editorManager,
+            new StopManager(session), synchronizer,
+            new UserEditorStateManager(session));
+
+        watchdog.addActivityListener(new IActivityListener() {
+            @Override
+            public void created(IActivity activity) {
+                sentChecksums.add((ChecksumActivity) activity);
+            }
+        });
+
+        watchdog.start();
+        editorListener = listener.getValue();
+    }
+
+    @After
+    public void tearDown() {
+        watchdog.stop();
+    }
+
+    @Test(timeout = 30000)
+    public void testOnlyChangedChecksumsAreSent() throws Exception {
+        awaitChecksums(1);
+        assertEquals("Hello World".hashCode(), sentChecksums.get(0).getHash());
+
+        // an idle check must not send the unchanged checksum again
+        Thread.sleep(3000);
+        assertEquals(1, sentChecksums.size());
+
+        synchronizer.syncExec(new Runnable() {
+            @Override
+            public void run() {
+                editorListener.textEdited(new TextEditActivity(host, 11, "!",
+                    "", path));
+            }
+        });
+
+        awaitChecksums(2);
+        assertEquals("Hello World!".hashCode(), sentChecksums.get(1).getHash());
+        assertEquals("Hello World!".length(), sentChecksums.get(1).getLength());
+    }
+
+    private void awaitChecksums(int count) throws InterruptedException {
+        while (sentChecksums.size() < count)
+            Thread.sleep(50);
+    }
+}
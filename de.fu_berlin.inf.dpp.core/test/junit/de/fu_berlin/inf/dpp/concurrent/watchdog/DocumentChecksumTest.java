@@ -0,0 +1,128 @@
+package de.fu_berlin.inf.dpp.concurrent.watchdog;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.fu_berlin.inf.dpp.activities.SPath;
+import de.fu_berlin.inf.dpp.activities.TextEditActivity;
+import de.fu_berlin.inf.dpp.editor.text.Rope;
+import de.fu_berlin.inf.dpp.filesystem.IPath;
+import de.fu_berlin.inf.dpp.filesystem.IProject;
+import de.fu_berlin.inf.dpp.session.User;
+
+public class DocumentChecksumTest {
+
+    private SPath path;
+    private User source;
+    private DocumentChecksum checksum;
+
+    @Before
+    public void setUp() {
+        IProject project = EasyMock.createNiceMock(IProject.class);
+        IPath projectRelativePath = EasyMock.createNiceMock(IPath.class);
+        expect(projectRelativePath.isAbsolute()).andStubReturn(false);
+
+        source = EasyMock.createNiceMock(User.class);
+
+        EasyMock.replay(project, projectRelativePath, source);
+
+        path = new SPath(project, projectRelativePath);
+        checksum = new DocumentChecksum(path);
+    }
+
+    @Test
+    public void testFullUpdate() {
+        assertTrue(checksum.isDirty());
+
+        checksum.update("Hello World");
+
+        assertFalse(checksum.isDirty());
+        assertEquals("Hello World".length(), checksum.getLength());
+        assertEquals("Hello World".hashCode(), checksum.getHash());
+    }
+
+    @Test
+    public void testDocumentNotAvailable() {
+        checksum.update((String) null);
+
+        assertEquals(DocumentChecksum.NOT_AVAILABLE, checksum.getLength());
+        assertEquals(DocumentChecksum.NOT_AVAILABLE, checksum.getHash());
+    }
+
+    @Test
+    public void testIncrementalUpdate() {
+        checksum.update("Hello World");
+
+        checksum.update(edit(5, ",", ""));
+        checksum.update(edit(7, "Saros", "World"));
+        checksum.update(edit(12, "!!", ""));
+        checksum.update(edit(13, "", "!"));
+
+        assertFalse(checksum.isDirty());
+        assertEquals("Hello, Saros!".length(), checksum.getLength());
+        assertEquals("Hello, Saros!".hashCode(), checksum.getHash());
+    }
+
+    @Test
+    public void testNonDirtyChecksumIsNotRecalculated() {
+        checksum.update("Hello World");
+        checksum.update("Goodbye");
+
+        assertEquals("Hello World".hashCode(), checksum.getHash());
+    }
+
+    @Test
+    public void testMismatchingEditMarksDirty() {
+        checksum.update("Hello World");
+
+        checksum.update(edit(0, "Bye", "Hi"));
+
+        assertTrue(checksum.isDirty());
+
+        checksum.update("Bye World");
+        assertEquals("Bye World".hashCode(), checksum.getHash());
+    }
+
+    @Test
+    public void testOutOfBoundsEditMarksDirty() {
+        checksum.update("Hello World");
+
+        checksum.update(edit(12, "!", ""));
+
+        assertTrue(checksum.isDirty());
+    }
+
+    @Test
+    public void testEditIsIgnoredWhileDirty() {
+        checksum.update(edit(0, "foo", ""));
+
+        assertTrue(checksum.isDirty());
+
+        checksum.update("bar");
+        assertEquals("bar".hashCode(), checksum.getHash());
+    }
+
+    @Test
+    public void testOutdatedContentIsRejected() {
+        final int revision = checksum.getRevision();
+
+        checksum.update(edit(0, "foo", ""));
+
+        assertFalse(checksum.update(Rope.valueOf("bar"), revision));
+        assertTrue(checksum.isDirty());
+
+        assertTrue(checksum.update(Rope.valueOf("foobar"),
+            checksum.getRevision()));
+        assertEquals("foobar".hashCode(), checksum.getHash());
+    }
+
+    private TextEditActivity edit(int offset, String text, String replacedText) {
+        return new TextEditActivity(source, offset, text, replacedText, path);
+    }
+}
@@ -0,0 +1,12 @@
+package de.fu_berlin.inf.dpp.concurrent.watchdog;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+
+@RunWith(Suite.class)
+@Suite.SuiteClasses({ BlockDeltaTest.class,
+    ConsistencyWatchdogServerTest.class, DocumentChecksumTest.class })
+public class TestSuite {
+    // the class remains completely empty,
+    // being used only as a holder for the above annotations
+}
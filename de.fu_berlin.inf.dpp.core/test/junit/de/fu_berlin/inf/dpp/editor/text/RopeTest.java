@@ -0,0 +1,137 @@
+package de.fu_berlin.inf.dpp.editor.text;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RopeTest {
+
+    @Test
+    public void testEmpty() {
+        assertEquals(0, Rope.EMPTY.length());
+        assertEquals("", Rope.EMPTY.toString());
+        assertEquals("", Rope.valueOf("").toString());
+        assertEquals(0, Rope.EMPTY.contentHash());
+    }
+
+    @Test
+    public void testInsertDeleteReplace() {
+        Rope rope = Rope.valueOf("Hello World");
+
+        rope = rope.insert(5, ",");
+        assertEquals("Hello, World", rope.toString());
+
+        rope = rope.delete(0, 7);
+        assertEquals("World", rope.toString());
+
+        rope = rope.replace(0, 5, "Saros");
+        assertEquals("Saros", rope.toString());
+        assertEquals(5, rope.length());
+    }
+
+    @Test
+    public void testRopeIsImmutable() {
+        final Rope rope = Rope.valueOf("foo");
+        rope.insert(3, "bar");
+
+        assertEquals("foo", rope.toString());
+    }
+
+    @Test
+    public void testSubstring() {
+        final StringBuilder builder = new StringBuilder();
+
+        for (int i = 0; i < 5000; i++)
+            builder.append(i);
+
+        final String text = builder.toString();
+        final Rope rope = Rope.valueOf(text);
+
+        assertEquals(text, rope.toString());
+        assertEquals(text.substring(1000, 3500), rope.substring(1000, 3500));
+        assertEquals(text.substring(1023, 1025), rope.substring(1023, 1025));
+        assertEquals("", rope.substring(42, 42));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testInsertOutOfBounds() {
+        Rope.valueOf("foo").insert(4, "bar");
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testDeleteOutOfBounds() {
+        Rope.valueOf("foo").delete(2, 2);
+    }
+
+    @Test
+    public void testRandomEdits() {
+        final Random random = new Random(4711);
+
+        final StringBuilder expected = new StringBuilder();
+        Rope rope = Rope.EMPTY;
+
+        for (int i = 0; i < 20000; i++) {
+            final int offset = random.nextInt(expected.length() + 1);
+            final int length = random.nextInt(4) == 0 ? random
+                .nextInt(Math.min(expected.length() - offset, 50) + 1) : 0;
+
+            final String text = randomText(random, random.nextInt(3) == 0 ? 0
+                : random.nextInt(i % 100 == 0 ? 3000 : 10) + 1);
+
+            expected.replace(offset, offset + length, text);
+            rope = rope.replace(offset, length, text);
+
+            assertEquals(expected.length(), rope.length());
+        }
+
+        assertEquals(expected.toString(), rope.toString());
+        assertEquals(expected.toString().hashCode(), rope.contentHash());
+    }
+
+    @Test
+    public void testContentHashIsEqualToStringHash() {
+        final Random random = new Random(23);
+
+        Rope rope = Rope.valueOf(randomText(random, 5000));
+
+        for (int i = 0; i < 1000; i++) {
+            final int offset = random.nextInt(rope.length() + 1);
+            final int length = Math.min(random.nextInt(5), rope.length()
+                - offset);
+
+            rope = rope.replace(offset, length,
+                randomText(random, random.nextInt(5)));
+
+            assertEquals(rope.toString().hashCode(), rope.contentHash());
+        }
+    }
+
+    @Test
+    public void testTreeStaysBalanced() {
+        Rope rope = Rope.valueOf(randomText(new Random(42), 1000000));
+
+        // typing at the beginning and at the end of a large document
+        for (int i = 0; i < 10000; i++) {
+            rope = rope.insert(0, "x");
+            rope = rope.insert(rope.length(), "y");
+        }
+
+        final int chunks = rope.length() / Rope.MAX_CHUNK_LENGTH + 1;
+
+        // the height of an AVL tree is less than 1.45 * log2(n + 2)
+        assertTrue("tree is not balanced, height: " + rope.height(),
+            rope.height() < 1.45 * Math.log(chunks * 2 + 2) / Math.log(2));
+    }
+
+    private static String randomText(Random random, int length) {
+        final char[] text = new char[length];
+
+        for (int i = 0; i < length; i++)
+            text[i] = (char) ('a' + random.nextInt(26));
+
+        return new String(text);
+    }
+}
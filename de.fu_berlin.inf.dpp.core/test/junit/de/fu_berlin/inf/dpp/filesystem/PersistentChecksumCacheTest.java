@@ -0,0 +1,242 @@
+package de.fu_berlin.inf.dpp.filesystem;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.apache.commons.io.FileUtils;
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PersistentChecksumCacheTest {
+
+    private File directory;
+
+    private File cacheFile;
+
+    private PersistentChecksumCache cache;
+
+    private IFileContentChangedListener listener;
+
+    private IFileContentChangedNotifier notifier = new IFileContentChangedNotifier() {
+
+        @Override
+        public void addFileContentChangedListener(
+            IFileContentChangedListener listener) {
+            PersistentChecksumCacheTest.this.listener = listener;
+        }
+
+        @Override
+        public void removeFileContentChangedListener(
+            IFileContentChangedListener listener) {
+            // NOP
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("checksum_cache", null);
+        directory.delete();
+        directory.mkdirs();
+
+        cacheFile = new File(directory, "cache/checksums.dat");
+
+        cache = new PersistentChecksumCache(cacheFile, notifier);
+        cache.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        cache.stop();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void testAddAndGet() throws IOException {
+        final IFile file = createFile("a.txt", "foo");
+
+        assertNull(cache.getChecksum(file));
+        assertFalse(cache.addChecksum(file, 42L));
+        assertEquals(Long.valueOf(42), cache.getChecksum(file));
+    }
+
+    @Test
+    public void testChecksumsSurviveRestart() throws IOException {
+        final IFile file = createFile("a.txt", "foo");
+
+        cache.addChecksum(file, 42L);
+        cache.stop();
+
+        cache = new PersistentChecksumCache(cacheFile, null);
+        cache.start();
+
+        assertEquals(Long.valueOf(42), cache.getChecksum(file));
+    }
+
+    @Test
+    public void testModifiedFileIsDetected() throws IOException {
+        final IFile file = createFile("a.txt", "foo");
+
+        cache.addChecksum(file, 42L);
+        cache.stop();
+
+        // modified while the application was not running
+        FileUtils.writeStringToFile(file.getLocation().toFile(), "foobar");
+        age(file.getLocation().toFile());
+
+        cache = new PersistentChecksumCache(cacheFile, null);
+        cache.start();
+
+        assertNull(cache.getChecksum(file));
+        assertTrue(cache.addChecksum(file, 43L));
+        assertEquals(Long.valueOf(43), cache.getChecksum(file));
+    }
+
+    @Test
+    public void testTouchedFileIsDetected() throws IOException {
+        final IFile file = createFile("a.txt", "foo");
+        final File localFile = file.getLocation().toFile();
+
+        cache.addChecksum(file, 42L);
+
+        assertTrue(localFile.setLastModified(localFile.lastModified() - 10000));
+        assertNull(cache.getChecksum(file));
+    }
+
+    @Test
+    public void testInvalidation() throws IOException {
+        final IFile file = createFile("a.txt", "foo");
+
+        cache.addChecksum(file, 42L);
+
+        listener.fileContentChanged(file);
+
+        assertNull(cache.getChecksum(file));
+        assertTrue(cache.addChecksum(file, 42L));
+        assertEquals(Long.valueOf(42), cache.getChecksum(file));
+    }
+
+    @Test
+    public void testRecentlyModifiedFileIsNotCached() throws IOException {
+        final IFile file = createFile("a.txt", "foo");
+        final File localFile = file.getLocation().toFile();
+
+        assertTrue(localFile.setLastModified(System.currentTimeMillis()));
+
+        assertNull(cache.getChecksum(file));
+        assertFalse(cache.addChecksum(file, 42L));
+        assertNull(cache.getChecksum(file));
+    }
+
+    @Test
+    public void testFileModifiedDuringCalculationIsNotCached()
+        throws IOException {
+        final IFile file = createFile("a.txt", "foo");
+        final File localFile = file.getLocation().toFile();
+
+        assertNull(cache.getChecksum(file));
+
+        // modified after the lookup, i.e while the checksum was calculated
+        FileUtils.writeStringToFile(localFile, "bar");
+        assertTrue(localFile.setLastModified(localFile.lastModified() - 20000));
+
+        assertFalse(cache.addChecksum(file, 42L));
+        assertNull(cache.getChecksum(file));
+
+        assertFalse(cache.addChecksum(file, 43L));
+        assertEquals(Long.valueOf(43), cache.getChecksum(file));
+    }
+
+    @Test
+    public void testGrowth() throws IOException {
+        final int count = 5000;
+
+        final IFile[] files = new IFile[count];
+
+        // files do not need to exist, size and time stamp are always 0
+        for (int i = 0; i < count; i++) {
+            files[i] = createFileMock(new File(directory, "file" + i));
+            cache.addChecksum(files[i], i);
+        }
+
+        cache.stop();
+
+        cache = new PersistentChecksumCache(cacheFile, null);
+        cache.start();
+
+        for (int i = 0; i < count; i++)
+            assertEquals(Long.valueOf(i), cache.getChecksum(files[i]));
+    }
+
+    @Test
+    public void testCorruptedCacheIsDiscarded() throws IOException {
+        final IFile file = createFile("a.txt", "foo");
+
+        cache.addChecksum(file, 42L);
+        cache.stop();
+
+        final RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw");
+        raf.writeInt(0xDEADBEEF);
+        raf.close();
+
+        cache = new PersistentChecksumCache(cacheFile, null);
+        cache.start();
+
+        assertNull(cache.getChecksum(file));
+        assertFalse(cache.addChecksum(file, 42L));
+        assertEquals(Long.valueOf(42), cache.getChecksum(file));
+    }
+
+    @Test
+    public void testLockedCacheIsDisabled() throws IOException {
+        final IFile file = createFile("a.txt", "foo");
+
+        cache.addChecksum(file, 42L);
+
+        final PersistentChecksumCache other = new PersistentChecksumCache(
+            cacheFile, null);
+
+        other.start();
+
+        try {
+            assertFalse(other.addChecksum(file, 43L));
+            assertNull(other.getChecksum(file));
+        } finally {
+            other.stop();
+        }
+
+        assertEquals(Long.valueOf(42), cache.getChecksum(file));
+    }
+
+    private IFile createFile(String name, String content) throws IOException {
+        final File localFile = new File(directory, name);
+        FileUtils.writeStringToFile(localFile, content);
+        age(localFile);
+        return createFileMock(localFile);
+    }
+
+    // recently modified files are not cached
+    private static void age(File localFile) {
+        assertTrue(localFile
+            .setLastModified(System.currentTimeMillis() - 10000));
+    }
+
+    private static IFile createFileMock(File localFile) {
+        final IPath location = EasyMock.createMock(IPath.class);
+        EasyMock.expect(location.toFile()).andStubReturn(localFile);
+        EasyMock.replay(location);
+
+        final IFile file = EasyMock.createMock(IFile.class);
+        EasyMock.expect(file.getLocation()).andStubReturn(location);
+        EasyMock.replay(file);
+
+        return file;
+    }
+}
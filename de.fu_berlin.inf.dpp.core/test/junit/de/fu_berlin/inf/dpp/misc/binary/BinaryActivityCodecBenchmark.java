@@ -0,0 +1,167 @@
+package de.fu_berlin.inf.dpp.misc.binary;
+
+import static org.easymock.EasyMock.expect;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.easymock.EasyMock;
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+
+import de.fu_berlin.inf.dpp.activities.IActivity;
+import de.fu_berlin.inf.dpp.activities.JupiterActivity;
+import de.fu_berlin.inf.dpp.activities.SPath;
+import de.fu_berlin.inf.dpp.activities.TextSelectionActivity;
+import de.fu_berlin.inf.dpp.activities.ViewportActivity;
+import de.fu_berlin.inf.dpp.communication.extensions.ActivitiesExtension;
+import de.fu_berlin.inf.dpp.concurrent.jupiter.internal.JupiterVectorTime;
+import de.fu_berlin.inf.dpp.concurrent.jupiter.internal.text.InsertOperation;
+import de.fu_berlin.inf.dpp.filesystem.IPath;
+import de.fu_berlin.inf.dpp.filesystem.IPathFactory;
+import de.fu_berlin.inf.dpp.filesystem.IProject;
+import de.fu_berlin.inf.dpp.misc.xstream.SPathConverter;
+import de.fu_berlin.inf.dpp.misc.xstream.UserConverter;
+import de.fu_berlin.inf.dpp.net.xmpp.JID;
+import de.fu_berlin.inf.dpp.session.ISarosSession;
+import de.fu_berlin.inf.dpp.session.User;
+import de.fu_berlin.inf.dpp.versioning.VersionManager;
+
+/**
+ * Compares the marshalling and unmarshalling costs of the XStream based
+ * {@link ActivitiesExtension} with the {@link BinaryActivityCodec} for a
+ * typical typing workload (one Jupiter activity plus a selection and sometimes
+ * a viewport update per keystroke).
+ * <p>
+ * This is not a unit test and is not part of any test suite. Run it manually
+ * with the core test class path, e.g
+ *
+ * <pre>
+ * java -cp ... de.fu_berlin.inf.dpp.misc.binary.BinaryActivityCodecBenchmark [activities] [iterations]
+ * </pre>
+ *
+ * The XStream path includes the UTF-8 conversion done by the transmitter and
+ * the parsing done by the receiver, the binary path includes the encoding and
+ * decoding done by the binary extension provider.
+ */
+public class BinaryActivityCodecBenchmark {
+
+    private static final int WARMUP_ROUNDS = 3;
+
+    private static volatile Object sink;
+
+    public static void main(String... args) throws Exception {
+        final int activityCount = args.length > 0 ? Integer.parseInt(args[0])
+            : 30;
+
+        final int iterations = args.length > 1 ? Integer.parseInt(args[1])
+            : 20000;
+
+        final User alice = new User(new JID(
+            "alice@saros-con.imp.fu-berlin.de/Saros"), true, true, 0, 0);
+
+        final IProject project = EasyMock.createNiceMock(IProject.class);
+        final IPath path = EasyMock.createNiceMock(IPath.class);
+
+        final String pathName = "src/de/fu_berlin/inf/dpp/session/internal/ActivitySequencer.java";
+
+        final IPathFactory pathFactory = EasyMock
+            .createMock(IPathFactory.class);
+        expect(pathFactory.fromPath(path)).andStubReturn(pathName);
+        expect(pathFactory.fromString(pathName)).andStubReturn(path);
+
+        final ISarosSession session = EasyMock.createMock(ISarosSession.class);
+        expect(session.getProjectID(project)).andStubReturn("1234567890");
+        expect(session.getProject("1234567890")).andStubReturn(project);
+        expect(session.getUser(alice.getJID())).andStubReturn(alice);
+
+        final VersionManager versionManager = EasyMock
+            .createNiceMock(VersionManager.class);
+
+        EasyMock.replay(project, path, pathFactory, session, versionManager);
+
+        final SPath spath = new SPath(project, path);
+
+        final List<IActivity> activities = new ArrayList<IActivity>();
+
+        for (int i = 0; i < activityCount; i++) {
+            final int offset = 4000 + i;
+
+            activities.add(new JupiterActivity(new JupiterVectorTime(i, 17),
+                new InsertOperation(offset, "x"), alice, spath));
+
+            activities
+                .add(new TextSelectionActivity(alice, offset + 1, 0, spath));
+
+            if (i % 10 == 0)
+                activities.add(new ViewportActivity(alice, 100 + i, 60, spath));
+        }
+
+        final ActivitiesExtension extension = new ActivitiesExtension(
+            "1234567890", activities, 0);
+
+        new SPathConverter(session, pathFactory).start();
+        new UserConverter(session).start();
+
+        final BinaryActivityCodec codec = new BinaryActivityCodec(session,
+            pathFactory, versionManager);
+
+        System.out.println("activities per packet: " + activities.size()
+            + ", iterations: " + iterations);
+
+        final JID peer = alice.getJID();
+
+        // the first packet also carries the definition of the path id
+        final byte[] firstPacket = codec.encode(peer, extension);
+        sink = codec.decode(firstPacket, peer);
+
+        System.out.println("xstream size: "
+            + ActivitiesExtension.PROVIDER.create(extension).toXML()
+                .getBytes("UTF-8").length + " bytes, binary size: "
+            + firstPacket.length + " bytes (first packet), "
+            + codec.encode(peer, extension).length + " bytes");
+
+        for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+            final boolean report = round == WARMUP_ROUNDS;
+
+            long start = System.nanoTime();
+
+            for (int i = 0; i < iterations; i++)
+                sink = xstreamRoundTrip(extension);
+
+            long xstreamTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+
+            for (int i = 0; i < iterations; i++)
+                sink = codec.decode(codec.encode(peer, extension), peer);
+
+            long binaryTime = System.nanoTime() - start;
+
+            if (report) {
+                System.out.println("xstream: " + (xstreamTime / iterations)
+                    + " ns/op");
+                System.out.println("binary: " + (binaryTime / iterations)
+                    + " ns/op");
+            }
+        }
+    }
+
+    private static Object xstreamRoundTrip(ActivitiesExtension extension)
+        throws Exception {
+
+        final byte[] data = ActivitiesExtension.PROVIDER.create(extension)
+            .toXML().getBytes("UTF-8");
+
+        final XmlPullParser parser = new MXParser();
+        parser.setInput(new ByteArrayInputStream(data), "UTF-8");
+        parser.next();
+
+        final PacketExtension result = ActivitiesExtension.PROVIDER
+            .parseExtension(parser);
+
+        return ActivitiesExtension.PROVIDER.getPayload(result);
+    }
+}
@@ -0,0 +1,324 @@
+package de.fu_berlin.inf.dpp.misc.binary;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.easymock.Capture;
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.fu_berlin.inf.dpp.activities.ChecksumActivity;
+import de.fu_berlin.inf.dpp.activities.EditorActivity;
+import de.fu_berlin.inf.dpp.activities.IActivity;
+import de.fu_berlin.inf.dpp.activities.JupiterActivity;
+import de.fu_berlin.inf.dpp.activities.SPath;
+import de.fu_berlin.inf.dpp.activities.TextEditActivity;
+import de.fu_berlin.inf.dpp.activities.TextSelectionActivity;
+import de.fu_berlin.inf.dpp.activities.ViewportActivity;
+import de.fu_berlin.inf.dpp.communication.extensions.ActivitiesExtension;
+import de.fu_berlin.inf.dpp.concurrent.jupiter.internal.JupiterVectorTime;
+import de.fu_berlin.inf.dpp.concurrent.jupiter.internal.text.DeleteOperation;
+import de.fu_berlin.inf.dpp.concurrent.jupiter.internal.text.InsertOperation;
+import de.fu_berlin.inf.dpp.concurrent.jupiter.internal.text.NoOperation;
+import de.fu_berlin.inf.dpp.concurrent.jupiter.internal.text.SplitOperation;
+import de.fu_berlin.inf.dpp.concurrent.jupiter.internal.text.TimestampOperation;
+import de.fu_berlin.inf.dpp.filesystem.IPath;
+import de.fu_berlin.inf.dpp.filesystem.IPathFactory;
+import de.fu_berlin.inf.dpp.filesystem.IProject;
+import de.fu_berlin.inf.dpp.net.xmpp.JID;
+import de.fu_berlin.inf.dpp.session.ISarosSession;
+import de.fu_berlin.inf.dpp.session.ISessionListener;
+import de.fu_berlin.inf.dpp.session.User;
+import de.fu_berlin.inf.dpp.versioning.VersionManager;
+
+public class BinaryActivityCodecTest {
+
+    private User alice;
+    private User bob;
+
+    private SPath mainPath;
+    private SPath testPath;
+
+    private ISarosSession session;
+    private IPathFactory pathFactory;
+
+    @Before
+    public void setUp() {
+        alice = new User(new JID("alice@test/Saros"), true, true, 0, 0);
+        bob = new User(new JID("bob@test/Saros"), false, false, 1, 1);
+
+        IProject project = EasyMock.createNiceMock(IProject.class);
+
+        IPath main = EasyMock.createNiceMock(IPath.class);
+        IPath test = EasyMock.createNiceMock(IPath.class);
+
+        pathFactory = EasyMock.createMock(IPathFactory.class);
+        expect(pathFactory.fromPath(main)).andStubReturn("src/Main.java");
+        expect(pathFactory.fromPath(test)).andStubReturn("test/äö.java");
+        expect(pathFactory.fromString("src/Main.java")).andStubReturn(main);
+        expect(pathFactory.fromString("test/äö.java")).andStubReturn(test);
+
+        session = EasyMock.createMock(ISarosSession.class);
+        expect(session.getProjectID(project)).andStubReturn("ABC");
+        expect(session.getProject("ABC")).andStubReturn(project);
+        expect(session.getUser(alice.getJID())).andStubReturn(alice);
+        expect(session.getUser(bob.getJID())).andStubReturn(bob);
+
+        EasyMock.replay(project, main, test, pathFactory, session);
+
+        mainPath = new SPath(project, main);
+        testPath = new SPath(project, test);
+    }
+
+    private BinaryActivityCodec createCodec(ISarosSession session) {
+        VersionManager versionManager = EasyMock
+            .createNiceMock(VersionManager.class);
+        EasyMock.replay(versionManager);
+
+        return new BinaryActivityCodec(session, pathFactory, versionManager);
+    }
+
+    @Test
+    public void testEncodeAndDecode() throws Exception {
+        List<IActivity> activities = new ArrayList<IActivity>();
+
+        activities.add(new TextEditActivity(alice, 5, "foo", "", mainPath));
+        activities.add(new TextEditActivity(bob, 70000, "\ud800 unpaired",
+            "réplacé", testPath));
+        activities.add(new TextSelectionActivity(alice, 3, 0, mainPath));
+        activities.add(new ViewportActivity(bob, 0, 42, testPath));
+        activities.add(new ChecksumActivity(alice, mainPath, -17, 1024,
+            new JupiterVectorTime(3, 4)));
+        activities.add(ChecksumActivity.missing(bob, testPath));
+
+        activities.add(new JupiterActivity(new JupiterVectorTime(0, 1),
+            new InsertOperation(10, "x", 8), alice, mainPath));
+
+        activities.add(new JupiterActivity(new JupiterVectorTime(
+            Integer.MAX_VALUE, 0), new SplitOperation(new DeleteOperation(4,
+            "abc"), new SplitOperation(new NoOperation(),
+            new TimestampOperation())), bob, testPath));
+
+        ActivitiesExtension extension = new ActivitiesExtension("SID",
+            activities, 1337);
+
+        BinaryActivityCodec codec = createCodec(session);
+
+        byte[] data = codec.encode(bob.getJID(), extension);
+
+        assertNotNull(data);
+
+        ActivitiesExtension decoded = codec.decode(data, alice.getJID());
+
+        assertEquals("SID", decoded.getSessionID());
+        assertEquals(1337, decoded.getSequenceNumber());
+        assertEquals(activities, decoded.getActivities());
+    }
+
+    @Test
+    public void testEncodeUnsupportedActivity() {
+        List<IActivity> activities = new ArrayList<IActivity>();
+
+        activities.add(new TextEditActivity(alice, 5, "foo", "", mainPath));
+        activities.add(new EditorActivity(alice,
+            EditorActivity.Type.ACTIVATED, mainPath));
+
+        assertNull(createCodec(session).encode(bob.getJID(),
+            new ActivitiesExtension("SID", activities, 0)));
+    }
+
+    @Test
+    public void testPathsAndUsersAreOnlyWrittenOnce() {
+        List<IActivity> single = new ArrayList<IActivity>();
+        single.add(new TextEditActivity(alice, 5, "a", "", mainPath));
+
+        List<IActivity> multiple = new ArrayList<IActivity>();
+        for (int i = 0; i < 11; i++)
+            multiple.add(new TextEditActivity(alice, 5 + i, "a", "", mainPath));
+
+        BinaryActivityCodec codec = createCodec(session);
+
+        int singleSize = codec.encode(bob.getJID(),
+            new ActivitiesExtension("SID", single, 0)).length;
+
+        int multipleSize = codec.encode(alice.getJID(),
+            new ActivitiesExtension("SID", multiple, 0)).length;
+
+        // type + user ref + path id + offset + text + replaced text
+        assertTrue("activities are not encoded compact",
+            multipleSize - singleSize <= 10 * 7);
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecodeWithUnknownProject() throws Exception {
+        List<IActivity> activities = new ArrayList<IActivity>();
+        activities.add(new TextSelectionActivity(alice, 3, 0, mainPath));
+
+        byte[] data = createCodec(session).encode(bob.getJID(),
+            new ActivitiesExtension("SID", activities, 0));
+
+        ISarosSession receiverSession = EasyMock
+            .createNiceMock(ISarosSession.class);
+        expect(receiverSession.getUser(alice.getJID())).andStubReturn(alice);
+        EasyMock.replay(receiverSession);
+
+        createCodec(receiverSession).decode(data, alice.getJID());
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecodeTruncatedData() throws Exception {
+        List<IActivity> activities = new ArrayList<IActivity>();
+        activities.add(new TextEditActivity(alice, 5, "foobar", "", mainPath));
+
+        BinaryActivityCodec codec = createCodec(session);
+
+        byte[] data = codec.encode(bob.getJID(), new ActivitiesExtension(
+            "SID", activities, 0));
+
+        byte[] truncated = new byte[data.length - 3];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+
+        codec.decode(truncated, alice.getJID());
+    }
+
+    @Test
+    public void testPathsAreOnlyDefinedOncePerRecipient() throws Exception {
+        BinaryActivityCodec sender = createCodec(session);
+        BinaryActivityCodec receiver = createCodec(session);
+
+        byte[] first = sender.encode(bob.getJID(),
+            createSelection(alice, mainPath));
+        byte[] second = sender.encode(bob.getJID(),
+            createSelection(alice, mainPath));
+
+        // the second packet only refers to the id of the path
+        assertTrue("path was defined twice", second.length < first.length
+            - "src/Main.java".length());
+
+        // every recipient gets its own definition
+        assertEquals(first.length,
+            sender.encode(alice.getJID(), createSelection(alice, mainPath)).length);
+
+        SPath firstPath = ((TextSelectionActivity) receiver
+            .decode(first, alice.getJID()).getActivities().get(0)).getPath();
+
+        SPath secondPath = ((TextSelectionActivity) receiver
+            .decode(second, alice.getJID()).getActivities().get(0)).getPath();
+
+        assertEquals(mainPath, firstPath);
+        assertSame("path was not cached", firstPath, secondPath);
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecodeUnknownPathID() throws Exception {
+        BinaryActivityCodec sender = createCodec(session);
+
+        sender.encode(bob.getJID(), createSelection(alice, mainPath));
+
+        byte[] data = sender.encode(bob.getJID(),
+            createSelection(alice, mainPath));
+
+        createCodec(session).decode(data, alice.getJID());
+    }
+
+    @Test
+    public void testPathsAreDefinedAgainAfterRejoin() throws Exception {
+        User rejoinedBob = new User(bob.getJID(), false, false, 1, 1);
+
+        ISarosSession senderSession = EasyMock.createMock(ISarosSession.class);
+        expect(senderSession.getProjectID(mainPath.getProject()))
+            .andStubReturn("ABC");
+        expect(senderSession.getUser(bob.getJID())).andReturn(bob).times(2);
+        expect(senderSession.getUser(bob.getJID())).andStubReturn(rejoinedBob);
+        EasyMock.replay(senderSession);
+
+        BinaryActivityCodec sender = createCodec(senderSession);
+
+        byte[] first = sender.encode(bob.getJID(),
+            createSelection(alice, mainPath));
+        byte[] second = sender.encode(bob.getJID(),
+            createSelection(alice, mainPath));
+        byte[] third = sender.encode(bob.getJID(),
+            createSelection(alice, mainPath));
+
+        assertTrue(second.length < first.length);
+        assertEquals(first.length, third.length);
+
+        // a new session of the recipient only knows the definitions sent after
+        // the rejoin
+        ActivitiesExtension decoded = createCodec(session).decode(third,
+            alice.getJID());
+
+        assertEquals(mainPath, ((TextSelectionActivity) decoded
+            .getActivities().get(0)).getPath());
+    }
+
+    @Test
+    public void testPathsAreDefinedAgainAfterFailedSend() throws Exception {
+        BinaryActivityCodec sender = createCodec(session);
+
+        byte[] lost = sender.encode(bob.getJID(),
+            createSelection(alice, mainPath));
+
+        sender.sendFailed(bob.getJID());
+
+        byte[] next = sender.encode(bob.getJID(),
+            createSelection(alice, mainPath));
+
+        assertEquals(lost.length, next.length);
+
+        ActivitiesExtension decoded = createCodec(session).decode(next,
+            alice.getJID());
+
+        assertEquals(mainPath, ((TextSelectionActivity) decoded
+            .getActivities().get(0)).getPath());
+    }
+
+    @Test(expected = IOException.class)
+    public void testDefinitionsAreDiscardedWhenPeerLeaves() throws Exception {
+        Capture<ISessionListener> listener = new Capture<ISessionListener>();
+
+        ISarosSession receiverSession = EasyMock
+            .createNiceMock(ISarosSession.class);
+        expect(receiverSession.getProject("ABC")).andStubReturn(
+            mainPath.getProject());
+        expect(receiverSession.getUser(alice.getJID())).andStubReturn(alice);
+        receiverSession.addListener(EasyMock.capture(listener));
+        EasyMock.replay(receiverSession);
+
+        BinaryActivityCodec sender = createCodec(session);
+        BinaryActivityCodec receiver = createCodec(receiverSession);
+
+        receiver.start();
+
+        try {
+            receiver.decode(
+                sender.encode(bob.getJID(), createSelection(alice, mainPath)),
+                alice.getJID());
+
+            listener.getValue().userLeft(alice);
+
+            receiver.decode(
+                sender.encode(bob.getJID(), createSelection(alice, mainPath)),
+                alice.getJID());
+        } finally {
+            receiver.stop();
+        }
+    }
+
+    private static ActivitiesExtension createSelection(User source,
+        SPath path) {
+        List<IActivity> activities = new ArrayList<IActivity>();
+        activities.add(new TextSelectionActivity(source, 3, 0, path));
+        return new ActivitiesExtension("SID", activities, 0);
+    }
+}
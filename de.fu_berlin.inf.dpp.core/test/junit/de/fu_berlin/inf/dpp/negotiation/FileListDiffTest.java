@@ -2,6 +2,7 @@ package de.fu_berlin.inf.dpp.negotiation;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.Arrays;
 import java.util.List;
@@ -177,6 +178,78 @@ public class FileListDiffTest {
         assertPaths(diff.getUnalteredFolders());
     }
 
+    @Test
+    public void testDiffWithHashes() {
+
+        FileList a = new FileList();
+
+        a.addPath(FILE_A, createMetaData(1), false);
+        a.addPath(FILE_B, createMetaData(2), false);
+        a.addPath(FOLDER_A + "file", createMetaData(3), false);
+        a.addPath(FOLDER_B + "file", createMetaData(4), false);
+        a.computeHashes();
+
+        FileList b = new FileList();
+
+        b.addPath(FOLDER_B + "file", createMetaData(5), false);
+        b.addPath(FOLDER_A + "file", createMetaData(3), false);
+        b.addPath(FILE_B, createMetaData(2), false);
+        b.addPath(FILE_C, createMetaData(6), false);
+        b.computeHashes();
+
+        FileListDiff diff = FileListDiff.diff(a, b, false);
+
+        assertPaths(diff.getAddedFiles(), FILE_C);
+        assertPaths(diff.getRemovedFiles(), FILE_A);
+
+        assertPaths(diff.getUnalteredFiles(), FILE_B, FOLDER_A + "file");
+        assertPaths(diff.getAlteredFiles(), FOLDER_B + "file");
+
+        assertPaths(diff.getAddedFolders());
+        assertPaths(diff.getRemovedFolders());
+
+        assertPaths(diff.getUnalteredFolders(), FOLDER_SRC, FOLDER_A, FOLDER_B);
+    }
+
+    @Test
+    public void testDiffWithCollapsedFolder() {
+
+        FileList a = new FileList();
+
+        a.addPath(FOLDER_A + "file", createMetaData(1), false);
+        a.addPath(FOLDER_B + "file", createMetaData(2), false);
+        a.computeHashes();
+
+        FileList b = new FileList();
+
+        b.addPath(FOLDER_A + "file", createMetaData(1), false);
+        b.addPath(FOLDER_B + "file", createMetaData(3), false);
+        b.computeHashes();
+
+        // only src/ itself is included
+        FileList manifest = b.getManifest(Arrays.asList(""), 0);
+
+        try {
+            FileListDiff.diff(a, manifest, false);
+            fail("collapsed folder with a different hash was compared");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        FileListDiff diff = FileListDiff.diff(b, manifest, false);
+
+        assertPaths(diff.getUnalteredFiles(), FOLDER_A + "file", FOLDER_B
+            + "file");
+
+        assertPaths(diff.getUnalteredFolders(), FOLDER_SRC, FOLDER_A, FOLDER_B);
+    }
+
+    private static MetaData createMetaData(long checksum) {
+        MetaData metaData = new MetaData();
+        metaData.checksum = checksum;
+        return metaData;
+    }
+
     private static void assertPaths(List<String> actual, String... expected) {
         for (int i = 0; i < expected.length; i++) {
             assertTrue("Expected " + expected[i] + " to appear in: " + actual,
@@ -15,6 +15,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.zip.Adler32;
 
 import org.easymock.EasyMock;
 import org.easymock.IAnswer;
@@ -30,6 +31,7 @@ import de.fu_berlin.inf.dpp.filesystem.IFolder;
 import de.fu_berlin.inf.dpp.filesystem.IPath;
 import de.fu_berlin.inf.dpp.filesystem.IProject;
 import de.fu_berlin.inf.dpp.filesystem.IResource;
+import de.fu_berlin.inf.dpp.monitoring.NullProgressMonitor;
 
 /*
  *Project Layout for test
@@ -91,6 +93,45 @@ public class FileListTest {
             fileList.getEncodings());
     }
 
+    @Test
+    public void testCreateFileListForManyFiles() throws IOException {
+        final IProject manyFilesProject = createManyFilesProject(500);
+
+        final CountingProgressMonitor monitor = new CountingProgressMonitor();
+
+        final FileList fileList = FileListFactory.createFileList(
+            manyFilesProject, null, null, monitor);
+
+        assertEquals("not all files were processed", 500, monitor.worked);
+
+        for (int i = 0; i < 500; i++) {
+            final Adler32 adler = new Adler32();
+            adler.update(String.valueOf(i).getBytes());
+
+            assertEquals("wrong checksum for file: src/" + i + ".txt",
+                adler.getValue(),
+                fileList.getMetaData("src/" + i + ".txt").checksum);
+        }
+    }
+
+    @Test
+    public void testCreateFileListCanceled() throws IOException {
+        final IProject manyFilesProject = createManyFilesProject(500);
+
+        final CountingProgressMonitor monitor = new CountingProgressMonitor() {
+            @Override
+            public void worked(int amount) {
+                super.worked(amount);
+                setCanceled(true);
+            }
+        };
+
+        FileListFactory.createFileList(manyFilesProject, null, null, monitor);
+
+        assertTrue("checksums were calculated after cancellation: "
+            + monitor.worked, monitor.worked < 500);
+    }
+
     @Test
     public void testToXmlAndBack() throws Exception {
         List<String> files = new ArrayList<String>();
@@ -116,6 +157,122 @@ public class FileListTest {
         assertEquals(list, listFromXml);
     }
 
+    @Test
+    public void testHashesDoNotDependOnOrder() {
+        final FileList a = createFileList("a/b/1", 1, "a/b/2", 2, "a/c/3", 3,
+            "d", 4);
+
+        final FileList b = createFileList("d", 4, "a/c/3", 3, "a/b/2", 2,
+            "a/b/1", 1);
+
+        final FileList c = createFileList("d", 4, "a/c/3", 3, "a/b/2", 2,
+            "a/b/1", 5);
+
+        assertNotNull(a.getHash());
+        assertEquals(a.getHash(), b.getHash());
+        assertFalse(a.getHash().equals(c.getHash()));
+
+        assertEquals(a.getRoot().getDirectory("a/c/").hash, c.getRoot()
+            .getDirectory("a/c/").hash);
+
+        assertFalse(a.getRoot().getDirectory("a/b/").hash.equals(c
+            .getRoot().getDirectory("a/b/").hash));
+    }
+
+    @Test
+    public void testManifestOnlyTransfersChangedFolders() throws Exception {
+        final List<Object> hostEntries = new ArrayList<Object>();
+        final List<Object> localEntries = new ArrayList<Object>();
+
+        for (int i = 0; i < 20; i++) {
+            for (int k = 0; k < 20; k++) {
+                final String path = "src/p" + i + "/sub" + k + "/File.java";
+
+                hostEntries.add(path);
+                hostEntries.add((long) (i * 100 + k));
+
+                localEntries.add(path);
+                localEntries.add((long) (i * 100 + k + (i == 7 && k == 3 ? 1
+                    : 0)));
+            }
+        }
+
+        hostEntries.add("src/p7/sub3/New.java");
+        hostEntries.add(1L);
+
+        final FileList host = createFileList(hostEntries.toArray());
+        final FileList local = createFileList(localEntries.toArray());
+
+        host.setProjectID("id");
+
+        /*
+         * transfer the manifests like the project negotiation does, the first
+         * one contains src/ and its members, the one for p7 the members of
+         * sub0
+         */
+        final FileList remote = fromXML(toXML(host.getManifest(
+            Arrays.asList(""), 21)));
+
+        assertEquals("id", remote.getProjectID());
+
+        final List<List<String>> requests = new ArrayList<List<String>>();
+
+        List<String> collapsedFolders = remote.merge(local);
+
+        while (!collapsedFolders.isEmpty()) {
+            requests.add(collapsedFolders);
+
+            remote.expand(
+                fromXML(toXML(host.getManifest(collapsedFolders, 21))),
+                collapsedFolders);
+
+            collapsedFolders = remote.merge(local);
+        }
+
+        assertEquals(Arrays.asList(Arrays.asList("src/p7/"),
+            Arrays.asList("src/p7/sub3/")), requests);
+
+        assertEquals(new HashSet<String>(host.getPaths()), new HashSet<String>(
+            remote.getPaths()));
+
+        final FileListDiff diff = FileListDiff.diff(local, remote, false);
+
+        assertEquals(Arrays.asList("src/p7/sub3/New.java"),
+            diff.getAddedFiles());
+
+        assertEquals(Arrays.asList("src/p7/sub3/File.java"),
+            diff.getAlteredFiles());
+
+        assertEquals(399, diff.getUnalteredFiles().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testExpandWithWrongManifest() {
+        final FileList host = createFileList("a/b/1", 1, "c/d/2", 2);
+        final FileList other = createFileList("a/b/1", 3, "c/d/2", 2);
+
+        final FileList remote = host.getManifest(Arrays.asList(""), 0);
+
+        remote.expand(other.getManifest(Arrays.asList("a/"), 10),
+            Arrays.asList("a/"));
+    }
+
+    /**
+     * Creates a file list from pairs of file paths and checksums.
+     */
+    private static FileList createFileList(Object... pathsAndChecksums) {
+        final FileList list = new FileList();
+
+        for (int i = 0; i < pathsAndChecksums.length; i += 2) {
+            final FileList.MetaData metaData = new FileList.MetaData();
+            metaData.checksum = ((Number) pathsAndChecksums[i + 1]).longValue();
+            list.addPath((String) pathsAndChecksums[i], metaData, false);
+        }
+
+        list.computeHashes();
+        return list;
+    }
+
     private static IProject createProjectLayout() {
 
         final IProject project = EasyMock.createMock(IProject.class);
@@ -152,6 +309,33 @@ public class FileListTest {
         return project;
     }
 
+    private static IProject createManyFilesProject(int fileCount) {
+        final IProject project = EasyMock.createMock(IProject.class);
+
+        final IResource[] files = new IResource[fileCount];
+
+        for (int i = 0; i < fileCount; i++)
+            files[i] = createFileMock(project, "src/" + i + ".txt",
+                String.valueOf(i), "UTF-8");
+
+        final IFolder srcFolder = createFolderMock(project, "src", files);
+
+        EasyMock.expect(project.getName()).andStubReturn("many");
+
+        try {
+            EasyMock.expect(project.getDefaultCharset()).andStubReturn("UTF-8");
+
+            EasyMock.expect(project.members()).andStubReturn(
+                new IResource[] { srcFolder });
+        } catch (IOException e) {
+            // cannot happen
+        }
+
+        EasyMock.replay(project);
+
+        return project;
+    }
+
     private static IFile createFileMock(final IProject project,
         final String path, final String content, final String encoding) {
 
@@ -233,4 +417,14 @@ public class FileListTest {
     private static FileList fromXML(String xml) {
         return (FileList) xstream.fromXML(xml);
     }
+
+    private static class CountingProgressMonitor extends NullProgressMonitor {
+
+        private volatile int worked;
+
+        @Override
+        public void worked(int amount) {
+            worked += amount;
+        }
+    }
 }
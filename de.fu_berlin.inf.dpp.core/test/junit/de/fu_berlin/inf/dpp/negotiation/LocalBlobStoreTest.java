@@ -0,0 +1,162 @@
+package de.fu_berlin.inf.dpp.negotiation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Adler32;
+
+import org.apache.commons.io.IOUtils;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.fu_berlin.inf.dpp.filesystem.IFile;
+import de.fu_berlin.inf.dpp.filesystem.IProject;
+
+public class LocalBlobStoreTest {
+
+    private static final byte[] CONTENT = "class Foo {}".getBytes();
+
+    /** contents of the files of the project by path */
+    private final Map<String, byte[]> disk = new HashMap<String, byte[]>();
+
+    private IProject project;
+
+    private LocalBlobStore store;
+
+    @Before
+    public void setUp() {
+        project = EasyMock.createMock(IProject.class);
+
+        EasyMock.expect(project.getFile(EasyMock.isA(String.class)))
+            .andAnswer(new IAnswer<IFile>() {
+                @Override
+                public IFile answer() throws Throwable {
+                    return createFile((String) EasyMock
+                        .getCurrentArguments()[0]);
+                }
+            }).anyTimes();
+
+        EasyMock.replay(project);
+
+        store = new LocalBlobStore();
+    }
+
+    @After
+    public void tearDown() {
+        store.dispose();
+    }
+
+    @Test
+    public void testMovedFileIsRestored() throws IOException {
+        disk.put("old/Foo.java", CONTENT);
+
+        store.addFiles(project, createFileList("old/Foo.java", CONTENT));
+
+        final Long contentHash = store.stage(checksum(CONTENT));
+
+        assertNotNull("content was not found", contentHash);
+
+        disk.remove("old/Foo.java");
+
+        store.restore(checksum(CONTENT), project.getFile("new/Foo.java"));
+
+        assertArrayEquals(CONTENT, disk.get("new/Foo.java"));
+
+        assertEquals(contentHash.longValue(),
+            LocalBlobStore.getContentHash(project.getFile("new/Foo.java")));
+    }
+
+    @Test
+    public void testUnknownContent() {
+        disk.put("Foo.java", CONTENT);
+
+        store.addFiles(project, createFileList("Foo.java", CONTENT));
+
+        assertNull(store.stage(checksum("class Bar {}".getBytes())));
+    }
+
+    @Test
+    public void testModifiedFileIsNotStaged() {
+        disk.put("Foo.java", "class Bar {}".getBytes());
+
+        store.addFiles(project, createFileList("Foo.java", CONTENT));
+
+        assertNull(store.stage(checksum(CONTENT)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRestoreWithoutContent() throws IOException {
+        store.restore(checksum(CONTENT), project.getFile("Foo.java"));
+    }
+
+    private static FileList createFileList(String path, byte[] content) {
+        final FileList list = FileListFactory.createEmptyFileList();
+
+        final FileList.MetaData metaData = new FileList.MetaData();
+        metaData.checksum = checksum(content);
+
+        list.addPath(path, metaData, false);
+
+        return list;
+    }
+
+    private static long checksum(byte[] content) {
+        final Adler32 adler = new Adler32();
+        adler.update(content);
+        return adler.getValue();
+    }
+
+    private IFile createFile(final String path) throws IOException {
+        final IFile file = EasyMock.createNiceMock(IFile.class);
+
+        final IAnswer<Object> write = new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                disk.put(path, IOUtils.toByteArray((InputStream) EasyMock
+                    .getCurrentArguments()[0]));
+                return null;
+            }
+        };
+
+        EasyMock.expect(file.exists()).andAnswer(new IAnswer<Boolean>() {
+            @Override
+            public Boolean answer() throws Throwable {
+                return disk.containsKey(path);
+            }
+        }).anyTimes();
+
+        EasyMock.expect(file.getContents()).andAnswer(
+            new IAnswer<InputStream>() {
+                @Override
+                public InputStream answer() throws Throwable {
+                    final byte[] content = disk.get(path);
+
+                    if (content == null)
+                        throw new IOException("file does not exist: " + path);
+
+                    return new ByteArrayInputStream(content);
+                }
+            }).anyTimes();
+
+        file.create(EasyMock.isA(InputStream.class), EasyMock.eq(false));
+        EasyMock.expectLastCall().andAnswer(write).anyTimes();
+
+        file.setContents(EasyMock.isA(InputStream.class), EasyMock.eq(false),
+            EasyMock.eq(true));
+        EasyMock.expectLastCall().andAnswer(write).anyTimes();
+
+        EasyMock.replay(file);
+
+        return file;
+    }
+}
@@ -0,0 +1,159 @@
+package de.fu_berlin.inf.dpp.negotiation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Test;
+
+import de.fu_berlin.inf.dpp.communication.extensions.ProjectNegotiationStreamExtension;
+import de.fu_berlin.inf.dpp.net.ITransmitter;
+import de.fu_berlin.inf.dpp.net.xmpp.JID;
+
+public class ProjectStreamSenderTest {
+
+    private static final JID PEER = new JID("bob@test/Saros");
+
+    /** connection id by sequence number of the sent chunks */
+    private final Map<Integer, String> connections = new ConcurrentHashMap<Integer, String>();
+
+    private final Map<Integer, byte[]> payloads = new ConcurrentHashMap<Integer, byte[]>();
+
+    private ProjectStreamSender sender;
+
+    @After
+    public void tearDown() {
+        if (sender != null)
+            sender.dispose();
+    }
+
+    @Test
+    public void testAllChunksAreSent() throws Exception {
+        final List<String> connectionIDs = Arrays.asList("a", "b");
+
+        sender = new ProjectStreamSender(createTransmitter(null, 0), PEER,
+            connectionIDs, 3, 8);
+
+        for (int i = 0; i < 100; i++)
+            sender.send(createChunk(i));
+
+        sender.flush();
+
+        assertEquals(100, payloads.size());
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(connectionIDs.get(i % 2), connections.get(i));
+            assertArrayEquals(createChunk(i).toByteArray(),
+                inflate(payloads.get(i)));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testFailureIsReported() throws Exception {
+        sender = new ProjectStreamSender(createTransmitter(new IOException(
+            "connection lost"), 0), PEER, Collections.singletonList("a"), 1, 4);
+
+        sender.send(createChunk(0));
+        sender.flush();
+    }
+
+    @Test
+    public void testLevelDoesNotDropForSlowLinks() throws Exception {
+        sender = new ProjectStreamSender(createTransmitter(null, 5), PEER,
+            Collections.singletonList("a"), 2, 4);
+
+        assertEquals(Deflater.BEST_SPEED, sender.getLevel());
+
+        // the caller blocks on the slow link, that must not lower the level
+        for (int i = 0; i < 64; i++) {
+            sender.send(createChunk(i));
+
+            assertTrue("level dropped to " + sender.getLevel(),
+                sender.getLevel() >= Deflater.BEST_SPEED);
+        }
+
+        sender.flush();
+
+        assertTrue("level was not raised: " + sender.getLevel(),
+            sender.getLevel() > Deflater.BEST_SPEED);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLessPendingChunksThanWorkers() throws Exception {
+        new ProjectStreamSender(createTransmitter(null, 0), PEER,
+            Collections.singletonList("a"), 4, 2);
+    }
+
+    private ITransmitter createTransmitter(final IOException failure,
+        final long sendDelay) throws IOException {
+        final ITransmitter transmitter = EasyMock
+            .createNiceMock(ITransmitter.class);
+
+        transmitter.send(EasyMock.isA(String.class), EasyMock.eq(PEER),
+            EasyMock.isA(ProjectNegotiationStreamExtension.class));
+
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                if (failure != null)
+                    throw failure;
+
+                if (sendDelay > 0)
+                    Thread.sleep(sendDelay);
+
+                final ProjectNegotiationStreamExtension chunk = (ProjectNegotiationStreamExtension) EasyMock
+                    .getCurrentArguments()[2];
+
+                connections.put(chunk.getSequenceNumber(),
+                    (String) EasyMock.getCurrentArguments()[0]);
+                payloads.put(chunk.getSequenceNumber(),
+                    chunk.toCompressedByteArray());
+                return null;
+            }
+        }).anyTimes();
+
+        EasyMock.replay(transmitter);
+
+        return transmitter;
+    }
+
+    private static ProjectNegotiationStreamExtension createChunk(
+        int sequenceNumber) {
+        final byte[] data = new byte[1000];
+
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) ((i * sequenceNumber) % 7);
+
+        return new ProjectNegotiationStreamExtension("session", "negotiation",
+            sequenceNumber, data, 0, data.length);
+    }
+
+    private static byte[] inflate(byte[] data) throws DataFormatException {
+        final Inflater inflater = new Inflater();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+
+        inflater.setInput(data);
+
+        while (!inflater.finished())
+            out.write(buffer, 0, inflater.inflate(buffer));
+
+        inflater.end();
+
+        return out.toByteArray();
+    }
+}
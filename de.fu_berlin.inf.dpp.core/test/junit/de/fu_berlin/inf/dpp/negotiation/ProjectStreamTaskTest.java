@@ -0,0 +1,209 @@
+package de.fu_berlin.inf.dpp.negotiation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.fu_berlin.inf.dpp.filesystem.IFile;
+import de.fu_berlin.inf.dpp.filesystem.IProject;
+import de.fu_berlin.inf.dpp.monitoring.NullProgressMonitor;
+
+public class ProjectStreamTaskTest {
+
+    private static final String PROJECT_ID = "4711";
+
+    private final Map<String, byte[]> received = new HashMap<String, byte[]>();
+
+    private final List<IFile> files = new ArrayList<IFile>();
+
+    private final List<String> alias = new ArrayList<String>();
+
+    private final Map<String, byte[]> contents = new HashMap<String, byte[]>();
+
+    private IProject receivingProject;
+
+    /** number of bytes the receiving file system reads, -1 for everything */
+    private int bytesToConsume = -1;
+
+    @Before
+    public void setUp() {
+        final Random random = new Random(42);
+
+        addFile("empty.txt", new byte[0]);
+        addFile("src/Small.java", "class Small {}".getBytes());
+
+        final byte[] large = new byte[100 * 1024 + 17];
+        random.nextBytes(large);
+        addFile("lib/large.bin", large);
+
+        final byte[] medium = new byte[5000];
+        random.nextBytes(medium);
+        addFile("medium.bin", medium);
+
+        receivingProject = EasyMock.createMock(IProject.class);
+
+        EasyMock.expect(receivingProject.getFile(EasyMock.isA(String.class)))
+            .andAnswer(new IAnswer<IFile>() {
+                @Override
+                public IFile answer() throws Throwable {
+                    return createReceivingFile((String) EasyMock
+                        .getCurrentArguments()[0]);
+                }
+            }).anyTimes();
+
+        EasyMock.replay(receivingProject);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        transfer();
+
+        assertEquals(contents.keySet(), received.keySet());
+
+        for (Map.Entry<String, byte[]> entry : contents.entrySet())
+            assertArrayEquals(entry.getKey(), entry.getValue(),
+                received.get(entry.getKey()));
+    }
+
+    @Test
+    public void testDeletedFilesAreSkipped() throws Exception {
+        final IFile deleted = EasyMock.createNiceMock(IFile.class);
+        EasyMock.expect(deleted.exists()).andStubReturn(false);
+        EasyMock.replay(deleted);
+
+        files.add(1, deleted);
+        alias.add(1, PROJECT_ID + ProjectNegotiation.PATH_DELIMITER
+            + "deleted.txt");
+
+        transfer();
+
+        assertFalse(received.containsKey("deleted.txt"));
+        assertEquals(contents.keySet(), received.keySet());
+    }
+
+    @Test
+    public void testUnreadContentIsSkipped() throws Exception {
+        bytesToConsume = 10;
+
+        transfer();
+
+        assertEquals(contents.keySet(), received.keySet());
+
+        for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+            final byte[] content = entry.getValue();
+            final byte[] prefix = new byte[Math.min(10, content.length)];
+
+            System.arraycopy(content, 0, prefix, 0, prefix.length);
+
+            assertArrayEquals(entry.getKey(), prefix,
+                received.get(entry.getKey()));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedStream() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        new SendProjectStreamTask(out, files, alias, null)
+            .run(new NullProgressMonitor());
+
+        final byte[] data = out.toByteArray();
+
+        final byte[] truncated = new byte[data.length / 2];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+
+        receive(truncated);
+    }
+
+    private void transfer() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        new SendProjectStreamTask(out, files, alias, null)
+            .run(new NullProgressMonitor());
+
+        receive(out.toByteArray());
+    }
+
+    private void receive(byte[] data) throws Exception {
+        new ReceiveProjectStreamTask(new ByteArrayInputStream(data),
+            files.size(), Collections.singletonMap(PROJECT_ID,
+                receivingProject), ProjectNegotiation.PATH_DELIMITER, null)
+            .run(new NullProgressMonitor());
+    }
+
+    private void addFile(final String path, final byte[] content) {
+        final IFile file = EasyMock.createNiceMock(IFile.class);
+
+        try {
+            EasyMock.expect(file.exists()).andStubReturn(true);
+            EasyMock.expect(file.getContents()).andAnswer(
+                new IAnswer<InputStream>() {
+                    @Override
+                    public InputStream answer() throws Throwable {
+                        return new ByteArrayInputStream(content);
+                    }
+                }).anyTimes();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        EasyMock.replay(file);
+
+        files.add(file);
+        alias.add(PROJECT_ID + ProjectNegotiation.PATH_DELIMITER + path);
+        contents.put(path, content);
+    }
+
+    private IFile createReceivingFile(final String path) throws IOException {
+        final IFile file = EasyMock.createNiceMock(IFile.class);
+
+        file.create(EasyMock.isA(InputStream.class), EasyMock.eq(false));
+
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                final InputStream in = (InputStream) EasyMock
+                    .getCurrentArguments()[0];
+
+                final byte[] content;
+
+                if (bytesToConsume < 0) {
+                    content = IOUtils.toByteArray(in);
+                } else {
+                    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+                    int b;
+
+                    while (out.size() < bytesToConsume && (b = in.read()) != -1)
+                        out.write(b);
+
+                    content = out.toByteArray();
+                }
+
+                received.put(path, content);
+                return null;
+            }
+        });
+
+        EasyMock.replay(file);
+
+        return file;
+    }
+}
@@ -5,7 +5,8 @@ import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({ FileListTest.class, FileListDiffTest.class,
-    SessionNegotiationTest.class })
+    SessionNegotiationTest.class, ProjectStreamTaskTest.class,
+    LocalBlobStoreTest.class, ProjectStreamSenderTest.class })
 public class TestSuite {
     // the class remains completely empty,
     // being used only as a holder for the above annotations
@@ -0,0 +1,114 @@
+package de.fu_berlin.inf.dpp.net;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.zip.Adler32;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+
+public class SharedPayloadTest {
+
+    @Test
+    public void testToByteArray() {
+        final SharedPayload payload = new SharedPayload(new byte[] { 3, 4, 5 });
+
+        assertArrayEquals(new byte[] { 1, 2, 3, 4, 5 },
+            payload.toByteArray(new byte[] { 1, 2 }));
+
+        assertArrayEquals(new byte[] { 3, 4, 5 },
+            payload.toByteArray(new byte[0]));
+    }
+
+    @Test
+    public void testCompressedPayloadInflatesToHeaderAndBody()
+        throws Exception {
+        final byte[] body = createData(100000, true);
+        final SharedPayload payload = new SharedPayload(body);
+
+        for (int headerLength : new int[] { 0, 1, 17, 70000 }) {
+            final byte[] header = createData(headerLength, false);
+
+            assertArrayEquals("header length: " + headerLength,
+                payload.toByteArray(header),
+                inflate(payload.toCompressedByteArray(header)));
+        }
+    }
+
+    @Test
+    public void testCompressedPayloadWithEmptyBody() throws Exception {
+        final SharedPayload payload = new SharedPayload(new byte[0]);
+        final byte[] header = createData(42, false);
+
+        assertArrayEquals(header, inflate(payload.toCompressedByteArray(header)));
+    }
+
+    @Test
+    public void testCombineChecksums() {
+        final Random random = new Random(4711);
+
+        for (int i = 0; i < 100; i++) {
+            final byte[] first = new byte[random.nextInt(200000)];
+            final byte[] second = new byte[random.nextInt(200000)];
+
+            random.nextBytes(first);
+            random.nextBytes(second);
+
+            final Adler32 adler = new Adler32();
+
+            adler.update(first);
+            final int firstChecksum = (int) adler.getValue();
+
+            adler.update(second);
+            final int expected = (int) adler.getValue();
+
+            adler.reset();
+            adler.update(second);
+            final int secondChecksum = (int) adler.getValue();
+
+            assertEquals(expected, SharedPayload.combine(firstChecksum,
+                secondChecksum, second.length));
+        }
+    }
+
+    private static byte[] createData(int length, boolean compressible) {
+        final byte[] data = new byte[length];
+
+        if (compressible) {
+            for (int i = 0; i < data.length; i++)
+                data[i] = (byte) ('a' + (i % 7));
+        } else {
+            new Random(length).nextBytes(data);
+        }
+
+        return data;
+    }
+
+    private static byte[] inflate(byte[] data) throws Exception {
+        final Inflater inflater = new Inflater();
+        inflater.setInput(data);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+
+        try {
+            while (!inflater.finished()) {
+                final int count = inflater.inflate(buffer);
+
+                if (count == 0 && inflater.needsInput())
+                    throw new IllegalStateException("truncated zlib stream");
+
+                out.write(buffer, 0, count);
+            }
+
+            assertEquals("trailing data", 0, inflater.getRemaining());
+        } finally {
+            inflater.end();
+        }
+
+        return out.toByteArray();
+    }
+}
@@ -4,12 +4,19 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -21,6 +28,7 @@ import org.junit.Test;
 import de.fu_berlin.inf.dpp.net.internal.BinaryChannelConnection.IDPool;
 import de.fu_berlin.inf.dpp.net.stream.ByteStream;
 import de.fu_berlin.inf.dpp.net.stream.StreamMode;
+import de.fu_berlin.inf.dpp.net.stream.TCPByteStream;
 import de.fu_berlin.inf.dpp.net.xmpp.JID;
 
 public class BinaryChannelConnectionTest {
@@ -32,7 +40,7 @@ public class BinaryChannelConnectionTest {
         private InputStream in;
         private OutputStream out;
 
-        public PipedBytestreamSession(PipedInputStream in, PipedOutputStream out) {
+        public PipedBytestreamSession(InputStream in, OutputStream out) {
             this.in = in;
             this.out = out;
         }
@@ -239,6 +247,111 @@ public class BinaryChannelConnectionTest {
         assertArrayEquals("fragmentation error", bytesToSend, receivedBytes);
     }
 
+    @Test
+    public void testConcurrentSenders() throws Exception {
+        final int senders = 8;
+        final int packetsPerSender = 25;
+
+        final List<BinaryXMPPExtension> extensions = Collections
+            .synchronizedList(new ArrayList<BinaryXMPPExtension>());
+
+        final CountDownLatch received = new CountDownLatch(senders
+            * packetsPerSender);
+
+        /*
+         * a pipe breaks if the thread that wrote last terminates, so the
+         * senders need a socket
+         */
+        final InetAddress localhost = InetAddress.getByName("localhost");
+
+        final ServerSocket server = new ServerSocket(0, 1, localhost);
+
+        final Socket aliceSocket = new Socket(localhost, server.getLocalPort());
+
+        final Socket bobSocket = server.accept();
+
+        server.close();
+
+        final BinaryChannelConnection alice = new BinaryChannelConnection(
+            aliceJID, bobJID, "junit", new TCPByteStream(aliceSocket),
+            StreamMode.SOCKS5_DIRECT,
+            new StreamConnectionListener() {
+                @Override
+                public void receive(final BinaryXMPPExtension extension) {
+                    // NOP
+                }
+            });
+
+        final BinaryChannelConnection bob = new BinaryChannelConnection(bobJID,
+            aliceJID, "junit", new TCPByteStream(bobSocket),
+            StreamMode.SOCKS5_DIRECT,
+            new StreamConnectionListener() {
+                @Override
+                public void receive(final BinaryXMPPExtension extension) {
+                    extensions.add(extension);
+                    received.countDown();
+                }
+            });
+
+        alice.initialize();
+        bob.initialize();
+
+        final List<Thread> threads = new ArrayList<Thread>();
+
+        final List<Exception> errors = Collections
+            .synchronizedList(new ArrayList<Exception>());
+
+        for (int i = 0; i < senders; i++) {
+            final TransferDescription description = TransferDescription
+                .newDescription();
+
+            description.setNamespace("sender-" + i);
+            description.setElementName("packet");
+
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int p = 0; p < packetsPerSender; p++)
+                            alice.send(description,
+                                createData(1 + (p * 7919) % 100000, p));
+                    } catch (IOException e) {
+                        errors.add(e);
+                    }
+                }
+            });
+        }
+
+        try {
+            for (Thread thread : threads)
+                thread.start();
+
+            for (Thread thread : threads)
+                thread.join(10000);
+
+            assertTrue("not all data was received",
+                received.await(10000, TimeUnit.MILLISECONDS));
+        } finally {
+            alice.close();
+            bob.close();
+        }
+
+        assertTrue("sending failed: " + errors, errors.isEmpty());
+
+        final int[] nextPacket = new int[senders];
+
+        for (BinaryXMPPExtension extension : extensions) {
+            final int sender = Integer.parseInt(extension
+                .getTransferDescription().getNamespace().substring(7));
+
+            final int p = nextPacket[sender]++;
+
+            assertArrayEquals("packet " + p + " of sender " + sender
+                + " is corrupted", createData(1 + (p * 7919) % 100000, p),
+                extension.getPayload());
+        }
+    }
+
     @Test
     @Ignore("this test consumes much CPU resources and should only executed manually when making changes")
     public void testFragmentationCleanup() throws Exception {
@@ -305,6 +418,115 @@ public class BinaryChannelConnectionTest {
 
     }
 
+    @Test
+    public void testInteractiveTransferOvertakesBulkTransfer()
+        throws Exception {
+
+        final List<String> elementNames = Collections
+            .synchronizedList(new ArrayList<String>());
+
+        final CountDownLatch received = new CountDownLatch(2);
+
+        final GatedOutputStream gate = new GatedOutputStream(
+            aliceStream.getOutputStream());
+
+        final BinaryChannelConnection alice = new BinaryChannelConnection(
+            aliceJID, bobJID, "junit", new PipedBytestreamSession(
+                aliceStream.getInputStream(), gate), StreamMode.SOCKS5_DIRECT,
+            new StreamConnectionListener() {
+                @Override
+                public void receive(final BinaryXMPPExtension extension) {
+                    // NOP
+                }
+            });
+
+        final BinaryChannelConnection bob = new BinaryChannelConnection(bobJID,
+            aliceJID, "junit", bobStream, StreamMode.SOCKS5_DIRECT,
+            new StreamConnectionListener() {
+                @Override
+                public void receive(final BinaryXMPPExtension extension) {
+                    elementNames.add(extension.getTransferDescription()
+                        .getElementName());
+                    received.countDown();
+                }
+            });
+
+        alice.initialize();
+        bob.initialize();
+
+        gate.closed = true;
+
+        final TransferDescription bulk = TransferDescription.newDescription();
+
+        bulk.setNamespace("foo-namespace");
+        bulk.setElementName("bulk");
+        bulk.setPriority(TransferPriority.BULK);
+
+        final TransferDescription interactive = TransferDescription
+            .newDescription();
+
+        interactive.setNamespace("foo-namespace");
+        interactive.setElementName("interactive");
+        interactive.setPriority(TransferPriority.INTERACTIVE);
+
+        final Thread bulkSender = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    alice.send(bulk, new byte[1024 * 1024]);
+                } catch (IOException e) {
+                    // the test fails on the missing data
+                }
+            }
+        };
+
+        final Thread interactiveSender = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    alice.send(interactive, new byte[128]);
+                } catch (IOException e) {
+                    // the test fails on the missing data
+                }
+            }
+        };
+
+        try {
+            // the bulk transfer holds the output while its first chunk blocks
+            bulkSender.start();
+
+            assertTrue("bulk transfer was not written",
+                gate.blocked.await(10000, TimeUnit.MILLISECONDS));
+
+            interactiveSender.start();
+
+            final long timeout = System.currentTimeMillis() + 10000;
+
+            while (alice.getScheduler().getQueueLength() == 0) {
+                assertTrue("interactive transfer is not queued",
+                    System.currentTimeMillis() < timeout);
+
+                Thread.sleep(10);
+            }
+
+            gate.open.countDown();
+
+            assertTrue("not all data was received",
+                received.await(10000, TimeUnit.MILLISECONDS));
+        } finally {
+            gate.open.countDown();
+            alice.close();
+            bob.close();
+        }
+
+        assertEquals(Arrays.asList("interactive", "bulk"), elementNames);
+
+        final LatencyStatistics statistics = alice.getLatencyStatistics();
+
+        assertEquals(1, statistics.getCount(TransferPriority.INTERACTIVE));
+        assertEquals(1, statistics.getCount(TransferPriority.BULK));
+    }
+
     @Test
     public void testIDPool() {
 
@@ -323,4 +545,55 @@ public class BinaryChannelConnectionTest {
         assertEquals(-1, pool.nextID());
 
     }
+
+    private static byte[] createData(int length, int seed) {
+        final byte[] data = new byte[length];
+
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) (i * 31 + seed);
+
+        return data;
+    }
+
+    /**
+     * Blocks all writes after it was closed until it is opened again.
+     */
+    private static class GatedOutputStream extends FilterOutputStream {
+
+        private final CountDownLatch blocked = new CountDownLatch(1);
+        private final CountDownLatch open = new CountDownLatch(1);
+
+        private volatile boolean closed;
+
+        public GatedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            awaitOpen();
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            awaitOpen();
+            out.write(b, off, len);
+        }
+
+        private void awaitOpen() throws IOException {
+            if (!closed)
+                return;
+
+            blocked.countDown();
+
+            try {
+                open.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
 }
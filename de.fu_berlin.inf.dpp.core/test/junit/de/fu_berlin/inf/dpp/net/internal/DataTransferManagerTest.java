@@ -1,8 +1,10 @@
 package de.fu_berlin.inf.dpp.net.internal;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
@@ -132,6 +134,8 @@ public class DataTransferManagerTest {
         private IByteStreamConnectionListener listener;
         private volatile boolean closed;
         private volatile int sendPackets;
+        private volatile boolean lastCompressed;
+        private volatile byte[] lastContent;
 
         public ChannelConnection(JID to, StreamMode mode,
             IByteStreamConnectionListener listener) {
@@ -159,6 +163,8 @@ public class DataTransferManagerTest {
         @Override
         public void send(TransferDescription data, byte[] content)
             throws IOException {
+            lastCompressed = data.compressContent();
+            lastContent = content;
             sendPackets++;
         }
 
@@ -180,6 +186,11 @@ public class DataTransferManagerTest {
         public void initialize() {
             // NOP
         }
+
+        @Override
+        public LatencyStatistics getLatencyStatistics() {
+            return new LatencyStatistics();
+        }
     }
 
     private XMPPConnectionService connectionServiceStub;
@@ -421,6 +432,43 @@ public class DataTransferManagerTest {
         dtm.sendData("foo", description, new byte[0]);
     }
 
+    @Test
+    public void testPayloadIsOnlyCompressedIfItShrinks() throws Exception {
+        Transport mainTransport = new Transport(StreamMode.SOCKS5_DIRECT);
+
+        DataTransferManager dtm = new DataTransferManager(
+            connectionServiceStub, null, mainTransport, null);
+
+        connectionListener.getValue().connectionStateChanged(connectionMock,
+            ConnectionState.CONNECTED);
+
+        dtm.connect("foo", new JID("foo@bar.com"));
+
+        ChannelConnection connection = mainTransport
+            .getEstablishedConnections().get(0);
+
+        byte[] small = new byte[] { 4, 7, 1, 1 };
+
+        TransferDescription description = TransferDescription.newDescription()
+            .setRecipient(new JID("foo@bar.com")).setCompressContent(true);
+
+        dtm.sendData("foo", description, small);
+
+        assertFalse("payload that grows was compressed",
+            connection.lastCompressed);
+        assertArrayEquals(small, connection.lastContent);
+
+        byte[] large = new byte[4096];
+
+        description = TransferDescription.newDescription()
+            .setRecipient(new JID("foo@bar.com")).setCompressContent(true);
+
+        dtm.sendData("foo", description, large);
+
+        assertTrue("payload was not compressed", connection.lastCompressed);
+        assertTrue(connection.lastContent.length < large.length);
+    }
+
     @Test(timeout = 30000)
     public void testConcurrentConnections() throws Exception {
 
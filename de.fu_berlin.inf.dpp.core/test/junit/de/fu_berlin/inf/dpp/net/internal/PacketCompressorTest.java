@@ -0,0 +1,89 @@
+package de.fu_berlin.inf.dpp.net.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+
+public class PacketCompressorTest {
+
+    private static final String ACTIVITY = "<ados xmlns=\"de.fu_berlin.inf.dpp\"><payload class=\"ADOS\" v=\"SPXV1\" sid=\"1234567890\" seq=\"42\">"
+        + "<jupiterActivity source=\"alice%40saros-con.imp.fu-berlin.de%2FSaros\">"
+        + "<p i=\"1234567890\" p=\"src%2Fde%2Ffu_berlin%2Finf%2Fdpp%2FFoo.java\"/>"
+        + "<t class=\"vectorTime\" local=\"12\" remote=\"17\"/>"
+        + "<o class=\"insertOp\" position=\"4711\" origin=\"4711\"><text>x</text></o>"
+        + "</jupiterActivity></payload></ados>";
+
+    private final PacketCompressor compressor = new PacketCompressor();
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final byte[] data = ACTIVITY.getBytes("UTF-8");
+
+        // the compressors are reused, so run several rounds
+        for (int i = 0; i < 20; i++)
+            assertArrayEquals(data,
+                compressor.inflate(compressor.deflate(data)));
+    }
+
+    @Test
+    public void testRoundTripLargeData() throws Exception {
+        final byte[] data = new byte[200000];
+        new Random(4711).nextBytes(data);
+
+        assertArrayEquals(data, compressor.inflate(compressor.deflate(data)));
+    }
+
+    @Test
+    public void testZlibIsCompatibleWithPlainInflater() throws Exception {
+        final byte[] data = ACTIVITY.getBytes("UTF-8");
+
+        final byte[] compressed = compressor.deflate(data);
+
+        final Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+
+        final byte[] result = new byte[data.length];
+        assertEquals(data.length, inflater.inflate(result));
+        assertTrue(inflater.finished());
+        inflater.end();
+
+        assertArrayEquals(data, result);
+    }
+
+    @Test(expected = IOException.class)
+    public void testInflateWithUnknownDictionary() throws Exception {
+        final byte[] data = ACTIVITY.getBytes("UTF-8");
+
+        final Deflater deflater = new Deflater();
+        deflater.setDictionary("<jupiterActivity".getBytes("UTF-8"));
+        deflater.setInput(data);
+        deflater.finish();
+
+        final byte[] compressed = new byte[data.length + 64];
+        final int length = deflater.deflate(compressed);
+        deflater.end();
+
+        final byte[] result = new byte[length];
+        System.arraycopy(compressed, 0, result, 0, length);
+
+        compressor.inflate(result);
+    }
+
+    @Test(expected = IOException.class)
+    public void testInflateTruncatedData() throws Exception {
+        final byte[] compressed = compressor.deflate(ACTIVITY
+            .getBytes("UTF-8"));
+
+        final byte[] truncated = new byte[compressed.length / 2];
+        System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+
+        compressor.inflate(truncated);
+    }
+}
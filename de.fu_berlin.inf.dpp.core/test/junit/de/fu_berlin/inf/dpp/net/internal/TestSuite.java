@@ -5,7 +5,8 @@ import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({ BinaryChannelConnectionTest.class,
-    ConnectionPoolTest.class, DataTransferManagerTest.class })
+    ConnectionPoolTest.class, DataTransferManagerTest.class,
+    PacketCompressorTest.class, XMPPReceiverTest.class })
 public class TestSuite {
     // the class remains completely empty,
     // being used only as a holder for the above annotations
@@ -0,0 +1,225 @@
+package de.fu_berlin.inf.dpp.net.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.easymock.EasyMock;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.packet.DefaultPacketExtension;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.provider.ProviderManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmlpull.v1.XmlPullParser;
+
+import de.fu_berlin.inf.dpp.net.DispatchThreadContext;
+import de.fu_berlin.inf.dpp.net.IBinaryPacketExtensionProvider;
+import de.fu_berlin.inf.dpp.net.stream.StreamMode;
+import de.fu_berlin.inf.dpp.net.xmpp.JID;
+import de.fu_berlin.inf.dpp.net.xmpp.XMPPConnectionService;
+
+public class XMPPReceiverTest {
+
+    private static final String ELEMENT_NAME = "receiverTest";
+    private static final String NAMESPACE = "de.fu_berlin.inf.dpp.test";
+
+    private static final JID RECIPIENT = new JID("alice@test/Saros");
+
+    /**
+     * Restores the sequence number stored in the payload and sleeps for a
+     * while, so the packets are deserialized out of order.
+     */
+    private static class SlowProvider implements IBinaryPacketExtensionProvider {
+
+        @Override
+        public PacketExtension parseExtension(XmlPullParser parser) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public PacketExtension parseExtension(byte[] data, JID sender)
+            throws IOException {
+            final int sequenceNumber = Integer.parseInt(new String(data,
+                "UTF-8"));
+
+            try {
+                Thread.sleep(sequenceNumber % 3);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            return createExtension(sequenceNumber);
+        }
+    }
+
+    private DispatchThreadContext dispatchThreadContext;
+
+    private XMPPReceiver receiver;
+
+    @Before
+    public void setUp() {
+        ProviderManager.getInstance().addExtensionProvider(ELEMENT_NAME,
+            NAMESPACE, new SlowProvider());
+
+        XMPPConnectionService connectionService = EasyMock
+            .createNiceMock(XMPPConnectionService.class);
+
+        EasyMock.replay(connectionService);
+
+        dispatchThreadContext = new DispatchThreadContext();
+        receiver = new XMPPReceiver(dispatchThreadContext, connectionService);
+    }
+
+    @After
+    public void tearDown() {
+        receiver.dispose();
+        dispatchThreadContext.dispose();
+
+        ProviderManager.getInstance().removeExtensionProvider(ELEMENT_NAME,
+            NAMESPACE);
+    }
+
+    @Test(timeout = 30000)
+    public void testPacketsOfASenderAreForwardedInOrder() throws Exception {
+        final int senderCount = 3;
+        final int packetCount = 200;
+
+        final Map<String, List<Integer>> received = new HashMap<String, List<Integer>>();
+
+        final CountDownLatch allReceived = new CountDownLatch(senderCount
+            * packetCount);
+
+        receiver.addPacketListener(new PacketListener() {
+            @Override
+            public void processPacket(Packet packet) {
+                DefaultPacketExtension extension = (DefaultPacketExtension) packet
+                    .getExtension(ELEMENT_NAME, NAMESPACE);
+
+                final String sender = new JID(packet.getFrom()).getBase();
+
+                List<Integer> sequenceNumbers = received.get(sender);
+
+                if (sequenceNumbers == null) {
+                    sequenceNumbers = new ArrayList<Integer>();
+                    received.put(sender, sequenceNumbers);
+                }
+
+                sequenceNumbers.add(Integer.valueOf(extension.getValue("seq")));
+                allReceived.countDown();
+            }
+        }, null);
+
+        for (int i = 0; i < packetCount; i++) {
+            for (int s = 0; s < senderCount; s++) {
+                final JID sender = new JID("sender" + s + "@test/Saros");
+
+                /*
+                 * some packets arrive already parsed via the XMPP server and
+                 * carry the sender in another form
+                 */
+                if (i % 10 == 0) {
+                    Message message = new Message();
+                    message.setFrom(sender.getBase());
+                    message.addExtension(createExtension(i));
+                    receiver.processPacket(message);
+                    continue;
+                }
+
+                receiver.processBinaryXMPPExtension(createBinaryExtension(
+                    sender, i));
+            }
+        }
+
+        assertTrue("not all packets were forwarded",
+            allReceived.await(20, TimeUnit.SECONDS));
+
+        final List<Integer> expected = new ArrayList<Integer>();
+
+        for (int i = 0; i < packetCount; i++)
+            expected.add(i);
+
+        // the listener is only called from the dispatch thread
+        dispatchThreadContext.getDispatchExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                // NOP
+            }
+        }).get();
+
+        assertEquals(senderCount, received.size());
+
+        for (List<Integer> sequenceNumbers : received.values())
+            assertEquals("packets were forwarded out of order", expected,
+                sequenceNumbers);
+
+        assertEquals(0, receiver.getQueuedPacketCount());
+    }
+
+    @Test(timeout = 30000)
+    public void testUnknownPacketDoesNotBlockLaterPackets() throws Exception {
+        final JID sender = new JID("sender@test/Saros");
+
+        final List<Packet> received = Collections
+            .synchronizedList(new ArrayList<Packet>());
+
+        final CountDownLatch allReceived = new CountDownLatch(1);
+
+        receiver.addPacketListener(new PacketListener() {
+            @Override
+            public void processPacket(Packet packet) {
+                received.add(packet);
+                allReceived.countDown();
+            }
+        }, null);
+
+        BinaryXMPPExtension unknown = new BinaryXMPPExtension(
+            StreamMode.SOCKS5_DIRECT, TransferDescription.newDescription()
+                .setSender(sender).setRecipient(RECIPIENT)
+                .setElementName("unknown").setNamespace(NAMESPACE), 0);
+
+        unknown.setPayload(0, new byte[0]);
+
+        receiver.processBinaryXMPPExtension(unknown);
+        receiver.processBinaryXMPPExtension(createBinaryExtension(sender, 1));
+
+        assertTrue("packet was not forwarded",
+            allReceived.await(20, TimeUnit.SECONDS));
+
+        assertEquals(1, received.size());
+    }
+
+    private static BinaryXMPPExtension createBinaryExtension(JID sender,
+        int sequenceNumber) throws IOException {
+
+        BinaryXMPPExtension extension = new BinaryXMPPExtension(
+            StreamMode.SOCKS5_DIRECT, TransferDescription.newDescription()
+                .setSender(sender).setRecipient(RECIPIENT)
+                .setElementName(ELEMENT_NAME).setNamespace(NAMESPACE), 0);
+
+        byte[] payload = String.valueOf(sequenceNumber).getBytes("UTF-8");
+
+        extension.setPayload(payload.length, payload);
+
+        return extension;
+    }
+
+    private static PacketExtension createExtension(int sequenceNumber) {
+        DefaultPacketExtension extension = new DefaultPacketExtension(
+            ELEMENT_NAME, NAMESPACE);
+
+        extension.setValue("seq", String.valueOf(sequenceNumber));
+        return extension;
+    }
+}
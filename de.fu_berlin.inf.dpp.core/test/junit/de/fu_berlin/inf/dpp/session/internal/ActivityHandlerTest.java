@@ -6,8 +6,11 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -52,6 +55,7 @@ public class ActivityHandlerTest {
     // SUT
     private ActivityHandler handler;
     private NonUISynchronizer synchronizer;
+    private ISarosSession sessionMock;
 
     // Results from Callback
     private IActivity transformedActivity;
@@ -75,6 +79,9 @@ public class ActivityHandlerTest {
     // Needed to compare localActivities
     private volatile CountDownLatch gate;
 
+    // Needed as the host may forward activities asynchronously
+    private volatile CountDownLatch sendGate;
+
     // Roles of the Users in this Test
     private User target;
     private User source;
@@ -89,6 +96,11 @@ public class ActivityHandlerTest {
             willBeSent = true;
             targets = recipients;
             transformedActivity = activity;
+
+            CountDownLatch gateToCountdown = sendGate;
+
+            if (gateToCountdown != null)
+                gateToCountdown.countDown();
         }
 
         @Override
@@ -101,6 +113,13 @@ public class ActivityHandlerTest {
             if (gateToCountdown != null)
                 gateToCountdown.countDown();
         }
+
+        @Override
+        public void executeTextEdits(SPath path,
+            List<TextEditActivity> textEdits) {
+            for (TextEditActivity textEdit : textEdits)
+                execute(textEdit);
+        }
     };
     private SPath path;
 
@@ -178,11 +197,19 @@ public class ActivityHandlerTest {
         for (IActivity activity : activities) {
 
             willBeSent = false;
+            sendGate = new CountDownLatch(1);
 
             // SUT-CALL
             handler.handleIncomingActivities(Collections
                 .singletonList(activity));
 
+            try {
+                sendGate.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail("interrupted while waiting for " + activity);
+            }
+
             if (!willBeSent) {
                 fail("Activity: " + activity + " was not send.");
             } else if (activity instanceof ITargetedActivity) {
@@ -206,6 +233,336 @@ public class ActivityHandlerTest {
         }
     }
 
+    /**
+     * This tests if the handleIncomingActivities-method at the host keeps the
+     * order of the activities when activities for different documents are
+     * transformed concurrently.
+     */
+    @Test
+    public void ServerSendKeepsOrderTest() {
+
+        setParameters(bob, alice, true);
+
+        final List<SPath> paths = new ArrayList<SPath>();
+
+        for (int i = 0; i < 4; i++) {
+            SPath documentPath = EasyMock.createMock(SPath.class);
+            EasyMock.expect(documentPath.getProject()).andStubReturn(
+                path.getProject());
+            EasyMock.replay(documentPath);
+            paths.add(documentPath);
+        }
+
+        final List<IActivity> batch = new ArrayList<IActivity>();
+        final Map<SPath, List<IActivity>> transformedPerPath = new HashMap<SPath, List<IActivity>>();
+
+        for (int i = 0; i < 40; i++) {
+            JupiterActivity activity = EasyMock
+                .createNiceMock(JupiterActivity.class);
+            EasyMock.expect(activity.getPath()).andStubReturn(
+                paths.get(i % paths.size()));
+            EasyMock.expect(activity.getSource()).andStubReturn(source);
+            EasyMock.replay(activity);
+            batch.add(activity);
+        }
+
+        for (SPath documentPath : paths)
+            transformedPerPath.put(documentPath,
+                Collections.synchronizedList(new ArrayList<IActivity>()));
+
+        ConcurrentDocumentServer server = EasyMock
+            .createNiceMock(ConcurrentDocumentServer.class);
+
+        EasyMock.expect(
+            server.transformIncoming(EasyMock.isA(JupiterActivity.class)))
+            .andAnswer(new IAnswer<List<QueueItem>>() {
+                @Override
+                public List<QueueItem> answer() throws Throwable {
+                    JupiterActivity activity = (JupiterActivity) EasyMock
+                        .getCurrentArguments()[0];
+
+                    transformedPerPath.get(activity.getPath()).add(activity);
+
+                    return Collections.singletonList(new QueueItem(
+                        remoteUsersWithProjects, activity));
+                }
+            }).anyTimes();
+
+        EasyMock.replay(server);
+
+        final List<IActivity> sent = new ArrayList<IActivity>();
+
+        IActivityHandlerCallback orderCallback = new IActivityHandlerCallback() {
+
+            @Override
+            public void send(List<User> recipients, IActivity activity) {
+                sent.add(activity);
+            }
+
+            @Override
+            public void execute(IActivity activity) {
+                // NOP
+            }
+
+            @Override
+            public void executeTextEdits(SPath path,
+                List<TextEditActivity> textEdits) {
+                // NOP
+            }
+        };
+
+        ActivityHandler orderHandler = new ActivityHandler(
+            sessionMock, orderCallback, server,
+            EasyMock.createNiceMock(ConcurrentDocumentClient.class),
+            synchronizer);
+
+        orderHandler.start();
+
+        try {
+            // SUT-CALL
+            orderHandler.handleIncomingActivities(batch);
+        } finally {
+            orderHandler.stop();
+        }
+
+        assertEquals("activities were not sent in the original order", batch,
+            sent);
+
+        for (int i = 0; i < paths.size(); i++) {
+            List<IActivity> expected = new ArrayList<IActivity>();
+
+            for (int j = i; j < batch.size(); j += paths.size())
+                expected.add(batch.get(j));
+
+            assertEquals("activities of the same document were not "
+                + "transformed in the original order", expected,
+                transformedPerPath.get(paths.get(i)));
+        }
+    }
+
+    @Test
+    public void ServerMoveKeepsOrderTest() {
+
+        setParameters(bob, alice, true);
+
+        final SPath oldPath = EasyMock.createMock(SPath.class);
+        final SPath newPath = EasyMock.createMock(SPath.class);
+
+        for (SPath documentPath : Arrays.asList(oldPath, newPath)) {
+            EasyMock.expect(documentPath.getProject()).andStubReturn(
+                path.getProject());
+            EasyMock.replay(documentPath);
+        }
+
+        final List<IActivity> batch = new ArrayList<IActivity>();
+
+        for (int i = 0; i < 20; i++)
+            batch.add(createJupiterActivity(i < 10 ? oldPath : newPath));
+
+        FileActivity move = EasyMock.createNiceMock(FileActivity.class);
+        EasyMock.expect(move.getPath()).andStubReturn(newPath);
+        EasyMock.expect(move.getOldPath()).andStubReturn(oldPath);
+        EasyMock.expect(move.getSource()).andStubReturn(source);
+        EasyMock.replay(move);
+
+        batch.add(10, move);
+
+        final List<IActivity> processed = Collections
+            .synchronizedList(new ArrayList<IActivity>());
+
+        ConcurrentDocumentServer server = EasyMock
+            .createNiceMock(ConcurrentDocumentServer.class);
+
+        server.checkFileDeleted(EasyMock.isA(FileActivity.class));
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                processed.add((IActivity) EasyMock.getCurrentArguments()[0]);
+                return null;
+            }
+        }).anyTimes();
+
+        EasyMock.expect(
+            server.transformIncoming(EasyMock.isA(JupiterActivity.class)))
+            .andAnswer(new IAnswer<List<QueueItem>>() {
+                @Override
+                public List<QueueItem> answer() throws Throwable {
+                    JupiterActivity activity = (JupiterActivity) EasyMock
+                        .getCurrentArguments()[0];
+
+                    // give a concurrent lane the chance to overtake
+                    if (activity.getPath() == oldPath)
+                        Thread.sleep(1);
+
+                    processed.add(activity);
+
+                    return Collections.singletonList(new QueueItem(
+                        remoteUsersWithProjects, activity));
+                }
+            }).anyTimes();
+
+        EasyMock.replay(server);
+
+        ActivityHandler moveHandler = new ActivityHandler(sessionMock,
+            callback, server,
+            EasyMock.createNiceMock(ConcurrentDocumentClient.class),
+            synchronizer);
+
+        moveHandler.start();
+
+        try {
+            // SUT-CALL
+            moveHandler.handleIncomingActivities(batch);
+        } finally {
+            moveHandler.stop();
+        }
+
+        assertEquals("activities of moved documents were not processed "
+            + "in the original order", batch, processed);
+    }
+
+    /**
+     * This tests if the host keeps the order of the activities of each user
+     * and of each document when the activities arrive in separate calls of
+     * the handleIncomingActivities-method.
+     */
+    @Test
+    public void ServerKeepsOrderAcrossCallsTest() {
+
+        setParameters(bob, alice, true);
+
+        final List<SPath> paths = new ArrayList<SPath>();
+
+        for (int i = 0; i < 3; i++) {
+            SPath documentPath = EasyMock.createMock(SPath.class);
+            EasyMock.expect(documentPath.getProject()).andStubReturn(
+                path.getProject());
+            EasyMock.replay(documentPath);
+            paths.add(documentPath);
+        }
+
+        final List<User> sources = Arrays.asList(alice, bob);
+
+        final List<IActivity> received = new ArrayList<IActivity>();
+
+        for (int i = 0; i < 60; i++) {
+            received.add(createJupiterActivity(paths.get(i % paths.size()),
+                sources.get(i % sources.size())));
+        }
+
+        ConcurrentDocumentServer server = EasyMock
+            .createNiceMock(ConcurrentDocumentServer.class);
+
+        EasyMock.expect(
+            server.transformIncoming(EasyMock.isA(JupiterActivity.class)))
+            .andAnswer(new IAnswer<List<QueueItem>>() {
+                @Override
+                public List<QueueItem> answer() throws Throwable {
+                    JupiterActivity activity = (JupiterActivity) EasyMock
+                        .getCurrentArguments()[0];
+
+                    // give the lanes of other documents the chance to overtake
+                    if (activity.getPath() == paths.get(0))
+                        Thread.sleep(1);
+
+                    return Collections.singletonList(new QueueItem(
+                        remoteUsersWithProjects, activity));
+                }
+            }).anyTimes();
+
+        EasyMock.replay(server);
+
+        final List<IActivity> sent = new ArrayList<IActivity>();
+
+        IActivityHandlerCallback orderCallback = new IActivityHandlerCallback() {
+
+            @Override
+            public void send(List<User> recipients, IActivity activity) {
+                sent.add(activity);
+            }
+
+            @Override
+            public void execute(IActivity activity) {
+                // NOP
+            }
+
+            @Override
+            public void executeTextEdits(SPath path,
+                List<TextEditActivity> textEdits) {
+                // NOP
+            }
+        };
+
+        ActivityHandler orderHandler = new ActivityHandler(sessionMock,
+            orderCallback, server,
+            EasyMock.createNiceMock(ConcurrentDocumentClient.class),
+            synchronizer);
+
+        orderHandler.start();
+
+        try {
+            // SUT-CALL
+            for (IActivity activity : received)
+                orderHandler.handleIncomingActivities(Collections
+                    .singletonList(activity));
+        } finally {
+            orderHandler.stop();
+        }
+
+        assertEquals("not all activities were sent", received.size(),
+            sent.size());
+
+        for (User user : sources) {
+            assertEquals("activities of " + user
+                + " were not sent in the original order",
+                filterBySource(received, user), filterBySource(sent, user));
+        }
+
+        for (SPath documentPath : paths) {
+            assertEquals("activities of the same document were not sent in "
+                + "the original order", filterByPath(received, documentPath),
+                filterByPath(sent, documentPath));
+        }
+    }
+
+    private static List<IActivity> filterBySource(List<IActivity> activities,
+        User user) {
+        List<IActivity> result = new ArrayList<IActivity>();
+
+        for (IActivity activity : activities) {
+            if (activity.getSource().equals(user))
+                result.add(activity);
+        }
+
+        return result;
+    }
+
+    private static List<IActivity> filterByPath(List<IActivity> activities,
+        SPath documentPath) {
+        List<IActivity> result = new ArrayList<IActivity>();
+
+        for (IActivity activity : activities) {
+            if (((JupiterActivity) activity).getPath() == documentPath)
+                result.add(activity);
+        }
+
+        return result;
+    }
+
+    private JupiterActivity createJupiterActivity(SPath documentPath) {
+        return createJupiterActivity(documentPath, source);
+    }
+
+    private static JupiterActivity createJupiterActivity(SPath documentPath,
+        User activitySource) {
+        JupiterActivity activity = EasyMock
+            .createNiceMock(JupiterActivity.class);
+        EasyMock.expect(activity.getPath()).andStubReturn(documentPath);
+        EasyMock.expect(activity.getSource()).andStubReturn(activitySource);
+        EasyMock.replay(activity);
+        return activity;
+    }
+
     /**
      * This tests if the handleIncomingActivities-method at the host produces
      * the right activities for the localUser.
@@ -287,6 +644,99 @@ public class ActivityHandlerTest {
         }
     }
 
+    /**
+     * This tests if consecutive text edits of the same document are executed
+     * together and that the order of all activities is kept.
+     */
+    @Test
+    public void ClientExecuteTextEditsTest() throws Exception {
+
+        setParameters(alice, bob, false);
+
+        SPath otherPath = EasyMock.createMock(SPath.class);
+        EasyMock.replay(otherPath);
+
+        IActivity colorChange = activities.get(0);
+
+        // the offsets are chosen so that the edits cannot be merged
+        List<IActivity> batch = new ArrayList<IActivity>();
+        batch.add(new TextEditActivity(bob, 0, "a", "", path));
+        batch.add(new TextEditActivity(bob, 5, "b", "", path));
+        batch.add(new TextEditActivity(bob, 10, "c", "", path));
+        batch.add(colorChange);
+        batch.add(new TextEditActivity(bob, 3, "d", "", path));
+        batch.add(new TextEditActivity(bob, 0, "e", "", otherPath));
+        batch.add(new TextEditActivity(bob, 5, "f", "", otherPath));
+        batch.add(new TextEditActivity(bob, 4, "g", "", path));
+
+        ConcurrentDocumentClient client = EasyMock
+            .createNiceMock(ConcurrentDocumentClient.class);
+
+        EasyMock.expect(client.transformFromJupiter(EasyMock.isA(IActivity.class)))
+            .andAnswer(new IAnswer<List<IActivity>>() {
+                @Override
+                public List<IActivity> answer() throws Throwable {
+                    return Collections.singletonList((IActivity) EasyMock
+                        .getCurrentArguments()[0]);
+                }
+            }).anyTimes();
+
+        EasyMock.replay(client);
+
+        final List<Object> executed = Collections
+            .synchronizedList(new ArrayList<Object>());
+
+        final CountDownLatch executionGate = new CountDownLatch(5);
+
+        IActivityHandlerCallback batchCallback = new IActivityHandlerCallback() {
+
+            @Override
+            public void send(List<User> recipients, IActivity activity) {
+                // NOP
+            }
+
+            @Override
+            public void execute(IActivity activity) {
+                executed.add(activity);
+                executionGate.countDown();
+            }
+
+            @Override
+            public void executeTextEdits(SPath path,
+                List<TextEditActivity> textEdits) {
+                executed.add(new ArrayList<IActivity>(textEdits));
+                executionGate.countDown();
+            }
+        };
+
+        ActivityHandler batchHandler = new ActivityHandler(sessionMock,
+            batchCallback,
+            EasyMock.createNiceMock(ConcurrentDocumentServer.class), client,
+            synchronizer);
+
+        batchHandler.start();
+
+        try {
+            // SUT-CALL
+            batchHandler.handleIncomingActivities(batch);
+
+            assertTrue("activities were not dispatched",
+                executionGate.await(10, TimeUnit.SECONDS));
+        } finally {
+            batchHandler.stop();
+        }
+
+        List<Object> expected = new ArrayList<Object>();
+        expected.add(batch.subList(0, 3));
+        expected.add(colorChange);
+        expected.add(batch.get(4));
+        expected.add(batch.subList(5, 7));
+        expected.add(batch.get(7));
+
+        assertEquals("text edits were not grouped correctly", expected,
+            executed);
+    }
+
     /**
      * Specifies the roles of participants in the session. Should be called at
      * the start of every test case
@@ -350,7 +800,7 @@ public class ActivityHandlerTest {
         synchronizer = new NonUISynchronizer();
 
         // Create SessionMock
-        ISarosSession sessionMock = EasyMock.createMock(ISarosSession.class);
+        sessionMock = EasyMock.createMock(ISarosSession.class);
         EasyMock.expect(sessionMock.getLocalUser()).andStubReturn(alice);
         EasyMock.expect(sessionMock.getHost()).andStubReturn(alice);
         // read host-Variable at runtime.
@@ -5,6 +5,8 @@ import static junit.framework.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -23,6 +25,8 @@ import de.fu_berlin.inf.dpp.activities.JupiterActivity;
 import de.fu_berlin.inf.dpp.activities.NOPActivity;
 import de.fu_berlin.inf.dpp.activities.SPath;
 import de.fu_berlin.inf.dpp.activities.StartFollowingActivity;
+import de.fu_berlin.inf.dpp.activities.TextSelectionActivity;
+import de.fu_berlin.inf.dpp.activities.ViewportActivity;
 import de.fu_berlin.inf.dpp.concurrent.jupiter.internal.JupiterVectorTime;
 import de.fu_berlin.inf.dpp.concurrent.jupiter.internal.text.NoOperation;
 import de.fu_berlin.inf.dpp.filesystem.IPath;
@@ -350,6 +354,155 @@ public class ActivityQueuerTest {
             activities.get(2));
     }
 
+    @Test
+    public void testSpillToDisk() {
+        final FakeCodec codec = new FakeCodec();
+
+        // spill after every call
+        activityQueuer = new ActivityQueuer(codec, 0);
+        activityQueuer.enableQueuing(SHARED_PROJECT);
+
+        final List<IActivity> expectedActivities = new ArrayList<IActivity>();
+
+        for (int i = 0; i < 5; i++) {
+            IActivity activity = new FolderCreatedActivity(BOB,
+                BAR_PATH_SHARED_PROJECT);
+
+            IActivity jupiterActivity = createJupiterActivity(FOO_PATH_SHARED_PROJECT);
+
+            assertEquals("activities were not queued", 0, activityQueuer
+                .process(Arrays.asList(activity, jupiterActivity)).size());
+
+            expectedActivities.add(activity);
+
+            // see testHackForBug808
+            if (i == 0)
+                expectedActivities.add(new EditorActivity(BOB,
+                    EditorActivity.Type.ACTIVATED, FOO_PATH_SHARED_PROJECT));
+
+            expectedActivities.add(jupiterActivity);
+        }
+
+        assertEquals("activities were not spilled", 5, codec.encoded.size());
+
+        activityQueuer.disableQueuing(SHARED_PROJECT);
+
+        assertListsAreEqual(expectedActivities,
+            activityQueuer.process(Collections.<IActivity> emptyList()));
+
+        assertEquals("spilled activities were not read", 5, codec.decoded);
+    }
+
+    @Test
+    public void testSpillToDiskKeepsOrderOfActivitiesInMemory() {
+        final FakeCodec codec = new FakeCodec();
+
+        activityQueuer = new ActivityQueuer(codec, 200);
+        activityQueuer.enableQueuing(SHARED_PROJECT);
+
+        final IActivity first = new FolderCreatedActivity(BOB,
+            BAR_PATH_SHARED_PROJECT);
+        final IActivity second = new FolderDeletedActivity(BOB,
+            BAR_PATH_SHARED_PROJECT);
+        final IActivity third = new FolderCreatedActivity(BOB,
+            BAR_PATH_SHARED_PROJECT);
+
+        // below the budget
+        activityQueuer.process(Collections.singletonList(first));
+        assertEquals("activities were spilled too early", 0,
+            codec.encoded.size());
+
+        // exceeds the budget
+        activityQueuer.process(Collections.singletonList(second));
+        assertEquals("activities were not spilled", 1, codec.encoded.size());
+
+        // stays in memory
+        activityQueuer.process(Collections.singletonList(third));
+
+        activityQueuer.disableQueuing(SHARED_PROJECT);
+
+        assertListsAreEqual(Arrays.asList(first, second, third),
+            activityQueuer.process(Collections.<IActivity> emptyList()));
+    }
+
+    @Test
+    public void testSpillingFailureKeepsActivitiesInMemory() {
+        final FakeCodec codec = new FakeCodec() {
+            @Override
+            public byte[] encode(List<IActivity> activities)
+                throws IOException {
+                throw new IOException("disk full");
+            }
+        };
+
+        activityQueuer = new ActivityQueuer(codec, 0);
+        activityQueuer.enableQueuing(SHARED_PROJECT);
+
+        final IActivity first = new FolderCreatedActivity(BOB,
+            BAR_PATH_SHARED_PROJECT);
+        final IActivity second = new FolderDeletedActivity(BOB,
+            BAR_PATH_SHARED_PROJECT);
+
+        activityQueuer.process(Collections.singletonList(first));
+        activityQueuer.process(Collections.singletonList(second));
+
+        activityQueuer.disableQueuing(SHARED_PROJECT);
+
+        assertListsAreEqual(Arrays.asList(first, second),
+            activityQueuer.process(Collections.<IActivity> emptyList()));
+    }
+
+    @Test
+    public void testSupersededSelectionsAndViewportsAreDropped() {
+        activityQueuer.enableQueuing(SHARED_PROJECT);
+
+        final IActivity aliceFooSelection = new TextSelectionActivity(ALICE,
+            0, 0, FOO_PATH_SHARED_PROJECT);
+        final IActivity aliceFooViewport = new ViewportActivity(ALICE, 0, 10,
+            FOO_PATH_SHARED_PROJECT);
+        final IActivity bobFooSelection = new TextSelectionActivity(BOB, 0, 0,
+            FOO_PATH_SHARED_PROJECT);
+        final IActivity aliceBarSelection = new TextSelectionActivity(ALICE,
+            0, 0, BAR_PATH_SHARED_PROJECT);
+        final IActivity latestAliceFooSelection = new TextSelectionActivity(
+            ALICE, 5, 0, FOO_PATH_SHARED_PROJECT);
+        final IActivity latestAliceFooViewport = new ViewportActivity(ALICE,
+            5, 10, FOO_PATH_SHARED_PROJECT);
+
+        activityQueuer.process(Arrays.asList(aliceFooSelection,
+            aliceFooViewport, bobFooSelection, aliceBarSelection));
+
+        activityQueuer.process(Arrays.asList(latestAliceFooSelection,
+            latestAliceFooViewport));
+
+        activityQueuer.disableQueuing(SHARED_PROJECT);
+
+        assertListsAreEqual(Arrays.asList(bobFooSelection, aliceBarSelection,
+            latestAliceFooSelection, latestAliceFooViewport),
+            activityQueuer.process(Collections.<IActivity> emptyList()));
+    }
+
+    /**
+     * Encodes the index of the activities in a list instead of the activities.
+     */
+    private static class FakeCodec implements ActivityQueuer.Codec {
+
+        private final List<List<IActivity>> encoded = new ArrayList<List<IActivity>>();
+        private int decoded;
+
+        @Override
+        public byte[] encode(List<IActivity> activities) throws IOException {
+            encoded.add(new ArrayList<IActivity>(activities));
+            return ByteBuffer.allocate(4).putInt(encoded.size() - 1).array();
+        }
+
+        @Override
+        public List<IActivity> decode(byte[] data) throws IOException {
+            decoded++;
+            return encoded.get(ByteBuffer.wrap(data).getInt());
+        }
+    }
+
     private List<IActivity> createSomeActivities() {
         IActivity startFollowingActivity = new StartFollowingActivity(ALICE,
             BOB);
@@ -7,6 +7,7 @@ import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -263,6 +264,190 @@ public class ActivitySequencerTest {
         }
     }
 
+    @Test(timeout = 30000)
+    public void testConcurrentSendAndFlush() throws Exception {
+
+        final int threadCount = 4;
+        final int activityCount = 500;
+
+        aliceSequencer = new ActivitySequencer(sessionStubAlice,
+            aliceTransmitter, aliceReceiver, null);
+
+        bobSequencer = new ActivitySequencer(sessionStubBob, bobTransmitter,
+            bobReceiver, null);
+
+        aliceSequencer.start();
+        bobSequencer.start();
+
+        final User bobUserInAliceSession = new User(BOB_JID, false, false, 0,
+            0);
+        User aliceUserInBobSession = new User(ALICE_JID, true, false, 0, 0);
+
+        sessionStubAlice.addUser(bobUserInAliceSession);
+        sessionStubBob.addUser(aliceUserInBobSession);
+
+        aliceSequencer.registerUser(bobUserInAliceSession);
+        bobSequencer.registerUser(aliceUserInBobSession);
+
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int t = 0; t < threadCount; t++) {
+            final int offset = t * activityCount;
+
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < activityCount; i++) {
+                        aliceSequencer.sendActivity(Collections
+                            .singletonList(bobUserInAliceSession),
+                            new NOPActivity(aliceUser, bobUserInAliceSession,
+                                offset + i));
+
+                        if (i % 100 == 0)
+                            aliceSequencer.flush(bobUserInAliceSession);
+                    }
+                }
+            }));
+        }
+
+        for (Thread thread : threads)
+            thread.start();
+
+        for (Thread thread : threads)
+            thread.join();
+
+        aliceSequencer.flush(bobUserInAliceSession);
+
+        List<IActivity> receivedActivities = sessionStubBob
+            .getReceivedActivities();
+
+        assertEquals("not all activies received", threadCount
+            * activityCount, receivedActivities.size());
+
+        int[] lastIDs = new int[threadCount];
+        Arrays.fill(lastIDs, -1);
+
+        for (IActivity activity : receivedActivities) {
+            int id = ((NOPActivity) activity).getID();
+            int thread = id / activityCount;
+
+            assertTrue("activity is out of order", id > lastIDs[thread]);
+            lastIDs[thread] = id;
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testBatchDelayCoalescesActivities() {
+
+        int activityCount = 100;
+
+        // flush must not wait for the delay, otherwise the test times out
+        aliceSequencer = new ActivitySequencer(sessionStubAlice,
+            aliceTransmitter, aliceReceiver, null, 60000, Long.MAX_VALUE);
+
+        bobSequencer = new ActivitySequencer(sessionStubBob, bobTransmitter,
+            bobReceiver, null);
+
+        aliceSequencer.start();
+        bobSequencer.start();
+
+        User bobUserInAliceSession = new User(BOB_JID, false, false, 0, 0);
+        User aliceUserInBobSession = new User(ALICE_JID, true, false, 0, 0);
+
+        sessionStubAlice.addUser(bobUserInAliceSession);
+        sessionStubBob.addUser(aliceUserInBobSession);
+
+        aliceSequencer.registerUser(bobUserInAliceSession);
+        bobSequencer.registerUser(aliceUserInBobSession);
+
+        // the first activity after a pause is not delayed
+        aliceSequencer.sendActivity(
+            Collections.singletonList(bobUserInAliceSession),
+            new NOPActivity(aliceUser, bobUserInAliceSession, -1));
+
+        aliceSequencer.flush(bobUserInAliceSession);
+
+        for (int i = 0; i < activityCount; i++)
+            aliceSequencer.sendActivity(
+                Collections.singletonList(bobUserInAliceSession),
+                new NOPActivity(aliceUser, bobUserInAliceSession, i));
+
+        assertEquals("activities were sent before the batch was complete", 1,
+            sessionStubBob.getReceivedActivities().size());
+
+        aliceSequencer.flush(bobUserInAliceSession);
+
+        assertEquals("not all activies received", activityCount + 1,
+            sessionStubBob.getReceivedActivities().size());
+
+        assertEquals("activities were not sent in one packet",
+            (activityCount + 1) / 2.0, aliceSequencer.getAverageBatchSize(), 0);
+    }
+
+    @Test(timeout = 30000)
+    public void testActivityAfterPauseIsSentWithoutDelay() throws Exception {
+
+        aliceSequencer = new ActivitySequencer(sessionStubAlice,
+            aliceTransmitter, aliceReceiver, null, 60000, Long.MAX_VALUE);
+
+        bobSequencer = new ActivitySequencer(sessionStubBob, bobTransmitter,
+            bobReceiver, null);
+
+        aliceSequencer.start();
+        bobSequencer.start();
+
+        User bobUserInAliceSession = new User(BOB_JID, false, false, 0, 0);
+        User aliceUserInBobSession = new User(ALICE_JID, true, false, 0, 0);
+
+        sessionStubAlice.addUser(bobUserInAliceSession);
+        sessionStubBob.addUser(aliceUserInBobSession);
+
+        aliceSequencer.registerUser(bobUserInAliceSession);
+        bobSequencer.registerUser(aliceUserInBobSession);
+
+        aliceSequencer.sendActivity(
+            Collections.singletonList(bobUserInAliceSession),
+            new NOPActivity(aliceUser, bobUserInAliceSession, 0));
+
+        // no flush, the activity must not wait for the delay
+        while (sessionStubBob.getReceivedActivities().isEmpty())
+            Thread.sleep(10);
+    }
+
+    @Test(timeout = 30000)
+    public void testBatchSizeLimitSendsWithoutDelay() throws Exception {
+
+        int activityCount = 100;
+
+        aliceSequencer = new ActivitySequencer(sessionStubAlice,
+            aliceTransmitter, aliceReceiver, null, 60000, 10 * 512);
+
+        bobSequencer = new ActivitySequencer(sessionStubBob, bobTransmitter,
+            bobReceiver, null);
+
+        aliceSequencer.start();
+        bobSequencer.start();
+
+        User bobUserInAliceSession = new User(BOB_JID, false, false, 0, 0);
+        User aliceUserInBobSession = new User(ALICE_JID, true, false, 0, 0);
+
+        sessionStubAlice.addUser(bobUserInAliceSession);
+        sessionStubBob.addUser(aliceUserInBobSession);
+
+        aliceSequencer.registerUser(bobUserInAliceSession);
+        bobSequencer.registerUser(aliceUserInBobSession);
+
+        for (int i = 0; i < activityCount; i++)
+            aliceSequencer.sendActivity(
+                Collections.singletonList(bobUserInAliceSession),
+                new NOPActivity(aliceUser, bobUserInAliceSession, i));
+
+        // at most one incomplete batch may still wait for the delay
+        while (sessionStubBob.getReceivedActivities().size() <= activityCount
+            - 10)
+            Thread.sleep(10);
+    }
+
     @Test(timeout = 30000)
     public void testSendWithoutRegisteredUser() {
 
@@ -52,6 +52,16 @@ class NonThreadedReceiver implements IReceiver {
         return collector;
     }
 
+    @Override
+    public int getQueuedPacketCount() {
+        return 0;
+    }
+
+    @Override
+    public int getMaxQueuedPacketCount() {
+        return 0;
+    }
+
     @Override
     public void processBinaryXMPPExtension(final BinaryXMPPExtension extension) {
         throw new UnsupportedOperationException();
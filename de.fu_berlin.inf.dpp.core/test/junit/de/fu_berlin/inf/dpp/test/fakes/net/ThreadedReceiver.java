@@ -74,6 +74,16 @@ public class ThreadedReceiver implements IReceiver {
         return collector;
     }
 
+    @Override
+    public int getQueuedPacketCount() {
+        return 0;
+    }
+
+    @Override
+    public int getMaxQueuedPacketCount() {
+        return 0;
+    }
+
     @Override
     public void processBinaryXMPPExtension(final BinaryXMPPExtension extension) {
         throw new UnsupportedOperationException();
@@ -22,6 +22,8 @@
 package de.fu_berlin.inf.dpp.versioning;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.util.Properties;
 
@@ -186,4 +188,27 @@ public class VersionManagerTest {
         assertEquals(resultLocal.getCompatibility(),
             resultRemote.getCompatibility());
     }
+
+    @Test
+    public void testFeaturesAreExchanged() {
+        Version version = Version.parseVersion("1.1.1.r1");
+
+        init(version, version);
+
+        assertFalse(versionManagerLocal.isFeatureSupported(bobJID,
+            VersionManager.FEATURE_BINARY_ACTIVITIES));
+
+        assertFalse(versionManagerRemote.isFeatureSupported(aliceJID,
+            VersionManager.FEATURE_BINARY_ACTIVITIES));
+
+        versionManagerLocal.determineVersionCompatibility(bobJID);
+
+        assertTrue(versionManagerLocal.isFeatureSupported(bobJID,
+            VersionManager.FEATURE_BINARY_ACTIVITIES));
+
+        assertTrue(versionManagerRemote.isFeatureSupported(aliceJID,
+            VersionManager.FEATURE_BINARY_ACTIVITIES));
+
+        assertFalse(versionManagerLocal.isFeatureSupported(bobJID, "foo"));
+    }
 }
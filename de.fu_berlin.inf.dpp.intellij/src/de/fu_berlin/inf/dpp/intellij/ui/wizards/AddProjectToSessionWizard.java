@@ -577,7 +577,7 @@ public class AddProjectToSessionWizard extends Wizard {
                             SubProgressMonitor.SUPPRESS_SETTASKNAME));
 
                 final FileListDiff diff = FileListDiff.diff(localFileList,
-                    data.getFileList(),
+                    negotiation.getRemoteFileList(projectID, localFileList),
                     false);
 
                 if (!diff.getRemovedFolders().isEmpty()
@@ -9,6 +9,7 @@ class ServerConfig {
     private static final String JID_KEY = "de.fu_berlin.inf.dpp.server.jid";
     private static final String PASSWORD_KEY = "de.fu_berlin.inf.dpp.server.password";
     private static final String WORKSPACE_PATH_KEY = "de.fu_berlin.inf.dpp.server.workspace";
+    private static final String CHECKSUM_CACHE_PATH_KEY = "de.fu_berlin.inf.dpp.server.checksumcache";
 
     /**
      * Returns the JID that the Saros server should use to connect to the XMPP
@@ -41,4 +42,17 @@ class ServerConfig {
     public static String getWorkspacePath() {
         return System.getProperty(WORKSPACE_PATH_KEY);
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns the path of the file the server should use to persist the
+     * checksums of the workspace files between restarts. May be
+     * <code>null</code>, which means the server should store the checksums
+     * inside its workspace directory.
+     * 
+     * @return the path of the checksum cache file to use, or <code>null</code>
+     *         if the default location should be used
+     */
+    public static String getChecksumCachePath() {
+        return System.getProperty(CHECKSUM_CACHE_PATH_KEY);
+    }
+}
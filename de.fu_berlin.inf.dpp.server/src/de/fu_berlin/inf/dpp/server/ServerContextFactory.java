@@ -1,5 +1,6 @@
 package de.fu_berlin.inf.dpp.server;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -18,6 +19,7 @@ import de.fu_berlin.inf.dpp.filesystem.IPath;
 import de.fu_berlin.inf.dpp.filesystem.IPathFactory;
 import de.fu_berlin.inf.dpp.filesystem.IWorkspace;
 import de.fu_berlin.inf.dpp.filesystem.NullChecksumCache;
+import de.fu_berlin.inf.dpp.filesystem.PersistentChecksumCache;
 import de.fu_berlin.inf.dpp.monitoring.remote.IRemoteProgressIndicatorFactory;
 import de.fu_berlin.inf.dpp.preferences.IPreferenceStore;
 import de.fu_berlin.inf.dpp.preferences.Preferences;
@@ -44,6 +46,8 @@ public class ServerContextFactory extends CoreContextFactory {
     private static final Logger LOG = Logger
         .getLogger(ServerContextFactory.class);
 
+    private static final String CHECKSUM_CACHE_FILE = ".saros-checksums";
+
     @Override
     public void createComponents(MutablePicoContainer c) {
         super.createComponents(c);
@@ -72,8 +76,6 @@ public class ServerContextFactory extends CoreContextFactory {
             ServerSessionContextFactory.class);
 
         // Other
-        // FIXME put to session scope
-        // c.addComponent(IEditorManager.class, ServerEditorManagerImpl.class);
         c.addComponent(IRemoteProgressIndicatorFactory.class,
             NullRemoteProgressIndicatorFactory.class);
 
@@ -86,7 +88,7 @@ public class ServerContextFactory extends CoreContextFactory {
      */
     private void addOptionialCoreInterfaceImplementations(MutablePicoContainer c) {
         c.addComponent(IProxyResolver.class, NullProxyResolver.class);
-        c.addComponent(IChecksumCache.class, NullChecksumCache.class);
+        c.addComponent(IChecksumCache.class, createChecksumCache());
     }
 
     private void addAdditionalComponents(MutablePicoContainer c) {
@@ -107,6 +109,22 @@ public class ServerContextFactory extends CoreContextFactory {
         return new ServerWorkspaceImpl(location);
     }
 
+    /*
+     * Checksums are only worth persisting if the workspace survives a restart
+     */
+    private IChecksumCache createChecksumCache() {
+        String pathString = ServerConfig.getChecksumCachePath();
+        String workspacePath = ServerConfig.getWorkspacePath();
+
+        if (pathString == null && workspacePath == null)
+            return new NullChecksumCache();
+
+        File cacheFile = pathString != null ? new File(pathString) : new File(
+            workspacePath, CHECKSUM_CACHE_FILE);
+
+        return new PersistentChecksumCache(cacheFile, null);
+    }
+
     private String createTemporaryWorkspaceFolder() {
         final Path folderPath;
 
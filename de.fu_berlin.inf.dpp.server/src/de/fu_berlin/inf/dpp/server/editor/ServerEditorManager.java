@@ -0,0 +1,433 @@
+package de.fu_berlin.inf.dpp.server.editor;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.picocontainer.Startable;
+
+import de.fu_berlin.inf.dpp.activities.EditorActivity;
+import de.fu_berlin.inf.dpp.activities.FileActivity;
+import de.fu_berlin.inf.dpp.activities.SPath;
+import de.fu_berlin.inf.dpp.activities.TextEditActivity;
+import de.fu_berlin.inf.dpp.activities.TextSelectionActivity;
+import de.fu_berlin.inf.dpp.annotations.Component;
+import de.fu_berlin.inf.dpp.editor.IEditorManager;
+import de.fu_berlin.inf.dpp.editor.ISharedEditorListener;
+import de.fu_berlin.inf.dpp.editor.SharedEditorListenerDispatch;
+import de.fu_berlin.inf.dpp.editor.text.LineRange;
+import de.fu_berlin.inf.dpp.editor.text.Rope;
+import de.fu_berlin.inf.dpp.editor.text.TextSelection;
+import de.fu_berlin.inf.dpp.filesystem.IFile;
+import de.fu_berlin.inf.dpp.filesystem.IProject;
+import de.fu_berlin.inf.dpp.session.AbstractActivityConsumer;
+import de.fu_berlin.inf.dpp.session.IActivityConsumer;
+import de.fu_berlin.inf.dpp.session.IActivityConsumer.Priority;
+import de.fu_berlin.inf.dpp.session.ISarosSession;
+import de.fu_berlin.inf.dpp.session.User;
+import de.fu_berlin.inf.dpp.util.NamedThreadFactory;
+import de.fu_berlin.inf.dpp.util.ThreadUtils;
+
+/**
+ * Server implementation of the {@link IEditorManager} interface. As the server
+ * has no user interface, an "editor" is an in-memory {@link Rope buffer} of a
+ * shared file. Buffers are opened on demand when a remote user edits a file
+ * and are written back to disk periodically, when a user saves the file and
+ * when the buffer is closed. Applying an edit therefore neither touches the
+ * disk nor copies the whole document.
+ * <p>
+ * The server does not report any editor activities of its own.
+ */
+@Component(module = "server")
+public class ServerEditorManager implements IEditorManager, Startable {
+
+    private static final Logger LOG = Logger
+        .getLogger(ServerEditorManager.class);
+
+    private static final long FLUSH_INTERVAL = 5000;
+    private static final long TERMINATION_TIMEOUT = 10000;
+
+    // content, dirty and discarded are guarded by the manager
+    private static final class Document {
+        private final IFile file;
+        private final String charset;
+        private Rope content;
+        private boolean dirty;
+        private boolean discarded;
+
+        private Document(IFile file, String charset, Rope content) {
+            this.file = file;
+            this.charset = charset;
+            this.content = content;
+        }
+    }
+
+    private final ISarosSession session;
+
+    private final SharedEditorListenerDispatch editorListeners = new SharedEditorListenerDispatch();
+
+    private final ConcurrentMap<SPath, Document> documents = new ConcurrentHashMap<SPath, Document>();
+
+    /*
+     * Serializes all writes to the disk, so an older snapshot of a document
+     * can never overwrite a newer one. Buffers are discarded while holding
+     * this lock too, so no write of a discarded buffer can be running or
+     * start afterwards.
+     */
+    private final Object flushLock = new Object();
+
+    /*
+     * Incremented whenever buffers are discarded. A buffer that was loaded
+     * while it changed may contain the content of a replaced file.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    private ScheduledThreadPoolExecutor flushExecutor;
+
+    private final IActivityConsumer consumer = new AbstractActivityConsumer() {
+
+        @Override
+        public void receive(TextEditActivity activity) {
+            applyTextEdit(activity);
+        }
+
+        @Override
+        public void receive(TextSelectionActivity activity) {
+            editorListeners.textSelectionChanged(activity);
+        }
+
+        @Override
+        public void receive(EditorActivity activity) {
+            final SPath path = activity.getPath();
+            final User user = activity.getSource();
+
+            switch (activity.getType()) {
+            case ACTIVATED:
+                editorListeners.editorActivated(user, path);
+                break;
+            case CLOSED:
+                editorListeners.editorClosed(user, path);
+                break;
+            case SAVED:
+                flush(path);
+                break;
+            default:
+                LOG.warn("unexpected type: " + activity.getType());
+            }
+        }
+
+        @Override
+        public void receive(FileActivity activity) {
+            /*
+             * the file was replaced, moved or deleted, so the buffered content
+             * is no longer valid
+             */
+            discard(activity.getPath());
+
+            if (activity.getOldPath() != null)
+                discard(activity.getOldPath());
+        }
+    };
+
+    private final Runnable flushDirtyDocuments = new Runnable() {
+        @Override
+        public void run() {
+            flushAll(null);
+        }
+    };
+
+    /**
+     * Creates a ServerEditorManager.
+     *
+     * @param session
+     *            the currently running session
+     */
+    public ServerEditorManager(ISarosSession session) {
+        this.session = session;
+    }
+
+    @Override
+    public void start() {
+        session.addActivityConsumer(consumer, Priority.ACTIVE);
+
+        flushExecutor = new ScheduledThreadPoolExecutor(1,
+            new NamedThreadFactory("Server-Editor-Flush", false));
+
+        flushExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+
+        flushExecutor.scheduleWithFixedDelay(
+            ThreadUtils.wrapSafe(LOG, flushDirtyDocuments), FLUSH_INTERVAL,
+            FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        session.removeActivityConsumer(consumer);
+
+        flushExecutor.shutdown();
+
+        boolean terminationWasInterrupted = false;
+
+        try {
+            if (!flushExecutor.awaitTermination(TERMINATION_TIMEOUT,
+                TimeUnit.MILLISECONDS))
+                LOG.error("editor buffer flush is still running");
+        } catch (InterruptedException e) {
+            LOG.warn("interrupted while waiting for editor buffer flush to terminate");
+            terminationWasInterrupted = true;
+        }
+
+        flushAll(null);
+
+        documents.clear();
+
+        if (terminationWasInterrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    @Override
+    public void openEditor(SPath path, boolean activate) {
+        if (getDocument(path) == null)
+            return;
+
+        if (activate)
+            editorListeners.editorActivated(session.getLocalUser(), path);
+    }
+
+    @Override
+    public Set<SPath> getOpenEditors() {
+        return new HashSet<SPath>(documents.keySet());
+    }
+
+    @Override
+    public String getContent(SPath path) {
+        final Document document = documents.get(path);
+        final Rope content;
+
+        synchronized (this) {
+            content = document == null ? null : document.content;
+        }
+
+        if (content != null)
+            return content.toString();
+
+        final IFile file = path.getFile();
+
+        if (!file.exists())
+            return null;
+
+        try {
+            return read(file, file.getCharset());
+        } catch (IOException e) {
+            LOG.error("could not read file " + file, e);
+            return null;
+        }
+    }
+
+    @Override
+    public void saveEditors(IProject project) {
+        flushAll(project);
+    }
+
+    @Override
+    public void closeEditor(SPath path) {
+        final Document document = documents.remove(path);
+
+        if (document == null)
+            return;
+
+        synchronized (flushLock) {
+            write(document);
+        }
+
+        editorListeners.editorClosed(session.getLocalUser(), path);
+    }
+
+    @Override
+    public void adjustViewport(SPath path, LineRange range,
+        TextSelection selection) {
+        // there is no viewport on the server
+    }
+
+    @Override
+    public void jumpToUser(User target) {
+        // there is no viewport on the server
+    }
+
+    @Override
+    public void addSharedEditorListener(ISharedEditorListener listener) {
+        editorListeners.add(listener);
+    }
+
+    @Override
+    public void removeSharedEditorListener(ISharedEditorListener listener) {
+        editorListeners.remove(listener);
+    }
+
+    private void applyTextEdit(TextEditActivity activity) {
+        final SPath path = activity.getPath();
+        final Document document = getDocument(path);
+
+        if (document == null) {
+            LOG.warn("ignoring text edit for non existing file: " + activity);
+            return;
+        }
+
+        synchronized (this) {
+            final int offset = activity.getOffset();
+            final int length = activity.getReplacedText().length();
+
+            if (offset < 0 || offset + length > document.content.length()) {
+                LOG.error("text edit is out of bounds, document length: "
+                    + document.content.length() + ", edit: " + activity);
+                return;
+            }
+
+            document.content = document.content.replace(offset, length,
+                activity.getText());
+
+            document.dirty = true;
+        }
+
+        editorListeners.textEdited(activity);
+    }
+
+    /*
+     * Returns the buffer of the given file, loading it if necessary. Returns
+     * null if the file does not exist or cannot be read. The file is read
+     * without holding any lock, if two threads load the same file the first
+     * buffer wins.
+     */
+    private Document getDocument(SPath path) {
+        while (true) {
+            final Document document = documents.get(path);
+
+            if (document != null)
+                return document;
+
+            final long loadedGeneration = generation.get();
+
+            final IFile file = path.getFile();
+
+            if (!file.exists())
+                return null;
+
+            final Document loaded;
+
+            try {
+                final String charset = file.getCharset();
+
+                loaded = new Document(file, charset, Rope.valueOf(read(file,
+                    charset)));
+            } catch (IOException e) {
+                LOG.error("could not read file " + file, e);
+                return null;
+            }
+
+            final Document current = documents.putIfAbsent(path, loaded);
+
+            if (current != null)
+                return current;
+
+            if (generation.get() == loadedGeneration)
+                return loaded;
+
+            // the file may have been replaced while it was read
+            documents.remove(path, loaded);
+        }
+    }
+
+    private void discard(SPath path) {
+        synchronized (flushLock) {
+            generation.incrementAndGet();
+
+            final Document document = documents.remove(path);
+
+            if (document == null)
+                return;
+
+            synchronized (this) {
+                document.discarded = true;
+            }
+        }
+    }
+
+    private void flush(SPath path) {
+        final Document document = documents.get(path);
+
+        if (document != null) {
+            synchronized (flushLock) {
+                write(document);
+            }
+        }
+    }
+
+    private void flushAll(IProject project) {
+        final List<Document> dirtyDocuments = new ArrayList<Document>();
+
+        synchronized (this) {
+            for (Map.Entry<SPath, Document> entry : documents.entrySet()) {
+                if (!entry.getValue().dirty)
+                    continue;
+
+                if (project == null
+                    || project.equals(entry.getKey().getProject()))
+                    dirtyDocuments.add(entry.getValue());
+            }
+        }
+
+        synchronized (flushLock) {
+            for (Document document : dirtyDocuments)
+                write(document);
+        }
+    }
+
+    /*
+     * Must be called while holding the flush lock. The content is taken from
+     * the buffer so that edits can continue while the file is written.
+     */
+    private void write(Document document) {
+        final Rope content;
+
+        synchronized (this) {
+            if (!document.dirty || document.discarded)
+                return;
+
+            content = document.content;
+            document.dirty = false;
+        }
+
+        try {
+            document.file.setContents(new ByteArrayInputStream(content
+                .toString().getBytes(document.charset)), true, false);
+        } catch (IOException e) {
+            LOG.error("could not write file " + document.file, e);
+
+            synchronized (this) {
+                document.dirty = true;
+            }
+        }
+    }
+
+    private static String read(IFile file, String charset) throws IOException {
+        final InputStream in = file.getContents();
+
+        try {
+            return IOUtils.toString(in, charset);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+}
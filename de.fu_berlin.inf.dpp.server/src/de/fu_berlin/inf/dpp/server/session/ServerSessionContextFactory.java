@@ -2,6 +2,8 @@ package de.fu_berlin.inf.dpp.server.session;
 
 import org.picocontainer.MutablePicoContainer;
 
+import de.fu_berlin.inf.dpp.editor.IEditorManager;
+import de.fu_berlin.inf.dpp.server.editor.ServerEditorManager;
 import de.fu_berlin.inf.dpp.session.ISarosSession;
 import de.fu_berlin.inf.dpp.session.ISarosSessionContextFactory;
 import de.fu_berlin.inf.dpp.session.SarosCoreSessionContextFactory;
@@ -15,5 +17,6 @@ public class ServerSessionContextFactory extends SarosCoreSessionContextFactory
     public final void createNonCoreComponents(ISarosSession session,
         MutablePicoContainer container) {
 
+        container.addComponent(IEditorManager.class, ServerEditorManager.class);
     }
 }
@@ -0,0 +1,179 @@
+package de.fu_berlin.inf.dpp.server.editor;
+
+import static org.easymock.EasyMock.capture;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.commons.io.FileUtils;
+import org.easymock.Capture;
+import org.easymock.EasyMockSupport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.fu_berlin.inf.dpp.activities.EditorActivity;
+import de.fu_berlin.inf.dpp.activities.FileActivity;
+import de.fu_berlin.inf.dpp.activities.SPath;
+import de.fu_berlin.inf.dpp.activities.TextEditActivity;
+import de.fu_berlin.inf.dpp.filesystem.IProject;
+import de.fu_berlin.inf.dpp.filesystem.IWorkspace;
+import de.fu_berlin.inf.dpp.net.xmpp.JID;
+import de.fu_berlin.inf.dpp.server.filesystem.ServerPathImpl;
+import de.fu_berlin.inf.dpp.server.filesystem.ServerWorkspaceImpl;
+import de.fu_berlin.inf.dpp.session.IActivityConsumer;
+import de.fu_berlin.inf.dpp.session.IActivityConsumer.Priority;
+import de.fu_berlin.inf.dpp.session.ISarosSession;
+import de.fu_berlin.inf.dpp.session.User;
+
+public class ServerEditorManagerTest extends EasyMockSupport {
+
+    private Path workspaceFolder;
+    private IProject project;
+    private SPath path;
+
+    private User alice;
+    private IActivityConsumer consumer;
+    private ServerEditorManager editorManager;
+
+    @Before
+    public void setUp() throws Exception {
+        workspaceFolder = Files.createTempDirectory("saros-test-workspace");
+
+        IWorkspace workspace = new ServerWorkspaceImpl(
+            ServerPathImpl.fromString(workspaceFolder.toString()));
+
+        project = workspace.getProject("project");
+        path = new SPath(project, ServerPathImpl.fromString("file"));
+
+        Files.createDirectories(workspaceFolder.resolve("project"));
+        writeFile("Hello World");
+
+        alice = new User(new JID("alice@test/Saros"), false, false, 1, -1);
+
+        Capture<IActivityConsumer> consumerCapture = new Capture<IActivityConsumer>();
+
+        ISarosSession session = createNiceMock(ISarosSession.class);
+        session.addActivityConsumer(capture(consumerCapture),
+            eq(Priority.ACTIVE));
+        expectLastCall().atLeastOnce();
+        expect(session.getLocalUser()).andStubReturn(
+            new User(new JID("server@test/Saros"), true, true, 0, -1));
+
+        replayAll();
+
+        editorManager = new ServerEditorManager(session);
+        editorManager.start();
+
+        consumer = consumerCapture.getValue();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        editorManager.stop();
+        FileUtils.deleteQuietly(workspaceFolder.toFile());
+    }
+
+    @Test
+    public void testGetContentOfFileWithoutEditor() throws Exception {
+        assertEquals("Hello World", editorManager.getContent(path));
+        assertTrue(editorManager.getOpenEditors().isEmpty());
+    }
+
+    @Test
+    public void testGetContentOfNonExistingFile() throws Exception {
+        assertNull(editorManager.getContent(new SPath(project, ServerPathImpl
+            .fromString("missing"))));
+    }
+
+    @Test
+    public void testTextEditIsAppliedInMemory() throws Exception {
+        edit(5, ",", "");
+        edit(0, "Goodbye", "Hello");
+
+        assertEquals("Goodbye, World", editorManager.getContent(path));
+        assertEquals("Hello World", readFile());
+        assertTrue(editorManager.getOpenEditors().contains(path));
+    }
+
+    @Test
+    public void testSaveEditorsWritesToDisk() throws Exception {
+        edit(11, "!", "");
+        editorManager.saveEditors(project);
+
+        assertEquals("Hello World!", readFile());
+    }
+
+    @Test
+    public void testRemoteSaveWritesToDisk() throws Exception {
+        edit(11, "!", "");
+        consumer.exec(new EditorActivity(alice, EditorActivity.Type.SAVED,
+            path));
+
+        assertEquals("Hello World!", readFile());
+    }
+
+    @Test
+    public void testCloseEditorWritesToDisk() throws Exception {
+        edit(0, "", "Hello ");
+        editorManager.closeEditor(path);
+
+        assertEquals("World", readFile());
+        assertTrue(editorManager.getOpenEditors().isEmpty());
+    }
+
+    @Test
+    public void testStopWritesToDisk() throws Exception {
+        edit(0, "", "Hello ");
+        editorManager.stop();
+
+        assertEquals("World", readFile());
+
+        // tearDown stops again
+        editorManager.start();
+    }
+
+    @Test
+    public void testFileActivityDiscardsBuffer() throws Exception {
+        edit(0, "", "Hello ");
+
+        writeFile("Replaced");
+        consumer.exec(FileActivity.created(alice, path,
+            "Replaced".getBytes("UTF-8"), "UTF-8",
+            FileActivity.Purpose.ACTIVITY));
+
+        assertTrue(editorManager.getOpenEditors().isEmpty());
+        assertEquals("Replaced", editorManager.getContent(path));
+
+        editorManager.saveEditors(null);
+        assertEquals("Replaced", readFile());
+    }
+
+    @Test
+    public void testOutOfBoundsEditIsIgnored() throws Exception {
+        edit(20, "!", "");
+
+        assertEquals("Hello World", editorManager.getContent(path));
+    }
+
+    private void edit(int offset, String text, String replacedText) {
+        consumer.exec(new TextEditActivity(alice, offset, text, replacedText,
+            path));
+    }
+
+    private void writeFile(String content) throws Exception {
+        Files.write(workspaceFolder.resolve("project").resolve("file"),
+            content.getBytes("UTF-8"));
+    }
+
+    private String readFile() throws Exception {
+        return new String(Files.readAllBytes(workspaceFolder
+            .resolve("project").resolve("file")), "UTF-8");
+    }
+}
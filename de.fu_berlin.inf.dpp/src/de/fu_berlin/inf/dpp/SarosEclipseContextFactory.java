@@ -1,5 +1,6 @@
 package de.fu_berlin.inf.dpp;
 
+import java.io.File;
 import java.util.Arrays;
 
 import org.eclipse.core.resources.ResourcesPlugin;
@@ -19,7 +20,6 @@ import de.fu_berlin.inf.dpp.context.AbstractContextFactory;
 import de.fu_berlin.inf.dpp.context.IContextKeyBindings;
 import de.fu_berlin.inf.dpp.editor.EditorManager;
 import de.fu_berlin.inf.dpp.editor.IEditorManager;
-import de.fu_berlin.inf.dpp.filesystem.FileSystemChecksumCache;
 import de.fu_berlin.inf.dpp.filesystem.EclipsePathFactory;
 import de.fu_berlin.inf.dpp.filesystem.EclipseWorkspaceImpl;
 import de.fu_berlin.inf.dpp.filesystem.EclipseWorkspaceRootImpl;
@@ -28,6 +28,7 @@ import de.fu_berlin.inf.dpp.filesystem.IChecksumCache;
 import de.fu_berlin.inf.dpp.filesystem.IPathFactory;
 import de.fu_berlin.inf.dpp.filesystem.IWorkspace;
 import de.fu_berlin.inf.dpp.filesystem.IWorkspaceRoot;
+import de.fu_berlin.inf.dpp.filesystem.PersistentChecksumCache;
 import de.fu_berlin.inf.dpp.monitoring.remote.EclipseRemoteProgressIndicatorFactoryImpl;
 import de.fu_berlin.inf.dpp.monitoring.remote.IRemoteProgressIndicatorFactory;
 import de.fu_berlin.inf.dpp.preferences.EclipsePreferenceStoreAdapter;
@@ -55,6 +56,8 @@ import de.fu_berlin.inf.dpp.ui.eventhandler.XMPPAuthorizationHandler;
  */
 public class SarosEclipseContextFactory extends AbstractContextFactory {
 
+    private static final String CHECKSUM_CACHE_FILE = "checksums.dat";
+
     private final Saros saros;
 
     /**
@@ -94,8 +97,9 @@ public class SarosEclipseContextFactory extends AbstractContextFactory {
              * if we are the delegate and depends on components that are only
              * available after we added all our context stuff or vice versa
              */
-            Component.create(IChecksumCache.class, new FileSystemChecksumCache(
-                new FileContentNotifierBridge())),
+            Component.create(IChecksumCache.class, new PersistentChecksumCache(
+                new File(saros.getStateLocation().toFile(),
+                    CHECKSUM_CACHE_FILE), new FileContentNotifierBridge())),
 
             Component.create(IWorkspace.class, new EclipseWorkspaceImpl(
                 ResourcesPlugin.getWorkspace())),
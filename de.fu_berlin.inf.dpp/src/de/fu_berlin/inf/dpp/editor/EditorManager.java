@@ -6,7 +6,6 @@ import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.Callable;
 
-import org.apache.commons.lang.ObjectUtils;
 import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.log4j.Logger;
 import org.eclipse.core.resources.IFile;
@@ -15,14 +14,16 @@ import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.NullProgressMonitor;
 import org.eclipse.jface.preference.IPreferenceStore;
 import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.DocumentRewriteSession;
+import org.eclipse.jface.text.DocumentRewriteSessionType;
 import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentExtension4;
 import org.eclipse.jface.text.ITextViewer;
 import org.eclipse.jface.text.source.Annotation;
 import org.eclipse.jface.text.source.IAnnotationModel;
 import org.eclipse.jface.text.source.ISourceViewer;
 import org.eclipse.jface.util.IPropertyChangeListener;
 import org.eclipse.jface.util.PropertyChangeEvent;
-import org.eclipse.ui.IEditorInput;
 import org.eclipse.ui.IEditorPart;
 import org.eclipse.ui.IPartListener2;
 import org.eclipse.ui.IWorkbenchWindow;
@@ -111,6 +112,31 @@ public class EditorManager extends AbstractActivityProducer implements
 
     private static final Logger LOG = Logger.getLogger(EditorManager.class);
 
+    /**
+     * Consecutive remote text edits of the same document that are applied as
+     * one bulk change, see {@link IActivityConsumer#beginTextEdits(SPath)}.
+     */
+    private static final class TextEditBatch {
+        private final SPath path;
+        private final FileEditorInput input;
+        private final IDocumentProvider provider;
+        private final IDocument document;
+        private final DocumentRewriteSession rewriteSession;
+
+        /** the last edit of the batch that was applied, may be null */
+        private TextEditActivity lastTextEdit;
+
+        private TextEditBatch(SPath path, FileEditorInput input,
+            IDocumentProvider provider, IDocument document,
+            DocumentRewriteSession rewriteSession) {
+            this.path = path;
+            this.input = input;
+            this.provider = provider;
+            this.document = document;
+            this.rewriteSession = rewriteSession;
+        }
+    }
+
     boolean hasWriteAccess;
 
     boolean isLocked;
@@ -140,6 +166,9 @@ public class EditorManager extends AbstractActivityProducer implements
 
     private LineRange localViewport;
 
+    /** the batch of remote text edits that is currently applied, SWT only */
+    private TextEditBatch textEditBatch;
+
     /** all files that have connected document providers */
     private final Set<IFile> connectedFiles = new HashSet<IFile>();
 
@@ -204,6 +233,16 @@ public class EditorManager extends AbstractActivityProducer implements
             execTextEdit(textEditActivity);
         }
 
+        @Override
+        public void beginTextEdits(SPath path) {
+            beginTextEditBatch(path);
+        }
+
+        @Override
+        public void endTextEdits(SPath path) {
+            endTextEditBatch(path);
+        }
+
         @Override
         public void receive(TextSelectionActivity activity) {
             SPath path = activity.getPath();
@@ -606,29 +645,10 @@ public class EditorManager extends AbstractActivityProducer implements
             return;
         }
 
-        IEditorPart changedEditor = null;
+        SPath path = editorPool.getPath(document);
 
-        // FIXME: This is potentially slow and definitely ugly
-        // search editor which changed
-        for (IEditorPart editor : editorPool.getAllEditors()) {
-            IEditorInput input = editor.getEditorInput();
-
-            if (ObjectUtils.equals(EditorAPI.getDocumentProvider(input)
-                .getDocument(input), document)) {
-                changedEditor = editor;
-                break;
-            }
-        }
-
-        if (changedEditor == null) {
-            LOG.error("Could not find editor for changed document " + document);
-            return;
-        }
-
-        SPath path = EditorAPI.getEditorPath(changedEditor);
         if (path == null) {
-            LOG.warn("Could not find path for editor "
-                + changedEditor.getTitle());
+            LOG.error("Could not find editor for changed document " + document);
             return;
         }
 
@@ -670,10 +690,10 @@ public class EditorManager extends AbstractActivityProducer implements
         /*
          * TODO Investigate if this is really needed here
          */
-        IEditorInput input = changedEditor.getEditorInput();
-        IDocumentProvider provider = EditorAPI.getDocumentProvider(input);
-        IAnnotationModel model = provider.getAnnotationModel(input);
-        contributionAnnotationManager.splitAnnotation(model, offset);
+        IAnnotationModel model = editorPool.getAnnotationModel(document);
+
+        if (model != null)
+            contributionAnnotationManager.splitAnnotation(model, offset);
     }
 
     private void execEditorActivity(EditorActivity editorActivity) {
@@ -739,6 +759,110 @@ public class EditorManager extends AbstractActivityProducer implements
 
         editorPool.setDocumentListenerEnabled(true);
 
+        TextEditBatch batch = getTextEditBatch(path);
+
+        /*
+         * The cursor of a batch is only updated once, after its last edit was
+         * applied.
+         */
+        if (batch != null)
+            batch.lastTextEdit = textEdit;
+        else
+            updateRemoteCursor(textEdit);
+
+        // inform all registered ISharedEditorListeners about this text edit
+        editorListenerDispatch.textEdited(textEdit);
+    }
+
+    /**
+     * Connects the document of the given path once for all text edits of the
+     * batch and starts a rewrite session, so the viewers of the document are
+     * only updated once when the batch ends.
+     */
+    private void beginTextEditBatch(SPath path) {
+
+        assert SWTUtils.isSWT();
+
+        if (textEditBatch != null) {
+            LOG.warn("text edit batch for " + textEditBatch.path
+                + " was not ended before the next one started");
+            endTextEditBatch(textEditBatch.path);
+        }
+
+        IFile file = ((EclipseFileImpl) path.getFile()).getDelegate();
+
+        // the missing file is reported for each text edit
+        if (!file.exists())
+            return;
+
+        FileEditorInput input = new FileEditorInput(file);
+        IDocumentProvider provider = EditorAPI.connect(input);
+
+        if (provider == null)
+            return;
+
+        IDocument document = provider.getDocument(input);
+
+        if (document == null) {
+            provider.disconnect(input);
+            return;
+        }
+
+        DocumentRewriteSession rewriteSession = null;
+
+        /*
+         * the edits of a remote user may be spread over the whole document, so
+         * the changes are not sequential
+         */
+        if (document instanceof IDocumentExtension4
+            && ((IDocumentExtension4) document).getActiveRewriteSession() == null) {
+            rewriteSession = ((IDocumentExtension4) document)
+                .startRewriteSession(DocumentRewriteSessionType.UNRESTRICTED);
+        }
+
+        textEditBatch = new TextEditBatch(path, input, provider, document,
+            rewriteSession);
+    }
+
+    private void endTextEditBatch(SPath path) {
+
+        assert SWTUtils.isSWT();
+
+        TextEditBatch batch = getTextEditBatch(path);
+
+        if (batch == null)
+            return;
+
+        textEditBatch = null;
+
+        try {
+            if (batch.rewriteSession != null) {
+                ((IDocumentExtension4) batch.document)
+                    .stopRewriteSession(batch.rewriteSession);
+            }
+        } finally {
+            batch.provider.disconnect(batch.input);
+        }
+
+        if (batch.lastTextEdit != null)
+            updateRemoteCursor(batch.lastTextEdit);
+    }
+
+    /**
+     * Returns the text edit batch that is currently applied to the document
+     * of the given path or <code>null</code> if there is none.
+     */
+    private TextEditBatch getTextEditBatch(SPath path) {
+        if (textEditBatch == null || !textEditBatch.path.equals(path))
+            return null;
+
+        return textEditBatch;
+    }
+
+    private void updateRemoteCursor(TextEditActivity textEdit) {
+        SPath path = textEdit.getPath();
+        User user = textEdit.getSource();
+
         /*
          * TODO Find out whether this is actually necessary. If we receive a
          * TextSelectionActivity for each cursor movement, then we don't need to
@@ -747,9 +871,6 @@ public class EditorManager extends AbstractActivityProducer implements
         /*
          * If the text edit ends in the visible region of a local editor, set
          * the cursor annotation.
-         * 
-         * TODO Performance optimization in case of batch operation might make
-         * sense. Problem: How to recognize batch operations?
          */
         for (IEditorPart editorPart : editorPool.getEditors(path)) {
             ITextViewer viewer = EditorAPI.getViewer(editorPart);
@@ -768,9 +889,6 @@ public class EditorManager extends AbstractActivityProducer implements
                     user);
             }
         }
-
-        // inform all registered ISharedEditorListeners about this text edit
-        editorListenerDispatch.textEdited(textEdit);
     }
 
     @Override
@@ -1060,8 +1178,18 @@ public class EditorManager extends AbstractActivityProducer implements
         String text, User source) {
 
         IFile file = ((EclipseFileImpl) path.getFile()).getDelegate();
-        FileEditorInput input = new FileEditorInput(file);
-        IDocumentProvider provider = EditorAPI.connect(input);
+
+        /*
+         * the document of a text edit batch is already connected and stays
+         * connected until the batch ends
+         */
+        TextEditBatch batch = getTextEditBatch(path);
+
+        FileEditorInput input = batch != null ? batch.input
+            : new FileEditorInput(file);
+
+        IDocumentProvider provider = batch != null ? batch.provider
+            : EditorAPI.connect(input);
 
         if (provider == null) {
             // TODO Trigger a consistency recovery
@@ -1120,7 +1248,8 @@ public class EditorManager extends AbstractActivityProducer implements
             contributionAnnotationManager.insertAnnotation(model, offset,
                 text.length(), source);
         } finally {
-            provider.disconnect(input);
+            if (batch == null)
+                provider.disconnect(input);
         }
     }
 
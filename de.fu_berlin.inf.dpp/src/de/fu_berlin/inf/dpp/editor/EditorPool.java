@@ -3,9 +3,9 @@ package de.fu_berlin.inf.dpp.editor;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
@@ -14,6 +14,7 @@ import org.eclipse.core.runtime.IPath;
 import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.IDocumentListener;
 import org.eclipse.jface.text.ITextViewer;
+import org.eclipse.jface.text.source.IAnnotationModel;
 import org.eclipse.ui.IEditorInput;
 import org.eclipse.ui.IEditorPart;
 import org.eclipse.ui.ide.ResourceUtil;
@@ -46,11 +47,18 @@ final class EditorPool {
     private static class EditorPartInputReferences {
         private final IEditorInput input;
         private final IFile file;
+        private final SPath path;
+        private final IDocument document;
+        private final IAnnotationModel annotationModel;
 
         private EditorPartInputReferences(final IEditorInput input,
-            final IFile file) {
+            final IFile file, final SPath path, final IDocument document,
+            final IAnnotationModel annotationModel) {
             this.input = input;
             this.file = file;
+            this.path = path;
+            this.document = document;
+            this.annotationModel = annotationModel;
         }
     }
 
@@ -73,6 +81,14 @@ final class EditorPool {
      */
     private final Map<IEditorPart, EditorPartInputReferences> editorInputMap = new HashMap<IEditorPart, EditorPartInputReferences>();
 
+    /**
+     * The documentEditors-map contains the documents of all IEditorParts which
+     * are managed by the EditorPool and the IEditorParts displaying them. It
+     * allows to find the editors of a changed document without querying the
+     * document providers. Documents are compared by identity, not by content.
+     */
+    private final Map<IDocument, Set<IEditorPart>> documentEditors = new IdentityHashMap<IDocument, Set<IEditorPart>>();
+
     private final Map<IEditorPart, EditorListener> editorListeners = new HashMap<IEditorPart, EditorListener>();
 
     /**
@@ -150,9 +166,10 @@ final class EditorPool {
         final IDocumentProvider documentProvider = EditorAPI
             .getDocumentProvider(input);
 
+        final IDocument document = documentProvider.getDocument(input);
+
         dirtyStateListener.register(documentProvider, input);
-        documentProvider.getDocument(input).addDocumentListener(
-            documentListener);
+        document.addDocumentListener(documentListener);
 
         final SPath path = new SPath(ResourceAdapterFactory.create(file));
 
@@ -163,11 +180,19 @@ final class EditorPool {
             editorParts.put(path, parts);
         }
 
+        Set<IEditorPart> documentParts = documentEditors.get(document);
+
+        if (documentParts == null) {
+            documentParts = new HashSet<IEditorPart>();
+            documentEditors.put(document, documentParts);
+        }
+
         editorInputMap.put(editorPart, new EditorPartInputReferences(input,
-            file));
+            file, path, document, documentProvider.getAnnotationModel(input)));
 
         editorListeners.put(editorPart, listener);
         parts.add(editorPart);
+        documentParts.add(editorPart);
     }
 
     private void setEditable(IEditorPart editorPart, boolean newIsEditable) {
@@ -195,18 +220,46 @@ final class EditorPool {
      *         editor is not managed by this pool
      */
     public SPath getPath(final IEditorPart editorPart) {
-        if (!isManaged(editorPart))
+        final EditorPartInputReferences inputRefs = editorInputMap
+            .get(editorPart);
+
+        return inputRefs == null ? null : inputRefs.path;
+    }
+
+    /**
+     * Returns the {@linkplain SPath path} of the given document. This method
+     * does not access any document provider, so it is cheap enough to be
+     * called for every change of a document.
+     * 
+     * @return the path of the document or <code>null</code> if the document is
+     *         not displayed by any editor managed by this pool
+     */
+    public SPath getPath(final IDocument document) {
+        final Set<IEditorPart> parts = documentEditors.get(document);
+
+        if (parts == null)
             return null;
 
-        for (final Entry<SPath, Set<IEditorPart>> entry : editorParts
-            .entrySet()) {
+        return editorInputMap.get(parts.iterator().next()).path;
+    }
 
-            if (entry.getValue().contains(editorPart))
-                return entry.getKey();
-        }
+    /**
+     * Returns the annotation model of the given document as it was provided
+     * when the first editor displaying the document was added to this pool.
+     * Like {@link #getPath(IDocument)} this method does not access any
+     * document provider.
+     * 
+     * @return the annotation model of the document or <code>null</code> if the
+     *         document is not displayed by any editor managed by this pool or
+     *         has no annotation model
+     */
+    public IAnnotationModel getAnnotationModel(final IDocument document) {
+        final Set<IEditorPart> parts = documentEditors.get(document);
+
+        if (parts == null)
+            return null;
 
-        // assert false : should never been reached
-        return null;
+        return editorInputMap.get(parts.iterator().next()).annotationModel;
     }
 
     /**
@@ -250,19 +303,24 @@ final class EditorPool {
 
         dirtyStateListener.unregister(documentProvider, input);
 
-        final IDocument document = documentProvider.getDocument(input);
+        /*
+         * use the document the listener was added to, the provider may already
+         * return another one
+         */
+        final IDocument document = inputRefs.document;
 
-        if (document == null) {
-            LOG.warn("could not disconnect from document: " + file);
-        } else {
-            document.removeDocumentListener(documentListener);
-        }
+        document.removeDocumentListener(documentListener);
 
-        editorManager.disconnect(file);
+        final Set<IEditorPart> documentParts = documentEditors.get(document);
 
-        final SPath path = new SPath(ResourceAdapterFactory.create(file));
+        documentParts.remove(editorPart);
+
+        if (documentParts.isEmpty())
+            documentEditors.remove(document);
+
+        editorManager.disconnect(file);
 
-        editorParts.get(path).remove(editorPart);
+        editorParts.get(inputRefs.path).remove(editorPart);
     }
 
     /**
@@ -6,6 +6,7 @@ import java.util.Map.Entry;
 
 import de.fu_berlin.inf.dpp.annotations.Component;
 import de.fu_berlin.inf.dpp.net.IConnectionManager;
+import de.fu_berlin.inf.dpp.net.IReceiver;
 import de.fu_berlin.inf.dpp.net.ITransferListener;
 import de.fu_berlin.inf.dpp.net.stream.StreamMode;
 import de.fu_berlin.inf.dpp.session.ISarosSession;
@@ -32,10 +33,23 @@ public class DataTransferCollector extends AbstractStatisticCollector {
     /** Convenience value of total_size / total_time in KB/s */
     private static final String TRANSFER_STATS_THROUGHPUT_SUFFIX = "average_throughput_kbs";
 
+    /** Total time spent compressing sent data in milliseconds */
+    private static final String TRANSFER_STATS_COMPRESSION_TIME_SUFFIX = "total_compression_time_ms";
+
+    /** Total time spent decompressing received data in milliseconds */
+    private static final String TRANSFER_STATS_DECOMPRESSION_TIME_SUFFIX = "total_decompression_time_ms";
+
+    private static final String RECEIVER_STATS_PREFIX = "receiver";
+
+    /** Maximum number of received packets waiting to be forwarded */
+    private static final String RECEIVER_STATS_MAX_QUEUED_PACKETS_SUFFIX = "max_queued_packets";
+
     // we currently do not distinguish between sent and received data
     private static class TransferStatisticHolder {
         private long bytesTransferred;
         private long transferTime; // ms
+        private long compressionTime; // ns
+        private long decompressionTime; // ns
         private int count;
     }
 
@@ -44,42 +58,44 @@ public class DataTransferCollector extends AbstractStatisticCollector {
 
     private final IConnectionManager connectionManager;
 
+    private final IReceiver receiver;
+
     private final ITransferListener dataTransferlistener = new ITransferListener() {
 
         @Override
         public void sent(final StreamMode mode, final long sizeCompressed,
-            final long sizeUncompressed, final long duration) {
+            final long sizeUncompressed, final long duration,
+            final long compressionTime) {
             // see processGatheredData
             synchronized (DataTransferCollector.this) {
-                TransferStatisticHolder holder = statistic.get(mode);
+                final TransferStatisticHolder holder = addTransfer(mode,
+                    sizeCompressed, duration);
 
-                if (holder == null) {
-                    holder = new TransferStatisticHolder();
-                    statistic.put(mode, holder);
-                }
-
-                holder.bytesTransferred += sizeCompressed;
-                holder.transferTime += sizeUncompressed;
-                holder.count++;
-
-                // TODO how to handle overflow ?
+                holder.compressionTime += compressionTime;
             }
         }
 
         @Override
         public void received(final StreamMode mode,
             final long sizeCompressed, final long sizeUncompressed,
-            final long duration) {
-            // TODO differentiate the traffic
-            sent(mode, sizeCompressed, sizeUncompressed, duration);
+            final long duration, final long decompressionTime) {
+            // see processGatheredData
+            synchronized (DataTransferCollector.this) {
+                final TransferStatisticHolder holder = addTransfer(mode,
+                    sizeCompressed, duration);
+
+                holder.decompressionTime += decompressionTime;
+            }
         }
 
     };
 
     public DataTransferCollector(StatisticManager statisticManager,
-        ISarosSession session, IConnectionManager connectionManager) {
+        ISarosSession session, IConnectionManager connectionManager,
+        IReceiver receiver) {
         super(statisticManager, session);
         this.connectionManager = connectionManager;
+        this.receiver = receiver;
     }
 
     @Override
@@ -94,7 +110,15 @@ public class DataTransferCollector extends AbstractStatisticCollector {
             storeTransferStatisticForMode(mode.toString(), holder.count,
                 holder.bytesTransferred, holder.transferTime);
 
+            data.put(KEY_TRANSFER_STATS, holder.compressionTime / 1000000,
+                mode.toString(), TRANSFER_STATS_COMPRESSION_TIME_SUFFIX);
+
+            data.put(KEY_TRANSFER_STATS, holder.decompressionTime / 1000000,
+                mode.toString(), TRANSFER_STATS_DECOMPRESSION_TIME_SUFFIX);
         }
+
+        data.put(KEY_TRANSFER_STATS, receiver.getMaxQueuedPacketCount(),
+            RECEIVER_STATS_PREFIX, RECEIVER_STATS_MAX_QUEUED_PACKETS_SUFFIX);
     }
 
     @Override
@@ -107,6 +131,25 @@ public class DataTransferCollector extends AbstractStatisticCollector {
         connectionManager.removeTransferListener(dataTransferlistener);
     }
 
+    // caller must hold the monitor of this collector
+    private TransferStatisticHolder addTransfer(final StreamMode mode,
+        final long size, final long duration) {
+        TransferStatisticHolder holder = statistic.get(mode);
+
+        if (holder == null) {
+            holder = new TransferStatisticHolder();
+            statistic.put(mode, holder);
+        }
+
+        holder.bytesTransferred += size;
+        holder.transferTime += duration;
+        holder.count++;
+
+        // TODO how to handle overflow ?
+
+        return holder;
+    }
+
     private void storeTransferStatisticForMode(final String transferMode,
         final int transferEvents, final long totalSize,
         final long totalTransferTime) {
@@ -561,6 +561,7 @@ public class AddProjectToSessionWizard extends Wizard {
                 project.refreshLocal(IResource.DEPTH_INFINITE, null);
 
             final FileList localFileList;
+            final FileList remoteFileList;
 
             /*
              * TODO optimize for partial shared projects a.k.a do not scan all
@@ -572,6 +573,9 @@ public class AddProjectToSessionWizard extends Wizard {
                     null, checksumCache, ProgressMonitorAdapterFactory
                         .convert(subMonitor.newChild(1,
                             SubMonitor.SUPPRESS_ALL_LABELS)));
+
+                remoteFileList = negotiation.getRemoteFileList(projectID,
+                    localFileList);
             } catch (IOException e) {
                 Throwable cause = e.getCause();
 
@@ -580,14 +584,14 @@ public class AddProjectToSessionWizard extends Wizard {
 
                 throw new CoreException(new org.eclipse.core.runtime.Status(
                     IStatus.ERROR, Saros.PLUGIN_ID,
-                    "failed to compute local file list", e));
+                    "failed to compute the file lists", e));
             }
 
             final ProjectNegotiationData data = negotiation
                 .getProjectNegotiationData(projectID);
 
             final FileListDiff diff = FileListDiff.diff(localFileList,
-                data.getFileList(), data.isPartial());
+                remoteFileList, data.isPartial());
 
             if (!diff.getRemovedFolders().isEmpty()
                 || !diff.getRemovedFiles().isEmpty()
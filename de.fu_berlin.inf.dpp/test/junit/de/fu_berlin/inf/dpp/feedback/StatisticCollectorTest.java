@@ -24,6 +24,7 @@ import de.fu_berlin.inf.dpp.context.IContextKeyBindings;
 import de.fu_berlin.inf.dpp.editor.EditorManager;
 import de.fu_berlin.inf.dpp.editor.FollowModeManager;
 import de.fu_berlin.inf.dpp.net.IConnectionManager;
+import de.fu_berlin.inf.dpp.net.IReceiver;
 import de.fu_berlin.inf.dpp.net.internal.DataTransferManager;
 import de.fu_berlin.inf.dpp.net.xmpp.JID;
 import de.fu_berlin.inf.dpp.session.ISarosSession;
@@ -106,6 +107,7 @@ public class StatisticCollectorTest {
         FeedbackPreferences.setPreferences(preferences);
 
         addMockedComponent(IConnectionManager.class, DataTransferManager.class);
+        addMockedComponent(IReceiver.class, IReceiver.class);
 
         // Components we want to create
         container.addComponent(StatisticManager.class);
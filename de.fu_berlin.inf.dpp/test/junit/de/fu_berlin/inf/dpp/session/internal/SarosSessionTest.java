@@ -107,6 +107,16 @@ public class SarosSessionTest {
             throw new UnsupportedOperationException();
         }
 
+        @Override
+        public int getQueuedPacketCount() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int getMaxQueuedPacketCount() {
+            throw new UnsupportedOperationException();
+        }
+
         public synchronized int getCurrentPacketListenersCount() {
             return currentListeners;
         }